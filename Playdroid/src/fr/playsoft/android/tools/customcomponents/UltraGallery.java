@@ -525,6 +525,23 @@ public class UltraGallery extends AdapterView< ListAdapter > implements IRefresh
 			{
 				lGalleryItem.updateView( mInflater , convertView , mInstance , true , position );
 			}
+			
+			// Prepare images of neighbouring items so they are ready when scrolled in
+			int[] lPositionsToPrefetch =
+			{
+					position + 1 , position - 1
+			};
+			for ( int lPosition : lPositionsToPrefetch )
+			{
+				if ( ( lPosition >= 0 ) && ( lPosition < mItems.size() ) )
+				{
+					UltraGalleryCell lItem = mItems.get( lPosition );
+					if ( lItem.mGalleryItemType == lGalleryItem.mGalleryItemType )
+					{
+						lItem.prefetchImages( convertView );
+					}
+				}
+			}
 			return convertView;
 		}
 		
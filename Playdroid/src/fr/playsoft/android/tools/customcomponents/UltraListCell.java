@@ -2,7 +2,6 @@ package fr.playsoft.android.tools.customcomponents;
 
 import java.util.List;
 
-import android.graphics.Matrix;
 import android.graphics.drawable.Drawable;
 import android.text.Spanned;
 import android.view.LayoutInflater;
@@ -12,7 +11,6 @@ import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.ImageButton;
 import android.widget.ImageView;
-import android.widget.ImageView.ScaleType;
 import android.widget.TextView;
 import fr.playsoft.android.tools.customcomponents.interfaces.IRefreshable;
 import fr.playsoft.android.tools.customcomponents.interfaces.IUltraListCellCheckBoxChecked;
@@ -21,13 +19,10 @@ import fr.playsoft.android.tools.customcomponents.interfaces.IUltraListCellImage
 import fr.playsoft.android.tools.customcomponents.interfaces.IUltraListDataProvider;
 import fr.playsoft.android.tools.customcomponents.interfaces.IUltraListDrawableProvider;
 import fr.playsoft.android.tools.debug.Log;
+import fr.playsoft.android.tools.drawables.DrawableBinder;
 import fr.playsoft.android.tools.drawables.DrawableCacher;
-import fr.playsoft.android.tools.drawables.DrawableLoader;
-import fr.playsoft.android.tools.drawables.IDrawableLoadingFinishedListener;
 import fr.playsoft.android.tools.resource.DownloadTask;
-import fr.playsoft.android.tools.resource.IDownloadFinishedListener;
 import fr.playsoft.android.tools.resource.IFileChecker;
-import fr.playsoft.android.tools.resource.ManagerResource;
 import fr.playsoft.android.tools.resource.MemorySlot;
 import fr.playsoft.android.tools.resource.ResourceDescriptor;
 
@@ -184,56 +179,6 @@ public class UltraListCell
 		return mCellElements;
 	}
 	
-	/**
-	 * Setups the ImageView.
-	 * 
-	 * @param pImageView ImageView to setup.
-	 * @param pDrawable Drawable to put inside, can be null.
-	 * @param pElement CellElement for this ImageView.
-	 * @param pDescriptor ResourceDescriptor of the image. Can be null.
-	 */
-	private void setupImageView( ImageView pImageView , Drawable pDrawable , ElementCell pElement , ResourceDescriptor pDescriptor )
-	{
-		if ( pDrawable != null )
-		{
-			// We have the image already
-			if ( ( pDescriptor != null ) && ( pDescriptor.getTag() != null ) )
-			{
-				// We have a custom ScaleType
-				pImageView.setScaleType( (ScaleType) pDescriptor.getTag() );
-				pImageView.setImageDrawable( pDrawable );
-				pImageView.setVisibility( View.VISIBLE );
-			}
-			else
-			{
-				// Default MATRIX ScaleType
-				Matrix lMatrix = new Matrix();
-				lMatrix.postTranslate( ( pImageView.getLayoutParams().width - pDrawable.getIntrinsicWidth() ) / 2 ,
-						( pImageView.getLayoutParams().height - pDrawable.getIntrinsicHeight() ) / 2 );
-				pImageView.setScaleType( ScaleType.MATRIX );
-				pImageView.setImageMatrix( lMatrix );
-				pImageView.setImageDrawable( pDrawable );
-				pImageView.setVisibility( View.VISIBLE );
-			}
-		}
-		else
-		{
-			// We dont have the image yet
-			if ( ManagerResource.getEmptyDrawable() != null )
-			{
-				// Lets use the default drawable
-				pImageView.setScaleType( ScaleType.CENTER_CROP );
-				pImageView.setImageDrawable( ManagerResource.getEmptyDrawable() );
-				pImageView.setVisibility( View.VISIBLE );
-			}
-			else
-			{
-				// We have nothing, hiding the ImageView
-				pImageView.setVisibility( View.INVISIBLE );
-			}
-		}
-	}
-	
 	/**
 	 * Creates View for this cell.
 	 * 
@@ -321,6 +266,7 @@ public class UltraListCell
 					break;
 				
 				case IUltraListCellConfig.ELEMENT_TYPE_IMAGE:
+				case IUltraListCellConfig.ELEMENT_TYPE_VIDEO_THUMBNAIL:
 					ImageView lImageView = null;
 					try
 					{
@@ -341,7 +287,8 @@ public class UltraListCell
 					if ( pDrawableProvider != null )
 					{
 						Drawable lDrawable = pDrawableProvider.getDrawable( pListId , pPosition , this , lElement.mElementId );
-						setupImageView( lImageView , lDrawable , lElement , null );
+						DrawableBinder.unbind( lImageView );
+						DrawableBinder.setupImageView( lImageView , lDrawable , null );
 						lDrawable = null;
 						break;
 					}
@@ -353,68 +300,11 @@ public class UltraListCell
 						continue;
 					}
 					ResourceDescriptor lImageResourceDescriptor = (ResourceDescriptor) lElement.mElementValue;
-					final String lFileName = lImageResourceDescriptor.getMD5();
-					final int lDesiredWidth = lImageView.getLayoutParams().width;
-					final int lDesiredHeight = lImageView.getLayoutParams().height;
-					Drawable lDrawable = sCacher.getDrawableFromCache( lFileName , lDesiredWidth , lDesiredHeight );
-					setupImageView( lImageView , lDrawable , lElement , lImageResourceDescriptor );
-					if ( lDrawable == null )
-					{
-						// We dont have this image yet - lets get it to have it next time
-						if ( ManagerResource.isFileAvailable( lFileName ) )
-						{
-							// Load the image and refresh view
-							DrawableLoader.addTask( lFileName , lDesiredWidth , lDesiredHeight , new IDrawableLoadingFinishedListener()
-							{
-								@Override
-								public void onDrawableLoaded( Drawable pDrawable )
-								{
-									if ( pDrawable != null )
-									{
-										sCacher.addDrawableToCache( pDrawable , lFileName , lDesiredWidth , lDesiredHeight );
-										pParentView.refreshView();
-									}
-								}
-							} );
-						}
-						else
-						{
-							if ( pIsAutoDownloadEnabled )
-							{
-								// Download the image and refresh view
-								if ( !ManagerResource.isFileInTaskQueue( lImageResourceDescriptor ) )
-								{
-									ManagerResource.addTask( lImageResourceDescriptor , ManagerResource.getCurrentMaxPriority() ,
-											new IDownloadFinishedListener()
-											{
-												@Override
-												public void onDownloadingFinished()
-												{
-												}
-												
-												@Override
-												public void onDownloadTaskSuccessful( DownloadTask pTask )
-												{
-													pParentView.refreshView();
-												}
-												
-												@Override
-												public void onDownloadTaskFailed( DownloadTask pTask )
-												{
-												}
-												
-												@Override
-												public boolean isDownloadCancelled( DownloadTask pTask )
-												{
-													return false;
-												}
-											} , SIMPLE_IMAGE_CHECKER , ManagerResource.TASK_TYPE_SMALL_FILE , null , null , null );
-								}
-							}
-						}
-					}
+					boolean lIsVideoThumbnail = ( lCurrentElementType == IUltraListCellConfig.ELEMENT_TYPE_VIDEO_THUMBNAIL );
+					DrawableBinder.bind( lImageView , lImageResourceDescriptor , DrawableBinder.getDesiredWidth( lImageView ) ,
+							DrawableBinder.getDesiredHeight( lImageView ) , lIsVideoThumbnail , sCacher , pIsAutoDownloadEnabled ,
+							SIMPLE_IMAGE_CHECKER );
 					lImageView = null;
-					lDrawable = null;
 					break;
 				
 				case IUltraListCellConfig.ELEMENT_TYPE_IMAGEBUTTON:
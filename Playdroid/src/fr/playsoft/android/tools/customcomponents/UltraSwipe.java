@@ -106,6 +106,7 @@ public class UltraSwipe extends ViewPager implements IRefreshable
 			{
 				mCurrentPosition = arg0;
 				setCurrentPage( mCurrentPosition );
+				mAdapter.prefetchPagesAround( mCurrentPosition );
 				mOnPageChangeListener.onPageSelected( arg0 );
 			}
 			
@@ -233,6 +234,52 @@ public class UltraSwipe extends ViewPager implements IRefreshable
 			return ( mViewPagerData.get( mInstance.mCurrentPosition ) );
 		}
 		
+		/**
+		 * Starts decoding images of pages that ViewPager will create next - the first ones outside of its offscreen page limit.
+		 * 
+		 * @param pPosition Currently selected position.
+		 */
+		public void prefetchPagesAround( int pPosition )
+		{
+			if ( ( pPosition < 0 ) || ( pPosition >= getRealCount() ) )
+			{
+				return;
+			}
+			
+			// Find view of current page to use it as template for image sizes
+			UltraSwipeCell lCurrentItem = mViewPagerData.get( pPosition );
+			View lCurrentView = null;
+			for ( int i = 0; i < mInstance.getChildCount(); i++ )
+			{
+				if ( mInstance.getChildAt( i ).getTag() == lCurrentItem )
+				{
+					lCurrentView = mInstance.getChildAt( i );
+					break;
+				}
+			}
+			if ( lCurrentView == null )
+			{
+				return;
+			}
+			
+			int lDistance = mInstance.getOffscreenPageLimit() + 1;
+			int[] lPositionsToPrefetch =
+			{
+					pPosition + lDistance , pPosition - lDistance
+			};
+			for ( int lPosition : lPositionsToPrefetch )
+			{
+				if ( ( lPosition >= 0 ) && ( lPosition < getRealCount() ) )
+				{
+					UltraSwipeCell lItem = mViewPagerData.get( lPosition );
+					if ( lItem.getType() == lCurrentItem.getType() )
+					{
+						lItem.prefetchImages( lCurrentView );
+					}
+				}
+			}
+		}
+		
 		/**
 		 * Gets current real count of items in adapter
 		 * 
@@ -2,23 +2,19 @@ package fr.playsoft.android.tools.customcomponents;
 
 import java.util.List;
 
-import android.graphics.Matrix;
-import android.graphics.drawable.Drawable;
 import android.text.Spanned;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.widget.ImageView;
-import android.widget.ImageView.ScaleType;
 import android.widget.TextView;
 import fr.playsoft.android.tools.customcomponents.interfaces.IRefreshable;
 import fr.playsoft.android.tools.customcomponents.interfaces.IUltraListCellConfig;
 import fr.playsoft.android.tools.customcomponents.interfaces.IUltraSwipeConfig;
 import fr.playsoft.android.tools.debug.Log;
+import fr.playsoft.android.tools.drawables.DrawableBinder;
 import fr.playsoft.android.tools.drawables.DrawableCacher;
 import fr.playsoft.android.tools.resource.DownloadTask;
-import fr.playsoft.android.tools.resource.IDownloadFinishedListener;
 import fr.playsoft.android.tools.resource.IFileChecker;
-import fr.playsoft.android.tools.resource.ManagerResource;
 import fr.playsoft.android.tools.resource.MemorySlot;
 import fr.playsoft.android.tools.resource.ResourceDescriptor;
 
@@ -193,57 +189,8 @@ public class UltraSwipeCell
 						continue;
 					}
 					final ResourceDescriptor lImageResourceDescriptor = (ResourceDescriptor) lElement.mElementValue;
-					final String lFileName = lImageResourceDescriptor.getMD5();
-					final int lDesiredWidth = lImageView.getLayoutParams().width;
-					final int lDesiredHeight = lImageView.getLayoutParams().height;
-					final Drawable lDrawable = sCacher.getDrawableFromCache( lFileName , lDesiredWidth , lDesiredHeight );
-					setupImageView( lImageView , lDrawable , lElement , lImageResourceDescriptor );
-					
-					if ( lDrawable == null )
-					{
-						// We dont have this image yet - lets get it to have it next time
-						if ( ManagerResource.isFileAvailable( lFileName ) )
-						{
-							sCacher.addDrawableToCache( ManagerResource.getScaledBitmapDrawable( lImageResourceDescriptor.getMD5() , 500 , 500 ) ,
-									lImageResourceDescriptor.getMD5() );
-							lImageView.setImageDrawable( sCacher.getDrawableFromCache( lImageResourceDescriptor.getMD5() ) );
-						}
-						else
-						{
-							if ( true )
-							{
-								// Download the image and refresh view
-								if ( !ManagerResource.isFileInTaskQueue( lImageResourceDescriptor ) )
-								{
-									ManagerResource.addTask( lImageResourceDescriptor , ManagerResource.getCurrentMaxPriority() ,
-											new IDownloadFinishedListener()
-											{
-												@Override
-												public void onDownloadingFinished()
-												{
-												}
-												
-												@Override
-												public void onDownloadTaskSuccessful( DownloadTask pTask )
-												{
-													pParentView.refreshView();
-												}
-												
-												@Override
-												public void onDownloadTaskFailed( DownloadTask pTask )
-												{
-												}
-												
-												@Override
-												public boolean isDownloadCancelled( DownloadTask pTask )
-												{
-													return false;
-												}
-											} , SIMPLE_IMAGE_CHECKER , ManagerResource.TASK_TYPE_SMALL_FILE , null , null , null );
-								}
-							}
-						}
-					}
+					DrawableBinder.bind( lImageView , lImageResourceDescriptor , DrawableBinder.getDesiredWidth( lImageView ) ,
+							DrawableBinder.getDesiredHeight( lImageView ) , sCacher , pIsAutoDownloadEnabled , SIMPLE_IMAGE_CHECKER );
 					break;
 			
 			}
@@ -251,44 +198,30 @@ public class UltraSwipeCell
 		}
 	}
 	
-	private void setupImageView( ImageView pImageView , Drawable pDrawable , ElementSwipe pElement , ResourceDescriptor pDescriptor )
+	/**
+	 * Starts decoding images of this cell in background so they are ready before the cell is shown.
+	 * 
+	 * @param pTemplateView Already created view of the same type, used to get image sizes.
+	 */
+	public void prefetchImages( View pTemplateView )
 	{
-		if ( pDrawable != null )
+		for ( ElementSwipe lElement : mSwipeElements )
 		{
-			// We have the image already
-			if ( ( pDescriptor != null ) && ( pDescriptor.getTag() != null ) )
+			if ( ( lElement == null ) || !( lElement.mElementValue instanceof ResourceDescriptor ) )
 			{
-				// We have a custom ScaleType
-				pImageView.setScaleType( (ScaleType) pDescriptor.getTag() );
-				pImageView.setImageDrawable( pDrawable );
-				pImageView.setVisibility( View.VISIBLE );
-			}
-			else
-			{
-				// Default MATRIX ScaleType
-				Matrix lMatrix = new Matrix();
-				lMatrix.postTranslate( ( pImageView.getLayoutParams().width - pDrawable.getIntrinsicWidth() ) / 2 ,
-						( pImageView.getLayoutParams().height - pDrawable.getIntrinsicHeight() ) / 2 );
-				pImageView.setScaleType( ScaleType.MATRIX );
-				pImageView.setImageMatrix( lMatrix );
-				pImageView.setImageDrawable( pDrawable );
-				pImageView.setVisibility( View.VISIBLE );
+				continue;
 			}
-		}
-		else
-		{
-			// We dont have the image yet
-			if ( ManagerResource.getEmptyDrawable() != null )
+			int[] lElementConfiguration = sSwipeConfig.getElementConfiguration( lElement.mElementId );
+			if ( lElementConfiguration[ IUltraListCellConfig.DATA_ELEMENT_TYPE ] != IUltraSwipeConfig.ELEMENT_TYPE_IMAGE )
 			{
-				// Lets use the default drawable
-				pImageView.setScaleType( ScaleType.CENTER_CROP );
-				pImageView.setImageDrawable( ManagerResource.getEmptyDrawable() );
-				pImageView.setVisibility( View.VISIBLE );
+				continue;
 			}
-			else
+			View lView = pTemplateView.findViewById( lElementConfiguration[ IUltraListCellConfig.DATA_ELEMENT_VIEW ] );
+			if ( lView instanceof ImageView )
 			{
-				// We have nothing, hiding the ImageView
-				pImageView.setVisibility( View.INVISIBLE );
+				ImageView lImageView = (ImageView) lView;
+				DrawableBinder.prefetch( (ResourceDescriptor) lElement.mElementValue , DrawableBinder.getDesiredWidth( lImageView ) ,
+						DrawableBinder.getDesiredHeight( lImageView ) , sCacher );
 			}
 		}
 	}
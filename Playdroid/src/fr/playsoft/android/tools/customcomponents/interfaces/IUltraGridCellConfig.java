@@ -34,6 +34,12 @@ public interface IUltraGridCellConfig
 	 */
 	public static final int ELEMENT_TYPE_CHECKBOX = 3;
 	
+	/**
+	 * Element type Video thumbnail - this element is an ImageView with dynamic image and play button drawn over it.
+	 * Uses a ResourceDescriptor object (with poster image) as data. See ManagerResource.setPlayButtonDrawable.
+	 */
+	public static final int ELEMENT_TYPE_VIDEO_THUMBNAIL = 4;
+	
 	/**
 	 * Cell elements configuration data.
 	 */
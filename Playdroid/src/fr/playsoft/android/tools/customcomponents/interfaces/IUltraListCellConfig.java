@@ -40,6 +40,12 @@ public interface IUltraListCellConfig
 	
 	public static final int ELEMENT_TYPE_RADIO_BUTTON = 6;
 	
+	/**
+	 * Element type Video thumbnail - this element is an ImageView with dynamic image and play button drawn over it.
+	 * Uses a ResourceDescriptor object (with poster image) as data. See ManagerResource.setPlayButtonDrawable.
+	 */
+	public static final int ELEMENT_TYPE_VIDEO_THUMBNAIL = 7;
+	
 	/**
 	 * Cell elements configuration data.
 	 */
@@ -0,0 +1,398 @@
+package fr.playsoft.android.tools.drawables;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.WeakHashMap;
+
+import android.graphics.Matrix;
+import android.graphics.drawable.Drawable;
+import android.view.View;
+import android.view.ViewGroup.LayoutParams;
+import android.widget.ImageView;
+import android.widget.ImageView.ScaleType;
+import fr.playsoft.android.tools.resource.DownloadTask;
+import fr.playsoft.android.tools.resource.IDownloadFinishedListener;
+import fr.playsoft.android.tools.resource.IFileChecker;
+import fr.playsoft.android.tools.resource.ManagerResource;
+import fr.playsoft.android.tools.resource.ResourceDescriptor;
+
+/**
+ * Static class that binds images to ImageViews.
+ * Checks the cache, loads the image with DrawableLoader or downloads it with ManagerResource and puts the result
+ * directly into the ImageView that asked for it. Each ImageView remembers only its last request, so results that
+ * arrive after the view was recycled for another image are ignored.
+ * All methods must be called from UI thread.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public class DrawableBinder
+{
+	/**
+	 * Descriptor of single ImageView binding.
+	 */
+	private static class BindingRequest
+	{
+		/** Resource shown by the ImageView **/
+		private ResourceDescriptor mDescriptor;
+		
+		/** Image md5 (file name) **/
+		private String mMD5;
+		
+		/** Id of loaded image - md5 or video thumbnail id **/
+		private String mImageId;
+		
+		/** Max specified image width **/
+		private int mMaxWidth;
+		
+		/** Max specified image height **/
+		private int mMaxHeight;
+		
+		/** Cache where loaded image should be stored **/
+		private DrawableCacher mCacher;
+		
+		BindingRequest( ResourceDescriptor pDescriptor , int pMaxWidth , int pMaxHeight , boolean pIsVideoThumbnail , DrawableCacher pCacher )
+		{
+			mDescriptor = pDescriptor;
+			mMD5 = pDescriptor.getMD5();
+			mImageId = getImageId( mMD5 , pIsVideoThumbnail );
+			mMaxWidth = pMaxWidth;
+			mMaxHeight = pMaxHeight;
+			mCacher = pCacher;
+		}
+		
+		/**
+		 * Checks if this request wants the same image as the other one.
+		 * 
+		 * @param pImageId Image id.
+		 * @param pMaxWidth Image max width.
+		 * @param pMaxHeight Image max height.
+		 * @return True if it is the same image in the same size.
+		 */
+		boolean isSameImage( String pImageId , int pMaxWidth , int pMaxHeight )
+		{
+			return ( mMaxWidth == pMaxWidth ) && ( mMaxHeight == pMaxHeight ) && mImageId.equals( pImageId );
+		}
+	}
+	
+	/**
+	 * Listener waiting for one loaded image - it updates all ImageViews that are still waiting for it.
+	 */
+	private static class BindingLoadingListener implements IDrawableLoadingFinishedListener
+	{
+		/** Request that started the loading **/
+		private BindingRequest mRequest;
+		
+		BindingLoadingListener( BindingRequest pRequest )
+		{
+			mRequest = pRequest;
+		}
+		
+		@Override
+		public void onDrawableLoaded( Drawable pDrawable )
+		{
+			if ( pDrawable == null )
+			{
+				return;
+			}
+			mRequest.mCacher.addDrawableToCache( pDrawable , mRequest.mImageId , mRequest.mMaxWidth , mRequest.mMaxHeight );
+			
+			Iterator< Entry< ImageView , BindingRequest > > lIterator = sBindings.entrySet().iterator();
+			while( lIterator.hasNext() )
+			{
+				Entry< ImageView , BindingRequest > lEntry = lIterator.next();
+				BindingRequest lBinding = lEntry.getValue();
+				if ( lBinding.isSameImage( mRequest.mImageId , mRequest.mMaxWidth , mRequest.mMaxHeight ) )
+				{
+					if ( lBinding.mCacher != mRequest.mCacher )
+					{
+						lBinding.mCacher.addDrawableToCache( pDrawable , lBinding.mImageId , lBinding.mMaxWidth , lBinding.mMaxHeight );
+					}
+					setupImageView( lEntry.getKey() , pDrawable , lBinding.mDescriptor );
+					lIterator.remove();
+				}
+			}
+		}
+	}
+	
+	/** Current request of every ImageView that is waiting for its image **/
+	private static final WeakHashMap< ImageView , BindingRequest > sBindings = new WeakHashMap< ImageView , BindingRequest >();
+	
+	/** Listener shared by all downloads started by this class **/
+	private static final IDownloadFinishedListener DOWNLOAD_LISTENER = new IDownloadFinishedListener()
+	{
+		@Override
+		public void onDownloadingFinished()
+		{
+		}
+		
+		@Override
+		public void onDownloadTaskSuccessful( DownloadTask pTask )
+		{
+			// Start loading for all views still waiting for this file
+			String lFileName = pTask.getFileName();
+			for ( BindingRequest lBinding : sBindings.values() )
+			{
+				if ( lBinding.mMD5.equals( lFileName ) )
+				{
+					startLoading( lBinding );
+				}
+			}
+		}
+		
+		@Override
+		public void onDownloadTaskFailed( DownloadTask pTask )
+		{
+		}
+		
+		@Override
+		public boolean isDownloadCancelled( DownloadTask pTask )
+		{
+			return false;
+		}
+	};
+	
+	/**
+	 * Binds an image to the ImageView. Cached image is set immediately, otherwise empty drawable is shown
+	 * and the ImageView is updated once the image is loaded (or downloaded and loaded).
+	 * 
+	 * @param pImageView ImageView to fill.
+	 * @param pDescriptor ResourceDescriptor of the image.
+	 * @param pMaxWidth Max width of the image.
+	 * @param pMaxHeight Max height of the image.
+	 * @param pCacher Cache to use.
+	 * @param pIsAutoDownloadEnabled True will automatically download missing image with highest priority.
+	 * @param pChecker File checker used if the image has to be downloaded.
+	 */
+	public static void bind( ImageView pImageView , ResourceDescriptor pDescriptor , int pMaxWidth , int pMaxHeight , DrawableCacher pCacher ,
+			boolean pIsAutoDownloadEnabled , IFileChecker pChecker )
+	{
+		bind( pImageView , pDescriptor , pMaxWidth , pMaxHeight , false , pCacher , pIsAutoDownloadEnabled , pChecker );
+	}
+	
+	/**
+	 * Binds an image or video thumbnail to the ImageView. Cached image is set immediately, otherwise empty drawable is shown
+	 * and the ImageView is updated once the image is loaded (or downloaded and loaded).
+	 * Video thumbnails have play button drawn over the image in background and are cached separately from the plain image.
+	 * 
+	 * @param pImageView ImageView to fill.
+	 * @param pDescriptor ResourceDescriptor of the image (poster image for video thumbnails).
+	 * @param pMaxWidth Max width of the image.
+	 * @param pMaxHeight Max height of the image.
+	 * @param pIsVideoThumbnail True to draw play button over the image.
+	 * @param pCacher Cache to use.
+	 * @param pIsAutoDownloadEnabled True will automatically download missing image with highest priority.
+	 * @param pChecker File checker used if the image has to be downloaded.
+	 */
+	public static void bind( ImageView pImageView , ResourceDescriptor pDescriptor , int pMaxWidth , int pMaxHeight , boolean pIsVideoThumbnail ,
+			DrawableCacher pCacher , boolean pIsAutoDownloadEnabled , IFileChecker pChecker )
+	{
+		String lFileName = pDescriptor.getMD5();
+		Drawable lDrawable = pCacher.getDrawableFromCache( getImageId( lFileName , pIsVideoThumbnail ) , pMaxWidth , pMaxHeight );
+		setupImageView( pImageView , lDrawable , pDescriptor );
+		if ( lDrawable != null )
+		{
+			// Nothing to wait for
+			unbind( pImageView );
+			return;
+		}
+		
+		BindingRequest lRequest = new BindingRequest( pDescriptor , pMaxWidth , pMaxHeight , pIsVideoThumbnail , pCacher );
+		BindingRequest lOldRequest = sBindings.put( pImageView , lRequest );
+		if ( lOldRequest != null )
+		{
+			cancelIfUnused( lOldRequest );
+		}
+		
+		if ( ManagerResource.isFileAvailable( lFileName ) )
+		{
+			startLoading( lRequest );
+		}
+		else if ( pIsAutoDownloadEnabled )
+		{
+			if ( !ManagerResource.isFileInTaskQueue( pDescriptor ) )
+			{
+				ManagerResource.addTask( pDescriptor , ManagerResource.getCurrentMaxPriority() , DOWNLOAD_LISTENER , pChecker ,
+						ManagerResource.TASK_TYPE_SMALL_FILE , null , null , null );
+			}
+		}
+	}
+	
+	/**
+	 * Starts loading of an image into the cache in background, without any ImageView waiting for it.
+	 * It is loaded after all images requested by bind() so it never delays images that are visible.
+	 * Missing files are not downloaded.
+	 * 
+	 * @param pDescriptor ResourceDescriptor of the image.
+	 * @param pMaxWidth Max width of the image.
+	 * @param pMaxHeight Max height of the image.
+	 * @param pCacher Cache to use.
+	 */
+	public static void prefetch( ResourceDescriptor pDescriptor , int pMaxWidth , int pMaxHeight , DrawableCacher pCacher )
+	{
+		prefetch( pDescriptor , pMaxWidth , pMaxHeight , false , pCacher );
+	}
+	
+	/**
+	 * Starts loading of an image or video thumbnail into the cache in background, without any ImageView waiting for it.
+	 * 
+	 * @param pDescriptor ResourceDescriptor of the image (poster image for video thumbnails).
+	 * @param pMaxWidth Max width of the image.
+	 * @param pMaxHeight Max height of the image.
+	 * @param pIsVideoThumbnail True to draw play button over the image.
+	 * @param pCacher Cache to use.
+	 */
+	public static void prefetch( ResourceDescriptor pDescriptor , int pMaxWidth , int pMaxHeight , boolean pIsVideoThumbnail ,
+			DrawableCacher pCacher )
+	{
+		String lFileName = pDescriptor.getMD5();
+		String lImageId = getImageId( lFileName , pIsVideoThumbnail );
+		if ( pCacher.getDrawableFromCache( lImageId , pMaxWidth , pMaxHeight ) != null )
+		{
+			return;
+		}
+		if ( ManagerResource.isFileAvailable( lFileName ) )
+		{
+			BindingRequest lRequest = new BindingRequest( pDescriptor , pMaxWidth , pMaxHeight , pIsVideoThumbnail , pCacher );
+			DrawableLoader.addTask( lImageId , pMaxWidth , pMaxHeight , new BindingLoadingListener( lRequest ) , true );
+		}
+	}
+	
+	/**
+	 * Gets width that should be used to scale image for the ImageView.
+	 * Exact layout width is used if it is set, otherwise screen width. Measured width is never used - it depends on whether the view
+	 * was laid out yet, so the same image would be decoded and cached in different sizes. Views of the same layout always get
+	 * the same size, so images prefetched with a template view are found in the cache by the cells.
+	 * 
+	 * @param pImageView ImageView to check.
+	 * @return Width in pixels.
+	 */
+	public static int getDesiredWidth( ImageView pImageView )
+	{
+		LayoutParams lParams = pImageView.getLayoutParams();
+		if ( ( lParams != null ) && ( lParams.width > 0 ) )
+		{
+			return lParams.width;
+		}
+		return ManagerResource.getResources().getDisplayMetrics().widthPixels;
+	}
+	
+	/**
+	 * Gets height that should be used to scale image for the ImageView.
+	 * Exact layout height is used if it is set, otherwise screen height - see getDesiredWidth().
+	 * 
+	 * @param pImageView ImageView to check.
+	 * @return Height in pixels.
+	 */
+	public static int getDesiredHeight( ImageView pImageView )
+	{
+		LayoutParams lParams = pImageView.getLayoutParams();
+		if ( ( lParams != null ) && ( lParams.height > 0 ) )
+		{
+			return lParams.height;
+		}
+		return ManagerResource.getResources().getDisplayMetrics().heightPixels;
+	}
+	
+	/**
+	 * Removes pending request of the ImageView. Should be called if the ImageView gets its Drawable from somewhere else.
+	 * 
+	 * @param pImageView ImageView that no longer waits for its image.
+	 */
+	public static void unbind( ImageView pImageView )
+	{
+		BindingRequest lOldRequest = sBindings.remove( pImageView );
+		if ( lOldRequest != null )
+		{
+			cancelIfUnused( lOldRequest );
+		}
+	}
+	
+	/**
+	 * Setups the ImageView.
+	 * 
+	 * @param pImageView ImageView to setup.
+	 * @param pDrawable Drawable to put inside, can be null.
+	 * @param pDescriptor ResourceDescriptor of the image. Can be null.
+	 */
+	public static void setupImageView( ImageView pImageView , Drawable pDrawable , ResourceDescriptor pDescriptor )
+	{
+		if ( pDrawable != null )
+		{
+			// We have the image already
+			if ( ( pDescriptor != null ) && ( pDescriptor.getTag() != null ) )
+			{
+				// We have a custom ScaleType
+				pImageView.setScaleType( (ScaleType) pDescriptor.getTag() );
+				pImageView.setImageDrawable( pDrawable );
+				pImageView.setVisibility( View.VISIBLE );
+			}
+			else
+			{
+				// Default MATRIX ScaleType - centered in current size if the view was measured already
+				int lViewWidth = ( pImageView.getWidth() > 0 ) ? pImageView.getWidth() : getDesiredWidth( pImageView );
+				int lViewHeight = ( pImageView.getHeight() > 0 ) ? pImageView.getHeight() : getDesiredHeight( pImageView );
+				Matrix lMatrix = new Matrix();
+				lMatrix.postTranslate( ( lViewWidth - pDrawable.getIntrinsicWidth() ) / 2 , ( lViewHeight - pDrawable.getIntrinsicHeight() ) / 2 );
+				pImageView.setScaleType( ScaleType.MATRIX );
+				pImageView.setImageMatrix( lMatrix );
+				pImageView.setImageDrawable( pDrawable );
+				pImageView.setVisibility( View.VISIBLE );
+			}
+		}
+		else
+		{
+			// We dont have the image yet
+			if ( ManagerResource.getEmptyDrawable() != null )
+			{
+				// Lets use the default drawable
+				pImageView.setScaleType( ScaleType.CENTER_CROP );
+				pImageView.setImageDrawable( ManagerResource.getEmptyDrawable() );
+				pImageView.setVisibility( View.VISIBLE );
+			}
+			else
+			{
+				// We have nothing, hiding the ImageView
+				pImageView.setVisibility( View.INVISIBLE );
+			}
+		}
+	}
+	
+	/**
+	 * Starts loading of requested image. DrawableLoader ignores it if the same image is already being loaded.
+	 * 
+	 * @param pRequest Request to load.
+	 */
+	private static void startLoading( BindingRequest pRequest )
+	{
+		DrawableLoader.addTask( pRequest.mImageId , pRequest.mMaxWidth , pRequest.mMaxHeight , new BindingLoadingListener( pRequest ) );
+	}
+	
+	/**
+	 * Removes loading task of the request if no other ImageView is waiting for the same image.
+	 * 
+	 * @param pRequest Request that is no longer needed.
+	 */
+	private static void cancelIfUnused( BindingRequest pRequest )
+	{
+		for ( BindingRequest lBinding : sBindings.values() )
+		{
+			if ( lBinding.isSameImage( pRequest.mImageId , pRequest.mMaxWidth , pRequest.mMaxHeight ) )
+			{
+				return;
+			}
+		}
+		DrawableLoader.removeTask( pRequest.mImageId , pRequest.mMaxWidth , pRequest.mMaxHeight );
+	}
+	
+	/**
+	 * Gets id used to cache and load the image.
+	 * 
+	 * @param pMD5 Image md5.
+	 * @param pIsVideoThumbnail True if play button should be drawn over the image.
+	 * @return Image id.
+	 */
+	private static String getImageId( String pMD5 , boolean pIsVideoThumbnail )
+	{
+		return pIsVideoThumbnail ? DrawableLoader.getVideoThumbnailId( pMD5 ) : pMD5;
+	}
+}
@@ -1,12 +1,15 @@
 package fr.playsoft.android.tools.drawables;
 
-import java.util.Hashtable;
+import java.util.Arrays;
 
 import android.graphics.drawable.Drawable;
 
 /**
  * Class that manages Drawables cache. See sample usage in UltraListCell.
  * 
+ * Drawables are identified by their id and max size. Ids that are md5 file names are kept as two longs, other ids are compared as
+ * Strings, so different images never share a key. Lookup does not allocate any objects.
+ * 
  * @author Olgierd Uzieblo
  */
 public class DrawableCacher
@@ -14,14 +17,32 @@ public class DrawableCacher
 	/** Constant for unspecified size **/
 	private static final int UNSPECIFIED_SIZE = 0;
 	
-	/** Hashtable for keeping indexes of cached Drawables **/
-	private Hashtable< Long , Integer > mDrawablesIndexes;
+	/** Number of characters in md5 id **/
+	private static final int MD5_LENGTH = 32;
+	
+	/** Value used for empty positions in hash table **/
+	private static final int EMPTY_POSITION = -1;
+	
+	/** Open addressing hash table - keeps cache slot indexes **/
+	private int[] mTable;
+	
+	/** Mask used to wrap hash table positions **/
+	private int mTableMask;
 	
 	/** Drawables cache **/
 	private Drawable[] mDrawables;
 	
-	/** Drawable hashes for cache elements **/
-	private Long[] mDrawableHash;
+	/** First half of md5 ids for cache elements **/
+	private long[] mKeyHigh;
+	
+	/** Second half of md5 ids for cache elements **/
+	private long[] mKeyLow;
+	
+	/** Packed max width and height for cache elements **/
+	private long[] mKeySize;
+	
+	/** Ids of cache elements that are not md5 file names, null for md5 ones **/
+	private String[] mKeyId;
 	
 	/** Flags to check if cache slot is used **/
 	private boolean[] mIsUsed;
@@ -35,6 +56,18 @@ public class DrawableCacher
 	/** Number of Drawables in cache **/
 	private int mCacheSize;
 	
+	/** Key being looked up - first half of md5 **/
+	private long mLookupHigh;
+	
+	/** Key being looked up - second half of md5 **/
+	private long mLookupLow;
+	
+	/** Key being looked up - packed size **/
+	private long mLookupSize;
+	
+	/** Key being looked up - id if it is not md5 **/
+	private String mLookupId;
+	
 	/**
 	 * Creates the DrawableCacher.
 	 * 
@@ -43,80 +76,205 @@ public class DrawableCacher
 	public DrawableCacher( int pMaxSize )
 	{
 		mCacheSize = pMaxSize;
-		mDrawablesIndexes = new Hashtable< Long , Integer >( pMaxSize );
 		mDrawables = new Drawable[ mCacheSize ];
-		mDrawableHash = new Long[ pMaxSize ];
+		mKeyHigh = new long[ mCacheSize ];
+		mKeyLow = new long[ mCacheSize ];
+		mKeySize = new long[ mCacheSize ];
+		mKeyId = new String[ mCacheSize ];
 		mIsUsed = new boolean[ mCacheSize ];
 		mDeletePriority = new int[ mCacheSize ];
 		for ( int i = 0; i < mCacheSize; i++ )
 		{
 			mIsUsed[ i ] = false;
 		}
+		
+		// Keep hash table at most half full
+		int lTableSize = 2;
+		while( lTableSize < mCacheSize * 2 )
+		{
+			lTableSize <<= 1;
+		}
+		mTable = new int[ lTableSize ];
+		mTableMask = lTableSize - 1;
+		Arrays.fill( mTable , EMPTY_POSITION );
 	}
 	
 	/**
-	 * Creates hash from Drawable parameters.
+	 * Sets key that will be used by findSlot().
 	 * 
 	 * @param pId Drawable name as String.
 	 * @param pMaxWidth Drawable width.
 	 * @param pMaxHeight Drawable height.
+	 */
+	private void setLookupKey( String pId , int pMaxWidth , int pMaxHeight )
+	{
+		mLookupSize = ( ( (long) pMaxWidth ) << 32 ) | ( pMaxHeight & 0xffffffffL );
+		if ( parseMD5( pId ) )
+		{
+			mLookupId = null;
+		}
+		else
+		{
+			mLookupHigh = 0;
+			mLookupLow = 0;
+			mLookupId = pId;
+		}
+	}
+	
+	/**
+	 * Parses md5 id into mLookupHigh and mLookupLow.
 	 * 
-	 * @return A unique hash as Long.
+	 * @param pId Drawable name as String.
+	 * @return True if id is an md5 string of lowercase hex digits, false otherwise.
 	 */
-	private synchronized Long createHash( String pId , int pMaxWidth , int pMaxHeight )
+	private boolean parseMD5( String pId )
 	{
-		return new Long( ( ( (long) pId.hashCode() ) << 31 ) + ( ( (long) pMaxWidth ) << 15 ) + pMaxHeight );
+		if ( pId.length() != MD5_LENGTH )
+		{
+			return false;
+		}
+		long lHigh = 0;
+		long lLow = 0;
+		for ( int i = 0; i < MD5_LENGTH; i++ )
+		{
+			// Only lowercase ASCII hex - any other id must keep its String key, so different ids never share a numeric key
+			char lChar = pId.charAt( i );
+			int lDigit;
+			if ( ( lChar >= '0' ) && ( lChar <= '9' ) )
+			{
+				lDigit = lChar - '0';
+			}
+			else if ( ( lChar >= 'a' ) && ( lChar <= 'f' ) )
+			{
+				lDigit = lChar - 'a' + 10;
+			}
+			else
+			{
+				return false;
+			}
+			if ( i < MD5_LENGTH / 2 )
+			{
+				lHigh = ( lHigh << 4 ) | lDigit;
+			}
+			else
+			{
+				lLow = ( lLow << 4 ) | lDigit;
+			}
+		}
+		mLookupHigh = lHigh;
+		mLookupLow = lLow;
+		return true;
 	}
 	
 	/**
-	 * Gets a Drawable from cache.
+	 * Calculates hash table position for a key.
 	 * 
-	 * @param pId Unique Drawable id as a String (can be an md5 file name).
+	 * @param pHigh First half of md5.
+	 * @param pLow Second half of md5.
+	 * @param pSize Packed size.
+	 * @param pId Id if it is not md5, null otherwise.
+	 * @return Start position in hash table.
+	 */
+	private int getTablePosition( long pHigh , long pLow , long pSize , String pId )
+	{
+		long lHash = ( pId != null ) ? pId.hashCode() : ( pHigh ^ pLow );
+		lHash = ( lHash + pSize ) * 0x9E3779B97F4A7C15L;
+		return (int) ( lHash ^ ( lHash >>> 32 ) ) & mTableMask;
+	}
+	
+	/**
+	 * Finds cache slot with the lookup key.
 	 * 
-	 * @return Drawable or null if it is missing in cache.
+	 * @return Slot index or -1 if key is not in cache.
 	 */
-	public synchronized Drawable getDrawableFromCache( String pId )
+	private int findSlot()
 	{
-		return getDrawableFromCache( pId , UNSPECIFIED_SIZE , UNSPECIFIED_SIZE );
+		int lPosition = getTablePosition( mLookupHigh , mLookupLow , mLookupSize , mLookupId );
+		int lSlot;
+		while( ( lSlot = mTable[ lPosition ] ) != EMPTY_POSITION )
+		{
+			if ( mKeySize[ lSlot ] == mLookupSize )
+			{
+				if ( mLookupId == null )
+				{
+					if ( ( mKeyId[ lSlot ] == null ) && ( mKeyHigh[ lSlot ] == mLookupHigh ) && ( mKeyLow[ lSlot ] == mLookupLow ) )
+					{
+						return lSlot;
+					}
+				}
+				else if ( mLookupId.equals( mKeyId[ lSlot ] ) )
+				{
+					return lSlot;
+				}
+			}
+			lPosition = ( lPosition + 1 ) & mTableMask;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Removes cache slot from hash table.
+	 * 
+	 * @param pSlot Slot index.
+	 */
+	private void removeSlotFromTable( int pSlot )
+	{
+		int lGap = getTablePosition( mKeyHigh[ pSlot ] , mKeyLow[ pSlot ] , mKeySize[ pSlot ] , mKeyId[ pSlot ] );
+		while( mTable[ lGap ] != pSlot )
+		{
+			lGap = ( lGap + 1 ) & mTableMask;
+		}
+		
+		// Move following entries back, so probing does not stop on the gap
+		int lNext = ( lGap + 1 ) & mTableMask;
+		int lSlot;
+		while( ( lSlot = mTable[ lNext ] ) != EMPTY_POSITION )
+		{
+			int lHome = getTablePosition( mKeyHigh[ lSlot ] , mKeyLow[ lSlot ] , mKeySize[ lSlot ] , mKeyId[ lSlot ] );
+			if ( ( ( lNext - lHome ) & mTableMask ) >= ( ( lNext - lGap ) & mTableMask ) )
+			{
+				mTable[ lGap ] = lSlot;
+				lGap = lNext;
+			}
+			lNext = ( lNext + 1 ) & mTableMask;
+		}
+		mTable[ lGap ] = EMPTY_POSITION;
 	}
 	
 	/**
 	 * Gets a Drawable from cache.
 	 * 
 	 * @param pId Unique Drawable id as a String (can be an md5 file name).
-	 * @param pWidth Max width of needed Drawable.
-	 * @param pHeight Max height of needed Drawable.
 	 * 
 	 * @return Drawable or null if it is missing in cache.
 	 */
-	public synchronized Drawable getDrawableFromCache( String pId , int pMaxWidth , int pMaxHeight )
+	public synchronized Drawable getDrawableFromCache( String pId )
 	{
-		if ( pId != null )
-		{
-			Long lHash = createHash( pId , pMaxWidth , pMaxHeight );
-			Drawable lDrawable = getDrawableFromCache( lHash );
-			return lDrawable;
-		}
-		return null;
+		return getDrawableFromCache( pId , UNSPECIFIED_SIZE , UNSPECIFIED_SIZE );
 	}
 	
 	/**
 	 * Gets a Drawable from cache.
 	 * 
-	 * @param pHash Hash of needed Drawable.
+	 * @param pId Unique Drawable id as a String (can be an md5 file name).
+	 * @param pWidth Max width of needed Drawable.
+	 * @param pHeight Max height of needed Drawable.
 	 * 
 	 * @return Drawable or null if it is missing in cache.
 	 */
-	public synchronized Drawable getDrawableFromCache( Long pHash )
+	public synchronized Drawable getDrawableFromCache( String pId , int pMaxWidth , int pMaxHeight )
 	{
-		Integer lIndex = mDrawablesIndexes.get( pHash );
-		if ( lIndex != null )
+		if ( pId != null )
 		{
-			mCurrentMaxPriority++;
-			mDeletePriority[ lIndex ] = mCurrentMaxPriority;
-			return mDrawables[ lIndex.intValue() ];
+			setLookupKey( pId , pMaxWidth , pMaxHeight );
+			int lIndex = findSlot();
+			if ( lIndex >= 0 )
+			{
+				mCurrentMaxPriority++;
+				mDeletePriority[ lIndex ] = mCurrentMaxPriority;
+				return mDrawables[ lIndex ];
+			}
 		}
-		
 		return null;
 	}
 	
@@ -141,9 +299,13 @@ public class DrawableCacher
 	 */
 	public synchronized void addDrawableToCache( Drawable pDrawable , String pId , int pMaxWidth , int pMaxHeight )
 	{
-		Long lHash = createHash( pId , pMaxWidth , pMaxHeight );
+		if ( ( pId == null ) || ( mCacheSize == 0 ) )
+		{
+			return;
+		}
 		
-		if ( mDrawablesIndexes.get( lHash ) != null )
+		setLookupKey( pId , pMaxWidth , pMaxHeight );
+		if ( findSlot() >= 0 )
 		{
 			// Probably other thread already added this drawable
 			return;
@@ -151,7 +313,7 @@ public class DrawableCacher
 		
 		// Look for index with the smallest priority
 		int lNextIndex = 0;
-		int lSmallestPriority = 0xffff;
+		int lSmallestPriority = Integer.MAX_VALUE;
 		for ( int i = 0; i < mDeletePriority.length; i++ )
 		{
 			if ( mDeletePriority[ i ] < lSmallestPriority )
@@ -164,15 +326,24 @@ public class DrawableCacher
 		if ( mIsUsed[ lNextIndex ] )
 		{
 			// Remove old entry first
-			mDrawablesIndexes.remove( mDrawableHash[ lNextIndex ] );
+			removeSlotFromTable( lNextIndex );
 		}
 		
-		mDrawablesIndexes.put( lHash , new Integer( lNextIndex ) );
 		mIsUsed[ lNextIndex ] = true;
 		mDrawables[ lNextIndex ] = pDrawable;
-		mDrawableHash[ lNextIndex ] = lHash;
+		mKeyHigh[ lNextIndex ] = mLookupHigh;
+		mKeyLow[ lNextIndex ] = mLookupLow;
+		mKeySize[ lNextIndex ] = mLookupSize;
+		mKeyId[ lNextIndex ] = mLookupId;
 		mCurrentMaxPriority++;
 		mDeletePriority[ lNextIndex ] = mCurrentMaxPriority;
+		
+		int lPosition = getTablePosition( mLookupHigh , mLookupLow , mLookupSize , mLookupId );
+		while( mTable[ lPosition ] != EMPTY_POSITION )
+		{
+			lPosition = ( lPosition + 1 ) & mTableMask;
+		}
+		mTable[ lPosition ] = lNextIndex;
 	}
 	
 	/**
@@ -181,12 +352,13 @@ public class DrawableCacher
 	public synchronized void clear()
 	{
 		mCurrentMaxPriority = 0;
-		mDrawablesIndexes.clear();
+		Arrays.fill( mTable , EMPTY_POSITION );
 		for ( int i = 0; i < mCacheSize; i++ )
 		{
 			mIsUsed[ i ] = false;
 			mDeletePriority[ i ] = 0;
 			mDrawables[ i ] = null;
+			mKeyId[ i ] = null;
 		}
 	}
 }
@@ -0,0 +1,467 @@
+package fr.playsoft.android.tools.drawables;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import fr.playsoft.android.tools.debug.Log;
+
+/**
+ * Static class that keeps already scaled images on disk, so they dont have to be decoded and scaled again from original files
+ * after the app is restarted or after they were removed from DrawableCacher.
+ * Images are saved as raw pixels - loading them is a single file read without any decompression.
+ * Least recently used files are removed when the cache gets larger than its max size. Order of use is kept in memory, file modification
+ * time is only used to restore it after restart (it can not be changed on some filesystems).
+ * init() must be launched before using! It does not touch the disk - cache folder is scanned by the first getBitmap() or putBitmap(),
+ * which are called on the loader thread.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public class DrawableDiskCacher
+{
+	/** Tag for LogCat **/
+	private static final String TAG = "DrawableDiskCacher";
+	
+	/** Default max size of all cached files in bytes **/
+	public static final long DEFAULT_MAX_SIZE = 20 * 1024 * 1024;
+	
+	/** Value at the beginning of every cache file **/
+	private static final int FILE_MAGIC = 0x50444331;
+	
+	/** Size of file header - magic, width, height and bitmap config **/
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 1;
+	
+	/** Suffix of files that are being written **/
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	
+	/** Bitmap configs that can be saved, index in this array is saved in file header **/
+	private static final Bitmap.Config[] SUPPORTED_CONFIGS =
+	{
+			Bitmap.Config.ARGB_8888 , Bitmap.Config.RGB_565 , Bitmap.Config.ARGB_4444 , Bitmap.Config.ALPHA_8
+	};
+	
+	/** Bytes per pixel of SUPPORTED_CONFIGS **/
+	private static final int[] BYTES_PER_PIXEL =
+	{
+			4 , 2 , 2 , 1
+	};
+	
+	/** Max number of padding bytes at the end of each row of pixels **/
+	private static final int MAX_ROW_PADDING = 3;
+	
+	/**
+	 * Cache file found during scanning, with its modification time read only once.
+	 */
+	private static class ScannedFile
+	{
+		/** File **/
+		private final File mFile;
+		
+		/** Modification time of the file **/
+		private final long mLastModified;
+		
+		ScannedFile( File pFile )
+		{
+			mFile = pFile;
+			mLastModified = pFile.lastModified();
+		}
+	}
+	
+	/** Comparator used to find least recently used files after restart **/
+	private static final Comparator< ScannedFile > LAST_USED_COMPARATOR = new Comparator< ScannedFile >()
+	{
+		@Override
+		public int compare( ScannedFile pFile1 , ScannedFile pFile2 )
+		{
+			return ( pFile1.mLastModified < pFile2.mLastModified ) ? -1 : ( ( pFile1.mLastModified == pFile2.mLastModified ) ? 0 : 1 );
+		}
+	};
+	
+	/** Folder with cached files **/
+	private static File sDirectory;
+	
+	/** Max size of all cached files **/
+	private static long sMaxSize;
+	
+	/** Current size of all cached files **/
+	private static long sCurrentSize;
+	
+	/** Sizes of cached files by their names, ordered from least to most recently used **/
+	private static final LinkedHashMap< String , Long > sFiles = new LinkedHashMap< String , Long >( 16 , 0.75f , true );
+	
+	/** Flag to check if class is initialized **/
+	private static volatile boolean sIsInitialized = false;
+	
+	/** Flag to check if files left in cache folder were found **/
+	private static boolean sIsScanned = false;
+	
+	/**
+	 * Initializes the cache with default max size.
+	 * 
+	 * @param pDirectory Folder to keep cached files in.
+	 */
+	public static void init( File pDirectory )
+	{
+		init( pDirectory , DEFAULT_MAX_SIZE );
+	}
+	
+	/**
+	 * Initializes the cache. It can be called on UI thread - cache folder is scanned later by scanIfNeeded().
+	 * 
+	 * @param pDirectory Folder to keep cached files in.
+	 * @param pMaxSize Max size of all cached files in bytes.
+	 */
+	public static synchronized void init( File pDirectory , long pMaxSize )
+	{
+		if ( sIsInitialized )
+		{
+			return;
+		}
+		sDirectory = pDirectory;
+		sMaxSize = pMaxSize;
+		sCurrentSize = 0;
+		sFiles.clear();
+		sIsScanned = false;
+		sIsInitialized = true;
+	}
+	
+	/**
+	 * Finds files left in cache folder after previous run and restores their order of use. Called by the first
+	 * getBitmap() or putBitmap(), so it runs on the loader thread instead of delaying the start of the app.
+	 */
+	private static synchronized void scanIfNeeded()
+	{
+		if ( sIsScanned )
+		{
+			return;
+		}
+		sIsScanned = true;
+		sDirectory.mkdirs();
+		File[] lFiles = sDirectory.listFiles();
+		if ( lFiles == null )
+		{
+			return;
+		}
+		
+		List< ScannedFile > lScannedFiles = new ArrayList< ScannedFile >( lFiles.length );
+		for ( File lFile : lFiles )
+		{
+			if ( lFile.getName().endsWith( TEMP_FILE_SUFFIX ) )
+			{
+				// Left after interrupted saving
+				lFile.delete();
+			}
+			else
+			{
+				lScannedFiles.add( new ScannedFile( lFile ) );
+			}
+		}
+		Collections.sort( lScannedFiles , LAST_USED_COMPARATOR );
+		for ( ScannedFile lScannedFile : lScannedFiles )
+		{
+			long lSize = lScannedFile.mFile.length();
+			sFiles.put( lScannedFile.mFile.getName() , lSize );
+			sCurrentSize += lSize;
+		}
+		trimToSize();
+	}
+	
+	/**
+	 * Sets new max size of the cache.
+	 * 
+	 * @param pMaxSize Max size of all cached files in bytes.
+	 */
+	public static synchronized void setMaxSize( long pMaxSize )
+	{
+		sMaxSize = pMaxSize;
+		if ( sIsScanned )
+		{
+			trimToSize();
+		}
+	}
+	
+	/**
+	 * Gets file used to keep chosen image.
+	 * 
+	 * @param pId Image id (md5 file name).
+	 * @param pMaxWidth Max width used to scale the image.
+	 * @param pMaxHeight Max height used to scale the image.
+	 * @return Cache file.
+	 */
+	private static File getFile( String pId , int pMaxWidth , int pMaxHeight )
+	{
+		return new File( sDirectory , pId + "_" + pMaxWidth + "x" + pMaxHeight );
+	}
+	
+	/**
+	 * Gets scaled Bitmap from the cache.
+	 * 
+	 * @param pId Image id (md5 file name).
+	 * @param pMaxWidth Max width used to scale the image.
+	 * @param pMaxHeight Max height used to scale the image.
+	 * @return Bitmap or null if it is not cached.
+	 */
+	public static Bitmap getBitmap( String pId , int pMaxWidth , int pMaxHeight )
+	{
+		if ( !sIsInitialized || ( pId == null ) )
+		{
+			return null;
+		}
+		scanIfNeeded();
+		File lFile = getFile( pId , pMaxWidth , pMaxHeight );
+		if ( !lFile.exists() )
+		{
+			return null;
+		}
+		
+		FileInputStream lStream = null;
+		try
+		{
+			lStream = new FileInputStream( lFile );
+			FileChannel lChannel = lStream.getChannel();
+			
+			ByteBuffer lHeader = ByteBuffer.allocate( HEADER_SIZE );
+			readFully( lChannel , lHeader );
+			lHeader.flip();
+			int lMagic = lHeader.getInt();
+			int lWidth = lHeader.getInt();
+			int lHeight = lHeader.getInt();
+			int lConfigIndex = lHeader.get();
+			if ( ( lMagic != FILE_MAGIC ) || ( lConfigIndex < 0 ) || ( lConfigIndex >= SUPPORTED_CONFIGS.length ) )
+			{
+				throw new IOException( "Incorrect header" );
+			}
+			long lPixelsSize = lChannel.size() - HEADER_SIZE;
+			if ( !isPixelsSizeCorrect( lWidth , lHeight , BYTES_PER_PIXEL[ lConfigIndex ] , lPixelsSize ) )
+			{
+				// Damaged size would be reported as out of memory and the file would never be removed
+				throw new IOException( "Incorrect size " + lWidth + "x" + lHeight + " for " + lPixelsSize + " bytes of pixels" );
+			}
+			
+			ByteBuffer lPixels = ByteBuffer.allocate( (int) lPixelsSize );
+			readFully( lChannel , lPixels );
+			lPixels.rewind();
+			Bitmap lBitmap = Bitmap.createBitmap( lWidth , lHeight , SUPPORTED_CONFIGS[ lConfigIndex ] );
+			lBitmap.copyPixelsFromBuffer( lPixels );
+			
+			// Mark as recently used - modification time is just a hint for next start, so its failure is ignored
+			synchronized( DrawableDiskCacher.class )
+			{
+				sFiles.get( lFile.getName() );
+			}
+			lFile.setLastModified( System.currentTimeMillis() );
+			return lBitmap;
+		}
+		catch( IOException e )
+		{
+			// Damaged file - we will decode the original instead
+			Log.e( TAG , "Error reading cached image " + lFile.getName() , e );
+			removeFile( lFile );
+			return null;
+		}
+		catch( RuntimeException e )
+		{
+			Log.e( TAG , "Error reading cached image " + lFile.getName() , e );
+			removeFile( lFile );
+			return null;
+		}
+		catch( OutOfMemoryError e )
+		{
+			// Size is checked, so file is fine, there is just no memory for it now
+			Log.e( TAG , "Out of memory reading cached image " + lFile.getName() , e );
+			return null;
+		}
+		finally
+		{
+			closeSilently( lStream );
+		}
+	}
+	
+	/**
+	 * Adds scaled Bitmap to the cache.
+	 * 
+	 * @param pBitmap Bitmap to save.
+	 * @param pId Image id (md5 file name).
+	 * @param pMaxWidth Max width used to scale the image.
+	 * @param pMaxHeight Max height used to scale the image.
+	 */
+	public static void putBitmap( Bitmap pBitmap , String pId , int pMaxWidth , int pMaxHeight )
+	{
+		if ( !sIsInitialized || ( pId == null ) )
+		{
+			return;
+		}
+		scanIfNeeded();
+		int lConfigIndex = Arrays.asList( SUPPORTED_CONFIGS ).indexOf( pBitmap.getConfig() );
+		if ( lConfigIndex < 0 )
+		{
+			return;
+		}
+		File lFile = getFile( pId , pMaxWidth , pMaxHeight );
+		if ( lFile.exists() )
+		{
+			return;
+		}
+		
+		File lTempFile = new File( sDirectory , lFile.getName() + TEMP_FILE_SUFFIX );
+		FileOutputStream lStream = null;
+		try
+		{
+			ByteBuffer lBuffer = ByteBuffer.allocate( HEADER_SIZE + pBitmap.getRowBytes() * pBitmap.getHeight() );
+			lBuffer.putInt( FILE_MAGIC );
+			lBuffer.putInt( pBitmap.getWidth() );
+			lBuffer.putInt( pBitmap.getHeight() );
+			lBuffer.put( (byte) lConfigIndex );
+			pBitmap.copyPixelsToBuffer( lBuffer );
+			lBuffer.flip();
+			
+			lStream = new FileOutputStream( lTempFile );
+			FileChannel lChannel = lStream.getChannel();
+			while( lBuffer.hasRemaining() )
+			{
+				lChannel.write( lBuffer );
+			}
+			lStream.close();
+			lStream = null;
+			
+			if ( !lTempFile.renameTo( lFile ) )
+			{
+				throw new IOException( "Rename failed" );
+			}
+		}
+		catch( Throwable t )
+		{
+			Log.e( TAG , "Error saving cached image " + lFile.getName() , t );
+			closeSilently( lStream );
+			lTempFile.delete();
+			return;
+		}
+		
+		synchronized( DrawableDiskCacher.class )
+		{
+			long lSize = lFile.length();
+			sFiles.put( lFile.getName() , lSize );
+			sCurrentSize += lSize;
+			trimToSize();
+		}
+	}
+	
+	/**
+	 * Removes all cached files.
+	 */
+	public static synchronized void clear()
+	{
+		if ( !sIsInitialized )
+		{
+			return;
+		}
+		File[] lFiles = sDirectory.listFiles();
+		if ( lFiles != null )
+		{
+			for ( File lFile : lFiles )
+			{
+				lFile.delete();
+			}
+		}
+		sFiles.clear();
+		sCurrentSize = 0;
+	}
+	
+	/**
+	 * Removes least recently used files until cache is not larger than its max size.
+	 */
+	private static synchronized void trimToSize()
+	{
+		if ( sCurrentSize <= sMaxSize )
+		{
+			return;
+		}
+		List< String > lNames = new ArrayList< String >( sFiles.keySet() );
+		for ( int i = 0; ( i < lNames.size() ) && ( sCurrentSize > sMaxSize ); i++ )
+		{
+			removeFile( new File( sDirectory , lNames.get( i ) ) );
+		}
+	}
+	
+	/**
+	 * Removes single cache file.
+	 * 
+	 * @param pFile File to remove.
+	 */
+	private static synchronized void removeFile( File pFile )
+	{
+		Long lSize = sFiles.remove( pFile.getName() );
+		long lFileSize = ( lSize != null ) ? lSize : pFile.length();
+		if ( pFile.delete() || !pFile.exists() )
+		{
+			sCurrentSize -= lFileSize;
+		}
+	}
+	
+	/**
+	 * Checks if size of pixels saved in a file matches the size of image from its header.
+	 * 
+	 * @param pWidth Image width.
+	 * @param pHeight Image height.
+	 * @param pBytesPerPixel Bytes per pixel of image config.
+	 * @param pPixelsSize Size of the file without header.
+	 * @return True if the file contains whole rows of pixels of this image.
+	 */
+	private static boolean isPixelsSizeCorrect( int pWidth , int pHeight , int pBytesPerPixel , long pPixelsSize )
+	{
+		if ( ( pWidth <= 0 ) || ( pHeight <= 0 ) || ( pPixelsSize % pHeight != 0 ) )
+		{
+			return false;
+		}
+		long lRowBytes = pPixelsSize / pHeight;
+		long lMinRowBytes = (long) pWidth * pBytesPerPixel;
+		return ( lRowBytes >= lMinRowBytes ) && ( lRowBytes <= lMinRowBytes + MAX_ROW_PADDING );
+	}
+	
+	/**
+	 * Reads from channel until buffer is full.
+	 * 
+	 * @param pChannel Channel to read from.
+	 * @param pBuffer Buffer to fill.
+	 * @throws IOException If file ended too early.
+	 */
+	private static void readFully( FileChannel pChannel , ByteBuffer pBuffer ) throws IOException
+	{
+		while( pBuffer.hasRemaining() )
+		{
+			if ( pChannel.read( pBuffer ) < 0 )
+			{
+				throw new IOException( "Unexpected end of file" );
+			}
+		}
+	}
+	
+	/**
+	 * Closes stream ignoring errors.
+	 * 
+	 * @param pStream Stream to close, can be null.
+	 */
+	private static void closeSilently( java.io.Closeable pStream )
+	{
+		if ( pStream != null )
+		{
+			try
+			{
+				pStream.close();
+			}
+			catch( IOException e )
+			{
+			}
+		}
+	}
+}
@@ -2,12 +2,16 @@ package fr.playsoft.android.tools.drawables;
 
 import java.util.concurrent.CopyOnWriteArrayList;
 
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import fr.playsoft.android.tools.resource.ManagerResource;
 
 /**
  * Static class designed to load & scale thumbnails.
+ * Scaled thumbnails are kept in DrawableDiskCacher, so each one is decoded from the original file only once.
+ * Video thumbnails (see getVideoThumbnailId) get play button drawn over them here, before they are cached.
  * init() must be launched before using!
  * 
  * @author Olgierd Uzieblo
@@ -87,13 +91,25 @@ public class DrawableLoader
 				}
 				else
 				{
-					while( !sRemainingTasks.isEmpty() )
+					ThumbnailLoadingTaskDescriptor lNextTask;
+					while( ( lNextTask = getNextTask() ) != null )
 					{
-						final ThumbnailLoadingTaskDescriptor lTask = sRemainingTasks.get( sRemainingTasks.size() - 1 );
+						final ThumbnailLoadingTaskDescriptor lTask = lNextTask;
 						final Drawable lResult;
-						lResult = ManagerResource.getScaledBitmapDrawable( lTask.mMD5 , lTask.mMaxWidth , lTask.mMaxHeight );
 						
-						sRemainingTasks.remove( lTask );
+						// Scaled version saved earlier is much faster to load than the original
+						Bitmap lBitmap = DrawableDiskCacher.getBitmap( lTask.mMD5 , lTask.mMaxWidth , lTask.mMaxHeight );
+						boolean lIsFromDiskCache = ( lBitmap != null );
+						if ( !lIsFromDiskCache )
+						{
+							lBitmap = loadBitmap( lTask );
+						}
+						lResult = ( lBitmap != null ) ? new BitmapDrawable( ManagerResource.getResources() , lBitmap ) : null;
+						
+						synchronized( DrawableLoader.class )
+						{
+							sRemainingTasks.remove( lTask );
+						}
 						sHandler.post( new Runnable()
 						{
 							@Override
@@ -102,6 +118,12 @@ public class DrawableLoader
 								lTask.mListener.onDrawableLoaded( lResult );
 							}
 						} );
+						
+						if ( ( lBitmap != null ) && !lIsFromDiskCache )
+						{
+							// Result is already posted - save it for later without delaying the UI
+							DrawableDiskCacher.putBitmap( lBitmap , lTask.mMD5 , lTask.mMaxWidth , lTask.mMaxHeight );
+						}
 					}
 					sTriggerPause = true;
 				}
@@ -117,6 +139,9 @@ public class DrawableLoader
 		}
 	}
 	
+	/** Suffix added to md5 to get id of video thumbnail **/
+	private static final String VIDEO_THUMBNAIL_SUFFIX = "_video";
+	
 	/** Thread which loads thumbnails **/
 	private static Thread sThumbnailLoadingThread;
 	
@@ -165,6 +190,22 @@ public class DrawableLoader
 	 * @param pListener Listener to notify when loading is finished.
 	 */
 	public static synchronized void addTask( String pMD5 , int pMaxWidth , int pMaxHeight , IDrawableLoadingFinishedListener pListener )
+	{
+		addTask( pMD5 , pMaxWidth , pMaxHeight , pListener , false );
+	}
+	
+	/**
+	 * Adds new thumbnail loading task.
+	 * Normal tasks are loaded starting from the newest one. Low priority tasks are loaded only when there is nothing else to do.
+	 * 
+	 * @param pMD5 Thumbnail MD5.
+	 * @param pMaxWidth Thumbnail max width.
+	 * @param pMaxHeight Thumbnail max height.
+	 * @param pListener Listener to notify when loading is finished.
+	 * @param pIsLowPriority True to load this thumbnail after all other waiting ones.
+	 */
+	public static synchronized void addTask( String pMD5 , int pMaxWidth , int pMaxHeight , IDrawableLoadingFinishedListener pListener ,
+			boolean pIsLowPriority )
 	{
 		if ( !sIsInitialized )
 		{
@@ -172,11 +213,91 @@ public class DrawableLoader
 		}
 		
 		ThumbnailLoadingTaskDescriptor lNewTask = new ThumbnailLoadingTaskDescriptor( pMD5 , pMaxWidth , pMaxHeight , pListener );
-		if ( !sRemainingTasks.contains( lNewTask ) )
+		int lIndex = sRemainingTasks.indexOf( lNewTask );
+		if ( lIndex < 0 )
 		{
-			sRemainingTasks.add( lNewTask );
+			if ( pIsLowPriority )
+			{
+				sRemainingTasks.add( 0 , lNewTask );
+			}
+			else
+			{
+				sRemainingTasks.add( lNewTask );
+			}
 			sLoaderTask.awake();
 		}
+		else if ( !pIsLowPriority )
+		{
+			// Already waiting (maybe as low priority) - move it to the end so it is loaded next
+			ThumbnailLoadingTaskDescriptor lExistingTask = sRemainingTasks.get( lIndex );
+			sRemainingTasks.remove( lIndex );
+			sRemainingTasks.add( lExistingTask );
+		}
+	}
+	
+	/**
+	 * Gets next task to load - the newest one.
+	 * 
+	 * @return Next task or null if there is nothing to load.
+	 */
+	private static synchronized ThumbnailLoadingTaskDescriptor getNextTask()
+	{
+		if ( sRemainingTasks.isEmpty() )
+		{
+			return null;
+		}
+		return sRemainingTasks.get( sRemainingTasks.size() - 1 );
+	}
+	
+	/**
+	 * Removes waiting thumbnail loading task. Task that is being loaded right now will still finish.
+	 * 
+	 * @param pMD5 Thumbnail MD5.
+	 * @param pMaxWidth Thumbnail max width.
+	 * @param pMaxHeight Thumbnail max height.
+	 */
+	public static synchronized void removeTask( String pMD5 , int pMaxWidth , int pMaxHeight )
+	{
+		if ( !sIsInitialized )
+		{
+			return;
+		}
+		
+		sRemainingTasks.remove( new ThumbnailLoadingTaskDescriptor( pMD5 , pMaxWidth , pMaxHeight , null ) );
+	}
+	
+	/**
+	 * Gets id of video thumbnail - image with play button drawn over it. Use it instead of md5 when adding tasks and caching.
+	 * 
+	 * @param pMD5 Md5 of poster image.
+	 * @return Video thumbnail id.
+	 */
+	public static String getVideoThumbnailId( String pMD5 )
+	{
+		return pMD5 + VIDEO_THUMBNAIL_SUFFIX;
+	}
+	
+	/**
+	 * Loads and scales Bitmap from the original file. Draws play button if it is a video thumbnail.
+	 * 
+	 * @param pTask Task to load.
+	 * @return Loaded Bitmap or null if it is not available.
+	 */
+	private static Bitmap loadBitmap( ThumbnailLoadingTaskDescriptor pTask )
+	{
+		if ( !pTask.mMD5.endsWith( VIDEO_THUMBNAIL_SUFFIX ) )
+		{
+			return ManagerResource.getScaledBitmap( pTask.mMD5 , pTask.mMaxWidth , pTask.mMaxHeight );
+		}
+		
+		// Poster may be cached already if it is also shown without play button
+		String lMD5 = pTask.mMD5.substring( 0 , pTask.mMD5.length() - VIDEO_THUMBNAIL_SUFFIX.length() );
+		Bitmap lBitmap = DrawableDiskCacher.getBitmap( lMD5 , pTask.mMaxWidth , pTask.mMaxHeight );
+		if ( lBitmap == null )
+		{
+			lBitmap = ManagerResource.getScaledBitmap( lMD5 , pTask.mMaxWidth , pTask.mMaxHeight );
+		}
+		return ManagerResource.drawPlayButton( lBitmap );
 	}
 	
 	/**
@@ -0,0 +1,16 @@
+package fr.playsoft.android.tools.operation;
+
+/**
+ * Callback interface for collecting timing of finished Operations, so slow ones can be found in production.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public interface IOperationMetricsListener
+{
+	/**
+	 * Launched on the operation thread when an Operation of the queue has finished (successfully or not). It should be fast.
+	 * 
+	 * @param pFuture Future of finished Operation - see getQueueTime(), getRunTime() and getRetryCount().
+	 */
+	public void onOperationFinished( OperationFuture pFuture );
+}
@@ -19,7 +19,7 @@ public interface IOperationResultListener
 	 * Launched when operation has failed miserably.
 	 * 
 	 * @param pOperation Operation that has just finished.
-	 * @param pResult Any object returned as operation result.
+	 * @param pResult Any object returned as operation result, or OperationError describing the failure when there is none.
 	 */
 	public void onOperationFailed( Operation pOperation , Object pResult );
 }
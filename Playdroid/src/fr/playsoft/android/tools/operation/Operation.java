@@ -1,15 +1,27 @@
 package fr.playsoft.android.tools.operation;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
 import android.content.Context;
 import android.os.Handler;
+import fr.playsoft.android.tools.debug.Log;
 
 /**
  * Abstract class for single, runnable operation.
+ * Operations can depend on other Operations - they are started when all dependencies have finished and can read their results,
+ * so stages like "download then parse" or "run many in parallel then merge" are run on worker threads without posting to UI thread
+ * between them. Usually only the last Operation has a listener.
  * 
  * @author Olgierd Uzieblo
  */
 public abstract class Operation
 {
+	/** Tag for this class **/
+	public static final String TAG = "Operation";
+	
 	/**
 	 * Listener interested in Operation results.
 	 */
@@ -20,16 +32,127 @@ public abstract class Operation
 	 */
 	private Handler mHandler;
 	
+	/** Flag to check if this Operation was cancelled **/
+	private volatile boolean mIsCancelled;
+	
+	/** Token that can cancel this Operation together with others, null if not used **/
+	private volatile OperationCancelToken mCancelToken;
+	
+	/** Future of this Operation, set when it is added to OperationQueue **/
+	private volatile OperationFuture mFuture;
+	
+	/** Key that orders queued Operations - it grows with time and drops with priority **/
+	long mQueueOrder;
+	
+	/** Number in order of adding to the queue, used for Operations with equal mQueueOrder **/
+	long mQueueSequence;
+	
+	/** Operations that must finish before this one is started **/
+	private final List< Operation > mDependencies = new ArrayList< Operation >();
+	
 	/**
-	 * Starts this operation.
+	 * Starts this operation. Cancelled operation is not started and its listener is not notified.
+	 * If any dependency has failed this operation is not run, it fails with the error of that dependency.
+	 * If any dependency was cancelled this operation is cancelled too.
+	 * Queued operation is interrupted when it reaches its timeout and queued again when it fails and its retry policy allows it.
 	 * 
 	 * @param pContext Context that can be used during running.
 	 */
 	public final synchronized void start( Context pContext )
 	{
 		final Operation lInstance = this;
-		boolean lIsSuccessful = run( pContext );
+		final OperationFuture lFuture = mFuture;
+		if ( isCancelled() )
+		{
+			if ( lFuture != null )
+			{
+				lFuture.cancel( false );
+			}
+			return;
+		}
+		if ( ( lFuture != null ) && !lFuture.setRunning() )
+		{
+			return;
+		}
+		boolean lIsSuccessful;
+		Object lResult;
+		OperationError lError = null;
+		OperationFuture lFailedDependency = ( lFuture != null ) ? lFuture.getFailedDependency() : null;
+		if ( lFailedDependency != null )
+		{
+			lFuture.endRun();
+			if ( lFailedDependency.isCancelled() )
+			{
+				lFuture.cancel( false );
+				return;
+			}
+			lIsSuccessful = false;
+			lResult = lFailedDependency.getResultNow();
+			lError = lFailedDependency.getError();
+		}
+		else
+		{
+			ScheduledFuture< ? > lTimeout = null;
+			if ( ( lFuture != null ) && ( getTimeout() > 0 ) )
+			{
+				lTimeout = OperationExecutor.schedule( new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						lFuture.timeOut();
+					}
+				} , getTimeout() );
+			}
+			Throwable lCrash = null;
+			try
+			{
+				lIsSuccessful = run( pContext );
+			}
+			catch( Throwable e )
+			{
+				// Errors too - otherwise the future would stay running forever and its dependents would never be started
+				Log.e( TAG , "Operation " + getClass().getName() + " crashed" , e );
+				lIsSuccessful = false;
+				lCrash = e;
+			}
+			if ( lTimeout != null )
+			{
+				// Timer can fire before it is removed - run has already completed then, so it must not be marked as timed out
+				lFuture.setRunReturned();
+				OperationExecutor.unschedule( lTimeout );
+			}
+			boolean lIsTimedOut = ( lFuture != null ) && lFuture.endRun();
+			lResult = getOperationResult();
+			if ( lIsTimedOut )
+			{
+				lIsSuccessful = false;
+				lError = new OperationError( OperationError.TYPE_TIMED_OUT , this , lResult , null );
+			}
+			else if ( lCrash != null )
+			{
+				lError = new OperationError( OperationError.TYPE_CRASHED , this , lResult , lCrash );
+			}
+			else if ( !lIsSuccessful )
+			{
+				lError = new OperationError( OperationError.TYPE_FAILED , this , lResult , null );
+			}
+			if ( ( lError != null ) && ( lFuture != null ) && !isCancelled() && retry( lFuture , lError ) )
+			{
+				return;
+			}
+		}
+		if ( lFuture != null )
+		{
+			lFuture.setFinished( lIsSuccessful , lResult , lError );
+		}
+		if ( isCancelled() )
+		{
+			return;
+		}
 		
+		final Object lFinalResult = lResult;
+		final OperationError lFinalError = lError;
 		if ( lIsSuccessful )
 		{
 			if ( ( getListener() != null ) & ( mHandler != null ) )
@@ -39,7 +162,10 @@ public abstract class Operation
 					@Override
 					public void run()
 					{
-						getListener().onOperationSuccess( lInstance , getOperationResult() );
+						if ( !isCancelled() )
+						{
+							getListener().onOperationSuccess( lInstance , lFinalResult );
+						}
 					}
 				} );
 			}
@@ -53,13 +179,17 @@ public abstract class Operation
 					@Override
 					public void run()
 					{
-						if ( getOperationResult() == null )
+						if ( isCancelled() )
 						{
-							getListener().onOperationFailed( lInstance , "Unknown error, see LogCat" );
+							return;
+						}
+						if ( lFinalResult == null )
+						{
+							getListener().onOperationFailed( lInstance , lFinalError );
 						}
 						else
 						{
-							getListener().onOperationFailed( lInstance , getOperationResult() );
+							getListener().onOperationFailed( lInstance , lFinalResult );
 						}
 					}
 				} );
@@ -68,7 +198,36 @@ public abstract class Operation
 	}
 	
 	/**
-	 * Runs this operation.
+	 * Queues failed operation again if its retry policy allows it.
+	 * 
+	 * @param pFuture Future of this operation.
+	 * @param pError Error of the last run.
+	 * @return True if operation will be run again.
+	 */
+	private boolean retry( OperationFuture pFuture , OperationError pError )
+	{
+		OperationRetryPolicy lPolicy = getRetryPolicy();
+		int lRetryCount = pFuture.getRetryCount();
+		if ( ( lPolicy == null ) || !lPolicy.shouldRetry( pError , lRetryCount ) )
+		{
+			return false;
+		}
+		Log.i( TAG , pError.getMessage() + ", retry " + ( lRetryCount + 1 ) );
+		if ( !pFuture.setRetrying() )
+		{
+			// Cancelled in the meantime
+			return true;
+		}
+		if ( !pFuture.getQueue().retryOperation( this , lPolicy.getDelay( lRetryCount ) ) )
+		{
+			pFuture.cancel( false );
+		}
+		return true;
+	}
+	
+	/**
+	 * Runs this operation. It must not block on OperationFuture of another Operation running on the same executor -
+	 * when all threads are taken by waiting Operations nothing can finish and they wait forever. Use dependencies instead.
 	 * 
 	 * @param pContext Context to use.
 	 * @return True if Operation completed successfully, false otherwise.
@@ -89,6 +248,173 @@ public abstract class Operation
 	 */
 	protected abstract Integer getOperationPriority();
 	
+	/**
+	 * Gets time after which running Operation is interrupted and fails. run() should stop when its thread is interrupted
+	 * (blocking calls throw InterruptedException or InterruptedIOException then). Used only for queued Operations.
+	 * 
+	 * @return Timeout (ms) or 0 if Operation can run as long as it needs (default).
+	 */
+	protected long getTimeout()
+	{
+		return 0;
+	}
+	
+	/**
+	 * Gets policy of retrying this Operation when it fails. Used only for queued Operations.
+	 * 
+	 * @return Retry policy or null if Operation is never retried (default).
+	 */
+	protected OperationRetryPolicy getRetryPolicy()
+	{
+		return null;
+	}
+	
+	/**
+	 * Gets key identifying work done by this Operation. When an Operation with the same key is already waiting in OperationQueue,
+	 * this one is not added and the queued one is used instead. Returns null by default - Operations are never merged.
+	 * Merged Operation is never run: its listener is not notified and its getFuture() stays null. Results should be read from
+	 * the future returned by OperationQueue.addOperation(), which belongs to the queued Operation and notifies only its listener.
+	 * 
+	 * @return Key of this Operation or null.
+	 */
+	protected String getDeduplicationKey()
+	{
+		return null;
+	}
+	
+	/**
+	 * Adds Operation that must finish successfully before this one is started. Dependencies that were never queued are added to the
+	 * queue together with this Operation, dependencies that are already queued (also in other queues) are waited for.
+	 * Must be called before this Operation is added to the queue.
+	 * 
+	 * @param pDependency Operation to wait for.
+	 */
+	public final void addDependency( Operation pDependency )
+	{
+		if ( mFuture != null )
+		{
+			throw new IllegalStateException( "Operation is already queued" );
+		}
+		if ( ( pDependency == this ) || pDependency.dependsOn( this ) )
+		{
+			throw new IllegalArgumentException( "Dependency cycle" );
+		}
+		mDependencies.add( pDependency );
+	}
+	
+	/**
+	 * Gets Operations that must finish before this one is started.
+	 * 
+	 * @return Unmodifiable list of dependencies.
+	 */
+	public final List< Operation > getDependencies()
+	{
+		return Collections.unmodifiableList( mDependencies );
+	}
+	
+	/**
+	 * Gets result of finished dependency. Should be used in run().
+	 * When the dependency was not queued because the same work was already queued (see getDeduplicationKey()),
+	 * result of the queued Operation is returned.
+	 * 
+	 * @param pDependency Dependency of this Operation.
+	 * @return Its result.
+	 */
+	protected final Object getDependencyResult( Operation pDependency )
+	{
+		int lIndex = mDependencies.indexOf( pDependency );
+		OperationFuture lFuture = mFuture;
+		if ( ( lIndex < 0 ) || ( lFuture == null ) )
+		{
+			return pDependency.getOperationResult();
+		}
+		return lFuture.getDependencyFuture( lIndex ).getResultNow();
+	}
+	
+	/**
+	 * Checks if this Operation depends on another one, directly or through other dependencies.
+	 * 
+	 * @param pOperation Operation to look for.
+	 * @return True if it is found among dependencies.
+	 */
+	private boolean dependsOn( Operation pOperation )
+	{
+		for ( Operation lDependency : mDependencies )
+		{
+			if ( ( lDependency == pOperation ) || lDependency.dependsOn( pOperation ) )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Cancels this Operation. If it is queued it is removed from the queue, if it is running it should check isCancelled() and return.
+	 * Listener is not notified about cancelled Operations.
+	 */
+	public final void cancel()
+	{
+		mIsCancelled = true;
+		OperationFuture lFuture = mFuture;
+		if ( lFuture != null )
+		{
+			lFuture.cancel( false );
+		}
+	}
+	
+	/**
+	 * Checks if this Operation was cancelled. Long running operations should check it in run() and return as soon as possible.
+	 * 
+	 * @return True if this Operation, its token or its future was cancelled.
+	 */
+	public final boolean isCancelled()
+	{
+		OperationCancelToken lToken = mCancelToken;
+		OperationFuture lFuture = mFuture;
+		return mIsCancelled || ( ( lToken != null ) && lToken.isCancelled() ) || ( ( lFuture != null ) && lFuture.isCancelled() );
+	}
+	
+	/**
+	 * Sets token that can cancel this Operation together with others.
+	 * 
+	 * @param pToken Token to use or null.
+	 */
+	public final void setCancelToken( OperationCancelToken pToken )
+	{
+		mCancelToken = pToken;
+	}
+	
+	/**
+	 * Gets token of this Operation.
+	 * 
+	 * @return Token or null if not set.
+	 */
+	public final OperationCancelToken getCancelToken()
+	{
+		return mCancelToken;
+	}
+	
+	/**
+	 * Gets future of this Operation.
+	 * 
+	 * @return Future created when this Operation was added to OperationQueue for the last time, null if it was never added.
+	 */
+	public final OperationFuture getFuture()
+	{
+		return mFuture;
+	}
+	
+	/**
+	 * Sets future of this Operation.
+	 * 
+	 * @param pFuture Future.
+	 */
+	final void setFuture( OperationFuture pFuture )
+	{
+		mFuture = pFuture;
+	}
+	
 	/**
 	 * Gets object interested in results of this Operation.
 	 * 
@@ -0,0 +1,32 @@
+package fr.playsoft.android.tools.operation;
+
+/**
+ * Token shared by a group of Operations that can be cancelled together.
+ * Usually each screen creates its own token, gives it to all Operations it starts and cancels it with
+ * OperationQueue.cancelOperations() when it is left, so no work is done (and no results are delivered) for screens that are gone.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public final class OperationCancelToken
+{
+	/** Flag to check if token is cancelled **/
+	private volatile boolean mIsCancelled;
+	
+	/**
+	 * Cancels all Operations using this token. Queued Operations will not be started, running ones should check isCancelled() and stop.
+	 */
+	public void cancel()
+	{
+		mIsCancelled = true;
+	}
+	
+	/**
+	 * Checks if token is cancelled.
+	 * 
+	 * @return True if cancel() was called.
+	 */
+	public boolean isCancelled()
+	{
+		return mIsCancelled;
+	}
+}
@@ -0,0 +1,106 @@
+package fr.playsoft.android.tools.operation;
+
+/**
+ * Error of a failed Operation. It is given to the listener when the Operation has no result of its own and is the cause of
+ * ExecutionException thrown by OperationFuture.get().
+ * 
+ * @author Olgierd Uzieblo
+ */
+public final class OperationError extends Exception
+{
+	/** Version of serialized form **/
+	private static final long serialVersionUID = 1L;
+	
+	/** run() has returned false **/
+	public static final int TYPE_FAILED = 0;
+	
+	/** run() has thrown an exception or an error - it is the cause of this error **/
+	public static final int TYPE_CRASHED = 1;
+	
+	/** run() has not finished before the timeout of the Operation **/
+	public static final int TYPE_TIMED_OUT = 2;
+	
+	/** Type of error **/
+	private final int mType;
+	
+	/** Failed Operation **/
+	private final transient Operation mOperation;
+	
+	/** Result of failed Operation or null **/
+	private final transient Object mResult;
+	
+	/**
+	 * Creates error.
+	 * 
+	 * @param pType Type of error.
+	 * @param pOperation Failed Operation.
+	 * @param pResult Result of failed Operation or null.
+	 * @param pCause Exception thrown by run() or null.
+	 */
+	OperationError( int pType , Operation pOperation , Object pResult , Throwable pCause )
+	{
+		super( createMessage( pType , pOperation , pResult , pCause ) );
+		if ( pCause != null )
+		{
+			initCause( pCause );
+		}
+		mType = pType;
+		mOperation = pOperation;
+		mResult = pResult;
+	}
+	
+	/**
+	 * Gets type of error.
+	 * 
+	 * @return One of TYPE_ constants.
+	 */
+	public int getType()
+	{
+		return mType;
+	}
+	
+	/**
+	 * Gets Operation that has failed. For Operations failed because of a dependency it is the dependency.
+	 * 
+	 * @return Failed Operation.
+	 */
+	public Operation getOperation()
+	{
+		return mOperation;
+	}
+	
+	/**
+	 * Gets result of failed Operation.
+	 * 
+	 * @return Result or null.
+	 */
+	public Object getResult()
+	{
+		return mResult;
+	}
+	
+	/**
+	 * Creates message of error.
+	 * 
+	 * @param pType Type of error.
+	 * @param pOperation Failed Operation.
+	 * @param pResult Result of failed Operation or null.
+	 * @param pCause Exception thrown by run() or null.
+	 * @return Message.
+	 */
+	private static String createMessage( int pType , Operation pOperation , Object pResult , Throwable pCause )
+	{
+		String lName = pOperation.getClass().getSimpleName();
+		switch ( pType )
+		{
+			case TYPE_CRASHED:
+				return lName + " crashed: " + pCause;
+				
+			case TYPE_TIMED_OUT:
+				return lName + " timed out after " + pOperation.getTimeout() + "ms";
+				
+			default:
+				return lName + " failed" + ( ( pResult != null ) ? ": " + pResult : "" );
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package fr.playsoft.android.tools.operation;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of threads performing Operations. One executor can be shared by many OperationQueues, so the number of threads
+ * does not grow with the number of queues. Threads are created only when there is work for them and stopped when they are idle for a while.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public final class OperationExecutor
+{
+	/** Number of threads of the default executor **/
+	public static final int DEFAULT_THREADS_NUM = 5;
+	
+	/** Idle threads are stopped after this time (ms) **/
+	public static final long KEEP_ALIVE_TIME = 30000;
+	
+	/** Default executor, created when it is used for the first time **/
+	private static OperationExecutor sDefaultExecutor;
+	
+	/** Timer of timeouts and retry delays, created when it is used for the first time **/
+	private static ScheduledThreadPoolExecutor sTimer;
+	
+	/** Pool of threads **/
+	private final ThreadPoolExecutor mExecutor;
+	
+	/**
+	 * Creates executor.
+	 * 
+	 * @param pThreadsNum Maximum number of threads.
+	 * @param pName Name of threads.
+	 */
+	public OperationExecutor( int pThreadsNum , final String pName )
+	{
+		final AtomicInteger lThreadCount = new AtomicInteger();
+		mExecutor = new ThreadPoolExecutor( pThreadsNum , pThreadsNum , KEEP_ALIVE_TIME , TimeUnit.MILLISECONDS ,
+				new LinkedBlockingQueue< Runnable >() , new ThreadFactory()
+				{
+					@Override
+					public Thread newThread( Runnable pRunnable )
+					{
+						Thread lThread = new Thread( pRunnable , pName + " number " + lThreadCount.getAndIncrement() );
+						lThread.setPriority( Thread.MIN_PRIORITY );
+						lThread.setDaemon( true );
+						return lThread;
+					}
+				} );
+		mExecutor.allowCoreThreadTimeOut( true );
+	}
+	
+	/**
+	 * Gets executor that can be shared by OperationQueues, so the number of threads does not grow with the number of queues.
+	 * 
+	 * @return Default executor.
+	 */
+	public static synchronized OperationExecutor getDefault()
+	{
+		if ( sDefaultExecutor == null )
+		{
+			sDefaultExecutor = new OperationExecutor( DEFAULT_THREADS_NUM , "OperationThread" );
+		}
+		return sDefaultExecutor;
+	}
+	
+	/**
+	 * Runs task after a delay on the timer thread. Task should be short - it is used to interrupt Operations and queue them again.
+	 * 
+	 * @param pTask Task to run.
+	 * @param pDelay Delay (ms).
+	 * @return Future of the task, can be given to unschedule().
+	 */
+	static synchronized ScheduledFuture< ? > schedule( Runnable pTask , long pDelay )
+	{
+		if ( sTimer == null )
+		{
+			sTimer = new ScheduledThreadPoolExecutor( 1 , new ThreadFactory()
+			{
+				@Override
+				public Thread newThread( Runnable pRunnable )
+				{
+					Thread lThread = new Thread( pRunnable , "OperationTimer" );
+					lThread.setDaemon( true );
+					return lThread;
+				}
+			} );
+		}
+		return sTimer.schedule( pTask , pDelay , TimeUnit.MILLISECONDS );
+	}
+	
+	/**
+	 * Cancels task given to schedule() and removes it from the timer, so timeouts of finished Operations do not pile up.
+	 * 
+	 * @param pFuture Future of the task.
+	 */
+	static synchronized void unschedule( ScheduledFuture< ? > pFuture )
+	{
+		pFuture.cancel( false );
+		sTimer.remove( (Runnable) pFuture );
+	}
+	
+	/**
+	 * Gets maximum number of threads.
+	 * 
+	 * @return Number of threads.
+	 */
+	public int getThreadsNum()
+	{
+		return mExecutor.getMaximumPoolSize();
+	}
+	
+	/**
+	 * Gets number of threads that currently exist.
+	 * 
+	 * @return Number of threads.
+	 */
+	public int getCurrentThreadsNum()
+	{
+		return mExecutor.getPoolSize();
+	}
+	
+	/**
+	 * Runs task on one of the threads. Only one idle thread is woken up (or created if there is none).
+	 * 
+	 * @param pTask Task to run.
+	 */
+	void execute( Runnable pTask )
+	{
+		mExecutor.execute( pTask );
+	}
+	
+	/**
+	 * Checks if any task is waiting for a free thread.
+	 * 
+	 * @return True if all threads are busy and some tasks are waiting.
+	 */
+	boolean hasWaitingTasks()
+	{
+		return !mExecutor.getQueue().isEmpty();
+	}
+	
+	/**
+	 * Stops all threads after they finish their tasks. Default executor can not be shut down.
+	 */
+	public void shutdown()
+	{
+		if ( this == getDefault() )
+		{
+			return;
+		}
+		mExecutor.shutdown();
+	}
+}
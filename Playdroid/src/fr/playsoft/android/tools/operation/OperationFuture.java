@@ -0,0 +1,448 @@
+package fr.playsoft.android.tools.operation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion of an Operation added to OperationQueue. It can be used to wait for the result on a background thread or to cancel the
+ * Operation. Listener of the Operation is still the way to get results on UI thread - it is never called for cancelled Operations.
+ * It also keeps timing of the Operation: time spent in the queue, time of running and number of retries.
+ * Blocking get() must not be called from Operation.run() for an Operation of the same executor - it can wait forever
+ * when all threads of the executor are waiting, dependencies should be used instead.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public final class OperationFuture implements Future< Object >
+{
+	/** Operation is waiting in the queue **/
+	private static final int STATE_QUEUED = 0;
+	
+	/** Operation is running **/
+	private static final int STATE_RUNNING = 1;
+	
+	/** Operation has finished successfully **/
+	private static final int STATE_SUCCEEDED = 2;
+	
+	/** Operation has failed **/
+	private static final int STATE_FAILED = 3;
+	
+	/** Operation was cancelled **/
+	private static final int STATE_CANCELLED = 4;
+	
+	/** Operation **/
+	private final Operation mOperation;
+	
+	/** Queue of the Operation **/
+	private final OperationQueue mQueue;
+	
+	/** Current state **/
+	private int mState = STATE_QUEUED;
+	
+	/** Result of finished Operation **/
+	private Object mResult;
+	
+	/** Error of failed Operation **/
+	private OperationError mError;
+	
+	/** Flag to check if current run has reached the timeout **/
+	private boolean mIsTimedOut;
+	
+	/** Flag to check if run() of current run has returned, so timeout can not affect it any more **/
+	private boolean mIsRunReturned;
+	
+	/** Number of retries **/
+	private int mRetryCount;
+	
+	/** Time when Operation was put in the queue to be started (ns) **/
+	private long mQueuedTime = System.nanoTime();
+	
+	/** Time when current run was started (ns) **/
+	private long mRunStartTime;
+	
+	/** Total time spent in the queue waiting for a thread (ns) **/
+	private long mQueueTime;
+	
+	/** Total time of all runs (ns) **/
+	private long mRunTime;
+	
+	/** Thread running the Operation, null if it is not running **/
+	private Thread mThread;
+	
+	/** Futures of dependencies, in order of Operation.getDependencies() **/
+	private final List< OperationFuture > mDependencyFutures = new ArrayList< OperationFuture >();
+	
+	/** Futures of queued Operations waiting for this one **/
+	private final List< OperationFuture > mDependents = new ArrayList< OperationFuture >();
+	
+	/** Number of dependencies that have not finished yet, used under lock of the queue **/
+	int mPendingDependencyCount;
+	
+	/**
+	 * Creates future of queued Operation.
+	 * 
+	 * @param pOperation Operation.
+	 * @param pQueue Queue of the Operation.
+	 */
+	OperationFuture( Operation pOperation , OperationQueue pQueue )
+	{
+		mOperation = pOperation;
+		mQueue = pQueue;
+	}
+	
+	/**
+	 * Gets the Operation.
+	 * 
+	 * @return Operation.
+	 */
+	public Operation getOperation()
+	{
+		return mOperation;
+	}
+	
+	@Override
+	public boolean cancel( boolean pMayInterruptIfRunning )
+	{
+		synchronized( this )
+		{
+			if ( mState > STATE_RUNNING )
+			{
+				return false;
+			}
+			if ( pMayInterruptIfRunning && ( mThread != null ) )
+			{
+				mThread.interrupt();
+			}
+			mState = STATE_CANCELLED;
+			notifyAll();
+		}
+		mQueue.removeOperation( mOperation );
+		notifyDependents();
+		return true;
+	}
+	
+	@Override
+	public synchronized boolean isCancelled()
+	{
+		return mState == STATE_CANCELLED;
+	}
+	
+	@Override
+	public synchronized boolean isDone()
+	{
+		return mState > STATE_RUNNING;
+	}
+	
+	/**
+	 * Gets error of failed Operation.
+	 * 
+	 * @return Error or null if Operation has not failed.
+	 */
+	public synchronized OperationError getError()
+	{
+		return mError;
+	}
+	
+	/**
+	 * Gets time spent in the queue waiting for a free thread. Waiting for dependencies and retry delays are not counted.
+	 * 
+	 * @return Time (ms).
+	 */
+	public synchronized long getQueueTime()
+	{
+		return mQueueTime / 1000000;
+	}
+	
+	/**
+	 * Gets time of running, summed for all retries.
+	 * 
+	 * @return Time (ms).
+	 */
+	public synchronized long getRunTime()
+	{
+		return mRunTime / 1000000;
+	}
+	
+	/**
+	 * Gets number of retries.
+	 * 
+	 * @return Number of times the Operation was queued again after failing.
+	 */
+	public synchronized int getRetryCount()
+	{
+		return mRetryCount;
+	}
+	
+	/**
+	 * Waits for the result and casts it to expected type.
+	 * 
+	 * @param pType Type of result.
+	 * @return Result of successful Operation.
+	 */
+	public < T > T get( Class< T > pType ) throws InterruptedException , ExecutionException
+	{
+		return pType.cast( get() );
+	}
+	
+	/**
+	 * Checks if Operation has finished successfully.
+	 * 
+	 * @return True if it has finished and run() returned true.
+	 */
+	public synchronized boolean isSuccessful()
+	{
+		return mState == STATE_SUCCEEDED;
+	}
+	
+	@Override
+	public synchronized Object get() throws InterruptedException , ExecutionException
+	{
+		while( mState <= STATE_RUNNING )
+		{
+			wait();
+		}
+		return getResult();
+	}
+	
+	@Override
+	public synchronized Object get( long pTimeout , TimeUnit pUnit ) throws InterruptedException , ExecutionException , TimeoutException
+	{
+		long lEndTime = System.nanoTime() + pUnit.toNanos( pTimeout );
+		while( mState <= STATE_RUNNING )
+		{
+			long lTimeLeft = lEndTime - System.nanoTime();
+			if ( lTimeLeft <= 0 )
+			{
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait( this , lTimeLeft );
+		}
+		return getResult();
+	}
+	
+	/**
+	 * Gets result of finished Operation.
+	 * 
+	 * @return Result of successful Operation.
+	 */
+	private Object getResult() throws ExecutionException
+	{
+		switch ( mState )
+		{
+			case STATE_SUCCEEDED:
+				return mResult;
+			
+			case STATE_FAILED:
+				throw new ExecutionException( mError );
+			
+			default:
+				throw new CancellationException();
+		}
+	}
+	
+	/**
+	 * Marks Operation as running on the current thread.
+	 * 
+	 * @return False if Operation was cancelled and should not be run.
+	 */
+	synchronized boolean setRunning()
+	{
+		if ( mState != STATE_QUEUED )
+		{
+			return false;
+		}
+		mState = STATE_RUNNING;
+		mIsRunReturned = false;
+		mThread = Thread.currentThread();
+		mRunStartTime = System.nanoTime();
+		mQueueTime += mRunStartTime - mQueuedTime;
+		return true;
+	}
+	
+	/**
+	 * Marks Operation as put in the queue to be started.
+	 */
+	synchronized void setQueued()
+	{
+		mQueuedTime = System.nanoTime();
+	}
+	
+	/**
+	 * Marks that run() has returned (or thrown). Timeout reached after this moment is ignored, so a completed run is not reported
+	 * as timed out.
+	 */
+	synchronized void setRunReturned()
+	{
+		mIsRunReturned = true;
+	}
+	
+	/**
+	 * Interrupts the run if it is still running. Called by the timer when timeout of the Operation is reached.
+	 */
+	synchronized void timeOut()
+	{
+		if ( ( mState == STATE_RUNNING ) && ( mThread != null ) && !mIsRunReturned )
+		{
+			mIsTimedOut = true;
+			mThread.interrupt();
+		}
+	}
+	
+	/**
+	 * Marks the run as finished. It must be called on the thread that has run the Operation.
+	 * Interruption caused by cancel() or timeOut() is cleared, so it does not affect next Operation run by this thread.
+	 * 
+	 * @return True if the run has reached the timeout.
+	 */
+	synchronized boolean endRun()
+	{
+		if ( mThread == Thread.currentThread() )
+		{
+			mThread = null;
+			Thread.interrupted();
+			mRunTime += System.nanoTime() - mRunStartTime;
+		}
+		boolean lIsTimedOut = mIsTimedOut;
+		mIsTimedOut = false;
+		return lIsTimedOut;
+	}
+	
+	/**
+	 * Marks failed Operation as queued again.
+	 * 
+	 * @return False if Operation was cancelled and should not be retried.
+	 */
+	synchronized boolean setRetrying()
+	{
+		if ( mState != STATE_RUNNING )
+		{
+			return false;
+		}
+		mState = STATE_QUEUED;
+		mRetryCount++;
+		return true;
+	}
+	
+	/**
+	 * Marks Operation as finished.
+	 * 
+	 * @param pIsSuccessful True if Operation completed successfully.
+	 * @param pResult Result of the Operation.
+	 * @param pError Error of failed Operation.
+	 */
+	void setFinished( boolean pIsSuccessful , Object pResult , OperationError pError )
+	{
+		synchronized( this )
+		{
+			if ( mState != STATE_RUNNING )
+			{
+				return;
+			}
+			mState = pIsSuccessful ? STATE_SUCCEEDED : STATE_FAILED;
+			mResult = pResult;
+			mError = pError;
+			notifyAll();
+		}
+		notifyDependents();
+		mQueue.reportMetrics( this );
+	}
+	
+	/**
+	 * Gets result without waiting.
+	 * 
+	 * @return Result of finished Operation (also failed one) or null.
+	 */
+	synchronized Object getResultNow()
+	{
+		return mResult;
+	}
+	
+	/**
+	 * Gets queue of the Operation.
+	 * 
+	 * @return Queue.
+	 */
+	OperationQueue getQueue()
+	{
+		return mQueue;
+	}
+	
+	/**
+	 * Adds future of next dependency. Used only while the Operation is added to the queue.
+	 * 
+	 * @param pFuture Future of dependency.
+	 */
+	void addDependencyFuture( OperationFuture pFuture )
+	{
+		mDependencyFutures.add( pFuture );
+	}
+	
+	/**
+	 * Gets future of dependency.
+	 * 
+	 * @param pIndex Index of dependency.
+	 * @return Its future.
+	 */
+	OperationFuture getDependencyFuture( int pIndex )
+	{
+		return mDependencyFutures.get( pIndex );
+	}
+	
+	/**
+	 * Finds dependency that has not finished successfully.
+	 * 
+	 * @return Its future or null if all dependencies have succeeded.
+	 */
+	OperationFuture getFailedDependency()
+	{
+		for ( OperationFuture lFuture : mDependencyFutures )
+		{
+			if ( !lFuture.isSuccessful() )
+			{
+				return lFuture;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Adds Operation waiting for this one.
+	 * 
+	 * @param pDependent Future of waiting Operation.
+	 * @return False if this Operation has already finished, so there is nothing to wait for.
+	 */
+	synchronized boolean addDependent( OperationFuture pDependent )
+	{
+		if ( mState > STATE_RUNNING )
+		{
+			return false;
+		}
+		mDependents.add( pDependent );
+		return true;
+	}
+	
+	/**
+	 * Lets queues of waiting Operations know that this one has finished. It is called without holding any lock.
+	 */
+	private void notifyDependents()
+	{
+		List< OperationFuture > lDependents;
+		synchronized( this )
+		{
+			if ( mDependents.isEmpty() )
+			{
+				return;
+			}
+			lDependents = new ArrayList< OperationFuture >( mDependents );
+			mDependents.clear();
+		}
+		for ( OperationFuture lDependent : lDependents )
+		{
+			lDependent.getQueue().dependencyFinished( lDependent );
+		}
+	}
+}
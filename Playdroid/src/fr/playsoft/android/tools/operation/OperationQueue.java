@@ -2,23 +2,39 @@ package fr.playsoft.android.tools.operation;
 
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 
 import android.content.Context;
 
 /**
  * Class that manages a queue of Operations. Operations are launched
- * simultaneously using a pool of Threads.
+ * simultaneously using threads of OperationExecutor. By default every queue has its own executor, so queues never wait for each other.
+ * An executor can be shared by many queues when it is given to the constructor - then each queue has its own limit of
+ * Operations running at the same time and busy queues take turns in using threads of the executor.
+ * Operations with higher priority are started first, but priority of waiting Operations grows with time
+ * (by one every PRIORITY_AGING_TIME), so low priority Operations are never starved.
  * 
  * @author Olgierd Uzieblo
  */
 public class OperationQueue
 {
-	/** Number of operation performing threads **/
+	/** Default number of Operations running at the same time **/
 	public static final int MAX_THREADS_NUM = 5;
 	
-	/** ArrayList with all our operation threads **/
-	private ArrayList< OperationThread > mThreadList;
+	/** Time after which waiting Operation gains one level of priority (ms) **/
+	public static final long PRIORITY_AGING_TIME = 1000;
+	
+	/** Executor running Operations **/
+	private final OperationExecutor mExecutor;
+	
+	/** Flag to check if the executor was created by this queue - it is shut down by finish() **/
+	private boolean mIsOwnExecutor;
+	
+	/** Maximum number of Operations running at the same time **/
+	private final int mMaxRunningCount;
 	
 	/** Queue of Operations to perform **/
 	private PriorityBlockingQueue< Operation > mQueue;
@@ -29,72 +45,208 @@ public class OperationQueue
 	/** Current maximum priority **/
 	private int mCurrentMaxPriority;
 	
+	/** Queued Operations waiting for their dependencies **/
+	private ArrayList< Operation > mWaitingOperations = new ArrayList< Operation >();
+	
+	/** Queued Operations by their deduplication keys **/
+	private HashMap< String , Operation > mQueuedKeys = new HashMap< String , Operation >();
+	
+	/** Number of Operations added so far **/
+	private long mSequence;
+	
+	/** Number of running Operations **/
+	private int mRunningCount;
+	
+	/** Number of OperationThreads given to the executor and not finished yet **/
+	private int mThreadCount;
+	
+	/** Flag to check if queue is finished **/
+	private boolean mIsFinished;
+	
+	/** Listener of timing of finished Operations, null if not used **/
+	private volatile IOperationMetricsListener mMetricsListener;
+	
 	/**
 	 * Comparator for choosing Operations with higher priority.
+	 * Priority that grows with waiting time does not change the order of queued Operations, so the order can be given by a fixed key:
+	 * time of adding minus priority multiplied by PRIORITY_AGING_TIME.
 	 */
 	private static final Comparator< Operation > PRIORITY_COMPARATOR = new Comparator< Operation >()
 	{
 		@Override
 		public int compare( Operation object1 , Operation object2 )
 		{
-			// The higher the priority the earlier the task will start
-			return -object1.getOperationPriority().compareTo( object2.getOperationPriority() );
+			// The lower the key the earlier the task will start, equal keys are started in order of adding
+			if ( object1.mQueueOrder != object2.mQueueOrder )
+			{
+				return ( object1.mQueueOrder < object2.mQueueOrder ) ? -1 : 1;
+			}
+			return ( object1.mQueueSequence < object2.mQueueSequence ) ? -1 : ( ( object1.mQueueSequence == object2.mQueueSequence ) ? 0 : 1 );
 		}
 	};
 	
 	/**
-	 * Creates this OperationQueue.
+	 * Creates this OperationQueue with its own executor, with up to MAX_THREADS_NUM Operations running at the same time.
 	 * 
 	 * @param pContext Context to use.
 	 */
 	public OperationQueue( Context pContext )
+	{
+		this( pContext , new OperationExecutor( MAX_THREADS_NUM , "OperationThread" ) , MAX_THREADS_NUM );
+		mIsOwnExecutor = true;
+	}
+	
+	/**
+	 * Creates this OperationQueue. Executor can be shared with other queues, for example OperationExecutor.getDefault().
+	 * Operations of queues sharing an executor must not wait for each other - see Operation.run().
+	 * 
+	 * @param pContext Context to use.
+	 * @param pExecutor Executor running Operations.
+	 * @param pMaxRunningCount Maximum number of Operations of this queue running at the same time.
+	 */
+	public OperationQueue( Context pContext , OperationExecutor pExecutor , int pMaxRunningCount )
 	{
 		mContext = pContext;
+		mExecutor = pExecutor;
+		mMaxRunningCount = Math.max( 1 , pMaxRunningCount );
 		mQueue = new PriorityBlockingQueue< Operation >( 1 , PRIORITY_COMPARATOR );
-		mThreadList = new ArrayList< OperationThread >( MAX_THREADS_NUM );
-		for ( int i = 0; i < MAX_THREADS_NUM; i++ )
-		{
-			OperationThread lOperationThread = new OperationThread( mContext , this );
-			mThreadList.add( lOperationThread );
-			Thread lThread = new Thread( lOperationThread );
-			lThread.setPriority( Thread.MIN_PRIORITY );
-			lThread.setName( "OperationThread number " + Integer.toString( i ) );
-			lThread.start();
-		}
 	}
 	
 	/**
-	 * Finishes - stops all threads.
+	 * Finishes - running Operations are completed, but no new ones are started. Operations that are still queued are cancelled.
 	 */
 	public void finish()
 	{
-		for ( OperationThread lThread : mThreadList )
+		synchronized( this )
 		{
-			lThread.exit();
-			lThread.awake();
+			mIsFinished = true;
+		}
+		cancelOperations( null );
+		if ( mIsOwnExecutor )
+		{
+			mExecutor.shutdown();
 		}
 	}
 	
 	/**
-	 * Checks if there are any operations left to start.
+	 * Checks if there are any operations queued or running.
 	 * 
-	 * @return True if something is still left in Operations queue.
+	 * @return True if something is still left in Operations queue or is being performed.
 	 */
 	public synchronized boolean isBusy()
 	{
-		return mQueue.isEmpty();
+		return ( !mQueue.isEmpty() ) || ( !mWaitingOperations.isEmpty() ) || ( mRunningCount > 0 );
 	}
 	
 	/**
-	 * Adds new Operation to the queue.
+	 * Adds new Operation to the queue. If an Operation with the same deduplication key is already queued, the new one is not added -
+	 * its listener is not notified and its future is not set, so the returned future must be used to wait for the result.
+	 * Dependencies of the Operation that were never queued are added too. Operation waits until all its dependencies have finished.
 	 * 
 	 * @param pOperation Operation to add.
+	 * @return Future of the added Operation or of the queued Operation with the same key.
 	 */
-	public synchronized void addOperation( Operation pOperation )
+	public synchronized OperationFuture addOperation( Operation pOperation )
 	{
-		mCurrentMaxPriority = Math.max( mCurrentMaxPriority , pOperation.getOperationPriority() );
-		mQueue.add( pOperation );
-		startOperating();
+		if ( mIsFinished )
+		{
+			OperationFuture lFuture = new OperationFuture( pOperation , this );
+			pOperation.setFuture( lFuture );
+			lFuture.cancel( false );
+			return lFuture;
+		}
+		String lKey = pOperation.getDeduplicationKey();
+		if ( lKey != null )
+		{
+			Operation lQueuedOperation = mQueuedKeys.get( lKey );
+			if ( lQueuedOperation != null )
+			{
+				return lQueuedOperation.getFuture();
+			}
+			mQueuedKeys.put( lKey , pOperation );
+		}
+		int lPriority = pOperation.getOperationPriority();
+		mCurrentMaxPriority = Math.max( mCurrentMaxPriority , lPriority );
+		pOperation.mQueueOrder = System.nanoTime() / 1000000 - lPriority * PRIORITY_AGING_TIME;
+		pOperation.mQueueSequence = mSequence++;
+		OperationFuture lFuture = new OperationFuture( pOperation , this );
+		pOperation.setFuture( lFuture );
+		for ( Operation lDependency : pOperation.getDependencies() )
+		{
+			OperationFuture lDependencyFuture = lDependency.getFuture();
+			if ( lDependencyFuture == null )
+			{
+				lDependencyFuture = addOperation( lDependency );
+			}
+			lFuture.addDependencyFuture( lDependencyFuture );
+			if ( lDependencyFuture.addDependent( lFuture ) )
+			{
+				lFuture.mPendingDependencyCount++;
+			}
+		}
+		if ( lFuture.mPendingDependencyCount > 0 )
+		{
+			mWaitingOperations.add( pOperation );
+		}
+		else
+		{
+			lFuture.setQueued();
+			mQueue.add( pOperation );
+			startOperating();
+		}
+		return lFuture;
+	}
+	
+	/**
+	 * Cancels all Operations using given token - queued ones are removed, running ones are notified by the token.
+	 * Should be used when the screen that has started them is left.
+	 * 
+	 * @param pToken Token to cancel, null to cancel all queued Operations.
+	 */
+	public void cancelOperations( OperationCancelToken pToken )
+	{
+		List< Operation > lCancelled = new ArrayList< Operation >();
+		synchronized( this )
+		{
+			if ( pToken != null )
+			{
+				pToken.cancel();
+			}
+			for ( Operation lOperation : mQueue )
+			{
+				if ( ( pToken == null ) || ( lOperation.getCancelToken() == pToken ) )
+				{
+					lCancelled.add( lOperation );
+				}
+			}
+			for ( Operation lOperation : mWaitingOperations )
+			{
+				if ( ( pToken == null ) || ( lOperation.getCancelToken() == pToken ) )
+				{
+					lCancelled.add( lOperation );
+				}
+			}
+		}
+		for ( Operation lOperation : lCancelled )
+		{
+			lOperation.getFuture().cancel( false );
+		}
+	}
+	
+	/**
+	 * Removes Operation that is waiting in the queue.
+	 * 
+	 * @param pOperation Operation to remove.
+	 * @return True if it was removed, false if it was not queued.
+	 */
+	synchronized boolean removeOperation( Operation pOperation )
+	{
+		if ( ( !mQueue.remove( pOperation ) ) && ( !mWaitingOperations.remove( pOperation ) ) )
+		{
+			return false;
+		}
+		removeKey( pOperation );
+		return true;
 	}
 	
 	/**
@@ -108,24 +260,158 @@ public class OperationQueue
 	}
 	
 	/**
-	 * Gets next Operation with the highest priority.
+	 * Called when one of dependencies of a waiting Operation has finished. Operation is queued to be started when all of them are finished.
+	 * 
+	 * @param pFuture Future of waiting Operation.
+	 */
+	synchronized void dependencyFinished( OperationFuture pFuture )
+	{
+		pFuture.mPendingDependencyCount--;
+		if ( ( pFuture.mPendingDependencyCount == 0 ) && mWaitingOperations.remove( pFuture.getOperation() ) )
+		{
+			pFuture.setQueued();
+			mQueue.add( pFuture.getOperation() );
+			startOperating();
+		}
+	}
+	
+	/**
+	 * Queues failed Operation again after a delay. It waits without using any thread.
+	 * 
+	 * @param pOperation Operation to retry.
+	 * @param pDelay Delay (ms).
+	 * @return False if queue is finished, so Operation can not be retried.
+	 */
+	synchronized boolean retryOperation( final Operation pOperation , long pDelay )
+	{
+		if ( mIsFinished )
+		{
+			return false;
+		}
+		mWaitingOperations.add( pOperation );
+		OperationExecutor.schedule( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized( OperationQueue.this )
+				{
+					if ( mWaitingOperations.remove( pOperation ) )
+					{
+						pOperation.getFuture().setQueued();
+						mQueue.add( pOperation );
+						startOperating();
+					}
+				}
+			}
+		} , pDelay );
+		return true;
+	}
+	
+	/**
+	 * Sets listener of timing of finished Operations.
+	 * 
+	 * @param pListener Listener to use or null.
+	 */
+	public void setMetricsListener( IOperationMetricsListener pListener )
+	{
+		mMetricsListener = pListener;
+	}
+	
+	/**
+	 * Gives timing of finished Operation to the listener.
+	 * 
+	 * @param pFuture Future of finished Operation.
+	 */
+	void reportMetrics( OperationFuture pFuture )
+	{
+		IOperationMetricsListener lListener = mMetricsListener;
+		if ( lListener != null )
+		{
+			lListener.onOperationFinished( pFuture );
+		}
+	}
+	
+	/**
+	 * Gets next Operation with the highest priority for OperationThread. Cancelled Operations are returned too - start() skips them.
+	 * Operation is counted as running until operationFinished() is called.
 	 * 
 	 * @return Next Operation that is not running yet. Return null if there are
-	 *         no operations left.
+	 *         no operations left - OperationThread must end then.
 	 */
-	public synchronized Operation getNextOperation()
+	synchronized Operation getNextOperation()
 	{
-		return mQueue.poll();
+		Operation lOperation;
+		if ( ( !mIsFinished ) && ( ( lOperation = mQueue.poll() ) != null ) )
+		{
+			removeKey( lOperation );
+			mRunningCount++;
+			return lOperation;
+		}
+		mThreadCount--;
+		return null;
+	}
+	
+	/**
+	 * Called when Operation returned by getNextOperation() has finished. If this queue still has work, but tasks of other queues
+	 * are waiting for the executor, OperationThread is given to the executor again, so it is run after them.
+	 * 
+	 * @param pOperation Finished Operation.
+	 * @param pThread OperationThread that has performed it.
+	 * @return True if OperationThread should continue with next Operation, false if it must end.
+	 */
+	synchronized boolean operationFinished( Operation pOperation , OperationThread pThread )
+	{
+		mRunningCount--;
+		if ( mIsFinished || mQueue.isEmpty() || !mExecutor.hasWaitingTasks() )
+		{
+			return true;
+		}
+		try
+		{
+			mExecutor.execute( pThread );
+			return false;
+		}
+		catch( RejectedExecutionException e )
+		{
+			// Executor was shut down - this thread finishes the queue
+			return true;
+		}
+	}
+	
+	/**
+	 * Removes deduplication key of Operation that is no longer queued.
+	 * 
+	 * @param pOperation Operation.
+	 */
+	private void removeKey( Operation pOperation )
+	{
+		String lKey = pOperation.getDeduplicationKey();
+		if ( ( lKey != null ) && ( mQueuedKeys.get( lKey ) == pOperation ) )
+		{
+			mQueuedKeys.remove( lKey );
+		}
 	}
 	
 	/**
-	 * Starts to perform queued operations.
+	 * Starts to perform queued operations. New OperationThread is given to the executor only if queued Operations are more than
+	 * OperationThreads waiting for them and the limit of running Operations is not reached, so only needed threads are woken up.
 	 */
 	private synchronized void startOperating()
 	{
-		for ( OperationThread lThread : mThreadList )
+		int lWaitingThreadCount = mThreadCount - mRunningCount;
+		if ( ( lWaitingThreadCount < mQueue.size() ) && ( mThreadCount < mMaxRunningCount ) )
 		{
-			lThread.awake();
+			mThreadCount++;
+			try
+			{
+				mExecutor.execute( new OperationThread( mContext , this ) );
+			}
+			catch( RejectedExecutionException e )
+			{
+				// Executor was shut down - Operations stay in the queue
+				mThreadCount--;
+			}
 		}
 	}
 }
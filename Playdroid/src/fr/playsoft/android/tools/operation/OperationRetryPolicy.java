@@ -0,0 +1,79 @@
+package fr.playsoft.android.tools.operation;
+
+/**
+ * Policy of retrying failed Operations. Failed Operation is queued again after a delay that grows with each retry, so a server
+ * that is down is not flooded with requests. The delay is waited without using any operation thread.
+ * Cancelled Operations and Operations failed because of their dependencies are never retried.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public class OperationRetryPolicy
+{
+	/** Default delay before first retry (ms) **/
+	public static final long DEFAULT_DELAY = 1000;
+	
+	/** Default multiplier of delay for each next retry **/
+	public static final float DEFAULT_BACKOFF_MULTIPLIER = 2;
+	
+	/** Default maximum delay (ms) **/
+	public static final long DEFAULT_MAX_DELAY = 30000;
+	
+	/** Maximum number of retries **/
+	private final int mMaxRetries;
+	
+	/** Delay before first retry (ms) **/
+	private final long mDelay;
+	
+	/** Multiplier of delay for each next retry **/
+	private final float mBackoffMultiplier;
+	
+	/** Maximum delay (ms) **/
+	private final long mMaxDelay;
+	
+	/**
+	 * Creates default policy - up to OperationThread.MAX_RETRIES retries with delays of 1s, 2s, 4s...
+	 */
+	public OperationRetryPolicy()
+	{
+		this( OperationThread.MAX_RETRIES , DEFAULT_DELAY , DEFAULT_BACKOFF_MULTIPLIER , DEFAULT_MAX_DELAY );
+	}
+	
+	/**
+	 * Creates policy.
+	 * 
+	 * @param pMaxRetries Maximum number of retries.
+	 * @param pDelay Delay before first retry (ms).
+	 * @param pBackoffMultiplier Multiplier of delay for each next retry, 1 for constant delay.
+	 * @param pMaxDelay Maximum delay (ms).
+	 */
+	public OperationRetryPolicy( int pMaxRetries , long pDelay , float pBackoffMultiplier , long pMaxDelay )
+	{
+		mMaxRetries = pMaxRetries;
+		mDelay = pDelay;
+		mBackoffMultiplier = pBackoffMultiplier;
+		mMaxDelay = pMaxDelay;
+	}
+	
+	/**
+	 * Checks if failed Operation should be retried. Can be overridden to retry only some errors.
+	 * 
+	 * @param pError Error of the last run.
+	 * @param pRetryCount Number of retries done so far.
+	 * @return True if Operation should be queued again.
+	 */
+	public boolean shouldRetry( OperationError pError , int pRetryCount )
+	{
+		return pRetryCount < mMaxRetries;
+	}
+	
+	/**
+	 * Gets delay before next retry.
+	 * 
+	 * @param pRetryCount Number of retries done so far.
+	 * @return Delay (ms).
+	 */
+	public long getDelay( int pRetryCount )
+	{
+		return (long) Math.min( mDelay * Math.pow( mBackoffMultiplier , pRetryCount ) , mMaxDelay );
+	}
+}
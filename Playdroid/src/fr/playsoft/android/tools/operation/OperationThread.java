@@ -3,7 +3,9 @@ package fr.playsoft.android.tools.operation;
 import android.content.Context;
 
 /**
- * Single operation performing thread.
+ * Single operation performing task. It is run on a thread of OperationExecutor and performs Operations of its queue one by one,
+ * until the queue has nothing left for it. When tasks of other queues are waiting for the executor, it gives the thread to them
+ * after each Operation and waits behind them, so one busy queue does not keep all threads of a shared executor.
  * 
  * @author Olgierd Uzieblo
  */
@@ -12,7 +14,7 @@ public class OperationThread implements Runnable
 	/** Tag for this class **/
 	public static final String TAG = "OperationThread";
 	
-	/** Max retries before task will be removed **/
+	/** Max retries before task will be removed, used by default OperationRetryPolicy **/
 	public static final int MAX_RETRIES = 3;
 	
 	/** Task currently being performed **/
@@ -21,17 +23,11 @@ public class OperationThread implements Runnable
 	/** Operation queue used by this OperationThread **/
 	private OperationQueue mOperationQueue;
 	
-	/** Is thread running **/
-	private boolean mIsRunning = true;
-	
-	/** Flag to trigger pause **/
-	private boolean mTriggerPause = true;
-	
 	/** Context **/
 	private Context mContext;
 	
 	/**
-	 * Creates the downloading thread.
+	 * Creates the operation performing task.
 	 * 
 	 * @param pContext Context to use.
 	 * @param pOperationQueue Operation queue to use.
@@ -45,62 +41,22 @@ public class OperationThread implements Runnable
 	@Override
 	public void run()
 	{
-		while( mIsRunning )
+		boolean lIsContinued;
+		while( ( mCurrentOperation = mOperationQueue.getNextOperation() ) != null )
 		{
-			if ( mTriggerPause )
+			try
 			{
-				mTriggerPause = false;
-				synchronized( this )
-				{
-					try
-					{
-						this.wait();
-					}
-					catch( InterruptedException e )
-					{
-					}
-				}
+				mCurrentOperation.start( mContext );
 			}
-			else
+			finally
 			{
-				mCurrentOperation = mOperationQueue.getNextOperation();
-				
-				if ( mCurrentOperation != null )
-				{
-					mCurrentOperation.start( mContext );
-				}
-				else
-				{
-					mTriggerPause = true;
-				}
+				lIsContinued = mOperationQueue.operationFinished( mCurrentOperation , this );
+				mCurrentOperation = null;
+			}
+			if ( !lIsContinued )
+			{
+				return;
 			}
-		}
-	}
-	
-	/**
-	 * Pauses this operation thread.
-	 */
-	public void pause()
-	{
-		mTriggerPause = true;
-	}
-	
-	/**
-	 * Exits this operation thread.
-	 */
-	public void exit()
-	{
-		mIsRunning = false;
-	}
-	
-	/**
-	 * Wakes this operation thread.
-	 */
-	public void awake()
-	{
-		synchronized( this )
-		{
-			this.notify();
 		}
 	}
 }
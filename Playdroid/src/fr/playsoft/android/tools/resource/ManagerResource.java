@@ -26,6 +26,7 @@ import android.graphics.ColorMatrix;
 import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.ConnectivityManager;
@@ -34,6 +35,7 @@ import android.os.Environment;
 import android.os.Handler;
 import android.os.StatFs;
 import fr.playsoft.android.tools.debug.Log;
+import fr.playsoft.android.tools.drawables.DrawableDiskCacher;
 import fr.playsoft.android.tools.drawables.DrawableLoader;
 
 /**
@@ -47,6 +49,9 @@ public class ManagerResource
 	/** Tag for LogCat **/
 	private static final String TAG = "ResourceManager";
 	
+	/** Name of folder (inside app cache dir) with scaled thumbnails **/
+	private static final String THUMBNAIL_CACHE_FOLDER = "thumbnails";
+	
 	/** Constant for small files **/
 	public static final int TASK_TYPE_SMALL_FILE = DownloadThread.THREAD_TYPE_SMALL_FILES;
 	
@@ -140,7 +145,19 @@ public class ManagerResource
 	private static long sTotalDownloadTime;
 	
 	/** Play button bitmap used to generate video thumbnails **/
-	private static Bitmap sPlayButtonBitmap = null;
+	private static volatile Bitmap sPlayButtonBitmap = null;
+	
+	/** Lock guarding canvas, paint and rect used for drawing play button - ManagerResource lock is not held during drawing **/
+	private static final Object sPlayButtonLock = new Object();
+	
+	/** Canvas reused for drawing play button on video thumbnails **/
+	private static Canvas sPlayButtonCanvas = new Canvas();
+	
+	/** Paint reused for drawing play button on video thumbnails **/
+	private static Paint sPlayButtonPaint = new Paint( Paint.FILTER_BITMAP_FLAG );
+	
+	/** Rect reused for drawing play button on video thumbnails **/
+	private static Rect sPlayButtonRect = new Rect();
 	
 	/** Minimum time between checks of memory left **/
 	private static final int MEMORY_CHECK_INTERVAL = 5000;
@@ -250,6 +267,7 @@ public class ManagerResource
 		sHandler = new Handler();
 		sContext = pContext;
 		sResources = sContext.getResources();
+		DrawableDiskCacher.init( new File( sContext.getCacheDir() , THUMBNAIL_CACHE_FOLDER ) );
 		sTaskQueueSmallFiles = new PriorityBlockingQueue< DownloadTask >( 1 , PRIORITY_COMPARATOR );
 		sTaskQueueLargeFiles = new PriorityBlockingQueue< DownloadTask >( 1 , PRIORITY_COMPARATOR );
 		sThreadList = new ArrayList< DownloadThread >( MAX_THREADS_NUM );
@@ -409,19 +427,83 @@ public class ManagerResource
 		lPaint.setColorFilter( lFilter );
 		
 		// Create empty bitmap with the same size
-		sPlayButtonBitmap = Bitmap.createBitmap( lTempBitmap.getWidth() , lTempBitmap.getHeight() , Bitmap.Config.ARGB_8888 );
+		Bitmap lPlayButtonBitmap = Bitmap.createBitmap( lTempBitmap.getWidth() , lTempBitmap.getHeight() , Bitmap.Config.ARGB_8888 );
 		
 		// Get canvas for it
-		Canvas lCanvas = new Canvas( sPlayButtonBitmap );
+		Canvas lCanvas = new Canvas( lPlayButtonBitmap );
 		
 		// Draw original bitmap with changed transparency
 		lCanvas.drawBitmap( lTempBitmap , new Matrix() , lPaint );
 		
+		// Loader threads can use it only when it is ready
+		sPlayButtonBitmap = lPlayButtonBitmap;
+		
 		// Cleanup
 		lTempBitmap = null;
 		lCanvas = null;
 	}
 	
+	/**
+	 * Draws play button over the image to create video thumbnail. Bitmap is changed in place if it is mutable,
+	 * otherwise it is replaced by a mutable copy. Play button is centered and scaled down if it is larger than the image.
+	 * Should be called from background thread. Copying is done without any lock, only drawing on the shared canvas is guarded.
+	 * 
+	 * @param pBitmap Image to draw on.
+	 * @return Bitmap with play button or pBitmap if play button was not set or drawing failed.
+	 */
+	public static Bitmap drawPlayButton( Bitmap pBitmap )
+	{
+		Bitmap lPlayButtonBitmap = sPlayButtonBitmap;
+		if ( ( lPlayButtonBitmap == null ) || ( pBitmap == null ) )
+		{
+			return pBitmap;
+		}
+		
+		try
+		{
+			Bitmap lResult = pBitmap;
+			if ( !lResult.isMutable() )
+			{
+				lResult = pBitmap.copy( Bitmap.Config.ARGB_8888 , true );
+				if ( lResult == null )
+				{
+					return pBitmap;
+				}
+				pBitmap.recycle();
+			}
+			
+			int lImageWidth = lResult.getWidth();
+			int lImageHeight = lResult.getHeight();
+			int lButtonWidth = lPlayButtonBitmap.getWidth();
+			int lButtonHeight = lPlayButtonBitmap.getHeight();
+			if ( lButtonWidth > lImageWidth )
+			{
+				lButtonHeight = ( lButtonHeight * lImageWidth ) / lButtonWidth;
+				lButtonWidth = lImageWidth;
+			}
+			if ( lButtonHeight > lImageHeight )
+			{
+				lButtonWidth = ( lButtonWidth * lImageHeight ) / lButtonHeight;
+				lButtonHeight = lImageHeight;
+			}
+			int lLeft = ( lImageWidth - lButtonWidth ) / 2;
+			int lTop = ( lImageHeight - lButtonHeight ) / 2;
+			synchronized( sPlayButtonLock )
+			{
+				sPlayButtonRect.set( lLeft , lTop , lLeft + lButtonWidth , lTop + lButtonHeight );
+				sPlayButtonCanvas.setBitmap( lResult );
+				sPlayButtonCanvas.drawBitmap( lPlayButtonBitmap , null , sPlayButtonRect , sPlayButtonPaint );
+			}
+			return lResult;
+		}
+		catch( Throwable t )
+		{
+			// Probably an out of memory error during copying
+			Log.e( TAG , "Error during drawing play button." , t );
+			return pBitmap;
+		}
+	}
+	
 	/**
 	 * Gets Handler for posting messages on UI thread.
 	 * 
@@ -1396,13 +1478,14 @@ public class ManagerResource
 	
 	/**
 	 * Gets image from resource, scales it down maintaining aspect ratio and returns as a new Bitmap.
+	 * It is not synchronized - decoding takes long and must not block methods used on UI thread.
 	 * 
 	 * @param pFilename File name (without path).
 	 * @param pDesiredWidth Desired maximum width of the image.
 	 * @param pDesiredHeight Desired maximum height of the image.
 	 * @return New Bitmap or null if it was impossible to create it (missing image).
 	 */
-	public static synchronized Bitmap getScaledBitmap( String pFilename , int pDesiredWidth , int pDesiredHeight )
+	public static Bitmap getScaledBitmap( String pFilename , int pDesiredWidth , int pDesiredHeight )
 	{
 		if ( !isFileAvailable( pFilename ) )
 		{
@@ -1413,8 +1496,18 @@ public class ManagerResource
 		{
 			Bitmap lBitmap = null;
 			InputStream lFileStream = getFileContentAsStream( pFilename );
-			lBitmap = BitmapFactory.decodeStream( lFileStream );
-			lFileStream.close();
+			if ( lFileStream == null )
+			{
+				return null;
+			}
+			try
+			{
+				lBitmap = BitmapFactory.decodeStream( lFileStream );
+			}
+			finally
+			{
+				lFileStream.close();
+			}
 			
 			if ( lBitmap == null )
 			{
@@ -1480,7 +1573,7 @@ public class ManagerResource
 	 * @param pDesiredHeight Desired maximum height of the image.
 	 * @return New BitmapDrawable or null if it was impossible to create it (missing image).
 	 */
-	public static synchronized BitmapDrawable getScaledBitmapDrawable( String pFilename , int pDesiredWidth , int pDesiredHeight )
+	public static BitmapDrawable getScaledBitmapDrawable( String pFilename , int pDesiredWidth , int pDesiredHeight )
 	{
 		Bitmap lBitmap = getScaledBitmap( pFilename , pDesiredWidth , pDesiredHeight );
 		
@@ -0,0 +1,16 @@
+package fr.playsoft.android.tools.simpledb;
+
+/**
+ * Listener notified once after a whole SimpleDBBatch was applied.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public interface ISimpleDBBatchListener
+{
+	/**
+	 * Called after batch was applied, on the thread that applied it.
+	 * 
+	 * @param pSummary Keys changed by the batch.
+	 */
+	public void onBatchApplied( SimpleDBChangeSummary pSummary );
+}
@@ -0,0 +1,21 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.util.List;
+
+/**
+ * Listener of the change feed of SimpleDBTable. Unlike ITableModifiedListener it gets every inserted, updated and deleted row.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public interface ISimpleDBChangeListener
+{
+	/**
+	 * Called after each change of the table (single row or whole batch), after the table is unlocked. Changes are delivered in order
+	 * they were made, on the thread that changed the table or on another thread that was delivering changes of this table at that moment,
+	 * so this method should be fast. It can use the table, its later changes are delivered after this call returns.
+	 * 
+	 * @param pTable Changed table.
+	 * @param pChanges Changes in order they were made.
+	 */
+	public void onTableChanged( SimpleDBTable pTable , List< SimpleDBRowChange > pChanges );
+}
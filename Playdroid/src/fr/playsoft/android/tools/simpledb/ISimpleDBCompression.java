@@ -0,0 +1,38 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compression of table blocks in SimpleDB snapshot files. Each table block is compressed separately, so tables can be decoded
+ * independently of each other. Built-in compressions are SimpleDBGZIPCompression and SimpleDBLZCompression.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public interface ISimpleDBCompression
+{
+	/**
+	 * Gets id of this compression saved in table directory. Ids from 0 to 15 are reserved for built-in compressions,
+	 * custom compressions should use ids from 16 to 127.
+	 * 
+	 * @return Compression id.
+	 */
+	public byte getId();
+	
+	/**
+	 * Creates stream that compresses data written to it. Closing it must close the wrapped stream.
+	 * 
+	 * @param pStream Stream to write compressed data to.
+	 * @return Compressing stream.
+	 */
+	public OutputStream createOutputStream( OutputStream pStream ) throws IOException;
+	
+	/**
+	 * Creates stream that decompresses data read from the wrapped stream. Closing it must close the wrapped stream.
+	 * 
+	 * @param pStream Stream with compressed data.
+	 * @return Decompressing stream.
+	 */
+	public InputStream createInputStream( InputStream pStream ) throws IOException;
+}
@@ -0,0 +1,17 @@
+package fr.playsoft.android.tools.simpledb;
+
+/**
+ * Extractor of int keys used by hash indexes of SimpleDBTable (for example category id).
+ * 
+ * @author Olgierd Uzieblo
+ */
+public interface ISimpleDBIntKeyExtractor
+{
+	/**
+	 * Gets indexed key of the row. Must always return the same value for the same row.
+	 * 
+	 * @param pRow Row of the indexed table.
+	 * @return Key value.
+	 */
+	public int getKey( SimpleDBRow pRow );
+}
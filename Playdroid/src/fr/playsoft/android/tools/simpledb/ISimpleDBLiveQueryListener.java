@@ -0,0 +1,20 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.util.List;
+
+/**
+ * Listener of SimpleDBLiveQuery - it gets only the differences of query result, so lists can update only the changed rows.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public interface ISimpleDBLiveQueryListener
+{
+	/**
+	 * Called on the thread that created the query after its result has changed.
+	 * 
+	 * @param pQuery Changed query.
+	 * @param pDiff Changes of the result with positions, in order they should be applied. TYPE_UNKNOWN means the whole result
+	 *            was read again.
+	 */
+	public void onQueryChanged( SimpleDBLiveQuery pQuery , List< SimpleDBRowChange > pDiff );
+}
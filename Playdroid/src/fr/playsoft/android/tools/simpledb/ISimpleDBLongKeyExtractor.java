@@ -0,0 +1,17 @@
+package fr.playsoft.android.tools.simpledb;
+
+/**
+ * Extractor of long keys used by sorted indexes of SimpleDBTable (for example date).
+ * 
+ * @author Olgierd Uzieblo
+ */
+public interface ISimpleDBLongKeyExtractor
+{
+	/**
+	 * Gets indexed key of the row. Must always return the same value for the same row.
+	 * 
+	 * @param pRow Row of the indexed table.
+	 * @return Key value.
+	 */
+	public long getKey( SimpleDBRow pRow );
+}
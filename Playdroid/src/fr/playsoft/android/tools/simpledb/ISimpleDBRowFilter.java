@@ -0,0 +1,17 @@
+package fr.playsoft.android.tools.simpledb;
+
+/**
+ * Filter of rows used by SimpleDBLiveQuery.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public interface ISimpleDBRowFilter
+{
+	/**
+	 * Checks if row belongs to query result. Must always return the same value for the same row.
+	 * 
+	 * @param pRow Row of the table.
+	 * @return True if row belongs to the result.
+	 */
+	public boolean matches( SimpleDBRow pRow );
+}
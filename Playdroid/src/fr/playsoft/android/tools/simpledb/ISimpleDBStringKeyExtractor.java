@@ -0,0 +1,17 @@
+package fr.playsoft.android.tools.simpledb;
+
+/**
+ * Extractor of String keys used by sorted String indexes of SimpleDBTable (for example name searched by prefix).
+ * 
+ * @author Olgierd Uzieblo
+ */
+public interface ISimpleDBStringKeyExtractor
+{
+	/**
+	 * Gets indexed key of the row. Must always return the same value for the same row.
+	 * 
+	 * @param pRow Row of the indexed table.
+	 * @return Key value, null is treated as empty String.
+	 */
+	public String getKey( SimpleDBRow pRow );
+}
@@ -1,14 +1,17 @@
 package fr.playsoft.android.tools.simpledb;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -18,6 +21,11 @@ import fr.playsoft.android.tools.debug.Log;
 /**
  * Simple database implementation.
  * Database was designed to have optimal performance - it is stored in memory and loaded/saved from internal storage only once.
+ * Each table is loaded when it is used for the first time, tables returned by getTablesToPrefetch() are loaded in background.
+ * With log mode enabled save() appends only the changes to a log file and full snapshot is saved only when the log gets large.
+ * Reading and changing data does not lock the whole database - each table has its own read/write lock. Saving locks all tables only
+ * for a moment to capture their rows, so it never blocks lookups while the data is serialized and written.
+ * Tables are encoded during saving and decoded during prefetching in parallel on a small pool of threads shared by all databases.
  * 
  * @author Olgierd Uzieblo
  */
@@ -29,12 +37,27 @@ public abstract class SimpleDB
 	/** Prefix of database name key preference **/
 	private static final String PREFERENCES_KEY_DB_NAME_PREFIX = "SimpleDBName";
 	
+	/** Prefix of previous database name key preference - previous snapshot is kept in case the current one gets damaged **/
+	private static final String PREFERENCES_KEY_PREVIOUS_DB_NAME_PREFIX = "SimpleDBPreviousName";
+	
 	/** TAG for LogCat **/
 	private static final String TAG = "SimpleDB";
 	
+	/** Suffix of log file name **/
+	private static final String LOG_FILE_SUFFIX = "Log";
+	
+	/** Size of buffer used for reading database files (bytes) **/
+	private static final int LOAD_BUFFER_SIZE = 64 * 1024;
+	
+	/** Log is compacted into a new snapshot when it gets larger than the snapshot, but not before it reaches this size (bytes) **/
+	private static final int MIN_LOG_SIZE_TO_COMPACT = 64 * 1024;
+	
 	/** Real file name used by this db - equals "mBaseFileName + timestamp of last save" **/
 	private String mDBFileName;
 	
+	/** File name of snapshot saved before current one, null if there is none **/
+	private String mPreviousDBFileName;
+	
 	/** Additional suffix concatenated with db name, can be null **/
 	private String mAdditionalNameSuffix;
 	
@@ -45,13 +68,13 @@ public abstract class SimpleDB
 	private Context mContext;
 	
 	/** All the tables **/
-	private List< SimpleDBTable > mTables;
+	private volatile List< SimpleDBTable > mTables;
 	
 	/** Preferences to be used for saving current database name **/
 	private SharedPreferences mPreferences;
 	
 	/** Flag to check if saving is needed (if something has been changed) **/
-	private boolean mIsSavingNeeded;
+	private volatile boolean mIsSavingNeeded;
 	
 	/**
 	 * Flag to check if GZIP compression is enabled during database loading/saving.
@@ -61,21 +84,60 @@ public abstract class SimpleDB
 	 */
 	private boolean mIsGZIPEnabled = false;
 	
+	/** Compression of table blocks saved in snapshots, null if they are not compressed **/
+	private volatile ISimpleDBCompression mCompression;
+	
 	/** Listener to be called when database is loaded/saved **/
 	private ISimpleDBLoadSaveListener mDBListener;
 	
+	/** Listener notified after each applied batch **/
+	private ISimpleDBBatchListener mBatchListener;
+	
 	/** Flag to check if database saving is in progress **/
-	private boolean mIsSavingInProgress;
+	private volatile boolean mIsSavingInProgress;
+	
+	/** Flag to check if save() was called during saving - database will be saved again when current saving finishes **/
+	private boolean mIsFollowUpSaveNeeded;
+	
+	/** Scheduler of automatic saving, disabled by default **/
+	private SimpleDBAutoSaver mAutoSaver;
 	
 	/** Flag to check if database loading is in progress **/
 	private boolean mIsLoadingInProgress = true;
 	
+	/** Flag to check if tables can be used - snapshot directory is read and log is applied **/
+	private boolean mIsReady;
+	
+	/** Current snapshot file with table directory, null if there is no snapshot in this format **/
+	private SimpleDBFile mSnapshot;
+	
+	/** Format version of loaded snapshot - log is saved in the same format as its snapshot **/
+	private int mSnapshotFormatVersion = SimpleDBFile.FORMAT_VERSION_CURRENT;
+	
+	/** Lock used for waiting until database is ready and for switching snapshot files **/
+	private final Object mTableLoadingLock = new Object();
+	
 	/** Handler for posting messages on UI thread **/
 	private Handler mHandler;
 	
 	/** Current database version. When version changes old database will not be loaded - it will be cleared **/
 	private int mCurrentDBVersion;
 	
+	/** Write-ahead log with changes that are not saved yet, null if log mode is disabled **/
+	private SimpleDBLog mLog;
+	
+	/** Log file name - equals "mBaseFileName + LOG_FILE_SUFFIX" **/
+	private String mLogFileName;
+	
+	/** Current size of log file (bytes) **/
+	private long mLogFileSize;
+	
+	/** Size of last loaded/saved snapshot file (bytes) **/
+	private long mSnapshotFileSize;
+	
+	/** Flag to check if full snapshot must be saved instead of appending changes to the log **/
+	private volatile boolean mIsSnapshotNeeded;
+	
 	/**
 	 * Creates all tables used by this database.
 	 * Returns list containing empty tables.
@@ -94,15 +156,35 @@ public abstract class SimpleDB
 	 */
 	public SimpleDB( Context pContext , String pAdditionalNameSuffix , boolean pIsGZIPEnabled , int pCurrentDBVersion ,
 			ISimpleDBLoadSaveListener pDBLoadSaveListener )
+	{
+		this( pContext , pAdditionalNameSuffix , pIsGZIPEnabled , false , pCurrentDBVersion , pDBLoadSaveListener );
+	}
+	
+	/**
+	 * Creates this SimpleDB instance and loads the data.
+	 * 
+	 * @param pContext Context to use.
+	 * @param pAdditionalNameSuffix Additional part of database name - can be null. Should be used if there are multiple instances of the same
+	 *            database - so that they can be saved in different files.
+	 * @param pIsGZIPEnabled Is GZIP compression enabled for this database.
+	 * @param pIsLogEnabled Is log mode enabled. Changes are appended to a log file during save and whole database is saved only when the
+	 *            log gets large. Makes saving of small changes in large databases much faster.
+	 * @param pCurrentDBVersion Database version - if database structure changes this int should be changed too.
+	 * @param pDBLoadSaveListener Listener to be called when database is loaded/saved. Can be null if you dont care.
+	 */
+	public SimpleDB( Context pContext , String pAdditionalNameSuffix , boolean pIsGZIPEnabled , boolean pIsLogEnabled , int pCurrentDBVersion ,
+			ISimpleDBLoadSaveListener pDBLoadSaveListener )
 	{
 		mContext = pContext;
 		mAdditionalNameSuffix = pAdditionalNameSuffix;
 		mIsGZIPEnabled = pIsGZIPEnabled;
+		mCompression = pIsGZIPEnabled ? new SimpleDBGZIPCompression() : null;
 		mCurrentDBVersion = pCurrentDBVersion;
 		mDBListener = pDBLoadSaveListener;
 		
 		mPreferences = mContext.getSharedPreferences( PREFERENCES_FILE_NAME , Context.MODE_PRIVATE );
 		mHandler = new Handler();
+		mAutoSaver = new SimpleDBAutoSaver( this , mHandler );
 		mBaseFileName = this.getClass().getSimpleName();
 		if ( mAdditionalNameSuffix != null )
 		{
@@ -111,9 +193,17 @@ public abstract class SimpleDB
 		
 		// Getting current file name
 		mDBFileName = mPreferences.getString( PREFERENCES_KEY_DB_NAME_PREFIX + mBaseFileName , mBaseFileName );
+		mPreviousDBFileName = mPreferences.getString( PREFERENCES_KEY_PREVIOUS_DB_NAME_PREFIX + mBaseFileName , null );
 		
 		// Create empty tables
 		mTables = createTables();
+		attachAutoSaver();
+		
+		if ( pIsLogEnabled )
+		{
+			mLog = new SimpleDBLog();
+			mLogFileName = mBaseFileName + LOG_FILE_SUFFIX;
+		}
 		
 		Log.i( TAG , "Initializing SimpleDB with file " + mDBFileName + "..." );
 		
@@ -124,18 +214,22 @@ public abstract class SimpleDB
 			public void run()
 			{
 				load();
-				if ( mDBListener != null )
+				mHandler.post( new Runnable()
 				{
-					mHandler.post( new Runnable()
+					@Override
+					public void run()
 					{
-						@Override
-						public void run()
+						mIsLoadingInProgress = false;
+						if ( mDBListener != null )
 						{
-							mIsLoadingInProgress = false;
 							mDBListener.onDBLoaded( mBaseFileName );
 						}
-					} );
-				}
+					}
+				} );
+				
+				// Database can be used now - remaining tables are loaded without hurry
+				Thread.currentThread().setPriority( Thread.MIN_PRIORITY );
+				prefetchTables();
 			}
 		} );
 		lLoadingThread.setPriority( Thread.MAX_PRIORITY );
@@ -158,350 +252,1455 @@ public abstract class SimpleDB
 	 * @param pTableId Table id.
 	 * @param pDataToInsert Row to insert/update.
 	 */
-	public final synchronized void insertOrUpdate( int pTableId , SimpleDBRow pDataToInsert )
+	public final void insertOrUpdate( int pTableId , SimpleDBRow pDataToInsert )
 	{
-		mTables.get( pTableId ).insertOrUpdate( pDataToInsert );
+		getLoadedTable( pTableId ).insertOrUpdate( pDataToInsert );
 	}
 	
 	/**
-	 * Gets single table.
+	 * Sets listener notified after each batch applied by applyBatch().
 	 * 
-	 * @param pTableId Table id.
-	 * @return Desired table.
+	 * @param pBatchListener Listener to set, null to remove it.
 	 */
-	public final synchronized SimpleDBTable getTable( int pTableId )
+	public final void setOnBatchAppliedListener( ISimpleDBBatchListener pBatchListener )
 	{
-		return mTables.get( pTableId );
+		mBatchListener = pBatchListener;
 	}
 	
 	/**
-	 * Clears whole database - clears all tables.
-	 * Also deletes physical file from internal memory and updates preferences.
+	 * Applies all changes of a batch at once. All changed tables are locked for writing during the whole batch,
+	 * so readers and saving see either none or all of the changes.
+	 * Each changed table notifies its listener once, then ISimpleDBBatchListener gets summary of all changed keys.
+	 * 
+	 * @param pBatch Batch to apply.
+	 * @return Summary of changed keys.
 	 */
-	public final synchronized void clearAndDeleteDatabase()
+	public final SimpleDBChangeSummary applyBatch( SimpleDBBatch pBatch )
 	{
-		mIsSavingNeeded = true;
-		mTables = createTables();
-		if ( !mDBFileName.equals( mBaseFileName ) )
+		List< SimpleDBTable > lTables = mTables;
+		SimpleDBChangeSummary lSummary = new SimpleDBChangeSummary( lTables.size() );
+		
+		// Changes of each table stay in order, tables are locked in order of ids
+		List< List< SimpleDBBatch.Operation > > lOperations = new ArrayList< List< SimpleDBBatch.Operation > >();
+		for ( int i = 0; i < lTables.size(); i++ )
 		{
-			mContext.deleteFile( mDBFileName );
-			SharedPreferences.Editor lEditor = mPreferences.edit();
-			// Set default database name
-			lEditor.putString( PREFERENCES_KEY_DB_NAME_PREFIX + mBaseFileName , mBaseFileName );
-			lEditor.commit();
+			lOperations.add( null );
 		}
-	}
-	
-	/**
-	 * Checks if this database needs to be saved.
-	 * 
-	 * @return True if something has changed and this database should be saved.
-	 */
-	public final synchronized boolean isSavingNeeded()
-	{
-		for ( SimpleDBTable lTable : mTables )
+		for ( SimpleDBBatch.Operation lOperation : pBatch.getOperations() )
+		{
+			if ( lOperations.get( lOperation.mTableId ) == null )
+			{
+				lOperations.set( lOperation.mTableId , new ArrayList< SimpleDBBatch.Operation >() );
+			}
+			lOperations.get( lOperation.mTableId ).add( lOperation );
+		}
+		
+		List< SimpleDBTable > lLockedTables = new ArrayList< SimpleDBTable >();
+		try
+		{
+			for ( int i = 0; i < lOperations.size(); i++ )
+			{
+				if ( lOperations.get( i ) != null )
+				{
+					SimpleDBTable lTable = getLoadedTable( i );
+					lTable.lockForWriting();
+					lLockedTables.add( lTable );
+				}
+			}
+			for ( int i = 0; i < lOperations.size(); i++ )
+			{
+				if ( lOperations.get( i ) != null )
+				{
+					lTables.get( i ).applyBatch( lOperations.get( i ) , lSummary );
+				}
+			}
+			
+			// Logged before unlocking, so saving can not capture the changes without the record
+			if ( ( mLog != null ) && !mLog.logBatch( pBatch ) )
+			{
+				mIsSnapshotNeeded = true;
+			}
+		}
+		finally
 		{
-			mIsSavingNeeded |= lTable.isSavingNeeded();
+			for ( int i = lLockedTables.size() - 1; i >= 0; i-- )
+			{
+				lLockedTables.get( i ).unlockForWriting();
+			}
 		}
 		
-		return mIsSavingNeeded;
+		// Listeners are called without any lock, so they can use the database
+		for ( SimpleDBTable lTable : lLockedTables )
+		{
+			lTable.deliverNotifications();
+		}
+		if ( mBatchListener != null )
+		{
+			mBatchListener.onBatchApplied( lSummary );
+		}
+		return lSummary;
 	}
 	
 	/**
-	 * Gets file name of currently used database.
+	 * Gets single table. If the table is not loaded yet it waits until it is.
 	 * 
-	 * @return DB file name.
+	 * @param pTableId Table id.
+	 * @return Desired table.
 	 */
-	public final String getCurrendDBName()
+	public final SimpleDBTable getTable( int pTableId )
 	{
-		return mDBFileName;
+		return getLoadedTable( pTableId );
 	}
 	
 	/**
-	 * Checks if chosen row exists for chosen table.
-	 * Works only for indexed tables.
+	 * Gets tables that should be loaded in background right after the database is ready, in order of loading.
+	 * Other tables are loaded when they are used for the first time. By default all tables are prefetched in order of their ids.
+	 * Can be overridden to prefetch only tables that are needed soon, so rarely used tables dont take memory.
 	 * 
-	 * @param pTableId Table id.
-	 * @param pKeyValue Unique key value.
-	 * @return True if such row exists.
+	 * @return Array of table ids, can be null.
 	 */
-	public final synchronized boolean isIndexedRowExists( int pTableId , int pKeyValue )
+	protected int[] getTablesToPrefetch()
 	{
-		if ( mTables.get( pTableId ).getIndexedRow( pKeyValue ) != null )
+		int[] lTableIds = new int[ mTables.size() ];
+		for ( int i = 0; i < lTableIds.length; i++ )
 		{
-			return true;
+			lTableIds[ i ] = i;
 		}
-		return false;
+		return lTableIds;
 	}
 	
 	/**
-	 * Gets all rows for which main key equals chosen main key.
-	 * For tables with unique main key this will return only one row.
-	 * Returns null if list is empty.
+	 * Checks if chosen table is already loaded into memory.
 	 * 
 	 * @param pTableId Table id.
-	 * @param pKeyValue Main key value.
-	 * @return List of rows or null if it is empty.
+	 * @return True if the table can be used without waiting for loading.
 	 */
-	public final synchronized List< SimpleDBRow > getAllRowsForMainKey( int pTableId , int pKeyValue )
+	public final boolean isTableLoaded( int pTableId )
 	{
-		return mTables.get( pTableId ).getAllRowsForMainKey( pKeyValue );
+		synchronized( mTableLoadingLock )
+		{
+			if ( !mIsReady )
+			{
+				return false;
+			}
+		}
+		return mTables.get( pTableId ).isLoaded();
 	}
 	
 	/**
-	 * Gets all rows from chosen table.
+	 * Gets single table, waiting until database is ready and loading the table if needed.
 	 * 
 	 * @param pTableId Table id.
-	 * @return List with all rows in this table or null if there is no data!
+	 * @return Loaded table.
 	 */
-	public final synchronized List< SimpleDBRow > getAllTableRows( int pTableId )
+	private final SimpleDBTable getLoadedTable( int pTableId )
 	{
-		return mTables.get( pTableId ).getAllData();
+		synchronized( mTableLoadingLock )
+		{
+			while( !mIsReady )
+			{
+				try
+				{
+					mTableLoadingLock.wait();
+				}
+				catch( InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		return ensureTableLoaded( pTableId );
 	}
 	
 	/**
-	 * Deletes all rows for which main key equals chosen main key.
+	 * Loads the table from current snapshot if it is not loaded yet. Does not wait until database is ready.
+	 * If its block is damaged the table is loaded from the previous snapshot. If that fails too the table stays empty
+	 * and snapshots keep its block from the file, so the data is never overwritten by the empty table.
 	 * 
 	 * @param pTableId Table id.
-	 * @param pKeyValue Main key value.
+	 * @return Loaded table.
 	 */
-	public final synchronized void deleteAllRowsForMainKey( int pTableId , int pKeyValue )
+	final SimpleDBTable ensureTableLoaded( int pTableId )
 	{
-		mTables.get( pTableId ).deleteAllRowsForMainKey( pKeyValue );
+		SimpleDBTable lTable = mTables.get( pTableId );
+		if ( lTable.isLoaded() )
+		{
+			return lTable;
+		}
+		synchronized( lTable )
+		{
+			if ( !lTable.isLoaded() )
+			{
+				SimpleDBFile lSnapshot;
+				String lPreviousDBFileName;
+				synchronized( mTableLoadingLock )
+				{
+					lSnapshot = mSnapshot;
+					lPreviousDBFileName = mPreviousDBFileName;
+				}
+				if ( lSnapshot == null )
+				{
+					// Loading of the database crashed before its snapshot was opened
+					lTable.setLoadFailed();
+				}
+				else if ( loadTable( lTable , pTableId , lSnapshot ) )
+				{
+					lTable.setLoaded();
+				}
+				else
+				{
+					SimpleDBFile lPreviousSnapshot = openPreviousSnapshot( lPreviousDBFileName , lSnapshot , pTableId );
+					if ( ( lPreviousSnapshot != null ) && loadTable( lTable , pTableId , lPreviousSnapshot ) )
+					{
+						// Older rows are better than none - save them in a new snapshot, so the damaged block is not needed anymore
+						Log.w( TAG , "Table " + pTableId + " was loaded from previous snapshot " + lPreviousDBFileName );
+						lTable.setLoaded();
+						mIsSavingNeeded = true;
+						mIsSnapshotNeeded = true;
+					}
+					else
+					{
+						// Table stays empty - there is no point in trying again
+						lTable.setLoadFailed();
+					}
+				}
+			}
+		}
+		return lTable;
 	}
 	
 	/**
-	 * Deletes row from chosen table using its unique key.
+	 * Loads rows of the table from chosen snapshot.
 	 * 
+	 * @param pTable Table to load.
 	 * @param pTableId Table id.
-	 * @param pKeyValue Value of unique key.
+	 * @param pSnapshot Snapshot file.
+	 * @return True if table was loaded, false if its block could not be read.
 	 */
-	public final synchronized void delete( int pTableId , int pKeyValue )
+	private final boolean loadTable( SimpleDBTable pTable , int pTableId , SimpleDBFile pSnapshot )
 	{
-		mTables.get( pTableId ).delete( pKeyValue );
+		DataInputStream lStream = null;
+		try
+		{
+			long lLoadStartTime = System.currentTimeMillis();
+			lStream = pSnapshot.openTable( pTableId , mCompression );
+			pTable.load( lStream , pSnapshot.getFormatVersion() );
+			Log.v( TAG , "Loaded table " + pTableId + " from " + pSnapshot.getFileName() + " in "
+					+ ( System.currentTimeMillis() - lLoadStartTime ) + "ms." );
+			return true;
+		}
+		catch( Exception e )
+		{
+			Log.e( TAG , "Failed to load table " + pTableId + " from " + pSnapshot.getFileName() + "." , e );
+			return false;
+		}
+		finally
+		{
+			closeSilently( lStream );
+		}
 	}
 	
 	/**
-	 * Checks if database saving is in progress.
+	 * Opens previous snapshot to read a table that is damaged in the current one.
 	 * 
-	 * @return True if saving is in progress.
+	 * @param pPreviousDBFileName Name of previous snapshot, can be null.
+	 * @param pSnapshot Current snapshot.
+	 * @param pTableId Id of the damaged table.
+	 * @return Previous snapshot or null if it does not exist or does not contain the table.
 	 */
-	public final boolean isSavingInProgress()
+	private final SimpleDBFile openPreviousSnapshot( String pPreviousDBFileName , SimpleDBFile pSnapshot , int pTableId )
 	{
-		return mIsSavingInProgress;
+		if ( ( pPreviousDBFileName == null ) || pPreviousDBFileName.equals( pSnapshot.getFileName() ) )
+		{
+			return null;
+		}
+		try
+		{
+			SimpleDBFile lSnapshot = SimpleDBFile.open( mContext , pPreviousDBFileName );
+			if ( ( lSnapshot != null ) && ( lSnapshot.getDBVersion() == mCurrentDBVersion ) && ( pTableId < lSnapshot.getNumTables() ) )
+			{
+				return lSnapshot;
+			}
+		}
+		catch( Exception e )
+		{
+			Log.e( TAG , "Failed to read previous SimpleDB file " + pPreviousDBFileName + " !!!" , e );
+		}
+		return null;
 	}
 	
 	/**
-	 * Checks if database loading is in progress.
-	 * 
-	 * @return True if loading is in progress.
+	 * Loads all tables from getTablesToPrefetch() that were not used yet.
 	 */
-	public final boolean isLoadingInProgress()
+	private final void prefetchTables()
 	{
-		return mIsLoadingInProgress;
+		int[] lTableIds = getTablesToPrefetch();
+		if ( lTableIds != null )
+		{
+			ensureTablesLoaded( lTableIds );
+		}
 	}
 	
 	/**
-	 * Loads the database if it exists.
+	 * Loads chosen tables in parallel - every table is a separate block of the snapshot, so they can be decoded independently.
+	 * Tables are started in order of the array.
+	 * 
+	 * @param pTableIds Table ids.
 	 */
-	private final synchronized void load()
+	private final void ensureTablesLoaded( int[] pTableIds )
 	{
-		if ( mDBFileName.equals( mBaseFileName ) )
+		List< Callable< SimpleDBTable > > lTasks = new ArrayList< Callable< SimpleDBTable > >();
+		for ( final int lTableId : pTableIds )
 		{
-			// Database name is the same as its base name = it is first launch, we have no db!
-			return;
+			if ( !mTables.get( lTableId ).isLoaded() )
+			{
+				lTasks.add( new Callable< SimpleDBTable >()
+				{
+					@Override
+					public SimpleDBTable call()
+					{
+						return ensureTableLoaded( lTableId );
+					}
+				} );
+			}
 		}
-		
 		try
 		{
-			long lLoadStartTime = System.currentTimeMillis();
-			
-			byte[] lFileContent;
-			FileInputStream lFile;
-			
-			try
-			{
-				lFile = mContext.openFileInput( mDBFileName );
-				int lFileSize = lFile.available();
-				lFileContent = new byte[ lFileSize ];
-				lFile.read( lFileContent );
-				lFile.close();
-			}
-			catch( Exception e )
-			{
-				// Unknown error, this should never happen!
-				Log.e( TAG , "Failed to read SimpleDB file " + mDBFileName + " !!!" , e );
-				return;
-			}
-			
-			DataInputStream lStream;
-			if ( mIsGZIPEnabled )
-			{
-				lStream = new DataInputStream( new GZIPInputStream( new ByteArrayInputStream( lFileContent ) ) );
-			}
-			else
-			{
-				lStream = new DataInputStream( new ByteArrayInputStream( lFileContent ) );
-			}
-			
-			int lDBVersion = lStream.readInt();
-			if ( lDBVersion != mCurrentDBVersion )
-			{
-				// We have old database... we have to skip the loading or it will crash
-				lStream.close();
-				Log.i( TAG , "Skipped database loading - version has changed!" );
-				mDBListener.onDBVersionChanged( mBaseFileName );
-				return;
-			}
-			
-			short lNumTables = (short) mTables.size();
-			for ( int i = 0; i < lNumTables; i++ )
-			{
-				Log.v( TAG , "Loading table " + i + " from " + mDBFileName );
-				mTables.get( i ).load( lStream );
-			}
-			lStream.close();
-			
-			Log.i( TAG , "Successfully loaded SimpleDB from " + mDBFileName + " file size was " + lFileContent.length + " bytes." );
-			
-			long lLoadEndTime = System.currentTimeMillis();
-			Log.v( TAG , "Loading time: " + ( lLoadEndTime - lLoadStartTime ) + "ms." );
+			SimpleDBWorkers.runAll( lTasks );
 		}
-		catch( Exception e )
+		catch( IOException e )
 		{
-			Log.e( TAG , "Unknown exception while loading " + mDBFileName + "." , e );
+			// Not possible - tables that fail to load just stay empty
+			Log.e( TAG , "Failed to load tables." , e );
 		}
 	}
 	
 	/**
-	 * Saves the database. Database is saved in a different file than original db.
-	 * Original db is deleted only if save was successful.
+	 * Marks all tables as loaded - used when there is nothing to load from snapshot.
 	 */
-	public final synchronized void save()
+	private final void setAllTablesLoaded()
 	{
-		if ( !isSavingNeeded() )
+		for ( SimpleDBTable lTable : mTables )
 		{
-			Log.i( TAG , "Database saving was skipped - nothing has changed!" );
-			return;
+			lTable.setLoaded();
 		}
-		if ( mIsSavingInProgress )
+	}
+	
+	/**
+	 * Marks database as ready and wakes up threads waiting for tables.
+	 */
+	private final void setReady()
+	{
+		synchronized( mTableLoadingLock )
 		{
-			Log.w( TAG , "Database saving was skipped - saving is already in progress!" );
-			return;
+			mIsReady = true;
+			mTableLoadingLock.notifyAll();
 		}
-		if ( mIsLoadingInProgress )
+	}
+	
+	/**
+	 * Clears whole database - clears all tables.
+	 * Also deletes physical file from internal memory and updates preferences.
+	 */
+	public final synchronized void clearAndDeleteDatabase()
+	{
+		mIsSavingNeeded = true;
+		List< SimpleDBTable > lTables = createTables();
+		for ( SimpleDBTable lTable : lTables )
 		{
-			Log.w( TAG , "Database saving was skipped - loading is in progress! Cant save/load at the same time." );
-			return;
+			lTable.setDatabaseListener( mAutoSaver );
+			lTable.setLoaded();
 		}
-		
-		mIsSavingInProgress = true;
-		Thread lSavingThread = new Thread( new Runnable()
+		synchronized( mTableLoadingLock )
 		{
-			@Override
-			public void run()
-			{
-				long lSaveStartTime = System.currentTimeMillis();
-				try
-				{
-					ByteArrayOutputStream lByteArrayStream = new ByteArrayOutputStream();
-					DataOutputStream lDataStream = new DataOutputStream( lByteArrayStream );
-					
-					// Save current database version
-					lDataStream.writeInt( mCurrentDBVersion );
-					
-					short lNumTables = (short) mTables.size();
-					
-					// We first prepare all data in the array and then save it all at once
-					for ( int i = 0; i < lNumTables; i++ )
-					{
-						Log.v( TAG , "Saving table " + i );
-						mTables.get( i ).save( lDataStream );
-					}
-					
-					lDataStream.close();
-					byte[] lAllData = lByteArrayStream.toByteArray();
-					lByteArrayStream.close();
-					
-					// Save all data!
-					// We create a new file name using default prefix
-					String lNewDBFileName = mBaseFileName + String.valueOf( System.currentTimeMillis() );
-					FileOutputStream lFileStream = mContext.openFileOutput( lNewDBFileName , Context.MODE_PRIVATE );
-					if ( mIsGZIPEnabled )
-					{
-						GZIPOutputStream lGZIPStream = new GZIPOutputStream( lFileStream );
-						lGZIPStream.write( lAllData );
-						lGZIPStream.close();
-					}
-					else
-					{
-						lFileStream.write( lAllData );
-					}
-					lFileStream.close();
-					
-					Log.i( TAG , "Successfully saved SimpleDB to file " + lNewDBFileName + " real data size was = " + lAllData.length + " bytes." );
-					
-					// Save new database name to preferences
-					SharedPreferences.Editor lEditor = mPreferences.edit();
-					lEditor.putString( PREFERENCES_KEY_DB_NAME_PREFIX + mBaseFileName , lNewDBFileName );
-					lEditor.commit();
-					
-					// Copy old database file name
-					String lOldDBFileName = mDBFileName;
-					
-					// Set new current name
-					mDBFileName = lNewDBFileName;
-					
-					// Finally - delete old database from internal memory
-					mContext.deleteFile( lOldDBFileName );
-					
-					// Set saving needed flag to false
-					mIsSavingNeeded = false;
-					
-					// Set all tables state to saved
-					for ( SimpleDBTable lTable : mTables )
-					{
-						lTable.setSaved();
-					}
-					
-					// Thats all, database is saved successfully!
-					Log.i( TAG , "Successfully deleted old database " + lOldDBFileName );
-					
-					mIsSavingInProgress = false;
-					if ( mDBListener != null )
-					{
-						mHandler.post( new Runnable()
-						{
-							@Override
-							public void run()
-							{
-								mDBListener.onDBSaved( mBaseFileName , true );
-							}
-						} );
-					}
-					
-					long lSaveEndTime = System.currentTimeMillis();
-					Log.v( TAG , "Saving time: " + ( lSaveEndTime - lSaveStartTime ) + "ms." );
+			// Saving takes tables together with their snapshot
+			mTables = lTables;
+			mSnapshot = null;
+		}
+		mSnapshotFormatVersion = SimpleDBFile.FORMAT_VERSION_CURRENT;
+		if ( mLog != null )
+		{
+			// Nothing from the log is valid now
+			mLog.clearPendingRecords();
+			attachLog();
+			mContext.deleteFile( mLogFileName );
+			mLogFileSize = 0;
+			mIsSnapshotNeeded = true;
+		}
+		mAutoSaver.onTableModified();
+		if ( !mDBFileName.equals( mBaseFileName ) )
+		{
+			mContext.deleteFile( mDBFileName );
+			SharedPreferences.Editor lEditor = mPreferences.edit();
+			// Set default database name
+			lEditor.putString( PREFERENCES_KEY_DB_NAME_PREFIX + mBaseFileName , mBaseFileName );
+			lEditor.remove( PREFERENCES_KEY_PREVIOUS_DB_NAME_PREFIX + mBaseFileName );
+			lEditor.commit();
+		}
+		if ( mPreviousDBFileName != null )
+		{
+			mContext.deleteFile( mPreviousDBFileName );
+			mPreviousDBFileName = null;
+		}
+	}
+	
+	/**
+	 * Checks if this database needs to be saved.
+	 * 
+	 * @return True if something has changed and this database should be saved.
+	 */
+	public final synchronized boolean isSavingNeeded()
+	{
+		if ( mIsSavingNeeded || isSnapshotRequested() )
+		{
+			return true;
+		}
+		for ( SimpleDBTable lTable : mTables )
+		{
+			if ( lTable.isSavingNeeded() )
+			{
+				return true;
+			}
+		}
+		return ( mLog != null ) && mLog.hasPendingRecords();
+	}
+	
+	/**
+	 * Checks if full snapshot must be saved. Always true if log mode is disabled.
+	 * 
+	 * @return True if whole database should be saved, false if appending the log is enough.
+	 */
+	private final synchronized boolean isSnapshotNeeded()
+	{
+		if ( ( mLog == null ) || isSnapshotRequested() )
+		{
+			return true;
+		}
+		
+		// Compact the log when loading it would take longer than loading the snapshot
+		return mLogFileSize > Math.max( MIN_LOG_SIZE_TO_COMPACT , mSnapshotFileSize );
+	}
+	
+	/**
+	 * Checks if database or any table was changed in a way that log can not describe. Such change always needs saving.
+	 * 
+	 * @return True if full snapshot was requested.
+	 */
+	private final boolean isSnapshotRequested()
+	{
+		if ( mIsSnapshotNeeded )
+		{
+			return true;
+		}
+		for ( SimpleDBTable lTable : mTables )
+		{
+			if ( lTable.isSnapshotNeeded() )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Sets log to all tables, so they write all further changes to it.
+	 */
+	private final void attachLog()
+	{
+		for ( int i = 0; i < mTables.size(); i++ )
+		{
+			mTables.get( i ).setLog( mLog , i );
+		}
+	}
+	
+	/**
+	 * Sets auto saver as listener of all tables, so it knows about all changes.
+	 */
+	private final void attachAutoSaver()
+	{
+		for ( SimpleDBTable lTable : mTables )
+		{
+			lTable.setDatabaseListener( mAutoSaver );
+		}
+	}
+	
+	/**
+	 * Sets compression of table blocks. Loaded tables are compressed with it during next saving, tables that were never loaded
+	 * keep their old compression. Built-in compressions are always readable, but custom compression must be set before
+	 * loading a database that was saved with it.
+	 * SimpleDBLZCompression saves and loads several times faster than GZIP at a lower ratio.
+	 * 
+	 * @param pCompression Compression or null to save tables without compression.
+	 */
+	public final void setCompression( ISimpleDBCompression pCompression )
+	{
+		mCompression = pCompression;
+	}
+	
+	/**
+	 * Enables automatic saving. Changes are coalesced - database is saved when nothing has changed for pDelay,
+	 * but not later than pMaxDelay after first unsaved change. Saving can still be forced by save() or flush().
+	 * 
+	 * @param pDelay Database is saved when nothing has changed for this time (ms).
+	 * @param pMaxDelay Maximum time between first unsaved change and saving (ms).
+	 */
+	public final void enableAutoSave( long pDelay , long pMaxDelay )
+	{
+		mAutoSaver.setDelays( Math.max( 1 , pDelay ) , pMaxDelay );
+	}
+	
+	/**
+	 * Disables automatic saving enabled by enableAutoSave().
+	 */
+	public final void disableAutoSave()
+	{
+		mAutoSaver.setDelays( 0 , 0 );
+	}
+	
+	/**
+	 * Gets file name of currently used database.
+	 * 
+	 * @return DB file name.
+	 */
+	public final String getCurrendDBName()
+	{
+		return mDBFileName;
+	}
+	
+	/**
+	 * Checks if chosen row exists for chosen table.
+	 * Works only for indexed tables.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pKeyValue Unique key value.
+	 * @return True if such row exists.
+	 */
+	public final boolean isIndexedRowExists( int pTableId , int pKeyValue )
+	{
+		if ( getLoadedTable( pTableId ).getIndexedRow( pKeyValue ) != null )
+		{
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Gets all rows for which main key equals chosen main key.
+	 * For tables with unique main key this will return only one row.
+	 * Returns null if list is empty.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pKeyValue Main key value.
+	 * @return List of rows or null if it is empty.
+	 */
+	public final List< SimpleDBRow > getAllRowsForMainKey( int pTableId , int pKeyValue )
+	{
+		return getLoadedTable( pTableId ).getAllRowsForMainKey( pKeyValue );
+	}
+	
+	/**
+	 * Gets rows with chosen key of a hash index.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pIndexId Id returned by SimpleDBTable.addHashIndex().
+	 * @param pKey Key value.
+	 * @return List of rows or null if there are no such rows.
+	 */
+	public final List< SimpleDBRow > getRowsByIndex( int pTableId , int pIndexId , int pKey )
+	{
+		return getLoadedTable( pTableId ).getRowsByIndex( pIndexId , pKey );
+	}
+	
+	/**
+	 * Gets rows with keys of a sorted index in chosen range.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pIndexId Id returned by SimpleDBTable.addSortedIndex().
+	 * @param pFrom Smallest key (inclusive).
+	 * @param pTo Largest key (exclusive).
+	 * @return List of rows sorted by keys or null if there are no such rows.
+	 */
+	public final List< SimpleDBRow > getRowsInRange( int pTableId , int pIndexId , long pFrom , long pTo )
+	{
+		return getLoadedTable( pTableId ).getRowsInRange( pIndexId , pFrom , pTo );
+	}
+	
+	/**
+	 * Gets rows with keys of a String index starting with chosen prefix.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pIndexId Id returned by SimpleDBTable.addStringIndex().
+	 * @param pPrefix Prefix of keys.
+	 * @return List of rows sorted by keys or null if there are no such rows.
+	 */
+	public final List< SimpleDBRow > getRowsWithPrefix( int pTableId , int pIndexId , String pPrefix )
+	{
+		return getLoadedTable( pTableId ).getRowsWithPrefix( pIndexId , pPrefix );
+	}
+	
+	/**
+	 * Gets all rows from chosen table.
+	 * 
+	 * @param pTableId Table id.
+	 * @return List with all rows in this table or null if there is no data!
+	 */
+	public final List< SimpleDBRow > getAllTableRows( int pTableId )
+	{
+		return getLoadedTable( pTableId ).getAllData();
+	}
+	
+	/**
+	 * Deletes all rows for which main key equals chosen main key.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pKeyValue Main key value.
+	 */
+	public final void deleteAllRowsForMainKey( int pTableId , int pKeyValue )
+	{
+		getLoadedTable( pTableId ).deleteAllRowsForMainKey( pKeyValue );
+	}
+	
+	/**
+	 * Deletes row from chosen table using its unique key.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pKeyValue Value of unique key.
+	 */
+	public final void delete( int pTableId , int pKeyValue )
+	{
+		getLoadedTable( pTableId ).delete( pKeyValue );
+	}
+	
+	/**
+	 * Checks if database saving is in progress.
+	 * 
+	 * @return True if saving is in progress.
+	 */
+	public final boolean isSavingInProgress()
+	{
+		return mIsSavingInProgress;
+	}
+	
+	/**
+	 * Checks if database loading is in progress.
+	 * 
+	 * @return True if loading is in progress.
+	 */
+	public final boolean isLoadingInProgress()
+	{
+		return mIsLoadingInProgress;
+	}
+	
+	/**
+	 * Loads the database if it exists - reads table directory of the snapshot, tables are loaded later when needed.
+	 * In log mode also applies all changes from the log.
+	 * It is not synchronized - methods using tables wait until the database is ready.
+	 */
+	private final void load()
+	{
+		try
+		{
+			boolean lIsSnapshotLoaded = loadSnapshot();
+			if ( mLog != null )
+			{
+				if ( lIsSnapshotLoaded )
+				{
+					loadLog();
+				}
+				else
+				{
+					// Log without its snapshot is useless
+					mContext.deleteFile( mLogFileName );
+					mLogFileSize = 0;
+				}
+				attachLog();
+			}
+		}
+		finally
+		{
+			// Threads waiting for tables must never hang, even if loading crashed
+			setReady();
+		}
+	}
+	
+	/**
+	 * Reads the database snapshot if it exists. If the snapshot is damaged (for example it was not written completely before a crash)
+	 * previous snapshot is used instead - only changes since previous saving are lost, not whole database.
+	 * Only header, directory and file size are checked here - a damaged block falls back to previous snapshot when its table is loaded.
+	 * 
+	 * @return True if snapshot was read or there is no snapshot yet, false if it was skipped or failed.
+	 */
+	private final boolean loadSnapshot()
+	{
+		if ( mDBFileName.equals( mBaseFileName ) )
+		{
+			// Database name is the same as its base name = it is first launch, we have no db!
+			setAllTablesLoaded();
+			return true;
+		}
+		
+		try
+		{
+			SimpleDBFile lSnapshot = SimpleDBFile.open( mContext , mDBFileName );
+			if ( lSnapshot == null )
+			{
+				// Saved before tables had their own blocks
+				mSnapshotFileSize = mContext.getFileStreamPath( mDBFileName ).length();
+				return loadLegacySnapshot();
+			}
+			lSnapshot.verify();
+			return useSnapshot( lSnapshot );
+		}
+		catch( Exception e )
+		{
+			Log.e( TAG , "Failed to read SimpleDB file " + mDBFileName + " !!!" , e );
+		}
+		
+		if ( ( mPreviousDBFileName != null ) && !mPreviousDBFileName.equals( mDBFileName ) )
+		{
+			try
+			{
+				SimpleDBFile lSnapshot = SimpleDBFile.open( mContext , mPreviousDBFileName );
+				if ( lSnapshot != null )
+				{
+					lSnapshot.verify();
+					Log.w( TAG , "Using previous snapshot " + mPreviousDBFileName + " instead of damaged " + mDBFileName );
+					useFallbackSnapshot();
+					return useSnapshot( lSnapshot );
+				}
+			}
+			catch( Exception e )
+			{
+				Log.e( TAG , "Failed to read previous SimpleDB file " + mPreviousDBFileName + " !!!" , e );
+			}
+		}
+		setAllTablesLoaded();
+		return false;
+	}
+	
+	/**
+	 * Makes verified snapshot current - tables will be loaded from it. Damaged blocks are detected when their tables are loaded.
+	 * 
+	 * @param pSnapshot Snapshot file.
+	 * @return True if snapshot can be used, false if it has different database version.
+	 */
+	private final boolean useSnapshot( SimpleDBFile pSnapshot )
+	{
+		mSnapshotFileSize = mContext.getFileStreamPath( mDBFileName ).length();
+		if ( pSnapshot.getDBVersion() != mCurrentDBVersion )
+		{
+			onVersionChanged();
+			setAllTablesLoaded();
+			return false;
+		}
+		
+		synchronized( mTableLoadingLock )
+		{
+			mSnapshot = pSnapshot;
+		}
+		for ( int i = pSnapshot.getNumTables(); i < mTables.size(); i++ )
+		{
+			// New tables that are not in the file yet
+			mTables.get( i ).setLoaded();
+		}
+		mSnapshotFormatVersion = pSnapshot.getFormatVersion();
+		if ( mSnapshotFormatVersion != SimpleDBFile.FORMAT_VERSION_CURRENT )
+		{
+			// Convert it to current format during next save
+			mIsSavingNeeded = true;
+			mIsSnapshotNeeded = true;
+		}
+		
+		Log.i( TAG , "Opened SimpleDB " + mDBFileName + " with " + pSnapshot.getNumTables() + " tables, file size is " + mSnapshotFileSize
+				+ " bytes." );
+		return true;
+	}
+	
+	/**
+	 * Replaces damaged current snapshot with the previous one. Damaged file is deleted and a new snapshot is saved during next saving,
+	 * so there is a valid previous snapshot again. Log belongs to the damaged snapshot, so it will be skipped.
+	 */
+	private final void useFallbackSnapshot()
+	{
+		mContext.deleteFile( mDBFileName );
+		mDBFileName = mPreviousDBFileName;
+		mPreviousDBFileName = null;
+		SharedPreferences.Editor lEditor = mPreferences.edit();
+		lEditor.putString( PREFERENCES_KEY_DB_NAME_PREFIX + mBaseFileName , mDBFileName );
+		lEditor.remove( PREFERENCES_KEY_PREVIOUS_DB_NAME_PREFIX + mBaseFileName );
+		lEditor.commit();
+		mIsSavingNeeded = true;
+		mIsSnapshotNeeded = true;
+	}
+	
+	/**
+	 * Loads all tables from snapshot saved in old format (single stream without table directory).
+	 * Next save will write it in current format.
+	 * 
+	 * @return True if snapshot was loaded, false if it was skipped or failed.
+	 */
+	private final boolean loadLegacySnapshot()
+	{
+		DataInputStream lStream = null;
+		try
+		{
+			long lLoadStartTime = System.currentTimeMillis();
+			lStream = openForReading( mDBFileName , mIsGZIPEnabled );
+			
+			int lDBVersion = lStream.readInt();
+			if ( lDBVersion != mCurrentDBVersion )
+			{
+				onVersionChanged();
+				return false;
+			}
+			
+			mSnapshotFormatVersion = SimpleDBFile.FORMAT_VERSION_LEGACY;
+			for ( int i = 0; i < mTables.size(); i++ )
+			{
+				Log.v( TAG , "Loading table " + i + " from " + mDBFileName );
+				mTables.get( i ).load( lStream , mSnapshotFormatVersion );
+			}
+			
+			// Convert it to current format during next save
+			mIsSavingNeeded = true;
+			mIsSnapshotNeeded = true;
+			
+			Log.i( TAG , "Successfully loaded SimpleDB from " + mDBFileName + " file size was " + mSnapshotFileSize + " bytes." );
+			
+			long lLoadEndTime = System.currentTimeMillis();
+			Log.v( TAG , "Loading time: " + ( lLoadEndTime - lLoadStartTime ) + "ms." );
+			return true;
+		}
+		catch( Exception e )
+		{
+			Log.e( TAG , "Unknown exception while loading " + mDBFileName + "." , e );
+			return false;
+		}
+		finally
+		{
+			closeSilently( lStream );
+			setAllTablesLoaded();
+		}
+	}
+	
+	/**
+	 * Called when saved database has different version than current one - it will not be loaded.
+	 */
+	private final void onVersionChanged()
+	{
+		Log.i( TAG , "Skipped database loading - version has changed!" );
+		if ( mDBListener != null )
+		{
+			// Posted, so listener can use the database without waiting for this thread
+			mHandler.post( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					mDBListener.onDBVersionChanged( mBaseFileName );
+				}
+			} );
+		}
+	}
+	
+	/**
+	 * Opens database file for buffered reading. Data is read in small chunks, so whole file is never kept in memory.
+	 * 
+	 * @param pFileName Name of file to read.
+	 * @param pIsGZIPEnabled True if file is compressed with GZIP.
+	 * @return Stream reading from this file.
+	 */
+	private final DataInputStream openForReading( String pFileName , boolean pIsGZIPEnabled ) throws IOException
+	{
+		InputStream lStream = new BufferedInputStream( mContext.openFileInput( pFileName ) , LOAD_BUFFER_SIZE );
+		if ( pIsGZIPEnabled )
+		{
+			lStream = new GZIPInputStream( lStream , LOAD_BUFFER_SIZE );
+		}
+		return new DataInputStream( lStream );
+	}
+	
+	/**
+	 * Closes stream ignoring errors.
+	 * 
+	 * @param pStream Stream to close, can be null.
+	 */
+	private static void closeSilently( InputStream pStream )
+	{
+		if ( pStream != null )
+		{
+			try
+			{
+				pStream.close();
+			}
+			catch( IOException e )
+			{
+			}
+		}
+	}
+	
+	/**
+	 * Applies changes from the log file. Log is used only if it was written after the loaded snapshot.
+	 */
+	private final void loadLog()
+	{
+		if ( !mContext.getFileStreamPath( mLogFileName ).exists() )
+		{
+			mLogFileSize = 0;
+			return;
+		}
+		
+		try
+		{
+			long lLoadStartTime = System.currentTimeMillis();
+			DataInputStream lStream = openForReading( mLogFileName , false );
+			String lSnapshotName = lStream.readUTF();
+			int lDBVersion = lStream.readInt();
+			if ( !lSnapshotName.equals( mDBFileName ) || ( lDBVersion != mCurrentDBVersion ) )
+			{
+				// Changes from this log are already in the snapshot (or they are too old)
+				lStream.close();
+				Log.i( TAG , "Skipped log " + mLogFileName + " - it belongs to " + lSnapshotName );
+				mContext.deleteFile( mLogFileName );
+				mLogFileSize = 0;
+				return;
+			}
+			
+			long lRecordsLength = mContext.getFileStreamPath( mLogFileName ).length() - createLogHeader().length;
+			if ( !SimpleDBLog.replay( lStream , lRecordsLength , this , mSnapshotFormatVersion ) )
+			{
+				// Log ends with a broken record - new records must not be appended after it
+				mIsSnapshotNeeded = true;
+			}
+			lStream.close();
+			mLogFileSize = mContext.getFileStreamPath( mLogFileName ).length();
+			
+			long lLoadEndTime = System.currentTimeMillis();
+			Log.i( TAG , "Applied log " + mLogFileName + " of size " + mLogFileSize + " bytes in " + ( lLoadEndTime - lLoadStartTime ) + "ms." );
+		}
+		catch( Exception e )
+		{
+			Log.e( TAG , "Failed to apply log " + mLogFileName + "." , e );
+			mLogFileSize = mContext.getFileStreamPath( mLogFileName ).length();
+			mIsSnapshotNeeded = true;
+		}
+	}
+	
+	/**
+	 * Saves the database. Database is saved in a different file than original db.
+	 * Original db is kept as a fallback until next successful save, so a damaged new file never loses the whole database.
+	 * In log mode only the changes are appended to the log file, unless the log is large enough to be compacted into a new snapshot.
+	 * If saving is already in progress the database is saved again when it finishes, so later changes are not left unsaved.
+	 */
+	public final synchronized void save()
+	{
+		if ( mIsSavingInProgress )
+		{
+			Log.i( TAG , "Database saving is in progress - it will be saved again when it finishes." );
+			mIsFollowUpSaveNeeded = true;
+			return;
+		}
+		if ( !isSavingNeeded() )
+		{
+			Log.i( TAG , "Database saving was skipped - nothing has changed!" );
+			return;
+		}
+		if ( mIsLoadingInProgress )
+		{
+			Log.w( TAG , "Database saving was skipped - loading is in progress! Cant save/load at the same time." );
+			return;
+		}
+		
+		mIsSavingInProgress = true;
+		final boolean lIsSnapshotNeeded = isSnapshotNeeded();
+		Thread lSavingThread = new Thread( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if ( lIsSnapshotNeeded )
+				{
+					saveSnapshot();
 				}
-				catch( Exception e )
+				else
 				{
-					Log.e( TAG , "Failed to save SimpleDB to file! Out of memory maybe?" , e );
-					if ( mDBListener != null )
-					{
-						mHandler.post( new Runnable()
-						{
-							@Override
-							public void run()
-							{
-								mDBListener.onDBSaved( mBaseFileName , false );
-							}
-						} );
-					}
+					saveLog();
 				}
-				
 			}
 		} );
 		lSavingThread.setPriority( Thread.MAX_PRIORITY );
 		lSavingThread.start();
 	}
+	
+	/**
+	 * Saves the database on calling thread and returns when it is saved. Waits for saving in progress first.
+	 * Should be used when the app can be killed soon, for example in onPause().
+	 * 
+	 * @return True if database was saved or there was nothing to save.
+	 */
+	public final boolean flush()
+	{
+		boolean lIsSnapshotNeeded;
+		synchronized( this )
+		{
+			while( mIsSavingInProgress )
+			{
+				try
+				{
+					wait();
+				}
+				catch( InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			mAutoSaver.cancel();
+			if ( !isSavingNeeded() )
+			{
+				return true;
+			}
+			if ( mIsLoadingInProgress )
+			{
+				Log.w( TAG , "Database flushing was skipped - loading is in progress! Cant save/load at the same time." );
+				return false;
+			}
+			mIsSavingInProgress = true;
+			lIsSnapshotNeeded = isSnapshotNeeded();
+		}
+		
+		if ( lIsSnapshotNeeded )
+		{
+			return saveSnapshot();
+		}
+		return saveLog();
+	}
+	
+	/**
+	 * Called by saving methods when saving is finished. Starts saving again if save() was called during saving.
+	 * 
+	 * @param pIsSaveSuccessful True if database was saved successfully.
+	 */
+	private final void finishSaving( boolean pIsSaveSuccessful )
+	{
+		boolean lIsFollowUpSaveNeeded;
+		synchronized( this )
+		{
+			mIsSavingInProgress = false;
+			lIsFollowUpSaveNeeded = mIsFollowUpSaveNeeded;
+			mIsFollowUpSaveNeeded = false;
+			notifyAll();
+		}
+		notifySaved( pIsSaveSuccessful );
+		if ( lIsFollowUpSaveNeeded )
+		{
+			save();
+		}
+		else if ( !pIsSaveSuccessful )
+		{
+			// Try again later if auto saving is enabled
+			mAutoSaver.onTableModified();
+		}
+	}
+	
+	/**
+	 * Saves a full snapshot of the database and clears the log. Should be used in log mode to compact the log at a good moment,
+	 * without log mode it works the same as save().
+	 */
+	public final synchronized void compact()
+	{
+		mIsSavingNeeded = true;
+		mIsSnapshotNeeded = true;
+		save();
+	}
+	
+	/**
+	 * Captures rows of all tables at one moment. All tables are locked only while their rows are taken as immutable lists,
+	 * so serializing them later does not block anybody. In log mode pending log records are cleared at the same moment.
+	 * 
+	 * @param pTables Tables to capture.
+	 * @return Rows of each table, null for tables that were never loaded - they could not change.
+	 */
+	private final List< List< SimpleDBRow > > captureTables( List< SimpleDBTable > pTables )
+	{
+		List< List< SimpleDBRow > > lRows = new ArrayList< List< SimpleDBRow > >( pTables.size() );
+		int lNumLockedTables = 0;
+		try
+		{
+			for ( SimpleDBTable lTable : pTables )
+			{
+				lTable.lockForWriting();
+				lNumLockedTables++;
+			}
+			for ( SimpleDBTable lTable : pTables )
+			{
+				if ( lTable.isLoaded() && !lTable.isLoadFailed() )
+				{
+					List< SimpleDBRow > lTableRows = lTable.getAllData();
+					lRows.add( ( lTableRows != null ) ? lTableRows : Collections.< SimpleDBRow > emptyList() );
+				}
+				else
+				{
+					// Table that is being loaded now waits for the lock - its changes will be logged after this moment.
+					// Table that failed to load keeps its block from the file.
+					lRows.add( null );
+				}
+				lTable.setSaved();
+				lTable.setSnapshotSaved();
+			}
+			if ( mLog != null )
+			{
+				// All pending changes are in captured rows
+				mLog.clearPendingRecords();
+			}
+			mIsSnapshotNeeded = false;
+			mIsSavingNeeded = false;
+		}
+		finally
+		{
+			for ( int i = lNumLockedTables - 1; i >= 0; i-- )
+			{
+				pTables.get( i ).unlockForWriting();
+			}
+		}
+		return lRows;
+	}
+	
+	/**
+	 * Takes pending log records and marks tables as saved at one moment. Changes are logged while their table is locked,
+	 * so a change made during saving is either in taken records or its table stays marked as changed.
+	 * 
+	 * @param pTables Tables of the database.
+	 * @return Records to append to the log file.
+	 */
+	private final byte[] takeLogRecords( List< SimpleDBTable > pTables )
+	{
+		int lNumLockedTables = 0;
+		try
+		{
+			for ( SimpleDBTable lTable : pTables )
+			{
+				lTable.lockForWriting();
+				lNumLockedTables++;
+			}
+			byte[] lRecords = mLog.takePendingRecords();
+			for ( SimpleDBTable lTable : pTables )
+			{
+				lTable.setSaved();
+			}
+			mIsSavingNeeded = false;
+			return lRecords;
+		}
+		finally
+		{
+			for ( int i = lNumLockedTables - 1; i >= 0; i-- )
+			{
+				pTables.get( i ).unlockForWriting();
+			}
+		}
+	}
+	
+	/**
+	 * Reads block of a table that is not loaded, so it can be copied to a new snapshot. If the block is damaged
+	 * it is taken from the previous snapshot - table that failed to load must not be replaced by an empty one.
+	 * 
+	 * @param pSnapshot Snapshot file that was current during capturing.
+	 * @param pPreviousDBFileName Name of previous snapshot, can be null.
+	 * @param pTableId Table id.
+	 * @param pCompressions Array filled with compression of each block.
+	 * @return Raw table block.
+	 */
+	private final byte[] copyTable( SimpleDBFile pSnapshot , String pPreviousDBFileName , int pTableId , byte[] pCompressions )
+			throws IOException
+	{
+		try
+		{
+			byte[] lBlock = pSnapshot.readRawTable( pTableId );
+			pCompressions[ pTableId ] = pSnapshot.getCompression( pTableId );
+			return lBlock;
+		}
+		catch( IOException e )
+		{
+			SimpleDBFile lPreviousSnapshot = openPreviousSnapshot( pPreviousDBFileName , pSnapshot , pTableId );
+			if ( ( lPreviousSnapshot == null ) || ( lPreviousSnapshot.getFormatVersion() < SimpleDBFile.FORMAT_VERSION_VARINT_COUNTS ) )
+			{
+				// Saving fails rather than losing the table
+				throw e;
+			}
+			Log.w( TAG , "Copying table " + pTableId + " from previous snapshot " + pPreviousDBFileName , e );
+			byte[] lBlock = lPreviousSnapshot.readRawTable( pTableId );
+			pCompressions[ pTableId ] = lPreviousSnapshot.getCompression( pTableId );
+			return lBlock;
+		}
+	}
+	
+	/**
+	 * Serializes captured rows of all tables into blocks. Loaded tables are encoded in parallel by SimpleDBWorkers,
+	 * tables that were never loaded or failed to load are copied from the snapshot file.
+	 * 
+	 * @param pRows Rows captured by captureTables().
+	 * @param pSnapshot Snapshot file that was current during capturing.
+	 * @param pPreviousDBFileName Name of previous snapshot, can be null.
+	 * @param pCompressions Array filled with compression of each block.
+	 * @return Table blocks.
+	 */
+	private final byte[][] serializeTables( List< List< SimpleDBRow > > pRows , SimpleDBFile pSnapshot , String pPreviousDBFileName ,
+			byte[] pCompressions ) throws IOException
+	{
+		final ISimpleDBCompression lCompression = mCompression;
+		byte lCompressionId = ( lCompression != null ) ? lCompression.getId() : SimpleDBFile.COMPRESSION_NONE;
+		byte[][] lBlocks = new byte[ pRows.size() ][];
+		List< Integer > lEncodedTableIds = new ArrayList< Integer >();
+		List< Callable< byte[] > > lTasks = new ArrayList< Callable< byte[] > >();
+		for ( int i = 0; i < lBlocks.length; i++ )
+		{
+			final List< SimpleDBRow > lTableRows = pRows.get( i );
+			if ( lTableRows != null )
+			{
+				lEncodedTableIds.add( i );
+				lTasks.add( new Callable< byte[] >()
+				{
+					@Override
+					public byte[] call() throws IOException
+					{
+						return SimpleDBFile.encodeTable( lTableRows , lCompression );
+					}
+				} );
+				pCompressions[ i ] = lCompressionId;
+			}
+			else
+			{
+				Log.v( TAG , "Copying table " + i );
+				lBlocks[ i ] = copyTable( pSnapshot , pPreviousDBFileName , i , pCompressions );
+			}
+		}
+		
+		long lEncodeStartTime = System.currentTimeMillis();
+		List< byte[] > lEncodedBlocks = SimpleDBWorkers.runAll( lTasks );
+		for ( int i = 0; i < lEncodedBlocks.size(); i++ )
+		{
+			lBlocks[ lEncodedTableIds.get( i ) ] = lEncodedBlocks.get( i );
+		}
+		Log.v( TAG , "Encoded " + lTasks.size() + " tables in " + ( System.currentTimeMillis() - lEncodeStartTime ) + "ms." );
+		return lBlocks;
+	}
+	
+	/**
+	 * Saves whole database to a new file. Called from saving thread or by flush().
+	 * 
+	 * @return True if database was saved successfully.
+	 */
+	private final boolean saveSnapshot()
+	{
+		long lSaveStartTime = System.currentTimeMillis();
+		try
+		{
+			// Database monitor is not held here - table listeners can call save() or isSavingNeeded() while tables are locked by a change
+			List< SimpleDBTable > lTables;
+			SimpleDBFile lSnapshot;
+			String lFallbackDBFileName;
+			synchronized( mTableLoadingLock )
+			{
+				lTables = mTables;
+				lSnapshot = mSnapshot;
+				lFallbackDBFileName = mPreviousDBFileName;
+			}
+			if ( ( lSnapshot != null ) && ( lSnapshot.getFormatVersion() < SimpleDBFile.FORMAT_VERSION_VARINT_COUNTS ) )
+			{
+				// Blocks in old format must be decoded and saved again
+				int[] lTableIds = new int[ lTables.size() ];
+				for ( int i = 0; i < lTableIds.length; i++ )
+				{
+					lTableIds[ i ] = i;
+				}
+				ensureTablesLoaded( lTableIds );
+			}
+			// Point in time of the snapshot - no change or batch can be half way in captured rows
+			List< List< SimpleDBRow > > lRows = captureTables( lTables );
+			byte[] lCompressions = new byte[ lRows.size() ];
+			byte[][] lBlocks = serializeTables( lRows , lSnapshot , lFallbackDBFileName , lCompressions );
+			
+			// Save all data!
+			// We create a new file name using default prefix
+			String lNewDBFileName = mBaseFileName + String.valueOf( System.currentTimeMillis() );
+			SimpleDBFile lNewSnapshot = SimpleDBFile.write( mContext , lNewDBFileName , mCurrentDBVersion , lBlocks , lCompressions );
+			mSnapshotFileSize = mContext.getFileStreamPath( lNewDBFileName ).length();
+			
+			Log.i( TAG , "Successfully saved SimpleDB to file " + lNewDBFileName + " file size is = " + mSnapshotFileSize + " bytes." );
+			
+			// Copy old database file names
+			String lOldDBFileName = mDBFileName;
+			String lOldPreviousDBFileName = mPreviousDBFileName;
+			
+			// Save new database name to preferences - old snapshot stays as a fallback in case the new one gets damaged
+			String lPreviousDBFileName = mContext.getFileStreamPath( lOldDBFileName ).exists() ? lOldDBFileName : null;
+			SharedPreferences.Editor lEditor = mPreferences.edit();
+			lEditor.putString( PREFERENCES_KEY_DB_NAME_PREFIX + mBaseFileName , lNewDBFileName );
+			if ( lPreviousDBFileName != null )
+			{
+				lEditor.putString( PREFERENCES_KEY_PREVIOUS_DB_NAME_PREFIX + mBaseFileName , lPreviousDBFileName );
+			}
+			else
+			{
+				lEditor.remove( PREFERENCES_KEY_PREVIOUS_DB_NAME_PREFIX + mBaseFileName );
+			}
+			lEditor.commit();
+			
+			// Set new current name - tables that are not loaded yet will be loaded from the new file
+			synchronized( mTableLoadingLock )
+			{
+				mPreviousDBFileName = lPreviousDBFileName;
+				mDBFileName = lNewDBFileName;
+				mSnapshot = lNewSnapshot;
+			}
+			mSnapshotFormatVersion = SimpleDBFile.FORMAT_VERSION_CURRENT;
+			for ( SimpleDBTable lTable : mTables )
+			{
+				synchronized( lTable )
+				{
+					// Just waiting for tables that are being loaded from the old file right now
+				}
+			}
+			
+			if ( mLog != null )
+			{
+				// Old log is already in the snapshot - start a new one with changes made during saving
+				startNewLog();
+			}
+			
+			// Finally - delete database saved before the old one from internal memory
+			if ( ( lOldPreviousDBFileName != null ) && !lOldPreviousDBFileName.equals( lOldDBFileName ) )
+			{
+				mContext.deleteFile( lOldPreviousDBFileName );
+				Log.i( TAG , "Successfully deleted old database " + lOldPreviousDBFileName );
+			}
+			
+			// Thats all, database is saved successfully!
+			
+			long lSaveEndTime = System.currentTimeMillis();
+			Log.v( TAG , "Saving time: " + ( lSaveEndTime - lSaveStartTime ) + "ms." );
+			
+			finishSaving( true );
+			return true;
+		}
+		catch( Exception e )
+		{
+			Log.e( TAG , "Failed to save SimpleDB to file! Out of memory maybe?" , e );
+			mIsSavingNeeded = true;
+			mIsSnapshotNeeded = true;
+			finishSaving( false );
+			return false;
+		}
+	}
+	
+	/**
+	 * Replaces the log file with a new one that belongs to current snapshot and contains only pending records.
+	 * If it fails the next save will be a full snapshot again, so no change is lost.
+	 */
+	private final void startNewLog()
+	{
+		try
+		{
+			byte[] lRecords = mLog.takePendingRecords();
+			FileOutputStream lFileStream = mContext.openFileOutput( mLogFileName , Context.MODE_PRIVATE );
+			lFileStream.write( createLogHeader() );
+			lFileStream.write( lRecords );
+			lFileStream.close();
+			mLogFileSize = mContext.getFileStreamPath( mLogFileName ).length();
+		}
+		catch( Exception e )
+		{
+			Log.e( TAG , "Failed to create new log " + mLogFileName + "." , e );
+			mContext.deleteFile( mLogFileName );
+			mLogFileSize = 0;
+			mIsSnapshotNeeded = true;
+		}
+	}
+	
+	/**
+	 * Appends pending changes to the log file. Called from saving thread or by flush().
+	 * 
+	 * @return True if changes were saved successfully.
+	 */
+	private final boolean saveLog()
+	{
+		long lSaveStartTime = System.currentTimeMillis();
+		try
+		{
+			List< SimpleDBTable > lTables;
+			synchronized( mTableLoadingLock )
+			{
+				lTables = mTables;
+			}
+			byte[] lRecords = takeLogRecords( lTables );
+			if ( lRecords.length > 0 )
+			{
+				FileOutputStream lFileStream;
+				if ( mLogFileSize == 0 )
+				{
+					lFileStream = mContext.openFileOutput( mLogFileName , Context.MODE_PRIVATE );
+					lFileStream.write( createLogHeader() );
+				}
+				else
+				{
+					lFileStream = mContext.openFileOutput( mLogFileName , Context.MODE_APPEND );
+				}
+				lFileStream.write( lRecords );
+				lFileStream.close();
+				mLogFileSize = mContext.getFileStreamPath( mLogFileName ).length();
+			}
+			
+			Log.i( TAG , "Successfully appended " + lRecords.length + " bytes to log " + mLogFileName );
+			
+			long lSaveEndTime = System.currentTimeMillis();
+			Log.v( TAG , "Saving time: " + ( lSaveEndTime - lSaveStartTime ) + "ms." );
+			
+			finishSaving( true );
+			return true;
+		}
+		catch( Exception e )
+		{
+			// Records taken from the log are still in the tables - they will be saved in the next snapshot
+			Log.e( TAG , "Failed to append SimpleDB log!" , e );
+			mIsSnapshotNeeded = true;
+			finishSaving( false );
+			return false;
+		}
+	}
+	
+	/**
+	 * Creates header of the log file. It contains current snapshot name and database version, so log is never applied to a wrong snapshot.
+	 * 
+	 * @return Header bytes.
+	 */
+	private final byte[] createLogHeader() throws IOException
+	{
+		ByteArrayOutputStream lByteArrayStream = new ByteArrayOutputStream();
+		DataOutputStream lDataStream = new DataOutputStream( lByteArrayStream );
+		lDataStream.writeUTF( mDBFileName );
+		lDataStream.writeInt( mCurrentDBVersion );
+		lDataStream.close();
+		return lByteArrayStream.toByteArray();
+	}
+	
+	/**
+	 * Notifies listener about finished saving on UI thread.
+	 * 
+	 * @param pIsSaveSuccessful True if database was saved successfully.
+	 */
+	private final void notifySaved( final boolean pIsSaveSuccessful )
+	{
+		if ( mDBListener != null )
+		{
+			mHandler.post( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					mDBListener.onDBSaved( mBaseFileName , pIsSaveSuccessful );
+				}
+			} );
+		}
+	}
 }
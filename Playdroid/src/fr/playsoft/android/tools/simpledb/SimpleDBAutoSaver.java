@@ -0,0 +1,116 @@
+package fr.playsoft.android.tools.simpledb;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Write-behind saving of SimpleDB. It listens to changes of all tables and coalesces them - database is saved when nothing has changed
+ * for a while, but never later than maximum delay after first unsaved change, so constantly changing database is still saved.
+ * 
+ * @author Olgierd Uzieblo
+ */
+final class SimpleDBAutoSaver implements ITableModifiedListener , Runnable
+{
+	/** Database to save **/
+	private final SimpleDB mDB;
+	
+	/** Handler used for scheduling **/
+	private final Handler mHandler;
+	
+	/** Database is saved when nothing has changed for this time (ms), 0 if auto saving is disabled **/
+	private volatile long mDelay;
+	
+	/** Database is saved at most this time after first unsaved change (ms) **/
+	private long mMaxDelay;
+	
+	/** Flag to check if saving is scheduled **/
+	private boolean mIsScheduled;
+	
+	/** Time of first change since last scheduled save **/
+	private long mFirstChangeTime;
+	
+	/** Time of last change **/
+	private long mLastChangeTime;
+	
+	/**
+	 * Creates disabled auto saver.
+	 * 
+	 * @param pDB Database to save.
+	 * @param pHandler Handler used for scheduling.
+	 */
+	SimpleDBAutoSaver( SimpleDB pDB , Handler pHandler )
+	{
+		mDB = pDB;
+		mHandler = pHandler;
+	}
+	
+	/**
+	 * Sets delays of saving.
+	 * 
+	 * @param pDelay Database is saved when nothing has changed for this time (ms), 0 disables auto saving.
+	 * @param pMaxDelay Database is saved at most this time after first unsaved change (ms).
+	 */
+	synchronized void setDelays( long pDelay , long pMaxDelay )
+	{
+		mMaxDelay = Math.max( pDelay , pMaxDelay );
+		mDelay = pDelay;
+		if ( pDelay <= 0 )
+		{
+			cancel();
+		}
+	}
+	
+	/**
+	 * Cancels scheduled saving - should be called when database is saved in other way.
+	 */
+	synchronized void cancel()
+	{
+		if ( mIsScheduled )
+		{
+			mIsScheduled = false;
+			mHandler.removeCallbacks( this );
+		}
+	}
+	
+	@Override
+	public void onTableModified()
+	{
+		if ( mDelay <= 0 )
+		{
+			return;
+		}
+		synchronized( this )
+		{
+			long lNow = SystemClock.uptimeMillis();
+			mLastChangeTime = lNow;
+			if ( !mIsScheduled )
+			{
+				mIsScheduled = true;
+				mFirstChangeTime = lNow;
+				mHandler.postDelayed( this , mDelay );
+			}
+		}
+	}
+	
+	@Override
+	public void run()
+	{
+		synchronized( this )
+		{
+			if ( !mIsScheduled )
+			{
+				return;
+			}
+			long lNow = SystemClock.uptimeMillis();
+			long lSaveTime = Math.min( mLastChangeTime + mDelay , mFirstChangeTime + mMaxDelay );
+			if ( lNow < lSaveTime )
+			{
+				// Something has changed since scheduling - wait until it calms down
+				mHandler.postDelayed( this , lSaveTime - lNow );
+				return;
+			}
+			mIsScheduled = false;
+		}
+		mDB.save();
+	}
+}
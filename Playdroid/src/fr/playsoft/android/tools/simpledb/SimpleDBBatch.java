@@ -0,0 +1,123 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * List of changes applied together by SimpleDB.applyBatch().
+ * All changes are applied under a single lock, so readers and saving see either none or all of them.
+ * Table listeners are notified once per changed table and ISimpleDBBatchListener gets a summary of all changed keys.
+ * In log mode whole batch is a single log record - it is never restored partially after a crash.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public final class SimpleDBBatch
+{
+	/**
+	 * Single change.
+	 */
+	static final class Operation
+	{
+		/** Type of change - one of SimpleDBLog.RECORD_ constants **/
+		final byte mType;
+		
+		/** Id of changed table **/
+		final int mTableId;
+		
+		/** Key of deleted rows **/
+		final int mKeyValue;
+		
+		/** Inserted or updated row **/
+		final SimpleDBRow mRow;
+		
+		Operation( byte pType , int pTableId , int pKeyValue , SimpleDBRow pRow )
+		{
+			mType = pType;
+			mTableId = pTableId;
+			mKeyValue = pKeyValue;
+			mRow = pRow;
+		}
+	}
+	
+	/** Changes in order of adding **/
+	private List< Operation > mOperations;
+	
+	/**
+	 * Creates empty batch.
+	 */
+	public SimpleDBBatch()
+	{
+		mOperations = new ArrayList< Operation >();
+	}
+	
+	/**
+	 * Adds inserting or updating a row.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pNewRow New row to insert/replace.
+	 * @return This batch.
+	 */
+	public SimpleDBBatch insertOrUpdate( int pTableId , SimpleDBRow pNewRow )
+	{
+		mOperations.add( new Operation( SimpleDBLog.RECORD_INSERT_OR_UPDATE , pTableId , 0 , pNewRow ) );
+		return this;
+	}
+	
+	/**
+	 * Adds deleting a row using its unique key.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pKeyValue Value of unique key.
+	 * @return This batch.
+	 */
+	public SimpleDBBatch delete( int pTableId , int pKeyValue )
+	{
+		mOperations.add( new Operation( SimpleDBLog.RECORD_DELETE , pTableId , pKeyValue , null ) );
+		return this;
+	}
+	
+	/**
+	 * Adds deleting all rows for which main key equals chosen main key.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pKeyValue Main key value.
+	 * @return This batch.
+	 */
+	public SimpleDBBatch deleteAllRowsForMainKey( int pTableId , int pKeyValue )
+	{
+		mOperations.add( new Operation( SimpleDBLog.RECORD_DELETE_ALL_ROWS_FOR_MAIN_KEY , pTableId , pKeyValue , null ) );
+		return this;
+	}
+	
+	/**
+	 * Adds deleting all rows of a table.
+	 * 
+	 * @param pTableId Table id.
+	 * @return This batch.
+	 */
+	public SimpleDBBatch deleteAllRows( int pTableId )
+	{
+		mOperations.add( new Operation( SimpleDBLog.RECORD_DELETE_ALL_ROWS , pTableId , 0 , null ) );
+		return this;
+	}
+	
+	/**
+	 * Gets number of changes.
+	 * 
+	 * @return Number of changes.
+	 */
+	public int size()
+	{
+		return mOperations.size();
+	}
+	
+	/**
+	 * Gets all changes.
+	 * 
+	 * @return Changes in order of adding.
+	 */
+	List< Operation > getOperations()
+	{
+		return mOperations;
+	}
+}
@@ -0,0 +1,437 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.RandomAccess;
+
+import android.content.res.AssetFileDescriptor;
+
+/**
+ * Read-only table for large reference catalogues. File is memory-mapped and rows are decoded only when they are accessed,
+ * so opening a catalogue with 100k rows takes almost no heap - only rows that are really used become objects.
+ * File is created by write() and contains rows sorted by main key:
+ * - header - magic, format version, flags and number of rows
+ * - sorted main keys (int per row) - searched by binary search directly in the mapped file
+ * - offsets of rows (int per row and one more for end of last row)
+ * - rows saved by SimpleDBRow.saveRow()
+ * Every call of getIndexedRow() or getAllData().get() decodes a new row object, so rows should not be compared by reference.
+ * Catalogue shipped in assets must be stored without compression, otherwise it can not be mapped.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public final class SimpleDBCatalogTable
+{
+	/**
+	 * Stream reading part of the mapped file.
+	 */
+	private static final class MappedInputStream extends InputStream
+	{
+		/** View of the mapped file limited to the data that can be read **/
+		private final ByteBuffer mBuffer;
+		
+		MappedInputStream( ByteBuffer pBuffer , int pStart , int pEnd )
+		{
+			mBuffer = pBuffer.duplicate();
+			mBuffer.limit( pEnd );
+			mBuffer.position( pStart );
+		}
+		
+		@Override
+		public int read()
+		{
+			return mBuffer.hasRemaining() ? ( mBuffer.get() & 0xFF ) : -1;
+		}
+		
+		@Override
+		public int read( byte[] pBuffer , int pOffset , int pLength )
+		{
+			if ( pLength == 0 )
+			{
+				return 0;
+			}
+			int lLength = Math.min( pLength , mBuffer.remaining() );
+			if ( lLength == 0 )
+			{
+				return -1;
+			}
+			mBuffer.get( pBuffer , pOffset , lLength );
+			return lLength;
+		}
+		
+		@Override
+		public long skip( long pCount )
+		{
+			int lCount = (int) Math.min( Math.max( pCount , 0 ) , mBuffer.remaining() );
+			mBuffer.position( mBuffer.position() + lCount );
+			return lCount;
+		}
+		
+		@Override
+		public int available()
+		{
+			return mBuffer.remaining();
+		}
+	}
+	
+	/**
+	 * Immutable list of all rows that decodes them on access.
+	 */
+	private final class LazyRows extends AbstractList< SimpleDBRow > implements RandomAccess
+	{
+		@Override
+		public SimpleDBRow get( int pIndex )
+		{
+			if ( ( pIndex < 0 ) || ( pIndex >= mCount ) )
+			{
+				throw new IndexOutOfBoundsException( "Index " + pIndex + " size " + mCount );
+			}
+			return decodeRow( pIndex );
+		}
+		
+		@Override
+		public int size()
+		{
+			return mCount;
+		}
+	}
+	
+	/** Value at the beginning of every catalogue file **/
+	private static final int MAGIC = 0x53444243;
+	
+	/** Current format version **/
+	private static final int FORMAT_VERSION = 1;
+	
+	/** Flag set if main keys are unique **/
+	private static final int FLAG_UNIQUE_MAIN_KEY = 1;
+	
+	/** Size of header - magic, format version, flags and number of rows **/
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 4;
+	
+	/** Size of buffer used for writing (bytes) **/
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	
+	/** Mapped file **/
+	private final ByteBuffer mBuffer;
+	
+	/** Sorted main keys **/
+	private final IntBuffer mKeys;
+	
+	/** Offsets of rows in mBuffer, one more for end of last row **/
+	private final IntBuffer mOffsets;
+	
+	/** Number of rows **/
+	private final int mCount;
+	
+	/** Flag to check if main keys are unique **/
+	private final boolean mIsMainKeyUnique;
+	
+	/** Factory used for decoding rows **/
+	private final ISimpleDBRowFactory mRowFactory;
+	
+	/** List returned by getAllData() **/
+	private final List< SimpleDBRow > mAllRows = new LazyRows();
+	
+	/**
+	 * Creates table from mapped file.
+	 * 
+	 * @param pBuffer Mapped file.
+	 * @param pRowFactory Factory used for decoding rows.
+	 */
+	private SimpleDBCatalogTable( ByteBuffer pBuffer , ISimpleDBRowFactory pRowFactory ) throws IOException
+	{
+		mBuffer = pBuffer;
+		mRowFactory = pRowFactory;
+		if ( ( pBuffer.capacity() < HEADER_SIZE ) || ( pBuffer.getInt( 0 ) != MAGIC ) )
+		{
+			throw new IOException( "Not a catalogue file" );
+		}
+		if ( pBuffer.getInt( 4 ) != FORMAT_VERSION )
+		{
+			throw new IOException( "Unsupported catalogue format version " + pBuffer.getInt( 4 ) );
+		}
+		mIsMainKeyUnique = ( pBuffer.getInt( 8 ) & FLAG_UNIQUE_MAIN_KEY ) != 0;
+		mCount = pBuffer.getInt( 12 );
+		long lDataStart = HEADER_SIZE + 8L * mCount + 4;
+		if ( ( mCount < 0 ) || ( lDataStart > pBuffer.capacity() ) )
+		{
+			throw new IOException( "Catalogue file is truncated" );
+		}
+		mKeys = slice( pBuffer , HEADER_SIZE , mCount ).asIntBuffer();
+		mOffsets = slice( pBuffer , HEADER_SIZE + 4 * mCount , mCount + 1 ).asIntBuffer();
+		if ( mOffsets.get( mCount ) != pBuffer.capacity() )
+		{
+			// Downloaded file may be incomplete - better to fail now than on some random row
+			throw new IOException( "Catalogue file has " + pBuffer.capacity() + " bytes, expected " + mOffsets.get( mCount ) );
+		}
+	}
+	
+	/**
+	 * Opens catalogue file.
+	 * 
+	 * @param pFile Catalogue file created by write().
+	 * @param pRowFactory Factory used for decoding rows.
+	 * @return Opened table.
+	 */
+	public static SimpleDBCatalogTable open( File pFile , ISimpleDBRowFactory pRowFactory ) throws IOException
+	{
+		RandomAccessFile lFile = new RandomAccessFile( pFile , "r" );
+		try
+		{
+			// Mapping stays valid after the file is closed
+			FileChannel lChannel = lFile.getChannel();
+			return new SimpleDBCatalogTable( lChannel.map( FileChannel.MapMode.READ_ONLY , 0 , lChannel.size() ) , pRowFactory );
+		}
+		finally
+		{
+			lFile.close();
+		}
+	}
+	
+	/**
+	 * Opens catalogue stored in assets. Asset must not be compressed - for example use file extension that is never compressed
+	 * by aapt (like .mp3) or add it to noCompress.
+	 * 
+	 * @param pAsset Descriptor of the asset - from AssetManager.openFd().
+	 * @param pRowFactory Factory used for decoding rows.
+	 * @return Opened table.
+	 */
+	public static SimpleDBCatalogTable open( AssetFileDescriptor pAsset , ISimpleDBRowFactory pRowFactory ) throws IOException
+	{
+		FileDescriptor lDescriptor = pAsset.getFileDescriptor();
+		FileInputStream lFile = new FileInputStream( lDescriptor );
+		try
+		{
+			return new SimpleDBCatalogTable( lFile.getChannel().map( FileChannel.MapMode.READ_ONLY , pAsset.getStartOffset() ,
+					pAsset.getLength() ) , pRowFactory );
+		}
+		finally
+		{
+			lFile.close();
+			pAsset.close();
+		}
+	}
+	
+	/**
+	 * Writes rows into a catalogue file. Rows are sorted by main key, rows with the same key keep their order.
+	 * 
+	 * @param pRows Rows to write.
+	 * @param pIsMainKeyUnique Should be true if main keys are unique - it is checked.
+	 * @param pStream Stream to write to, it is closed at the end.
+	 */
+	public static void write( List< ? extends SimpleDBRow > pRows , boolean pIsMainKeyUnique , OutputStream pStream ) throws IOException
+	{
+		List< SimpleDBRow > lRows = new ArrayList< SimpleDBRow >( pRows );
+		Collections.sort( lRows , new Comparator< SimpleDBRow >()
+		{
+			@Override
+			public int compare( SimpleDBRow pFirst , SimpleDBRow pSecond )
+			{
+				int lFirstKey = pFirst.getMainKey();
+				int lSecondKey = pSecond.getMainKey();
+				return ( lFirstKey < lSecondKey ) ? -1 : ( ( lFirstKey == lSecondKey ) ? 0 : 1 );
+			}
+		} );
+		int lCount = lRows.size();
+		
+		// Rows are encoded first - their offsets are written before them
+		ByteArrayOutputStream lRowBytes = new ByteArrayOutputStream();
+		DataOutputStream lRowStream = new DataOutputStream( lRowBytes );
+		int lDataStart = HEADER_SIZE + 8 * lCount + 4;
+		int[] lOffsets = new int[ lCount + 1 ];
+		for ( int i = 0; i < lCount; i++ )
+		{
+			if ( pIsMainKeyUnique && ( i > 0 ) && ( lRows.get( i ).getMainKey() == lRows.get( i - 1 ).getMainKey() ) )
+			{
+				pStream.close();
+				throw new IOException( "Main key " + lRows.get( i ).getMainKey() + " is not unique" );
+			}
+			lOffsets[ i ] = lDataStart + lRowStream.size();
+			lRows.get( i ).saveRow( lRowStream );
+		}
+		lOffsets[ lCount ] = lDataStart + lRowStream.size();
+		
+		DataOutputStream lStream = new DataOutputStream( new BufferedOutputStream( pStream , WRITE_BUFFER_SIZE ) );
+		try
+		{
+			lStream.writeInt( MAGIC );
+			lStream.writeInt( FORMAT_VERSION );
+			lStream.writeInt( pIsMainKeyUnique ? FLAG_UNIQUE_MAIN_KEY : 0 );
+			lStream.writeInt( lCount );
+			for ( int i = 0; i < lCount; i++ )
+			{
+				lStream.writeInt( lRows.get( i ).getMainKey() );
+			}
+			for ( int i = 0; i <= lCount; i++ )
+			{
+				lStream.writeInt( lOffsets[ i ] );
+			}
+			lRowBytes.writeTo( lStream );
+		}
+		finally
+		{
+			lStream.close();
+		}
+	}
+	
+	/**
+	 * Gets number of rows.
+	 * 
+	 * @return Number of rows.
+	 */
+	public int getCount()
+	{
+		return mCount;
+	}
+	
+	/**
+	 * Gets list of all rows sorted by main key. Rows are decoded when they are accessed.
+	 * 
+	 * @return Immutable list of rows.
+	 */
+	public List< SimpleDBRow > getAllData()
+	{
+		return mAllRows;
+	}
+	
+	/**
+	 * Gets row with chosen main key. Key is found by binary search in the mapped file and only this row is decoded.
+	 * 
+	 * @param pKeyValue Main key value.
+	 * @return Row with this key (first one if keys are not unique) or null.
+	 */
+	public SimpleDBRow getIndexedRow( int pKeyValue )
+	{
+		int lIndex = findFirst( pKeyValue );
+		if ( ( lIndex < mCount ) && ( mKeys.get( lIndex ) == pKeyValue ) )
+		{
+			return decodeRow( lIndex );
+		}
+		return null;
+	}
+	
+	/**
+	 * Gets all rows with chosen main key.
+	 * 
+	 * @param pKeyValue Main key value.
+	 * @return List of rows with this key - empty if there are none.
+	 */
+	public List< SimpleDBRow > getAllRowsForMainKey( int pKeyValue )
+	{
+		List< SimpleDBRow > lResult = new ArrayList< SimpleDBRow >();
+		for ( int i = findFirst( pKeyValue ); ( i < mCount ) && ( mKeys.get( i ) == pKeyValue ); i++ )
+		{
+			lResult.add( decodeRow( i ) );
+			if ( mIsMainKeyUnique )
+			{
+				break;
+			}
+		}
+		return lResult;
+	}
+	
+	/**
+	 * Gets all rows with main keys in chosen range.
+	 * 
+	 * @param pFrom Lowest key (inclusive).
+	 * @param pTo Highest key (inclusive).
+	 * @return List of rows sorted by main key.
+	 */
+	public List< SimpleDBRow > getRowsInRange( int pFrom , int pTo )
+	{
+		List< SimpleDBRow > lResult = new ArrayList< SimpleDBRow >();
+		for ( int i = findFirst( pFrom ); ( i < mCount ) && ( mKeys.get( i ) <= pTo ); i++ )
+		{
+			lResult.add( decodeRow( i ) );
+		}
+		return lResult;
+	}
+	
+	/**
+	 * Checks if main keys of this table are unique.
+	 * 
+	 * @return True if main keys are unique.
+	 */
+	public boolean isMainKeyUnique()
+	{
+		return mIsMainKeyUnique;
+	}
+	
+	/**
+	 * Finds position of first key that is not lower than chosen key.
+	 * 
+	 * @param pKeyValue Key value.
+	 * @return Position of the key or mCount if all keys are lower.
+	 */
+	private int findFirst( int pKeyValue )
+	{
+		int lLow = 0;
+		int lHigh = mCount;
+		while( lLow < lHigh )
+		{
+			int lMiddle = ( lLow + lHigh ) >>> 1;
+			if ( mKeys.get( lMiddle ) < pKeyValue )
+			{
+				lLow = lMiddle + 1;
+			}
+			else
+			{
+				lHigh = lMiddle;
+			}
+		}
+		return lLow;
+	}
+	
+	/**
+	 * Decodes row at chosen position.
+	 * 
+	 * @param pIndex Position of the row.
+	 * @return New row object.
+	 */
+	private SimpleDBRow decodeRow( int pIndex )
+	{
+		SimpleDBRow lRow = mRowFactory.createNewEmptyRow();
+		try
+		{
+			lRow.loadRow( new DataInputStream( new MappedInputStream( mBuffer , mOffsets.get( pIndex ) , mOffsets.get( pIndex + 1 ) ) ) );
+		}
+		catch( IOException e )
+		{
+			// File is read-only and its size was checked, so only a broken row can get here
+			throw new IllegalStateException( "Failed to decode row " + pIndex + " of catalogue" , e );
+		}
+		return lRow;
+	}
+	
+	/**
+	 * Creates view of part of the buffer.
+	 * 
+	 * @param pBuffer Buffer.
+	 * @param pStart Start of the view (bytes).
+	 * @param pNumInts Length of the view (ints).
+	 * @return View of the buffer.
+	 */
+	private static ByteBuffer slice( ByteBuffer pBuffer , int pStart , int pNumInts )
+	{
+		ByteBuffer lView = pBuffer.duplicate();
+		lView.position( pStart );
+		lView.limit( pStart + 4 * pNumInts );
+		return lView.slice();
+	}
+}
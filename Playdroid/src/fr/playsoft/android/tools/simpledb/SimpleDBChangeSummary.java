@@ -0,0 +1,194 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.util.Arrays;
+
+/**
+ * Summary of changes made by a SimpleDBBatch - main keys of inserted, updated and deleted rows of each table.
+ * Keys are listed in order of changes, a key changed many times is listed many times.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public final class SimpleDBChangeSummary
+{
+	/** Inserted keys **/
+	private static final int INSERTED = 0;
+	
+	/** Updated keys **/
+	private static final int UPDATED = 1;
+	
+	/** Deleted keys **/
+	private static final int DELETED = 2;
+	
+	/** Empty result **/
+	private static final int[] NO_KEYS = new int[ 0 ];
+	
+	/** Keys for each table and change type **/
+	private int[][][] mKeys;
+	
+	/** Number of keys for each table and change type **/
+	private int[][] mNumKeys;
+	
+	/** Flags of tables that were changed **/
+	private boolean[] mIsTableChanged;
+	
+	/** Flags of tables with all rows deleted **/
+	private boolean[] mIsAllRowsDeleted;
+	
+	/**
+	 * Creates empty summary.
+	 * 
+	 * @param pNumTables Number of tables in database.
+	 */
+	SimpleDBChangeSummary( int pNumTables )
+	{
+		mKeys = new int[ pNumTables ][][];
+		mNumKeys = new int[ pNumTables ][ 3 ];
+		mIsTableChanged = new boolean[ pNumTables ];
+		mIsAllRowsDeleted = new boolean[ pNumTables ];
+	}
+	
+	/**
+	 * Adds inserted row.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pKeyValue Main key of the row.
+	 */
+	void addInserted( int pTableId , int pKeyValue )
+	{
+		addKey( pTableId , INSERTED , pKeyValue );
+	}
+	
+	/**
+	 * Adds updated row.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pKeyValue Main key of the row.
+	 */
+	void addUpdated( int pTableId , int pKeyValue )
+	{
+		addKey( pTableId , UPDATED , pKeyValue );
+	}
+	
+	/**
+	 * Adds deleted rows.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pKeyValue Main key of the rows.
+	 */
+	void addDeleted( int pTableId , int pKeyValue )
+	{
+		addKey( pTableId , DELETED , pKeyValue );
+	}
+	
+	/**
+	 * Marks that all rows of a table were deleted.
+	 * 
+	 * @param pTableId Table id.
+	 */
+	void setAllRowsDeleted( int pTableId )
+	{
+		mIsTableChanged[ pTableId ] = true;
+		mIsAllRowsDeleted[ pTableId ] = true;
+	}
+	
+	/**
+	 * Adds a key.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pType Change type.
+	 * @param pKeyValue Key value.
+	 */
+	private void addKey( int pTableId , int pType , int pKeyValue )
+	{
+		mIsTableChanged[ pTableId ] = true;
+		if ( mKeys[ pTableId ] == null )
+		{
+			mKeys[ pTableId ] = new int[ 3 ][];
+		}
+		int[] lKeys = mKeys[ pTableId ][ pType ];
+		int lNumKeys = mNumKeys[ pTableId ][ pType ];
+		if ( lKeys == null )
+		{
+			lKeys = new int[ 8 ];
+		}
+		else if ( lNumKeys == lKeys.length )
+		{
+			lKeys = Arrays.copyOf( lKeys , lNumKeys * 2 );
+		}
+		lKeys[ lNumKeys ] = pKeyValue;
+		mKeys[ pTableId ][ pType ] = lKeys;
+		mNumKeys[ pTableId ][ pType ] = lNumKeys + 1;
+	}
+	
+	/**
+	 * Gets keys of chosen type.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pType Change type.
+	 * @return Keys in order of changes.
+	 */
+	private int[] getKeys( int pTableId , int pType )
+	{
+		if ( ( mKeys[ pTableId ] == null ) || ( mKeys[ pTableId ][ pType ] == null ) )
+		{
+			return NO_KEYS;
+		}
+		return Arrays.copyOf( mKeys[ pTableId ][ pType ] , mNumKeys[ pTableId ][ pType ] );
+	}
+	
+	/**
+	 * Checks if table was changed.
+	 * 
+	 * @param pTableId Table id.
+	 * @return True if anything was inserted, updated or deleted.
+	 */
+	public boolean isTableChanged( int pTableId )
+	{
+		return mIsTableChanged[ pTableId ];
+	}
+	
+	/**
+	 * Checks if all rows of a table were deleted (by SimpleDBBatch.deleteAllRows()).
+	 * Keys listed for this table may be changed before or after deleting all rows.
+	 * 
+	 * @param pTableId Table id.
+	 * @return True if all rows were deleted.
+	 */
+	public boolean isAllRowsDeleted( int pTableId )
+	{
+		return mIsAllRowsDeleted[ pTableId ];
+	}
+	
+	/**
+	 * Gets main keys of inserted rows.
+	 * 
+	 * @param pTableId Table id.
+	 * @return Keys in order of changes.
+	 */
+	public int[] getInsertedKeys( int pTableId )
+	{
+		return getKeys( pTableId , INSERTED );
+	}
+	
+	/**
+	 * Gets main keys of updated rows - only tables with unique main key have updated rows.
+	 * 
+	 * @param pTableId Table id.
+	 * @return Keys in order of changes.
+	 */
+	public int[] getUpdatedKeys( int pTableId )
+	{
+		return getKeys( pTableId , UPDATED );
+	}
+	
+	/**
+	 * Gets main keys of deleted rows.
+	 * 
+	 * @param pTableId Table id.
+	 * @return Keys in order of changes.
+	 */
+	public int[] getDeletedKeys( int pTableId )
+	{
+		return getKeys( pTableId , DELETED );
+	}
+}
@@ -0,0 +1,516 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import android.content.Context;
+
+/**
+ * Snapshot file of SimpleDB.
+ * File starts with a header and a table directory (offset, length, compression and checksum of each table), followed by table blocks.
+ * Every table is stored in a separate block, so it can be loaded alone when it is needed for the first time.
+ * Header, directory and every block have CRC32 checksums. Damaged directory is detected by open(), damaged block when its table
+ * is read, so opening a file never reads all of it and a damaged block affects only its own table.
+ * 
+ * @author Olgierd Uzieblo
+ */
+final class SimpleDBFile
+{
+	/**
+	 * Stream that reads only a single block of the file.
+	 */
+	private static class BlockInputStream extends FilterInputStream
+	{
+		/** Number of bytes left in the block **/
+		private long mRemaining;
+		
+		BlockInputStream( InputStream pStream , long pLength )
+		{
+			super( pStream );
+			mRemaining = pLength;
+		}
+		
+		@Override
+		public int read() throws IOException
+		{
+			if ( mRemaining <= 0 )
+			{
+				return -1;
+			}
+			int lResult = in.read();
+			if ( lResult >= 0 )
+			{
+				mRemaining--;
+			}
+			return lResult;
+		}
+		
+		@Override
+		public int read( byte[] pBuffer , int pOffset , int pLength ) throws IOException
+		{
+			if ( mRemaining <= 0 )
+			{
+				return -1;
+			}
+			int lResult = in.read( pBuffer , pOffset , (int) Math.min( pLength , mRemaining ) );
+			if ( lResult > 0 )
+			{
+				mRemaining -= lResult;
+			}
+			return lResult;
+		}
+		
+		@Override
+		public long skip( long pCount ) throws IOException
+		{
+			long lResult = in.skip( Math.min( pCount , mRemaining ) );
+			mRemaining -= lResult;
+			return lResult;
+		}
+		
+		@Override
+		public int available() throws IOException
+		{
+			return (int) Math.min( in.available() , mRemaining );
+		}
+		
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+	}
+	
+	/** Value at the beginning of every snapshot file, lowest byte is format version - older files start directly with database version **/
+	private static final int FORMAT_MAGIC = 0x53444200;
+	
+	/** Mask of magic bits in the first int of the file **/
+	private static final int FORMAT_MAGIC_MASK = 0xFFFFFF00;
+	
+	/** Single stream without table directory, numbers of rows and array lengths saved as shorts **/
+	static final int FORMAT_VERSION_LEGACY = 1;
+	
+	/** Table directory added, numbers of rows and array lengths saved as shorts **/
+	static final int FORMAT_VERSION_TABLE_DIRECTORY = 2;
+	
+	/** Numbers of rows and array lengths saved as varints **/
+	static final int FORMAT_VERSION_VARINT_COUNTS = 3;
+	
+	/** Checksums of header, directory and every block added - blocks have the same format as in previous version **/
+	static final int FORMAT_VERSION_CHECKSUMS = 4;
+	
+	/** Format version used for saving **/
+	static final int FORMAT_VERSION_CURRENT = FORMAT_VERSION_CHECKSUMS;
+	
+	/** Table block is not compressed **/
+	static final byte COMPRESSION_NONE = 0;
+	
+	/** Table block is compressed with GZIP **/
+	static final byte COMPRESSION_GZIP = 1;
+	
+	/** Table block is compressed with SimpleDBLZCompression **/
+	static final byte COMPRESSION_LZ = 2;
+	
+	/** Compression used to read GZIP blocks - level does not matter for reading **/
+	private static final ISimpleDBCompression GZIP = new SimpleDBGZIPCompression();
+	
+	/** Compression used to read LZ blocks **/
+	private static final ISimpleDBCompression LZ = new SimpleDBLZCompression();
+	
+	/** Size of header before table directory - magic, database version and number of tables **/
+	private static final int HEADER_SIZE = 4 + 4 + 2;
+	
+	/** Size of single table directory entry - offset, length, compression and checksum **/
+	private static final int DIRECTORY_ENTRY_SIZE = 8 + 4 + 1 + 4;
+	
+	/** Size of checksum of header and directory written after the directory **/
+	private static final int DIRECTORY_CHECKSUM_SIZE = 4;
+	
+	/** Size of buffer used for reading (bytes) **/
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	
+	/** Context used to open the file **/
+	private Context mContext;
+	
+	/** File name **/
+	private String mFileName;
+	
+	/** Format version of this file **/
+	private int mFormatVersion;
+	
+	/** Version of database saved in this file **/
+	private int mDBVersion;
+	
+	/** Offsets of table blocks **/
+	private long[] mOffsets;
+	
+	/** Lengths of table blocks **/
+	private int[] mLengths;
+	
+	/** Compression of table blocks **/
+	private byte[] mCompressions;
+	
+	/** CRC32 checksums of table blocks, null if file was saved before checksums were added **/
+	private int[] mChecksums;
+	
+	/**
+	 * Creates file descriptor.
+	 */
+	private SimpleDBFile( Context pContext , String pFileName , int pFormatVersion , int pDBVersion , int pNumTables )
+	{
+		mContext = pContext;
+		mFileName = pFileName;
+		mFormatVersion = pFormatVersion;
+		mDBVersion = pDBVersion;
+		mOffsets = new long[ pNumTables ];
+		mLengths = new int[ pNumTables ];
+		mCompressions = new byte[ pNumTables ];
+		if ( pFormatVersion >= FORMAT_VERSION_CHECKSUMS )
+		{
+			mChecksums = new int[ pNumTables ];
+		}
+	}
+	
+	/**
+	 * Reads header and table directory of a snapshot file.
+	 * 
+	 * @param pContext Context to use.
+	 * @param pFileName Name of file to open.
+	 * @return File descriptor or null if file has old format without table directory.
+	 * @throws IOException If file can not be read or its directory is damaged.
+	 */
+	static SimpleDBFile open( Context pContext , String pFileName ) throws IOException
+	{
+		CRC32 lChecksum = new CRC32();
+		DataInputStream lStream = new DataInputStream( new CheckedInputStream( new BufferedInputStream( pContext.openFileInput( pFileName ) ) ,
+				lChecksum ) );
+		try
+		{
+			int lMagic = lStream.readInt();
+			if ( ( lMagic & FORMAT_MAGIC_MASK ) != FORMAT_MAGIC )
+			{
+				return null;
+			}
+			int lFormatVersion = lMagic & ~FORMAT_MAGIC_MASK;
+			if ( ( lFormatVersion < FORMAT_VERSION_TABLE_DIRECTORY ) || ( lFormatVersion > FORMAT_VERSION_CURRENT ) )
+			{
+				throw new IOException( "Unsupported format version " + lFormatVersion );
+			}
+			int lDBVersion = lStream.readInt();
+			int lNumTables = lStream.readShort();
+			SimpleDBFile lFile = new SimpleDBFile( pContext , pFileName , lFormatVersion , lDBVersion , lNumTables );
+			for ( int i = 0; i < lNumTables; i++ )
+			{
+				lFile.mOffsets[ i ] = lStream.readLong();
+				lFile.mLengths[ i ] = lStream.readInt();
+				lFile.mCompressions[ i ] = lStream.readByte();
+				if ( lFile.mChecksums != null )
+				{
+					lFile.mChecksums[ i ] = lStream.readInt();
+				}
+			}
+			if ( lFormatVersion >= FORMAT_VERSION_CHECKSUMS )
+			{
+				int lExpectedChecksum = (int) lChecksum.getValue();
+				if ( lStream.readInt() != lExpectedChecksum )
+				{
+					throw new IOException( "Damaged table directory of " + pFileName );
+				}
+			}
+			return lFile;
+		}
+		finally
+		{
+			lStream.close();
+		}
+	}
+	
+	/**
+	 * Writes a new snapshot file in current format.
+	 * 
+	 * @param pContext Context to use.
+	 * @param pFileName Name of file to create.
+	 * @param pDBVersion Database version.
+	 * @param pBlocks Table blocks created by encodeTable() or read by readRawTable() from a file with varint counts or later.
+	 * @param pCompressions Compression of each block.
+	 * @return Descriptor of created file.
+	 */
+	static SimpleDBFile write( Context pContext , String pFileName , int pDBVersion , byte[][] pBlocks , byte[] pCompressions )
+			throws IOException
+	{
+		int lNumTables = pBlocks.length;
+		SimpleDBFile lFile = new SimpleDBFile( pContext , pFileName , FORMAT_VERSION_CURRENT , pDBVersion , lNumTables );
+		long lOffset = HEADER_SIZE + lNumTables * DIRECTORY_ENTRY_SIZE + DIRECTORY_CHECKSUM_SIZE;
+		CRC32 lChecksum = new CRC32();
+		for ( int i = 0; i < lNumTables; i++ )
+		{
+			lFile.mOffsets[ i ] = lOffset;
+			lFile.mLengths[ i ] = pBlocks[ i ].length;
+			lFile.mCompressions[ i ] = pCompressions[ i ];
+			lChecksum.reset();
+			lChecksum.update( pBlocks[ i ] );
+			lFile.mChecksums[ i ] = (int) lChecksum.getValue();
+			lOffset += pBlocks[ i ].length;
+		}
+		
+		FileOutputStream lFileStream = pContext.openFileOutput( pFileName , Context.MODE_PRIVATE );
+		lChecksum.reset();
+		DataOutputStream lStream = new DataOutputStream( new CheckedOutputStream( new BufferedOutputStream( lFileStream ) , lChecksum ) );
+		try
+		{
+			lStream.writeInt( FORMAT_MAGIC | FORMAT_VERSION_CURRENT );
+			lStream.writeInt( pDBVersion );
+			lStream.writeShort( lNumTables );
+			for ( int i = 0; i < lNumTables; i++ )
+			{
+				lStream.writeLong( lFile.mOffsets[ i ] );
+				lStream.writeInt( lFile.mLengths[ i ] );
+				lStream.writeByte( lFile.mCompressions[ i ] );
+				lStream.writeInt( lFile.mChecksums[ i ] );
+			}
+			lStream.writeInt( (int) lChecksum.getValue() );
+			for ( int i = 0; i < lNumTables; i++ )
+			{
+				lStream.write( pBlocks[ i ] );
+			}
+			
+			// File must be on the disk before anybody points to it - otherwise a crash could leave only a part of it
+			lStream.flush();
+			lFileStream.getFD().sync();
+		}
+		finally
+		{
+			lStream.close();
+		}
+		return lFile;
+	}
+	
+	/**
+	 * Serializes rows of a table into a block in current format.
+	 * 
+	 * @param pRows Rows of the table taken by SimpleDBTable.getAllData(), null if table is empty.
+	 * @param pCompression Compression to use, null if block should not be compressed.
+	 * @return Table block.
+	 */
+	static byte[] encodeTable( List< SimpleDBRow > pRows , ISimpleDBCompression pCompression ) throws IOException
+	{
+		ByteArrayOutputStream lByteArrayStream = new ByteArrayOutputStream();
+		DataOutputStream lDataStream;
+		if ( pCompression != null )
+		{
+			lDataStream = new DataOutputStream( pCompression.createOutputStream( lByteArrayStream ) );
+		}
+		else
+		{
+			lDataStream = new DataOutputStream( lByteArrayStream );
+		}
+		SimpleDBTable.save( pRows , lDataStream );
+		lDataStream.close();
+		return lByteArrayStream.toByteArray();
+	}
+	
+	/**
+	 * Gets file name.
+	 * 
+	 * @return File name.
+	 */
+	String getFileName()
+	{
+		return mFileName;
+	}
+	
+	/**
+	 * Gets format version of this file.
+	 * 
+	 * @return One of FORMAT_VERSION_ constants.
+	 */
+	int getFormatVersion()
+	{
+		return mFormatVersion;
+	}
+	
+	/**
+	 * Gets version of database saved in this file.
+	 * 
+	 * @return Database version.
+	 */
+	int getDBVersion()
+	{
+		return mDBVersion;
+	}
+	
+	/**
+	 * Gets number of tables saved in this file.
+	 * 
+	 * @return Number of tables.
+	 */
+	int getNumTables()
+	{
+		return mOffsets.length;
+	}
+	
+	/**
+	 * Gets compression of table block.
+	 * 
+	 * @param pTableId Table id.
+	 * @return One of COMPRESSION_ constants.
+	 */
+	byte getCompression( int pTableId )
+	{
+		return mCompressions[ pTableId ];
+	}
+	
+	/**
+	 * Opens stream reading a single table. Data is read in small chunks, so the table block is never kept in memory.
+	 * Block is checked against its checksum first.
+	 * 
+	 * @param pTableId Table id.
+	 * @param pCustomCompression Compression set in the database - used for blocks with custom compression id, can be null.
+	 * @return Stream with table data, ready for SimpleDBTable.load().
+	 * @throws IOException If the block is damaged or can not be read.
+	 */
+	DataInputStream openTable( int pTableId , ISimpleDBCompression pCustomCompression ) throws IOException
+	{
+		ISimpleDBCompression lCompression = getCompression( mCompressions[ pTableId ] , pCustomCompression );
+		FileInputStream lFile = mContext.openFileInput( mFileName );
+		try
+		{
+			if ( mChecksums != null )
+			{
+				checkTable( lFile , pTableId );
+			}
+			lFile.getChannel().position( mOffsets[ pTableId ] );
+			InputStream lStream = new BufferedInputStream( new BlockInputStream( lFile , mLengths[ pTableId ] ) , READ_BUFFER_SIZE );
+			if ( lCompression != null )
+			{
+				lStream = lCompression.createInputStream( lStream );
+			}
+			return new DataInputStream( lStream );
+		}
+		catch( IOException e )
+		{
+			lFile.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Finds compression that decodes blocks with chosen compression id.
+	 * 
+	 * @param pCompressionId Compression id saved in table directory.
+	 * @param pCustomCompression Compression set in the database, can be null.
+	 * @return Compression or null if block is not compressed.
+	 */
+	private static ISimpleDBCompression getCompression( byte pCompressionId , ISimpleDBCompression pCustomCompression ) throws IOException
+	{
+		switch ( pCompressionId )
+		{
+			case COMPRESSION_NONE:
+				return null;
+			case COMPRESSION_GZIP:
+				return GZIP;
+			case COMPRESSION_LZ:
+				return LZ;
+			default:
+				if ( ( pCustomCompression != null ) && ( pCustomCompression.getId() == pCompressionId ) )
+				{
+					return pCustomCompression;
+				}
+				throw new IOException( "Unknown compression " + pCompressionId );
+		}
+	}
+	
+	/**
+	 * Checks that the file is complete. Blocks are checked against their checksums when their tables are read,
+	 * so this does not read the file.
+	 * 
+	 * @throws IOException If the file is truncated.
+	 */
+	void verify() throws IOException
+	{
+		long lEnd = HEADER_SIZE;
+		for ( int i = 0; i < mOffsets.length; i++ )
+		{
+			lEnd = Math.max( lEnd , mOffsets[ i ] + mLengths[ i ] );
+		}
+		long lFileSize = mContext.getFileStreamPath( mFileName ).length();
+		if ( lFileSize < lEnd )
+		{
+			throw new IOException( "File " + mFileName + " is truncated - size " + lFileSize + " bytes, expected " + lEnd );
+		}
+	}
+	
+	/**
+	 * Reads table block in small chunks and compares it with its checksum. Nothing is decoded,
+	 * so it takes only a fraction of table loading time.
+	 * 
+	 * @param pFile Opened file, its position is changed.
+	 * @param pTableId Table id.
+	 * @throws IOException If the block is damaged.
+	 */
+	private void checkTable( FileInputStream pFile , int pTableId ) throws IOException
+	{
+		pFile.getChannel().position( mOffsets[ pTableId ] );
+		byte[] lBuffer = new byte[ READ_BUFFER_SIZE ];
+		CRC32 lChecksum = new CRC32();
+		int lRemaining = mLengths[ pTableId ];
+		while( lRemaining > 0 )
+		{
+			int lRead = pFile.read( lBuffer , 0 , Math.min( lRemaining , lBuffer.length ) );
+			if ( lRead < 0 )
+			{
+				throw new IOException( "File " + mFileName + " is truncated in table " + pTableId );
+			}
+			lChecksum.update( lBuffer , 0 , lRead );
+			lRemaining -= lRead;
+		}
+		if ( (int) lChecksum.getValue() != mChecksums[ pTableId ] )
+		{
+			throw new IOException( "Checksum of table " + pTableId + " in " + mFileName + " does not match" );
+		}
+	}
+	
+	/**
+	 * Reads table block without decoding it - used to copy tables that were not loaded to a new snapshot.
+	 * 
+	 * @param pTableId Table id.
+	 * @return Table block.
+	 */
+	byte[] readRawTable( int pTableId ) throws IOException
+	{
+		FileInputStream lFile = mContext.openFileInput( mFileName );
+		try
+		{
+			lFile.getChannel().position( mOffsets[ pTableId ] );
+			byte[] lBlock = new byte[ mLengths[ pTableId ] ];
+			new DataInputStream( lFile ).readFully( lBlock );
+			if ( mChecksums != null )
+			{
+				// Damaged block must not get a new valid checksum in the new file
+				CRC32 lChecksum = new CRC32();
+				lChecksum.update( lBlock );
+				if ( (int) lChecksum.getValue() != mChecksums[ pTableId ] )
+				{
+					throw new IOException( "Checksum of table " + pTableId + " in " + mFileName + " does not match" );
+				}
+			}
+			return lBlock;
+		}
+		finally
+		{
+			lFile.close();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * GZIP compression of table blocks. Gives best ratio, but it is slow - especially saving at default level.
+ * Lower levels save much faster and all levels are decoded by the same code, so level can be changed at any time.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public final class SimpleDBGZIPCompression implements ISimpleDBCompression
+{
+	/**
+	 * GZIP stream with chosen compression level.
+	 */
+	private static final class LevelGZIPOutputStream extends GZIPOutputStream
+	{
+		LevelGZIPOutputStream( OutputStream pStream , int pLevel ) throws IOException
+		{
+			super( pStream , BUFFER_SIZE );
+			// Header is written without the deflater, so level can be changed before any data
+			def.setLevel( pLevel );
+		}
+	}
+	
+	/** Size of buffers used by GZIP streams (bytes) **/
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	/** Compression level - from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION **/
+	private int mLevel;
+	
+	/**
+	 * Creates GZIP compression with default level.
+	 */
+	public SimpleDBGZIPCompression()
+	{
+		this( Deflater.DEFAULT_COMPRESSION );
+	}
+	
+	/**
+	 * Creates GZIP compression with chosen level.
+	 * 
+	 * @param pLevel Compression level - from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION or Deflater.DEFAULT_COMPRESSION.
+	 */
+	public SimpleDBGZIPCompression( int pLevel )
+	{
+		mLevel = pLevel;
+	}
+	
+	@Override
+	public byte getId()
+	{
+		return SimpleDBFile.COMPRESSION_GZIP;
+	}
+	
+	@Override
+	public OutputStream createOutputStream( OutputStream pStream ) throws IOException
+	{
+		return new LevelGZIPOutputStream( pStream , mLevel );
+	}
+	
+	@Override
+	public InputStream createInputStream( InputStream pStream ) throws IOException
+	{
+		return new GZIPInputStream( pStream , BUFFER_SIZE );
+	}
+}
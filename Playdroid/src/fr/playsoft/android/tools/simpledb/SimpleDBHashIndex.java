@@ -0,0 +1,71 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.util.Arrays;
+
+/**
+ * Secondary index for finding rows with chosen int key (for example all rows of a category).
+ * 
+ * @author Olgierd Uzieblo
+ */
+final class SimpleDBHashIndex extends SimpleDBIndex
+{
+	/** Extractor of keys **/
+	private ISimpleDBIntKeyExtractor mExtractor;
+	
+	/** Positions of rows for each key **/
+	private SimpleDBIntMultiMap mPositions;
+	
+	/** Keys of indexed rows by their positions - rows can be changed in place, so keys can not be extracted again when removing **/
+	private int[] mKeys;
+	
+	/**
+	 * Creates empty index.
+	 * 
+	 * @param pExtractor Extractor of keys.
+	 */
+	SimpleDBHashIndex( ISimpleDBIntKeyExtractor pExtractor )
+	{
+		mExtractor = pExtractor;
+		mPositions = new SimpleDBIntMultiMap();
+		mKeys = new int[ 16 ];
+	}
+	
+	@Override
+	void add( SimpleDBRow pRow , int pPosition )
+	{
+		int lKey = mExtractor.getKey( pRow );
+		if ( pPosition >= mKeys.length )
+		{
+			mKeys = Arrays.copyOf( mKeys , Math.max( pPosition + 1 , mKeys.length * 2 ) );
+		}
+		mKeys[ pPosition ] = lKey;
+		mPositions.add( lKey , pPosition );
+	}
+	
+	@Override
+	void remove( SimpleDBRow pRow , int pPosition )
+	{
+		if ( pPosition < mKeys.length )
+		{
+			mPositions.remove( mKeys[ pPosition ] , pPosition );
+		}
+	}
+	
+	@Override
+	void clear()
+	{
+		mPositions.clear();
+		mKeys = new int[ 16 ];
+	}
+	
+	/**
+	 * Gets positions of rows with chosen key.
+	 * 
+	 * @param pKey Key value.
+	 * @return Positions in order of the table.
+	 */
+	int[] get( int pKey )
+	{
+		return mPositions.get( pKey );
+	}
+}
@@ -0,0 +1,50 @@
+package fr.playsoft.android.tools.simpledb;
+
+/**
+ * Secondary index of SimpleDBTable. Keeps positions of rows in the table, keys are taken from rows by an extractor.
+ * Index is changed together with the table, so it is always up to date. Not thread safe - SimpleDBTable locks all calls.
+ * 
+ * @author Olgierd Uzieblo
+ */
+abstract class SimpleDBIndex
+{
+	/**
+	 * Adds a row to the index.
+	 * 
+	 * @param pRow Added row.
+	 * @param pPosition Position of the row in the table.
+	 */
+	abstract void add( SimpleDBRow pRow , int pPosition );
+	
+	/**
+	 * Removes a row from the index. Row is found by the key it had when it was added, so rows changed in place
+	 * (taken from the table, modified and inserted again) are removed correctly.
+	 * 
+	 * @param pRow Removed row.
+	 * @param pPosition Position of the row in the table.
+	 */
+	abstract void remove( SimpleDBRow pRow , int pPosition );
+	
+	/**
+	 * Removes all rows from the index.
+	 */
+	abstract void clear();
+	
+	/**
+	 * Builds the index from scratch after many rows were loaded or rows have changed their positions.
+	 * 
+	 * @param pData All rows of the table.
+	 */
+	void rebuild( SimpleDBRowStore pData )
+	{
+		clear();
+		for ( int i = 0; i < pData.getEnd(); i++ )
+		{
+			SimpleDBRow lRow = pData.get( i );
+			if ( lRow != null )
+			{
+				add( lRow , i );
+			}
+		}
+	}
+}
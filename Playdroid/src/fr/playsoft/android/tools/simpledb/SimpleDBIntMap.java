@@ -0,0 +1,210 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.util.Arrays;
+
+/**
+ * Map from int keys to non negative int values used as index of SimpleDBTable (values are row positions).
+ * Uses open addressing with linear probing on plain int arrays, so keys and values are never boxed.
+ * Not thread safe - SimpleDBTable locks all calls. get() never changes the map, so it can be called by many readers at once.
+ * 
+ * @author Olgierd Uzieblo
+ */
+final class SimpleDBIntMap
+{
+	/** Value returned when there is no value for a key, also marks empty slots **/
+	static final int NO_VALUE = -1;
+	
+	/** Initial number of slots - always a power of two **/
+	private static final int INITIAL_CAPACITY = 16;
+	
+	/** Keys **/
+	private int[] mKeys;
+	
+	/** Values, NO_VALUE in empty slots **/
+	private int[] mValues;
+	
+	/** Number of keys **/
+	private int mSize;
+	
+	/** Mask used to get slot from hash **/
+	private int mMask;
+	
+	/**
+	 * Creates empty map.
+	 */
+	SimpleDBIntMap()
+	{
+		allocate( INITIAL_CAPACITY );
+	}
+	
+	/**
+	 * Gets number of keys.
+	 * 
+	 * @return Number of keys.
+	 */
+	int size()
+	{
+		return mSize;
+	}
+	
+	/**
+	 * Gets value for a key.
+	 * 
+	 * @param pKey Key.
+	 * @return Value or NO_VALUE if there is no such key.
+	 */
+	int get( int pKey )
+	{
+		int lSlot = hash( pKey ) & mMask;
+		while( mValues[ lSlot ] != NO_VALUE )
+		{
+			if ( mKeys[ lSlot ] == pKey )
+			{
+				return mValues[ lSlot ];
+			}
+			lSlot = ( lSlot + 1 ) & mMask;
+		}
+		return NO_VALUE;
+	}
+	
+	/**
+	 * Sets value for a key.
+	 * 
+	 * @param pKey Key.
+	 * @param pValue New value, must not be negative.
+	 * @return Previous value or NO_VALUE if key was not in the map.
+	 */
+	int put( int pKey , int pValue )
+	{
+		int lSlot = hash( pKey ) & mMask;
+		while( mValues[ lSlot ] != NO_VALUE )
+		{
+			if ( mKeys[ lSlot ] == pKey )
+			{
+				int lPreviousValue = mValues[ lSlot ];
+				mValues[ lSlot ] = pValue;
+				return lPreviousValue;
+			}
+			lSlot = ( lSlot + 1 ) & mMask;
+		}
+		mKeys[ lSlot ] = pKey;
+		mValues[ lSlot ] = pValue;
+		mSize++;
+		if ( mSize * 4 > mValues.length * 3 )
+		{
+			grow();
+		}
+		return NO_VALUE;
+	}
+	
+	/**
+	 * Removes a key.
+	 * 
+	 * @param pKey Key to remove.
+	 * @return Removed value or NO_VALUE if key was not in the map.
+	 */
+	int remove( int pKey )
+	{
+		int lSlot = hash( pKey ) & mMask;
+		while( mValues[ lSlot ] != NO_VALUE )
+		{
+			if ( mKeys[ lSlot ] == pKey )
+			{
+				int lRemovedValue = mValues[ lSlot ];
+				removeSlot( lSlot );
+				mSize--;
+				return lRemovedValue;
+			}
+			lSlot = ( lSlot + 1 ) & mMask;
+		}
+		return NO_VALUE;
+	}
+	
+	/**
+	 * Removes all keys.
+	 */
+	void clear()
+	{
+		if ( mValues.length > INITIAL_CAPACITY )
+		{
+			allocate( INITIAL_CAPACITY );
+		}
+		else
+		{
+			Arrays.fill( mValues , NO_VALUE );
+		}
+		mSize = 0;
+	}
+	
+	/**
+	 * Empties a slot moving back following keys, so they can still be found without tombstones.
+	 * 
+	 * @param pSlot Slot to empty.
+	 */
+	private void removeSlot( int pSlot )
+	{
+		int lEmptySlot = pSlot;
+		int lSlot = ( pSlot + 1 ) & mMask;
+		while( mValues[ lSlot ] != NO_VALUE )
+		{
+			int lHomeSlot = hash( mKeys[ lSlot ] ) & mMask;
+			// Key can be moved if empty slot is between its home slot and its current slot
+			if ( ( ( lSlot - lHomeSlot ) & mMask ) >= ( ( lSlot - lEmptySlot ) & mMask ) )
+			{
+				mKeys[ lEmptySlot ] = mKeys[ lSlot ];
+				mValues[ lEmptySlot ] = mValues[ lSlot ];
+				lEmptySlot = lSlot;
+			}
+			lSlot = ( lSlot + 1 ) & mMask;
+		}
+		mValues[ lEmptySlot ] = NO_VALUE;
+	}
+	
+	/**
+	 * Doubles number of slots.
+	 */
+	private void grow()
+	{
+		int[] lKeys = mKeys;
+		int[] lValues = mValues;
+		allocate( lValues.length * 2 );
+		for ( int i = 0; i < lValues.length; i++ )
+		{
+			if ( lValues[ i ] != NO_VALUE )
+			{
+				int lSlot = hash( lKeys[ i ] ) & mMask;
+				while( mValues[ lSlot ] != NO_VALUE )
+				{
+					lSlot = ( lSlot + 1 ) & mMask;
+				}
+				mKeys[ lSlot ] = lKeys[ i ];
+				mValues[ lSlot ] = lValues[ i ];
+			}
+		}
+	}
+	
+	/**
+	 * Creates empty arrays.
+	 * 
+	 * @param pCapacity Number of slots - power of two.
+	 */
+	private void allocate( int pCapacity )
+	{
+		mKeys = new int[ pCapacity ];
+		mValues = new int[ pCapacity ];
+		Arrays.fill( mValues , NO_VALUE );
+		mMask = pCapacity - 1;
+	}
+	
+	/**
+	 * Spreads key bits, so sequential keys do not form long runs of used slots.
+	 * 
+	 * @param pKey Key.
+	 * @return Hash of the key.
+	 */
+	private static int hash( int pKey )
+	{
+		int lHash = pKey * 0x9E3779B9;
+		return lHash ^ ( lHash >>> 16 );
+	}
+}
@@ -0,0 +1,219 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.util.Arrays;
+
+/**
+ * Map from int keys to lists of non negative int values used as index of non unique keys (values are row positions).
+ * Each key points to a plain int array with values in ascending order, so they can be found by binary search.
+ * Adding values in ascending order (row positions only grow until the table is compacted) is O(1). Nothing is boxed.
+ * Not thread safe - SimpleDBTable locks all calls.
+ * 
+ * @author Olgierd Uzieblo
+ */
+final class SimpleDBIntMultiMap
+{
+	/** Empty result **/
+	private static final int[] NO_VALUES = new int[ 0 ];
+	
+	/** Initial size of a single value list **/
+	private static final int INITIAL_LIST_CAPACITY = 2;
+	
+	/** Ids of value lists for each key **/
+	private SimpleDBIntMap mListIds;
+	
+	/** Value lists **/
+	private int[][] mLists;
+	
+	/** Number of values in each list **/
+	private int[] mListSizes;
+	
+	/** Ids of lists that are not used anymore and can be reused **/
+	private int[] mFreeListIds;
+	
+	/** Number of ids in mFreeListIds **/
+	private int mNumFreeListIds;
+	
+	/** Number of created lists **/
+	private int mNumLists;
+	
+	/** Number of all values **/
+	private int mSize;
+	
+	/**
+	 * Creates empty map.
+	 */
+	SimpleDBIntMultiMap()
+	{
+		mListIds = new SimpleDBIntMap();
+		clear();
+	}
+	
+	/**
+	 * Gets number of all values.
+	 * 
+	 * @return Number of values.
+	 */
+	int size()
+	{
+		return mSize;
+	}
+	
+	/**
+	 * Adds value for a key. Nothing is changed if the key already has this value.
+	 * 
+	 * @param pKey Key.
+	 * @param pValue Value to add, must not be negative.
+	 */
+	void add( int pKey , int pValue )
+	{
+		int lListId = mListIds.get( pKey );
+		if ( lListId == SimpleDBIntMap.NO_VALUE )
+		{
+			lListId = createList();
+			mListIds.put( pKey , lListId );
+		}
+		int[] lList = mLists[ lListId ];
+		int lListSize = mListSizes[ lListId ];
+		if ( lListSize == lList.length )
+		{
+			lList = Arrays.copyOf( lList , lListSize * 2 );
+			mLists[ lListId ] = lList;
+		}
+		int lIndex = lListSize;
+		if ( ( lListSize > 0 ) && ( lList[ lListSize - 1 ] >= pValue ) )
+		{
+			// Row with changed key keeps its old position
+			lIndex = Arrays.binarySearch( lList , 0 , lListSize , pValue );
+			if ( lIndex >= 0 )
+			{
+				return;
+			}
+			lIndex = -lIndex - 1;
+			System.arraycopy( lList , lIndex , lList , lIndex + 1 , lListSize - lIndex );
+		}
+		lList[ lIndex ] = pValue;
+		mListSizes[ lListId ] = lListSize + 1;
+		mSize++;
+	}
+	
+	/**
+	 * Gets all values of a key.
+	 * 
+	 * @param pKey Key.
+	 * @return Values in ascending order, empty array if there are none.
+	 */
+	int[] get( int pKey )
+	{
+		int lListId = mListIds.get( pKey );
+		if ( lListId == SimpleDBIntMap.NO_VALUE )
+		{
+			return NO_VALUES;
+		}
+		return Arrays.copyOf( mLists[ lListId ] , mListSizes[ lListId ] );
+	}
+	
+	/**
+	 * Removes single value of a key.
+	 * 
+	 * @param pKey Key.
+	 * @param pValue Value to remove.
+	 * @return True if value was found.
+	 */
+	boolean remove( int pKey , int pValue )
+	{
+		int lListId = mListIds.get( pKey );
+		if ( lListId == SimpleDBIntMap.NO_VALUE )
+		{
+			return false;
+		}
+		int[] lList = mLists[ lListId ];
+		int lListSize = mListSizes[ lListId ];
+		int lIndex = Arrays.binarySearch( lList , 0 , lListSize , pValue );
+		if ( lIndex < 0 )
+		{
+			return false;
+		}
+		System.arraycopy( lList , lIndex + 1 , lList , lIndex , lListSize - lIndex - 1 );
+		mListSizes[ lListId ] = lListSize - 1;
+		mSize--;
+		if ( lListSize == 1 )
+		{
+			mListIds.remove( pKey );
+			releaseList( lListId );
+		}
+		return true;
+	}
+	
+	/**
+	 * Removes all values of a key.
+	 * 
+	 * @param pKey Key.
+	 * @return Removed values in ascending order, empty array if there were none.
+	 */
+	int[] removeAll( int pKey )
+	{
+		int lListId = mListIds.remove( pKey );
+		if ( lListId == SimpleDBIntMap.NO_VALUE )
+		{
+			return NO_VALUES;
+		}
+		int[] lValues = Arrays.copyOf( mLists[ lListId ] , mListSizes[ lListId ] );
+		mSize -= lValues.length;
+		releaseList( lListId );
+		return lValues;
+	}
+	
+	/**
+	 * Removes all keys.
+	 */
+	void clear()
+	{
+		mListIds.clear();
+		mLists = new int[ 16 ][];
+		mListSizes = new int[ 16 ];
+		mFreeListIds = new int[ 16 ];
+		mNumFreeListIds = 0;
+		mNumLists = 0;
+		mSize = 0;
+	}
+	
+	/**
+	 * Gets an empty list - reused one or a new one.
+	 * 
+	 * @return List id.
+	 */
+	private int createList()
+	{
+		if ( mNumFreeListIds > 0 )
+		{
+			return mFreeListIds[ --mNumFreeListIds ];
+		}
+		if ( mNumLists == mLists.length )
+		{
+			mLists = Arrays.copyOf( mLists , mNumLists * 2 );
+			mListSizes = Arrays.copyOf( mListSizes , mNumLists * 2 );
+		}
+		mLists[ mNumLists ] = new int[ INITIAL_LIST_CAPACITY ];
+		return mNumLists++;
+	}
+	
+	/**
+	 * Marks list as unused, so it can be reused for another key.
+	 * 
+	 * @param pListId List id.
+	 */
+	private void releaseList( int pListId )
+	{
+		mListSizes[ pListId ] = 0;
+		if ( mLists[ pListId ].length > INITIAL_LIST_CAPACITY * 8 )
+		{
+			// Dont keep memory of large lists
+			mLists[ pListId ] = new int[ INITIAL_LIST_CAPACITY ];
+		}
+		if ( mNumFreeListIds == mFreeListIds.length )
+		{
+			mFreeListIds = Arrays.copyOf( mFreeListIds , mNumFreeListIds * 2 );
+		}
+		mFreeListIds[ mNumFreeListIds++ ] = pListId;
+	}
+}
@@ -0,0 +1,242 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fast LZ77 compression of byte chunks (LZ4 style sequences) used by SimpleDBLZCompression.
+ * Each sequence is a token (4 bits of literal length, 4 bits of match length), literals and a match given by 2 byte offset.
+ * Last sequence has only literals. Compression finds matches with a single hash table probe, so it is several times faster than GZIP.
+ * 
+ * @author Olgierd Uzieblo
+ */
+final class SimpleDBLZCodec
+{
+	/** Shortest match **/
+	private static final int MIN_MATCH = 4;
+	
+	/** Largest match offset **/
+	private static final int MAX_OFFSET = 0xFFFF;
+	
+	/** Number of bits of hash table index **/
+	private static final int HASH_BITS = 14;
+	
+	/** Number of hash table entries **/
+	static final int HASH_TABLE_SIZE = 1 << HASH_BITS;
+	
+	/** After this many bytes without a match the search starts skipping bytes, so incompressible data is passed quickly **/
+	private static final int SKIP_TRIGGER = 6;
+	
+	private SimpleDBLZCodec()
+	{
+	}
+	
+	/**
+	 * Gets size of buffer that is always large enough for compressed data.
+	 * 
+	 * @param pLength Length of uncompressed data.
+	 * @return Buffer size.
+	 */
+	static int getMaxCompressedLength( int pLength )
+	{
+		return pLength + pLength / 255 + 16;
+	}
+	
+	/**
+	 * Compresses a chunk.
+	 * 
+	 * @param pSource Data to compress.
+	 * @param pLength Length of data.
+	 * @param pDestination Output buffer - getMaxCompressedLength( pLength ) bytes after pOffset are always enough.
+	 * @param pOffset Position of compressed data in output buffer.
+	 * @param pHashTable Hash table of size HASH_TABLE_SIZE - reused by following calls.
+	 * @return Length of compressed data.
+	 */
+	static int compress( byte[] pSource , int pLength , byte[] pDestination , int pOffset , int[] pHashTable )
+	{
+		Arrays.fill( pHashTable , -1 );
+		int lInput = 0;
+		int lAnchor = 0;
+		int lOutput = pOffset;
+		int lSearchLimit = pLength - MIN_MATCH;
+		
+		while( lInput <= lSearchLimit )
+		{
+			int lSequence = getInt( pSource , lInput );
+			int lHash = ( lSequence * 0x9E3779B1 ) >>> ( 32 - HASH_BITS );
+			int lReference = pHashTable[ lHash ];
+			pHashTable[ lHash ] = lInput;
+			
+			if ( ( lReference < 0 ) || ( lInput - lReference > MAX_OFFSET ) || ( getInt( pSource , lReference ) != lSequence ) )
+			{
+				lInput += 1 + ( ( lInput - lAnchor ) >>> SKIP_TRIGGER );
+				continue;
+			}
+			
+			int lMatchLength = MIN_MATCH;
+			while( ( lInput + lMatchLength < pLength ) && ( pSource[ lReference + lMatchLength ] == pSource[ lInput + lMatchLength ] ) )
+			{
+				lMatchLength++;
+			}
+			
+			int lLiteralLength = lInput - lAnchor;
+			int lTokenPosition = lOutput++;
+			lOutput = putLiterals( pSource , lAnchor , lLiteralLength , pDestination , lOutput );
+			int lOffset = lInput - lReference;
+			pDestination[ lOutput++ ] = (byte) lOffset;
+			pDestination[ lOutput++ ] = (byte) ( lOffset >>> 8 );
+			int lExtraMatchLength = lMatchLength - MIN_MATCH;
+			if ( lExtraMatchLength >= 15 )
+			{
+				lOutput = putLength( lExtraMatchLength - 15 , pDestination , lOutput );
+			}
+			pDestination[ lTokenPosition ] = (byte) ( ( Math.min( lLiteralLength , 15 ) << 4 ) | Math.min( lExtraMatchLength , 15 ) );
+			
+			lInput += lMatchLength;
+			lAnchor = lInput;
+		}
+		
+		// Last sequence - only literals
+		int lTokenPosition = lOutput++;
+		int lLiteralLength = pLength - lAnchor;
+		lOutput = putLiterals( pSource , lAnchor , lLiteralLength , pDestination , lOutput );
+		pDestination[ lTokenPosition ] = (byte) ( Math.min( lLiteralLength , 15 ) << 4 );
+		return lOutput - pOffset;
+	}
+	
+	/**
+	 * Decompresses a chunk created by compress().
+	 * 
+	 * @param pSource Compressed data.
+	 * @param pLength Length of compressed data.
+	 * @param pDestination Buffer for decompressed data.
+	 * @param pDecompressedLength Length of decompressed data.
+	 */
+	static void decompress( byte[] pSource , int pLength , byte[] pDestination , int pDecompressedLength ) throws IOException
+	{
+		int lInput = 0;
+		int lOutput = 0;
+		try
+		{
+			while( true )
+			{
+				int lToken = pSource[ lInput++ ] & 0xFF;
+				int lLiteralLength = lToken >>> 4;
+				if ( lLiteralLength == 15 )
+				{
+					int lByte;
+					do
+					{
+						lByte = pSource[ lInput++ ] & 0xFF;
+						lLiteralLength += lByte;
+					}
+					while( lByte == 255 );
+				}
+				if ( ( lInput + lLiteralLength > pLength ) || ( lOutput + lLiteralLength > pDecompressedLength ) )
+				{
+					throw new IOException( "Broken LZ literals" );
+				}
+				System.arraycopy( pSource , lInput , pDestination , lOutput , lLiteralLength );
+				lInput += lLiteralLength;
+				lOutput += lLiteralLength;
+				if ( lOutput == pDecompressedLength )
+				{
+					break;
+				}
+				
+				int lOffset = ( pSource[ lInput ] & 0xFF ) | ( ( pSource[ lInput + 1 ] & 0xFF ) << 8 );
+				lInput += 2;
+				int lMatchLength = lToken & 0x0F;
+				if ( lMatchLength == 15 )
+				{
+					int lByte;
+					do
+					{
+						lByte = pSource[ lInput++ ] & 0xFF;
+						lMatchLength += lByte;
+					}
+					while( lByte == 255 );
+				}
+				lMatchLength += MIN_MATCH;
+				int lReference = lOutput - lOffset;
+				if ( ( lOffset == 0 ) || ( lReference < 0 ) || ( lOutput + lMatchLength > pDecompressedLength ) )
+				{
+					throw new IOException( "Broken LZ match" );
+				}
+				if ( lOffset >= lMatchLength )
+				{
+					System.arraycopy( pDestination , lReference , pDestination , lOutput , lMatchLength );
+					lOutput += lMatchLength;
+				}
+				else
+				{
+					// Match overlaps with itself - it repeats last lOffset bytes
+					for ( int i = 0; i < lMatchLength; i++ )
+					{
+						pDestination[ lOutput++ ] = pDestination[ lReference + i ];
+					}
+				}
+			}
+		}
+		catch( ArrayIndexOutOfBoundsException e )
+		{
+			throw new IOException( "Broken LZ chunk" );
+		}
+		if ( lInput != pLength )
+		{
+			throw new IOException( "Unexpected data after LZ chunk" );
+		}
+	}
+	
+	/**
+	 * Puts literal length (if it does not fit in the token) and literals.
+	 * 
+	 * @param pSource Source data.
+	 * @param pStart Position of literals.
+	 * @param pLength Number of literals.
+	 * @param pDestination Output buffer.
+	 * @param pPosition Position in output buffer.
+	 * @return Position after literals.
+	 */
+	private static int putLiterals( byte[] pSource , int pStart , int pLength , byte[] pDestination , int pPosition )
+	{
+		if ( pLength >= 15 )
+		{
+			pPosition = putLength( pLength - 15 , pDestination , pPosition );
+		}
+		System.arraycopy( pSource , pStart , pDestination , pPosition , pLength );
+		return pPosition + pLength;
+	}
+	
+	/**
+	 * Puts rest of length as bytes of 255 ended by a smaller byte.
+	 * 
+	 * @param pLength Length to put.
+	 * @param pDestination Output buffer.
+	 * @param pPosition Position in output buffer.
+	 * @return Position after the length.
+	 */
+	private static int putLength( int pLength , byte[] pDestination , int pPosition )
+	{
+		while( pLength >= 255 )
+		{
+			pDestination[ pPosition++ ] = (byte) 255;
+			pLength -= 255;
+		}
+		pDestination[ pPosition++ ] = (byte) pLength;
+		return pPosition;
+	}
+	
+	/**
+	 * Gets 4 bytes as int.
+	 * 
+	 * @param pBuffer Buffer.
+	 * @param pPosition Position in buffer.
+	 * @return Value.
+	 */
+	private static int getInt( byte[] pBuffer , int pPosition )
+	{
+		return ( pBuffer[ pPosition ] & 0xFF ) | ( ( pBuffer[ pPosition + 1 ] & 0xFF ) << 8 ) | ( ( pBuffer[ pPosition + 2 ] & 0xFF ) << 16 )
+				| ( pBuffer[ pPosition + 3 ] << 24 );
+	}
+}
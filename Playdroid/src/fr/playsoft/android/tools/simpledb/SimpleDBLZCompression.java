@@ -0,0 +1,252 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Fast LZ compression of table blocks implemented in pure Java. Ratio is lower than GZIP, but saving and loading is several times faster,
+ * so it is the best choice for large databases on slow devices.
+ * Data is compressed in independent chunks - each chunk starts with its compressed and decompressed length.
+ * Chunks that can not be compressed are stored as they are.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public final class SimpleDBLZCompression implements ISimpleDBCompression
+{
+	/**
+	 * Stream compressing data in chunks.
+	 */
+	private static final class LZOutputStream extends OutputStream
+	{
+		/** Wrapped stream **/
+		private final OutputStream mStream;
+		
+		/** Data of current chunk **/
+		private final byte[] mChunk = new byte[ CHUNK_SIZE ];
+		
+		/** Length of data in current chunk **/
+		private int mChunkLength;
+		
+		/** Buffer for compressed chunk with its header **/
+		private final byte[] mCompressed = new byte[ CHUNK_HEADER_SIZE + SimpleDBLZCodec.getMaxCompressedLength( CHUNK_SIZE ) ];
+		
+		/** Hash table of the compressor **/
+		private final int[] mHashTable = new int[ SimpleDBLZCodec.HASH_TABLE_SIZE ];
+		
+		LZOutputStream( OutputStream pStream )
+		{
+			mStream = pStream;
+		}
+		
+		@Override
+		public void write( int pByte ) throws IOException
+		{
+			if ( mChunkLength == CHUNK_SIZE )
+			{
+				writeChunk();
+			}
+			mChunk[ mChunkLength++ ] = (byte) pByte;
+		}
+		
+		@Override
+		public void write( byte[] pBuffer , int pOffset , int pLength ) throws IOException
+		{
+			while( pLength > 0 )
+			{
+				if ( mChunkLength == CHUNK_SIZE )
+				{
+					writeChunk();
+				}
+				int lLength = Math.min( pLength , CHUNK_SIZE - mChunkLength );
+				System.arraycopy( pBuffer , pOffset , mChunk , mChunkLength , lLength );
+				mChunkLength += lLength;
+				pOffset += lLength;
+				pLength -= lLength;
+			}
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			if ( mChunkLength > 0 )
+			{
+				writeChunk();
+			}
+			mStream.close();
+		}
+		
+		/**
+		 * Compresses current chunk and writes it.
+		 */
+		private void writeChunk() throws IOException
+		{
+			int lLength = SimpleDBLZCodec.compress( mChunk , mChunkLength , mCompressed , CHUNK_HEADER_SIZE , mHashTable );
+			if ( lLength >= mChunkLength )
+			{
+				// Incompressible data - stored as it is
+				putHeader( mCompressed , STORED_FLAG | mChunkLength , mChunkLength );
+				mStream.write( mCompressed , 0 , CHUNK_HEADER_SIZE );
+				mStream.write( mChunk , 0 , mChunkLength );
+			}
+			else
+			{
+				putHeader( mCompressed , lLength , mChunkLength );
+				mStream.write( mCompressed , 0 , CHUNK_HEADER_SIZE + lLength );
+			}
+			mChunkLength = 0;
+		}
+	}
+	
+	/**
+	 * Stream decompressing chunks written by LZOutputStream.
+	 */
+	private static final class LZInputStream extends InputStream
+	{
+		/** Wrapped stream **/
+		private final DataInputStream mStream;
+		
+		/** Decompressed data of current chunk **/
+		private final byte[] mChunk = new byte[ CHUNK_SIZE ];
+		
+		/** Length of data in current chunk **/
+		private int mChunkLength;
+		
+		/** Position of next byte in current chunk **/
+		private int mPosition;
+		
+		/** Buffer for compressed chunk **/
+		private final byte[] mCompressed = new byte[ SimpleDBLZCodec.getMaxCompressedLength( CHUNK_SIZE ) ];
+		
+		LZInputStream( InputStream pStream )
+		{
+			mStream = new DataInputStream( pStream );
+		}
+		
+		@Override
+		public int read() throws IOException
+		{
+			if ( ( mPosition == mChunkLength ) && !readChunk() )
+			{
+				return -1;
+			}
+			return mChunk[ mPosition++ ] & 0xFF;
+		}
+		
+		@Override
+		public int read( byte[] pBuffer , int pOffset , int pLength ) throws IOException
+		{
+			if ( pLength == 0 )
+			{
+				return 0;
+			}
+			if ( ( mPosition == mChunkLength ) && !readChunk() )
+			{
+				return -1;
+			}
+			int lLength = Math.min( pLength , mChunkLength - mPosition );
+			System.arraycopy( mChunk , mPosition , pBuffer , pOffset , lLength );
+			mPosition += lLength;
+			return lLength;
+		}
+		
+		@Override
+		public int available() throws IOException
+		{
+			return mChunkLength - mPosition;
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			mStream.close();
+		}
+		
+		/**
+		 * Reads and decompresses next chunk.
+		 * 
+		 * @return False if there are no more chunks.
+		 */
+		private boolean readChunk() throws IOException
+		{
+			int lCompressedLength;
+			try
+			{
+				lCompressedLength = mStream.readInt();
+			}
+			catch( EOFException e )
+			{
+				return false;
+			}
+			int lLength = mStream.readInt();
+			if ( ( lLength <= 0 ) || ( lLength > CHUNK_SIZE ) )
+			{
+				throw new IOException( "Broken LZ chunk header" );
+			}
+			if ( ( lCompressedLength & STORED_FLAG ) != 0 )
+			{
+				mStream.readFully( mChunk , 0 , lLength );
+			}
+			else
+			{
+				if ( ( lCompressedLength <= 0 ) || ( lCompressedLength > mCompressed.length ) )
+				{
+					throw new IOException( "Broken LZ chunk header" );
+				}
+				mStream.readFully( mCompressed , 0 , lCompressedLength );
+				SimpleDBLZCodec.decompress( mCompressed , lCompressedLength , mChunk , lLength );
+			}
+			mChunkLength = lLength;
+			mPosition = 0;
+			return true;
+		}
+	}
+	
+	/** Size of uncompressed chunk (bytes) - matches cannot reach further than 64KB anyway **/
+	private static final int CHUNK_SIZE = 64 * 1024;
+	
+	/** Size of chunk header - compressed length and decompressed length **/
+	private static final int CHUNK_HEADER_SIZE = 4 + 4;
+	
+	/** Flag in compressed length of chunks stored without compression **/
+	private static final int STORED_FLAG = 0x80000000;
+	
+	@Override
+	public byte getId()
+	{
+		return SimpleDBFile.COMPRESSION_LZ;
+	}
+	
+	@Override
+	public OutputStream createOutputStream( OutputStream pStream ) throws IOException
+	{
+		return new LZOutputStream( pStream );
+	}
+	
+	@Override
+	public InputStream createInputStream( InputStream pStream ) throws IOException
+	{
+		return new LZInputStream( pStream );
+	}
+	
+	/**
+	 * Puts chunk header into the buffer.
+	 * 
+	 * @param pBuffer Buffer.
+	 * @param pCompressedLength Compressed length with flags.
+	 * @param pLength Decompressed length.
+	 */
+	private static void putHeader( byte[] pBuffer , int pCompressedLength , int pLength )
+	{
+		pBuffer[ 0 ] = (byte) ( pCompressedLength >>> 24 );
+		pBuffer[ 1 ] = (byte) ( pCompressedLength >>> 16 );
+		pBuffer[ 2 ] = (byte) ( pCompressedLength >>> 8 );
+		pBuffer[ 3 ] = (byte) pCompressedLength;
+		pBuffer[ 4 ] = (byte) ( pLength >>> 24 );
+		pBuffer[ 5 ] = (byte) ( pLength >>> 16 );
+		pBuffer[ 6 ] = (byte) ( pLength >>> 8 );
+		pBuffer[ 7 ] = (byte) pLength;
+	}
+}
@@ -0,0 +1,390 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import android.os.Handler;
+
+/**
+ * Query of a SimpleDBTable that keeps its result up to date. It listens to the change feed of the table and updates the result
+ * incrementally, so the listener gets only inserted, updated and deleted rows with their positions instead of running the whole query
+ * again after every change. Result is kept and listener is called on the thread that created the query (usually UI thread).
+ * 
+ * @author Olgierd Uzieblo
+ */
+public final class SimpleDBLiveQuery implements ISimpleDBChangeListener
+{
+	/** Queried table **/
+	private final SimpleDBTable mTable;
+	
+	/** Filter of rows, null if all rows belong to the result **/
+	private final ISimpleDBRowFilter mFilter;
+	
+	/** Order of rows, null if new rows are added at the end of the result **/
+	private final Comparator< SimpleDBRow > mComparator;
+	
+	/** Listener of result changes **/
+	private final ISimpleDBLiveQueryListener mListener;
+	
+	/** Handler of the thread that created the query **/
+	private final Handler mHandler;
+	
+	/** Current result - used only on the thread of mHandler **/
+	private final List< SimpleDBRow > mRows = new ArrayList< SimpleDBRow >();
+	
+	/** Sequence number of each row of mRows - rows are ordered by the comparator and then by sequence, so they can be binary searched **/
+	private final List< Long > mSequences = new ArrayList< Long >();
+	
+	/** Sequence numbers of rows in the result by row reference - rows that are not in the result are found without searching **/
+	private final IdentityHashMap< SimpleDBRow , Long > mRowSequences = new IdentityHashMap< SimpleDBRow , Long >();
+	
+	/** Sequence number of the next row added to the result - it is larger than all others **/
+	private long mNextSequence;
+	
+	/** Flag to check if query is started **/
+	private volatile boolean mIsStarted;
+	
+	/**
+	 * Creates query. It must be created on a thread with Looper, result is read by start().
+	 * 
+	 * @param pTable Queried table.
+	 * @param pFilter Filter of rows, null to get all rows.
+	 * @param pComparator Order of rows, null to add new rows (and rows that start matching the filter) at the end of the result.
+	 * @param pListener Listener of result changes.
+	 */
+	public SimpleDBLiveQuery( SimpleDBTable pTable , ISimpleDBRowFilter pFilter , Comparator< SimpleDBRow > pComparator ,
+			ISimpleDBLiveQueryListener pListener )
+	{
+		mTable = pTable;
+		mFilter = pFilter;
+		mComparator = pComparator;
+		mListener = pListener;
+		mHandler = new Handler();
+	}
+	
+	/**
+	 * Reads the result and starts listening to changes.
+	 */
+	public void start()
+	{
+		if ( mIsStarted )
+		{
+			return;
+		}
+		mIsStarted = true;
+		setRows( mTable.addChangeListener( this ) );
+	}
+	
+	/**
+	 * Stops listening to changes. Result is not changed anymore.
+	 */
+	public void stop()
+	{
+		mIsStarted = false;
+		mTable.removeChangeListener( this );
+	}
+	
+	/**
+	 * Gets current result. Should be used on the thread that created the query.
+	 * 
+	 * @return Unmodifiable list of rows - it is changed with the result.
+	 */
+	public List< SimpleDBRow > getRows()
+	{
+		return Collections.unmodifiableList( mRows );
+	}
+	
+	@Override
+	public void onTableChanged( SimpleDBTable pTable , final List< SimpleDBRowChange > pChanges )
+	{
+		if ( !mIsStarted )
+		{
+			return;
+		}
+		mHandler.post( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if ( mIsStarted )
+				{
+					applyChanges( pChanges );
+				}
+			}
+		} );
+	}
+	
+	/**
+	 * Applies changes of the table to the result and notifies the listener.
+	 * 
+	 * @param pChanges Changes of the table.
+	 */
+	private void applyChanges( List< SimpleDBRowChange > pChanges )
+	{
+		List< SimpleDBRowChange > lDiff = new ArrayList< SimpleDBRowChange >();
+		boolean lIsResultReplaced = false;
+		for ( SimpleDBRowChange lChange : pChanges )
+		{
+			if ( lChange.getType() == SimpleDBRowChange.TYPE_UNKNOWN )
+			{
+				// Rows taken at the moment of the change - they can not be applied one by one
+				setRows( lChange.getAllRows() );
+				lIsResultReplaced = true;
+			}
+			else
+			{
+				applyChange( lChange , lDiff );
+			}
+		}
+		if ( lIsResultReplaced )
+		{
+			// Listener reads the whole result again, so changes applied to it are not reported
+			lDiff.clear();
+			lDiff.add( new SimpleDBRowChange( SimpleDBRowChange.TYPE_UNKNOWN , 0 , null , null , -1 ) );
+		}
+		if ( !lDiff.isEmpty() )
+		{
+			mListener.onQueryChanged( this , Collections.unmodifiableList( lDiff ) );
+		}
+	}
+	
+	/**
+	 * Applies single change of the table to the result.
+	 * 
+	 * @param pChange Change of the table.
+	 * @param pDiff List to which changes of the result are added.
+	 */
+	private void applyChange( SimpleDBRowChange pChange , List< SimpleDBRowChange > pDiff )
+	{
+		int lKey = pChange.getMainKey();
+		switch ( pChange.getType() )
+		{
+			case SimpleDBRowChange.TYPE_ALL_ROWS_DELETED:
+				if ( !mRows.isEmpty() )
+				{
+					clearRows();
+					pDiff.add( new SimpleDBRowChange( SimpleDBRowChange.TYPE_ALL_ROWS_DELETED , 0 , null , null , -1 ) );
+				}
+				break;
+			
+			default:
+				SimpleDBRow lOldRow = pChange.getOldRow();
+				SimpleDBRow lNewRow = pChange.getNewRow();
+				int lOldPosition = ( lOldRow != null ) ? indexOf( lOldRow ) : -1;
+				boolean lIsNewRowMatching = ( lNewRow != null ) && matches( lNewRow );
+				if ( ( lOldPosition >= 0 ) && lIsNewRowMatching && isInOrder( lNewRow , lOldPosition ) )
+				{
+					setRow( lOldPosition , lNewRow );
+					pDiff.add( new SimpleDBRowChange( SimpleDBRowChange.TYPE_UPDATED , lKey , lOldRow , lNewRow , lOldPosition ) );
+					break;
+				}
+				if ( lOldPosition >= 0 )
+				{
+					removeRow( lOldPosition );
+					pDiff.add( new SimpleDBRowChange( SimpleDBRowChange.TYPE_DELETED , lKey , lOldRow , null , lOldPosition ) );
+				}
+				if ( lIsNewRowMatching )
+				{
+					int lNewPosition = getInsertPosition( lNewRow );
+					addRow( lNewPosition , lNewRow );
+					pDiff.add( new SimpleDBRowChange( SimpleDBRowChange.TYPE_INSERTED , lKey , null , lNewRow , lNewPosition ) );
+				}
+				break;
+		}
+	}
+	
+	/**
+	 * Replaces whole result.
+	 * 
+	 * @param pAllRows All rows of the table, null if there are none.
+	 */
+	private void setRows( List< SimpleDBRow > pAllRows )
+	{
+		clearRows();
+		if ( pAllRows != null )
+		{
+			for ( SimpleDBRow lRow : pAllRows )
+			{
+				if ( matches( lRow ) )
+				{
+					mRows.add( lRow );
+				}
+			}
+		}
+		if ( mComparator != null )
+		{
+			// Stable sort - rows with equal order keep order of the table
+			Collections.sort( mRows , mComparator );
+		}
+		for ( SimpleDBRow lRow : mRows )
+		{
+			Long lSequence = Long.valueOf( mNextSequence++ );
+			mSequences.add( lSequence );
+			mRowSequences.put( lRow , lSequence );
+		}
+	}
+	
+	/**
+	 * Removes all rows from the result.
+	 */
+	private void clearRows()
+	{
+		mRows.clear();
+		mSequences.clear();
+		mRowSequences.clear();
+	}
+	
+	/**
+	 * Adds new row to the result.
+	 * 
+	 * @param pPosition Position from getInsertPosition().
+	 * @param pRow New row.
+	 */
+	private void addRow( int pPosition , SimpleDBRow pRow )
+	{
+		Long lSequence = Long.valueOf( mNextSequence++ );
+		mRows.add( pPosition , pRow );
+		mSequences.add( pPosition , lSequence );
+		mRowSequences.put( pRow , lSequence );
+	}
+	
+	/**
+	 * Replaces row of the result with its new version, which keeps the position and sequence number.
+	 * 
+	 * @param pPosition Position of the old row.
+	 * @param pRow New row.
+	 */
+	private void setRow( int pPosition , SimpleDBRow pRow )
+	{
+		SimpleDBRow lOldRow = mRows.set( pPosition , pRow );
+		mRowSequences.remove( lOldRow );
+		mRowSequences.put( pRow , mSequences.get( pPosition ) );
+	}
+	
+	/**
+	 * Removes row from the result.
+	 * 
+	 * @param pPosition Position of the row.
+	 */
+	private void removeRow( int pPosition )
+	{
+		SimpleDBRow lRow = mRows.remove( pPosition );
+		mSequences.remove( pPosition );
+		mRowSequences.remove( lRow );
+	}
+	
+	/**
+	 * Checks if row belongs to the result.
+	 * 
+	 * @param pRow Row.
+	 * @return True if it matches the filter.
+	 */
+	private boolean matches( SimpleDBRow pRow )
+	{
+		return ( mFilter == null ) || mFilter.matches( pRow );
+	}
+	
+	/**
+	 * Finds position of a row. Rows are compared by reference - table keeps the same row objects.
+	 * Position is binary searched by the comparator and sequence number of the row.
+	 * 
+	 * @param pRow Row.
+	 * @return Position or -1 if row is not in the result.
+	 */
+	private int indexOf( SimpleDBRow pRow )
+	{
+		Long lSequence = mRowSequences.get( pRow );
+		if ( lSequence == null )
+		{
+			return -1;
+		}
+		long lRowSequence = lSequence.longValue();
+		int lLow = 0;
+		int lHigh = mRows.size() - 1;
+		while( lLow <= lHigh )
+		{
+			int lMiddle = ( lLow + lHigh ) >>> 1;
+			int lOrder = ( mComparator != null ) ? mComparator.compare( mRows.get( lMiddle ) , pRow ) : 0;
+			if ( lOrder == 0 )
+			{
+				long lMiddleSequence = mSequences.get( lMiddle ).longValue();
+				lOrder = ( lMiddleSequence < lRowSequence ) ? -1 : ( ( lMiddleSequence == lRowSequence ) ? 0 : 1 );
+			}
+			if ( lOrder < 0 )
+			{
+				lLow = lMiddle + 1;
+			}
+			else if ( lOrder > 0 )
+			{
+				lHigh = lMiddle - 1;
+			}
+			else if ( mRows.get( lMiddle ) == pRow )
+			{
+				return lMiddle;
+			}
+			else
+			{
+				break;
+			}
+		}
+		
+		// Row was changed in place after it was added, so its order is not known anymore
+		for ( int i = 0; i < mRows.size(); i++ )
+		{
+			if ( mRows.get( i ) == pRow )
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Checks if row can be placed at chosen position without breaking the order.
+	 * 
+	 * @param pRow Row.
+	 * @param pPosition Position.
+	 * @return True if order is kept.
+	 */
+	private boolean isInOrder( SimpleDBRow pRow , int pPosition )
+	{
+		if ( mComparator == null )
+		{
+			return true;
+		}
+		return ( ( pPosition == 0 ) || ( mComparator.compare( mRows.get( pPosition - 1 ) , pRow ) <= 0 ) )
+				&& ( ( pPosition == mRows.size() - 1 ) || ( mComparator.compare( pRow , mRows.get( pPosition + 1 ) ) <= 0 ) );
+	}
+	
+	/**
+	 * Finds position for a new row - after all rows that are not ordered after it, because its sequence number is the largest.
+	 * 
+	 * @param pRow New row.
+	 * @return Position.
+	 */
+	private int getInsertPosition( SimpleDBRow pRow )
+	{
+		if ( mComparator == null )
+		{
+			return mRows.size();
+		}
+		int lLow = 0;
+		int lHigh = mRows.size();
+		while( lLow < lHigh )
+		{
+			int lMiddle = ( lLow + lHigh ) >>> 1;
+			if ( mComparator.compare( mRows.get( lMiddle ) , pRow ) <= 0 )
+			{
+				lLow = lMiddle + 1;
+			}
+			else
+			{
+				lHigh = lMiddle;
+			}
+		}
+		return lLow;
+	}
+}
@@ -0,0 +1,291 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import fr.playsoft.android.tools.debug.Log;
+
+/**
+ * Write-ahead log used by SimpleDB when log mode is enabled.
+ * Every change of a table is kept as a small record, so saving has to write only the changes instead of the whole database.
+ * Records are buffered in memory and appended to the log file by SimpleDB.save().
+ * Each record is prefixed with its length, so record that was not fully written (crash during saving) is skipped on loading.
+ * Length that does not fit in the rest of the file is treated the same way, so a damaged length never allocates a huge buffer.
+ * 
+ * @author Olgierd Uzieblo
+ */
+final class SimpleDBLog
+{
+	/** Tag for LogCat **/
+	private static final String TAG = "SimpleDBLog";
+	
+	/** Record with inserted or updated row **/
+	static final byte RECORD_INSERT_OR_UPDATE = 0;
+	
+	/** Record with unique key of deleted row **/
+	static final byte RECORD_DELETE = 1;
+	
+	/** Record with main key of deleted rows **/
+	static final byte RECORD_DELETE_ALL_ROWS_FOR_MAIN_KEY = 2;
+	
+	/** Record without data - all rows of the table were deleted **/
+	static final byte RECORD_DELETE_ALL_ROWS = 3;
+	
+	/** Record containing all records of a SimpleDBBatch - it is applied whole or not at all **/
+	static final byte RECORD_BATCH = 4;
+	
+	/** Size of record type and table id at the start of each record **/
+	private static final int RECORD_HEADER_SIZE = 1 + 2;
+	
+	/** Records waiting for saving **/
+	private ByteArrayOutputStream mPendingRecords;
+	
+	/** Stream writing to mPendingRecords **/
+	private DataOutputStream mPendingStream;
+	
+	/** Buffer for a single record - needed to know record length before it is added **/
+	private ByteArrayOutputStream mRecordBuffer;
+	
+	/** Stream writing to mRecordBuffer **/
+	private DataOutputStream mRecordStream;
+	
+	/** Buffer for records of a batch **/
+	private ByteArrayOutputStream mBatchBuffer;
+	
+	/** Stream writing to mBatchBuffer **/
+	private DataOutputStream mBatchStream;
+	
+	/**
+	 * Creates empty log.
+	 */
+	SimpleDBLog()
+	{
+		mPendingRecords = new ByteArrayOutputStream();
+		mPendingStream = new DataOutputStream( mPendingRecords );
+		mRecordBuffer = new ByteArrayOutputStream();
+		mRecordStream = new DataOutputStream( mRecordBuffer );
+		mBatchBuffer = new ByteArrayOutputStream();
+		mBatchStream = new DataOutputStream( mBatchBuffer );
+	}
+	
+	/**
+	 * Adds record with inserted or updated row.
+	 * 
+	 * @param pTableId Id of changed table.
+	 * @param pRow New row.
+	 * @return False if row could not be saved.
+	 */
+	synchronized boolean logInsertOrUpdate( int pTableId , SimpleDBRow pRow )
+	{
+		try
+		{
+			startRecord( RECORD_INSERT_OR_UPDATE , pTableId );
+			pRow.saveRow( mRecordStream );
+			finishRecord( mPendingStream );
+			return true;
+		}
+		catch( IOException e )
+		{
+			Log.e( TAG , "Failed to log row of table " + pTableId , e );
+			return false;
+		}
+	}
+	
+	/**
+	 * Adds record with a key of deleted rows.
+	 * 
+	 * @param pType RECORD_DELETE or RECORD_DELETE_ALL_ROWS_FOR_MAIN_KEY.
+	 * @param pTableId Id of changed table.
+	 * @param pKeyValue Key of deleted rows.
+	 */
+	synchronized void logDelete( byte pType , int pTableId , int pKeyValue )
+	{
+		try
+		{
+			startRecord( pType , pTableId );
+			mRecordStream.writeInt( pKeyValue );
+			finishRecord( mPendingStream );
+		}
+		catch( IOException e )
+		{
+			// Impossible - we write to memory
+		}
+	}
+	
+	/**
+	 * Adds record about deleting all rows of the table.
+	 * 
+	 * @param pTableId Id of changed table.
+	 */
+	synchronized void logDeleteAllRows( int pTableId )
+	{
+		try
+		{
+			startRecord( RECORD_DELETE_ALL_ROWS , pTableId );
+			finishRecord( mPendingStream );
+		}
+		catch( IOException e )
+		{
+			// Impossible - we write to memory
+		}
+	}
+	
+	/**
+	 * Adds single record with all changes of a batch.
+	 * 
+	 * @param pBatch Applied batch.
+	 * @return False if batch could not be saved.
+	 */
+	synchronized boolean logBatch( SimpleDBBatch pBatch )
+	{
+		try
+		{
+			mBatchBuffer.reset();
+			mBatchStream.writeByte( RECORD_BATCH );
+			mBatchStream.writeShort( 0 );
+			for ( SimpleDBBatch.Operation lOperation : pBatch.getOperations() )
+			{
+				startRecord( lOperation.mType , lOperation.mTableId );
+				if ( lOperation.mType == RECORD_INSERT_OR_UPDATE )
+				{
+					lOperation.mRow.saveRow( mRecordStream );
+				}
+				else if ( lOperation.mType != RECORD_DELETE_ALL_ROWS )
+				{
+					mRecordStream.writeInt( lOperation.mKeyValue );
+				}
+				finishRecord( mBatchStream );
+			}
+			mPendingStream.writeInt( mBatchBuffer.size() );
+			mBatchBuffer.writeTo( mPendingStream );
+			return true;
+		}
+		catch( IOException e )
+		{
+			Log.e( TAG , "Failed to log batch" , e );
+			return false;
+		}
+	}
+	
+	/**
+	 * Starts a new record.
+	 * 
+	 * @param pType Record type.
+	 * @param pTableId Id of changed table.
+	 */
+	private void startRecord( byte pType , int pTableId ) throws IOException
+	{
+		mRecordBuffer.reset();
+		mRecordStream.writeByte( pType );
+		mRecordStream.writeShort( pTableId );
+	}
+	
+	/**
+	 * Moves current record to pending records or to a batch.
+	 * 
+	 * @param pStream Stream to write the record to.
+	 */
+	private void finishRecord( DataOutputStream pStream ) throws IOException
+	{
+		pStream.writeInt( mRecordBuffer.size() );
+		mRecordBuffer.writeTo( pStream );
+	}
+	
+	/**
+	 * Checks if there are records waiting for saving.
+	 * 
+	 * @return True if there is something to save.
+	 */
+	synchronized boolean hasPendingRecords()
+	{
+		return mPendingRecords.size() > 0;
+	}
+	
+	/**
+	 * Gets all records waiting for saving and removes them from the log.
+	 * 
+	 * @return Records to append to the log file.
+	 */
+	synchronized byte[] takePendingRecords()
+	{
+		byte[] lRecords = mPendingRecords.toByteArray();
+		mPendingRecords.reset();
+		return lRecords;
+	}
+	
+	/**
+	 * Removes all records waiting for saving - should be called when they are already included in a snapshot.
+	 */
+	synchronized void clearPendingRecords()
+	{
+		mPendingRecords.reset();
+	}
+	
+	/**
+	 * Applies all records from the stream to the tables.
+	 * 
+	 * @param pStream Stream with records, placed after log header.
+	 * @param pLength Number of bytes left in the stream.
+	 * @param pDB Database to change - tables are loaded from snapshot before their first record is applied.
+	 * @param pFormatVersion Format version of rows in the log - it is the same as format of its snapshot.
+	 * @return True if log ended correctly, false if its last record was not fully saved.
+	 */
+	static boolean replay( DataInputStream pStream , long pLength , SimpleDB pDB , int pFormatVersion ) throws IOException
+	{
+		int lNumRecords = 0;
+		long lRemainingLength = pLength;
+		while( true )
+		{
+			int lFirstByte = pStream.read();
+			if ( lFirstByte < 0 )
+			{
+				Log.v( TAG , "Applied " + lNumRecords + " log records." );
+				return true;
+			}
+			
+			byte[] lRecord;
+			try
+			{
+				int lLength = ( lFirstByte << 24 ) | ( pStream.readUnsignedByte() << 16 ) | ( pStream.readUnsignedByte() << 8 )
+						| pStream.readUnsignedByte();
+				lRemainingLength -= 4;
+				if ( ( lLength < RECORD_HEADER_SIZE ) || ( lLength > lRemainingLength ) )
+				{
+					// Length was not fully saved or it is damaged - nothing after it can be trusted
+					Log.w( TAG , "Applied " + lNumRecords + " log records, last record has invalid length " + lLength + "." );
+					return false;
+				}
+				lRemainingLength -= lLength;
+				lRecord = new byte[ lLength ];
+				pStream.readFully( lRecord );
+			}
+			catch( EOFException e )
+			{
+				// Crash during saving - this record was not fully saved
+				Log.w( TAG , "Applied " + lNumRecords + " log records, last record is broken." );
+				return false;
+			}
+			
+			DataInputStream lRecordStream = new DataInputStream( new ByteArrayInputStream( lRecord ) );
+			byte lType = lRecordStream.readByte();
+			int lTableId = lRecordStream.readShort();
+			if ( lType == RECORD_BATCH )
+			{
+				// Batch record was fully saved, so records inside it are complete
+				if ( !replay( lRecordStream , lRecord.length - RECORD_HEADER_SIZE , pDB , pFormatVersion ) )
+				{
+					throw new IOException( "Broken batch record" );
+				}
+			}
+			else
+			{
+				pDB.ensureTableLoaded( lTableId ).applyLogRecord( lType , lRecordStream , pFormatVersion );
+			}
+			lNumRecords++;
+		}
+	}
+}
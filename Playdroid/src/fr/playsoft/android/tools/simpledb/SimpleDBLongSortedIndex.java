@@ -0,0 +1,94 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.util.Arrays;
+
+/**
+ * Sorted secondary index for finding rows with long keys in a range (for example dates).
+ * 
+ * @author Olgierd Uzieblo
+ */
+final class SimpleDBLongSortedIndex extends SimpleDBSortedIndex
+{
+	/** Extractor of keys **/
+	private ISimpleDBLongKeyExtractor mExtractor;
+	
+	/** Keys of indexed rows by their positions **/
+	private long[] mKeys;
+	
+	/**
+	 * Creates empty index.
+	 * 
+	 * @param pExtractor Extractor of keys.
+	 */
+	SimpleDBLongSortedIndex( ISimpleDBLongKeyExtractor pExtractor )
+	{
+		mExtractor = pExtractor;
+		mKeys = new long[ 16 ];
+	}
+	
+	@Override
+	void setKey( SimpleDBRow pRow , int pPosition )
+	{
+		if ( pPosition >= mKeys.length )
+		{
+			mKeys = Arrays.copyOf( mKeys , Math.max( pPosition + 1 , mKeys.length * 2 ) );
+		}
+		mKeys[ pPosition ] = mExtractor.getKey( pRow );
+	}
+	
+	@Override
+	void releaseKey( int pPosition )
+	{
+	}
+	
+	@Override
+	void clearKeys()
+	{
+		mKeys = new long[ 16 ];
+	}
+	
+	@Override
+	int compareKeys( int pPosition1 , int pPosition2 )
+	{
+		long lKey1 = mKeys[ pPosition1 ];
+		long lKey2 = mKeys[ pPosition2 ];
+		return ( lKey1 < lKey2 ) ? -1 : ( ( lKey1 == lKey2 ) ? 0 : 1 );
+	}
+	
+	/**
+	 * Gets positions of rows with keys in chosen range.
+	 * 
+	 * @param pFrom Smallest key (inclusive).
+	 * @param pTo Largest key (exclusive).
+	 * @return Positions of rows sorted by keys.
+	 */
+	int[] getRange( long pFrom , long pTo )
+	{
+		return getPositions( findFirst( pFrom ) , findFirst( pTo ) );
+	}
+	
+	/**
+	 * Finds first row with key not smaller than chosen value.
+	 * 
+	 * @param pKey Key value.
+	 * @return Place of the row in key order.
+	 */
+	private int findFirst( long pKey )
+	{
+		int lLow = 0;
+		int lHigh = size();
+		while( lLow < lHigh )
+		{
+			int lMiddle = ( lLow + lHigh ) >>> 1;
+			if ( mKeys[ getPosition( lMiddle ) ] < pKey )
+			{
+				lLow = lMiddle + 1;
+			}
+			else
+			{
+				lHigh = lMiddle;
+			}
+		}
+		return lLow;
+	}
+}
@@ -8,11 +8,17 @@ import java.util.List;
 
 /**
  * A single row used inside each simple db table.
+ * Array helpers write their lengths as varints, so arrays are not limited to 32767 elements.
+ * Helpers for primitive arrays and saveString() encode values into a reusable buffer and write them in large chunks,
+ * so they are much faster than writing values one by one and they do not box anything.
  * 
  * @author Olgierd Uzieblo
  */
 public abstract class SimpleDBRow
 {
+	/** Format version of data read by loadRow() - array helpers read old files with short lengths **/
+	int mFormatVersion = SimpleDBFile.FORMAT_VERSION_CURRENT;
+	
 	/**
 	 * Loads this row from a stream.
 	 * 
@@ -46,8 +52,8 @@ public abstract class SimpleDBRow
 	 */
 	protected final void saveStringArray( List< String > pStringArray , DataOutputStream pStream ) throws IOException
 	{
-		short lArraySize = (short) pStringArray.size();
-		pStream.writeShort( lArraySize );
+		int lArraySize = pStringArray.size();
+		saveVarInt( lArraySize , pStream );
 		for ( int i = 0; i < lArraySize; i++ )
 		{
 			pStream.writeUTF( pStringArray.get( i ) );
@@ -62,7 +68,7 @@ public abstract class SimpleDBRow
 	 */
 	protected final List< String > loadStringArray( DataInputStream pStream ) throws IOException
 	{
-		short lSize = pStream.readShort();
+		int lSize = loadLength( pStream );
 		List< String > lResult = new ArrayList< String >( lSize );
 		for ( int i = 0; i < lSize; i++ )
 		{
@@ -79,12 +85,8 @@ public abstract class SimpleDBRow
 	 */
 	protected final void saveIntArray( List< Integer > pIntArray , DataOutputStream pStream ) throws IOException
 	{
-		short lArraySize = (short) pIntArray.size();
-		pStream.writeShort( lArraySize );
-		for ( int i = 0; i < lArraySize; i++ )
-		{
-			pStream.writeInt( pIntArray.get( i ) );
-		}
+		saveVarInt( pIntArray.size() , pStream );
+		SimpleDBRowCodec.writeInts( pIntArray , pStream );
 	}
 	
 	/**
@@ -95,12 +97,202 @@ public abstract class SimpleDBRow
 	 */
 	protected final List< Integer > loadIntArray( DataInputStream pStream ) throws IOException
 	{
-		short lSize = pStream.readShort();
-		List< Integer > lResult = new ArrayList< Integer >( lSize );
-		for ( int i = 0; i < lSize; i++ )
+		int[] lValues = SimpleDBRowCodec.readInts( pStream , loadLength( pStream ) );
+		List< Integer > lResult = new ArrayList< Integer >( lValues.length );
+		for ( int lValue : lValues )
 		{
-			lResult.add( pStream.readInt() );
+			lResult.add( lValue );
 		}
 		return lResult;
 	}
+	
+	/**
+	 * Saves String as length-prefixed UTF-8. Unlike DataOutputStream.writeUTF() it has no 64KB limit and it accepts null.
+	 * 
+	 * @param pString String to be saved, can be null.
+	 * @param pStream Stream to save it to.
+	 */
+	protected final void saveString( String pString , DataOutputStream pStream ) throws IOException
+	{
+		SimpleDBRowCodec.writeString( pString , pStream );
+	}
+	
+	/**
+	 * Reads String saved by saveString().
+	 * 
+	 * @param pStream Stream to load from.
+	 * @return Loaded String, can be null.
+	 */
+	protected final String loadString( DataInputStream pStream ) throws IOException
+	{
+		return SimpleDBRowCodec.readString( pStream );
+	}
+	
+	/**
+	 * Saves array of ints to the stream.
+	 * 
+	 * @param pValues Array to be saved.
+	 * @param pStream Stream to save it to.
+	 */
+	protected final void saveInts( int[] pValues , DataOutputStream pStream ) throws IOException
+	{
+		saveVarInt( pValues.length , pStream );
+		SimpleDBRowCodec.writeInts( pValues , pStream );
+	}
+	
+	/**
+	 * Reads array of ints saved by saveInts().
+	 * 
+	 * @param pStream Stream to load from.
+	 * @return Loaded array.
+	 */
+	protected final int[] loadInts( DataInputStream pStream ) throws IOException
+	{
+		return SimpleDBRowCodec.readInts( pStream , loadVarInt( pStream ) );
+	}
+	
+	/**
+	 * Saves array of longs to the stream.
+	 * 
+	 * @param pValues Array to be saved.
+	 * @param pStream Stream to save it to.
+	 */
+	protected final void saveLongs( long[] pValues , DataOutputStream pStream ) throws IOException
+	{
+		saveVarInt( pValues.length , pStream );
+		SimpleDBRowCodec.writeLongs( pValues , pStream );
+	}
+	
+	/**
+	 * Reads array of longs saved by saveLongs().
+	 * 
+	 * @param pStream Stream to load from.
+	 * @return Loaded array.
+	 */
+	protected final long[] loadLongs( DataInputStream pStream ) throws IOException
+	{
+		return SimpleDBRowCodec.readLongs( pStream , loadVarInt( pStream ) );
+	}
+	
+	/**
+	 * Saves array of floats to the stream.
+	 * 
+	 * @param pValues Array to be saved.
+	 * @param pStream Stream to save it to.
+	 */
+	protected final void saveFloats( float[] pValues , DataOutputStream pStream ) throws IOException
+	{
+		saveVarInt( pValues.length , pStream );
+		SimpleDBRowCodec.writeFloats( pValues , pStream );
+	}
+	
+	/**
+	 * Reads array of floats saved by saveFloats().
+	 * 
+	 * @param pStream Stream to load from.
+	 * @return Loaded array.
+	 */
+	protected final float[] loadFloats( DataInputStream pStream ) throws IOException
+	{
+		return SimpleDBRowCodec.readFloats( pStream , loadVarInt( pStream ) );
+	}
+	
+	/**
+	 * Saves array of ints as differences between following values. Best for sorted or slowly changing values (ids, counters) -
+	 * small differences take 1 or 2 bytes instead of 4.
+	 * 
+	 * @param pValues Array to be saved.
+	 * @param pStream Stream to save it to.
+	 */
+	protected final void saveIntsDelta( int[] pValues , DataOutputStream pStream ) throws IOException
+	{
+		saveVarInt( pValues.length , pStream );
+		SimpleDBRowCodec.writeIntDeltas( pValues , pStream );
+	}
+	
+	/**
+	 * Reads array of ints saved by saveIntsDelta().
+	 * 
+	 * @param pStream Stream to load from.
+	 * @return Loaded array.
+	 */
+	protected final int[] loadIntsDelta( DataInputStream pStream ) throws IOException
+	{
+		return SimpleDBRowCodec.readIntDeltas( pStream , loadVarInt( pStream ) );
+	}
+	
+	/**
+	 * Saves array of longs as differences between following values. Best for sorted values like timestamps.
+	 * 
+	 * @param pValues Array to be saved.
+	 * @param pStream Stream to save it to.
+	 */
+	protected final void saveLongsDelta( long[] pValues , DataOutputStream pStream ) throws IOException
+	{
+		saveVarInt( pValues.length , pStream );
+		SimpleDBRowCodec.writeLongDeltas( pValues , pStream );
+	}
+	
+	/**
+	 * Reads array of longs saved by saveLongsDelta().
+	 * 
+	 * @param pStream Stream to load from.
+	 * @return Loaded array.
+	 */
+	protected final long[] loadLongsDelta( DataInputStream pStream ) throws IOException
+	{
+		return SimpleDBRowCodec.readLongDeltas( pStream , loadVarInt( pStream ) );
+	}
+	
+	/**
+	 * Reads array length saved by one of array helpers.
+	 * 
+	 * @param pStream Stream to load from.
+	 * @return Array length.
+	 */
+	private int loadLength( DataInputStream pStream ) throws IOException
+	{
+		if ( mFormatVersion < SimpleDBFile.FORMAT_VERSION_VARINT_COUNTS )
+		{
+			return pStream.readUnsignedShort();
+		}
+		return loadVarInt( pStream );
+	}
+	
+	/**
+	 * Saves non negative integer using 1 byte for values below 128 and at most 5 bytes for larger ones.
+	 * 
+	 * @param pValue Value to save.
+	 * @param pStream Stream to save it to.
+	 */
+	protected static final void saveVarInt( int pValue , DataOutputStream pStream ) throws IOException
+	{
+		while( ( pValue & ~0x7F ) != 0 )
+		{
+			pStream.writeByte( ( pValue & 0x7F ) | 0x80 );
+			pValue >>>= 7;
+		}
+		pStream.writeByte( pValue );
+	}
+	
+	/**
+	 * Reads integer saved by saveVarInt().
+	 * 
+	 * @param pStream Stream to load from.
+	 * @return Loaded value.
+	 */
+	protected static final int loadVarInt( DataInputStream pStream ) throws IOException
+	{
+		int lResult = 0;
+		for ( int lShift = 0; lShift < 35; lShift += 7 )
+		{
+			int lByte = pStream.readUnsignedByte();
+			lResult |= ( lByte & 0x7F ) << lShift;
+			if ( ( lByte & 0x80 ) == 0 )
+			{
+				return lResult;
+			}
+		}
+		throw new IOException( "Malformed varint" );
+	}
 }
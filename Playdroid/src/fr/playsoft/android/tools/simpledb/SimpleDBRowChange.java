@@ -0,0 +1,146 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.util.List;
+
+/**
+ * Single change of a table delivered by the change feed (ISimpleDBChangeListener) or of a live query result (ISimpleDBLiveQueryListener).
+ * 
+ * @author Olgierd Uzieblo
+ */
+public final class SimpleDBRowChange
+{
+	/** Row was inserted **/
+	public static final int TYPE_INSERTED = 0;
+	
+	/** Row was replaced by a row with the same main key (or changed its position in live query) **/
+	public static final int TYPE_UPDATED = 1;
+	
+	/** Row was deleted **/
+	public static final int TYPE_DELETED = 2;
+	
+	/** All rows were deleted **/
+	public static final int TYPE_ALL_ROWS_DELETED = 3;
+	
+	/** Table was changed in unknown way (setSaveNeeded()) - everything should be read again **/
+	public static final int TYPE_UNKNOWN = 4;
+	
+	/** Type of change - one of TYPE_ constants **/
+	private final int mType;
+	
+	/** Main key of changed row **/
+	private final int mMainKey;
+	
+	/** Row before the change **/
+	private final SimpleDBRow mOldRow;
+	
+	/** Row after the change **/
+	private final SimpleDBRow mNewRow;
+	
+	/** Position in live query result **/
+	private final int mPosition;
+	
+	/** All rows of the table after change of unknown type, null for other changes **/
+	private final List< SimpleDBRow > mAllRows;
+	
+	/**
+	 * Creates change.
+	 * 
+	 * @param pType Type of change.
+	 * @param pMainKey Main key of changed row.
+	 * @param pOldRow Row before the change, null if it was inserted.
+	 * @param pNewRow Row after the change, null if it was deleted.
+	 * @param pPosition Position in live query result, -1 for table changes.
+	 */
+	SimpleDBRowChange( int pType , int pMainKey , SimpleDBRow pOldRow , SimpleDBRow pNewRow , int pPosition )
+	{
+		mType = pType;
+		mMainKey = pMainKey;
+		mOldRow = pOldRow;
+		mNewRow = pNewRow;
+		mPosition = pPosition;
+		mAllRows = null;
+	}
+	
+	/**
+	 * Creates change of unknown type.
+	 * 
+	 * @param pAllRows All rows of the table after the change, null if there are none.
+	 */
+	SimpleDBRowChange( List< SimpleDBRow > pAllRows )
+	{
+		mType = TYPE_UNKNOWN;
+		mMainKey = 0;
+		mOldRow = null;
+		mNewRow = null;
+		mPosition = -1;
+		mAllRows = pAllRows;
+	}
+	
+	/**
+	 * Gets type of change.
+	 * 
+	 * @return One of TYPE_ constants.
+	 */
+	public int getType()
+	{
+		return mType;
+	}
+	
+	/**
+	 * Gets main key of changed row.
+	 * 
+	 * @return Main key, 0 for TYPE_ALL_ROWS_DELETED and TYPE_UNKNOWN.
+	 */
+	public int getMainKey()
+	{
+		return mMainKey;
+	}
+	
+	/**
+	 * Gets row before the change.
+	 * 
+	 * @return Replaced or deleted row, null for inserted rows.
+	 */
+	public SimpleDBRow getOldRow()
+	{
+		return mOldRow;
+	}
+	
+	/**
+	 * Gets row after the change.
+	 * 
+	 * @return Inserted or new version of updated row, null for deleted rows.
+	 */
+	public SimpleDBRow getNewRow()
+	{
+		return mNewRow;
+	}
+	
+	/**
+	 * Gets position of the row in live query result. Changes of a live query are applied in order - position of each change
+	 * is valid after all previous changes from the same list were applied (deleted row position is its position before deleting).
+	 * 
+	 * @return Position in live query result, -1 for table changes.
+	 */
+	public int getPosition()
+	{
+		return mPosition;
+	}
+	
+	/**
+	 * Gets all rows of the table after change of unknown type. Listeners are called after the table is unlocked,
+	 * so rows read from the table then could already contain later changes.
+	 * 
+	 * @return Immutable list of rows taken at the moment of the change, null if the table was empty or for other types of change.
+	 */
+	public List< SimpleDBRow > getAllRows()
+	{
+		return mAllRows;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "SimpleDBRowChange type=" + mType + " key=" + mMainKey + " position=" + mPosition;
+	}
+}
@@ -0,0 +1,612 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Encoding of row values used by SimpleDBRow helpers.
+ * Values are encoded into a reusable buffer of the current thread and written in large chunks, so arrays do not go through
+ * DataOutputStream value by value and nothing is boxed. Numbers are big endian, so int and long arrays can also be read by DataInputStream.
+ * 
+ * @author Olgierd Uzieblo
+ */
+final class SimpleDBRowCodec
+{
+	/**
+	 * Reader of varints from a stream. Bytes are read in chunks into the thread buffer.
+	 */
+	private static final class VarIntReader
+	{
+		/** Stream to read from **/
+		private final DataInputStream mStream;
+		
+		/** Buffer with read bytes **/
+		private final byte[] mBuffer;
+		
+		/** Position of next byte in mBuffer **/
+		private int mPosition;
+		
+		/** Number of valid bytes in mBuffer **/
+		private int mEnd;
+		
+		/** Number of bytes that are not read from the stream yet **/
+		private int mRemaining;
+		
+		VarIntReader( DataInputStream pStream , int pByteLength )
+		{
+			mStream = pStream;
+			mBuffer = sBuffers.get();
+			mRemaining = pByteLength;
+		}
+		
+		/**
+		 * Reads next unsigned varint.
+		 * 
+		 * @return Read value.
+		 */
+		long next() throws IOException
+		{
+			if ( ( mEnd - mPosition < MAX_VARLONG_SIZE ) && ( mRemaining > 0 ) )
+			{
+				// Varint can be split between chunks - move the rest to the beginning and read more
+				System.arraycopy( mBuffer , mPosition , mBuffer , 0 , mEnd - mPosition );
+				mEnd -= mPosition;
+				mPosition = 0;
+				int lLength = Math.min( mRemaining , BUFFER_SIZE - mEnd );
+				mStream.readFully( mBuffer , mEnd , lLength );
+				mEnd += lLength;
+				mRemaining -= lLength;
+			}
+			long lResult = 0;
+			for ( int lShift = 0; lShift < 70; lShift += 7 )
+			{
+				if ( mPosition == mEnd )
+				{
+					break;
+				}
+				int lByte = mBuffer[ mPosition++ ];
+				lResult |= (long) ( lByte & 0x7F ) << lShift;
+				if ( ( lByte & 0x80 ) == 0 )
+				{
+					return lResult;
+				}
+			}
+			throw new IOException( "Malformed varint" );
+		}
+		
+		/**
+		 * Checks that all bytes were used.
+		 */
+		void finish() throws IOException
+		{
+			if ( ( mPosition != mEnd ) || ( mRemaining != 0 ) )
+			{
+				throw new IOException( "Unexpected data after varints" );
+			}
+		}
+	}
+	
+	/** Size of thread buffers - larger values are encoded in chunks of this size (bytes), must be a multiple of 8 **/
+	private static final int BUFFER_SIZE = 8 * 1024;
+	
+	/** Maximum size of a varint (bytes) **/
+	private static final int MAX_VARLONG_SIZE = 10;
+	
+	/** Buffers of each thread - rows can be saved and loaded by many threads at once **/
+	private static final ThreadLocal< byte[] > sBuffers = new ThreadLocal< byte[] >()
+	{
+		@Override
+		protected byte[] initialValue()
+		{
+			return new byte[ BUFFER_SIZE ];
+		}
+	};
+	
+	/** Buffers for decoded characters of each thread **/
+	private static final ThreadLocal< char[] > sCharBuffers = new ThreadLocal< char[] >()
+	{
+		@Override
+		protected char[] initialValue()
+		{
+			return new char[ BUFFER_SIZE ];
+		}
+	};
+	
+	private SimpleDBRowCodec()
+	{
+	}
+	
+	/**
+	 * Writes ints without length.
+	 * 
+	 * @param pValues Values to write.
+	 * @param pStream Stream to write to.
+	 */
+	static void writeInts( int[] pValues , DataOutputStream pStream ) throws IOException
+	{
+		byte[] lBuffer = sBuffers.get();
+		int lPosition = 0;
+		for ( int lValue : pValues )
+		{
+			if ( lPosition == BUFFER_SIZE )
+			{
+				pStream.write( lBuffer , 0 , lPosition );
+				lPosition = 0;
+			}
+			lPosition = putInt( lBuffer , lPosition , lValue );
+		}
+		pStream.write( lBuffer , 0 , lPosition );
+	}
+	
+	/**
+	 * Writes ints from a list without length.
+	 * 
+	 * @param pValues Values to write.
+	 * @param pStream Stream to write to.
+	 */
+	static void writeInts( List< Integer > pValues , DataOutputStream pStream ) throws IOException
+	{
+		byte[] lBuffer = sBuffers.get();
+		int lPosition = 0;
+		int lSize = pValues.size();
+		for ( int i = 0; i < lSize; i++ )
+		{
+			if ( lPosition == BUFFER_SIZE )
+			{
+				pStream.write( lBuffer , 0 , lPosition );
+				lPosition = 0;
+			}
+			lPosition = putInt( lBuffer , lPosition , pValues.get( i ) );
+		}
+		pStream.write( lBuffer , 0 , lPosition );
+	}
+	
+	/**
+	 * Reads ints written by writeInts().
+	 * 
+	 * @param pStream Stream to read from.
+	 * @param pCount Number of values.
+	 * @return Read values.
+	 */
+	static int[] readInts( DataInputStream pStream , int pCount ) throws IOException
+	{
+		int[] lValues = new int[ pCount ];
+		byte[] lBuffer = sBuffers.get();
+		int lIndex = 0;
+		while( lIndex < pCount )
+		{
+			int lLength = Math.min( pCount - lIndex , BUFFER_SIZE / 4 ) * 4;
+			pStream.readFully( lBuffer , 0 , lLength );
+			for ( int i = 0; i < lLength; i += 4 )
+			{
+				lValues[ lIndex++ ] = getInt( lBuffer , i );
+			}
+		}
+		return lValues;
+	}
+	
+	/**
+	 * Writes longs without length.
+	 * 
+	 * @param pValues Values to write.
+	 * @param pStream Stream to write to.
+	 */
+	static void writeLongs( long[] pValues , DataOutputStream pStream ) throws IOException
+	{
+		byte[] lBuffer = sBuffers.get();
+		int lPosition = 0;
+		for ( long lValue : pValues )
+		{
+			if ( lPosition == BUFFER_SIZE )
+			{
+				pStream.write( lBuffer , 0 , lPosition );
+				lPosition = 0;
+			}
+			lPosition = putInt( lBuffer , lPosition , (int) ( lValue >>> 32 ) );
+			lPosition = putInt( lBuffer , lPosition , (int) lValue );
+		}
+		pStream.write( lBuffer , 0 , lPosition );
+	}
+	
+	/**
+	 * Reads longs written by writeLongs().
+	 * 
+	 * @param pStream Stream to read from.
+	 * @param pCount Number of values.
+	 * @return Read values.
+	 */
+	static long[] readLongs( DataInputStream pStream , int pCount ) throws IOException
+	{
+		long[] lValues = new long[ pCount ];
+		byte[] lBuffer = sBuffers.get();
+		int lIndex = 0;
+		while( lIndex < pCount )
+		{
+			int lLength = Math.min( pCount - lIndex , BUFFER_SIZE / 8 ) * 8;
+			pStream.readFully( lBuffer , 0 , lLength );
+			for ( int i = 0; i < lLength; i += 8 )
+			{
+				lValues[ lIndex++ ] = ( (long) getInt( lBuffer , i ) << 32 ) | ( getInt( lBuffer , i + 4 ) & 0xFFFFFFFFL );
+			}
+		}
+		return lValues;
+	}
+	
+	/**
+	 * Writes floats without length.
+	 * 
+	 * @param pValues Values to write.
+	 * @param pStream Stream to write to.
+	 */
+	static void writeFloats( float[] pValues , DataOutputStream pStream ) throws IOException
+	{
+		byte[] lBuffer = sBuffers.get();
+		int lPosition = 0;
+		for ( float lValue : pValues )
+		{
+			if ( lPosition == BUFFER_SIZE )
+			{
+				pStream.write( lBuffer , 0 , lPosition );
+				lPosition = 0;
+			}
+			lPosition = putInt( lBuffer , lPosition , Float.floatToRawIntBits( lValue ) );
+		}
+		pStream.write( lBuffer , 0 , lPosition );
+	}
+	
+	/**
+	 * Reads floats written by writeFloats().
+	 * 
+	 * @param pStream Stream to read from.
+	 * @param pCount Number of values.
+	 * @return Read values.
+	 */
+	static float[] readFloats( DataInputStream pStream , int pCount ) throws IOException
+	{
+		float[] lValues = new float[ pCount ];
+		byte[] lBuffer = sBuffers.get();
+		int lIndex = 0;
+		while( lIndex < pCount )
+		{
+			int lLength = Math.min( pCount - lIndex , BUFFER_SIZE / 4 ) * 4;
+			pStream.readFully( lBuffer , 0 , lLength );
+			for ( int i = 0; i < lLength; i += 4 )
+			{
+				lValues[ lIndex++ ] = Float.intBitsToFloat( getInt( lBuffer , i ) );
+			}
+		}
+		return lValues;
+	}
+	
+	/**
+	 * Writes differences between following values as zigzag varints, preceded by their size in bytes.
+	 * 
+	 * @param pValues Values to write.
+	 * @param pStream Stream to write to.
+	 */
+	static void writeIntDeltas( int[] pValues , DataOutputStream pStream ) throws IOException
+	{
+		int lByteLength = 0;
+		int lPrevious = 0;
+		for ( int lValue : pValues )
+		{
+			lByteLength += getVarLongSize( zigzag( lValue - lPrevious ) & 0xFFFFFFFFL );
+			lPrevious = lValue;
+		}
+		SimpleDBRow.saveVarInt( lByteLength , pStream );
+		
+		byte[] lBuffer = sBuffers.get();
+		int lPosition = 0;
+		lPrevious = 0;
+		for ( int lValue : pValues )
+		{
+			if ( lPosition > BUFFER_SIZE - MAX_VARLONG_SIZE )
+			{
+				pStream.write( lBuffer , 0 , lPosition );
+				lPosition = 0;
+			}
+			lPosition = putVarLong( lBuffer , lPosition , zigzag( lValue - lPrevious ) & 0xFFFFFFFFL );
+			lPrevious = lValue;
+		}
+		pStream.write( lBuffer , 0 , lPosition );
+	}
+	
+	/**
+	 * Reads values written by writeIntDeltas().
+	 * 
+	 * @param pStream Stream to read from.
+	 * @param pCount Number of values.
+	 * @return Read values.
+	 */
+	static int[] readIntDeltas( DataInputStream pStream , int pCount ) throws IOException
+	{
+		int[] lValues = new int[ pCount ];
+		VarIntReader lReader = new VarIntReader( pStream , SimpleDBRow.loadVarInt( pStream ) );
+		int lPrevious = 0;
+		for ( int i = 0; i < pCount; i++ )
+		{
+			int lDelta = (int) lReader.next();
+			lPrevious += ( lDelta >>> 1 ) ^ -( lDelta & 1 );
+			lValues[ i ] = lPrevious;
+		}
+		lReader.finish();
+		return lValues;
+	}
+	
+	/**
+	 * Writes differences between following values as zigzag varints, preceded by their size in bytes.
+	 * 
+	 * @param pValues Values to write.
+	 * @param pStream Stream to write to.
+	 */
+	static void writeLongDeltas( long[] pValues , DataOutputStream pStream ) throws IOException
+	{
+		int lByteLength = 0;
+		long lPrevious = 0;
+		for ( long lValue : pValues )
+		{
+			lByteLength += getVarLongSize( zigzag( lValue - lPrevious ) );
+			lPrevious = lValue;
+		}
+		SimpleDBRow.saveVarInt( lByteLength , pStream );
+		
+		byte[] lBuffer = sBuffers.get();
+		int lPosition = 0;
+		lPrevious = 0;
+		for ( long lValue : pValues )
+		{
+			if ( lPosition > BUFFER_SIZE - MAX_VARLONG_SIZE )
+			{
+				pStream.write( lBuffer , 0 , lPosition );
+				lPosition = 0;
+			}
+			lPosition = putVarLong( lBuffer , lPosition , zigzag( lValue - lPrevious ) );
+			lPrevious = lValue;
+		}
+		pStream.write( lBuffer , 0 , lPosition );
+	}
+	
+	/**
+	 * Reads values written by writeLongDeltas().
+	 * 
+	 * @param pStream Stream to read from.
+	 * @param pCount Number of values.
+	 * @return Read values.
+	 */
+	static long[] readLongDeltas( DataInputStream pStream , int pCount ) throws IOException
+	{
+		long[] lValues = new long[ pCount ];
+		VarIntReader lReader = new VarIntReader( pStream , SimpleDBRow.loadVarInt( pStream ) );
+		long lPrevious = 0;
+		for ( int i = 0; i < pCount; i++ )
+		{
+			long lDelta = lReader.next();
+			lPrevious += ( lDelta >>> 1 ) ^ -( lDelta & 1 );
+			lValues[ i ] = lPrevious;
+		}
+		lReader.finish();
+		return lValues;
+	}
+	
+	/**
+	 * Writes String as its UTF-8 length + 1 (0 for null) followed by UTF-8 bytes. There is no length limit.
+	 * Unpaired surrogates are written as 3 bytes, so any String is read back unchanged.
+	 * 
+	 * @param pValue String to write, can be null.
+	 * @param pStream Stream to write to.
+	 */
+	static void writeString( String pValue , DataOutputStream pStream ) throws IOException
+	{
+		if ( pValue == null )
+		{
+			SimpleDBRow.saveVarInt( 0 , pStream );
+			return;
+		}
+		
+		int lLength = pValue.length();
+		int lByteLength = 0;
+		for ( int i = 0; i < lLength; i++ )
+		{
+			char lChar = pValue.charAt( i );
+			if ( lChar < 0x80 )
+			{
+				lByteLength++;
+			}
+			else if ( lChar < 0x800 )
+			{
+				lByteLength += 2;
+			}
+			else if ( Character.isHighSurrogate( lChar ) && ( i + 1 < lLength ) && Character.isLowSurrogate( pValue.charAt( i + 1 ) ) )
+			{
+				lByteLength += 4;
+				i++;
+			}
+			else
+			{
+				lByteLength += 3;
+			}
+		}
+		SimpleDBRow.saveVarInt( lByteLength + 1 , pStream );
+		
+		byte[] lBuffer = sBuffers.get();
+		int lPosition = 0;
+		for ( int i = 0; i < lLength; i++ )
+		{
+			if ( lPosition > BUFFER_SIZE - 4 )
+			{
+				pStream.write( lBuffer , 0 , lPosition );
+				lPosition = 0;
+			}
+			char lChar = pValue.charAt( i );
+			if ( lChar < 0x80 )
+			{
+				lBuffer[ lPosition++ ] = (byte) lChar;
+			}
+			else if ( lChar < 0x800 )
+			{
+				lBuffer[ lPosition++ ] = (byte) ( 0xC0 | ( lChar >> 6 ) );
+				lBuffer[ lPosition++ ] = (byte) ( 0x80 | ( lChar & 0x3F ) );
+			}
+			else if ( Character.isHighSurrogate( lChar ) && ( i + 1 < lLength ) && Character.isLowSurrogate( pValue.charAt( i + 1 ) ) )
+			{
+				int lCodePoint = Character.toCodePoint( lChar , pValue.charAt( ++i ) );
+				lBuffer[ lPosition++ ] = (byte) ( 0xF0 | ( lCodePoint >> 18 ) );
+				lBuffer[ lPosition++ ] = (byte) ( 0x80 | ( ( lCodePoint >> 12 ) & 0x3F ) );
+				lBuffer[ lPosition++ ] = (byte) ( 0x80 | ( ( lCodePoint >> 6 ) & 0x3F ) );
+				lBuffer[ lPosition++ ] = (byte) ( 0x80 | ( lCodePoint & 0x3F ) );
+			}
+			else
+			{
+				lBuffer[ lPosition++ ] = (byte) ( 0xE0 | ( lChar >> 12 ) );
+				lBuffer[ lPosition++ ] = (byte) ( 0x80 | ( ( lChar >> 6 ) & 0x3F ) );
+				lBuffer[ lPosition++ ] = (byte) ( 0x80 | ( lChar & 0x3F ) );
+			}
+		}
+		pStream.write( lBuffer , 0 , lPosition );
+	}
+	
+	/**
+	 * Reads String written by writeString().
+	 * 
+	 * @param pStream Stream to read from.
+	 * @return Read String, can be null.
+	 */
+	static String readString( DataInputStream pStream ) throws IOException
+	{
+		int lByteLength = SimpleDBRow.loadVarInt( pStream ) - 1;
+		if ( lByteLength < 0 )
+		{
+			return null;
+		}
+		
+		// Thread buffers are used for usual Strings, only very long ones need temporary arrays
+		byte[] lBytes = ( lByteLength <= BUFFER_SIZE ) ? sBuffers.get() : new byte[ lByteLength ];
+		char[] lChars = ( lByteLength <= BUFFER_SIZE ) ? sCharBuffers.get() : new char[ lByteLength ];
+		pStream.readFully( lBytes , 0 , lByteLength );
+		
+		int lLength = 0;
+		int i = 0;
+		while( i < lByteLength )
+		{
+			int lByte = lBytes[ i ] & 0xFF;
+			if ( lByte < 0x80 )
+			{
+				lChars[ lLength++ ] = (char) lByte;
+				i++;
+			}
+			else if ( ( ( lByte >> 5 ) == 0x06 ) && ( i + 2 <= lByteLength ) )
+			{
+				lChars[ lLength++ ] = (char) ( ( ( lByte & 0x1F ) << 6 ) | ( lBytes[ i + 1 ] & 0x3F ) );
+				i += 2;
+			}
+			else if ( ( ( lByte >> 4 ) == 0x0E ) && ( i + 3 <= lByteLength ) )
+			{
+				lChars[ lLength++ ] = (char) ( ( ( lByte & 0x0F ) << 12 ) | ( ( lBytes[ i + 1 ] & 0x3F ) << 6 ) | ( lBytes[ i + 2 ] & 0x3F ) );
+				i += 3;
+			}
+			else if ( ( ( lByte >> 3 ) == 0x1E ) && ( i + 4 <= lByteLength ) )
+			{
+				int lCodePoint = ( ( lByte & 0x07 ) << 18 ) | ( ( lBytes[ i + 1 ] & 0x3F ) << 12 ) | ( ( lBytes[ i + 2 ] & 0x3F ) << 6 )
+						| ( lBytes[ i + 3 ] & 0x3F );
+				lChars[ lLength++ ] = (char) ( ( ( lCodePoint - 0x10000 ) >> 10 ) + 0xD800 );
+				lChars[ lLength++ ] = (char) ( ( ( lCodePoint - 0x10000 ) & 0x3FF ) + 0xDC00 );
+				i += 4;
+			}
+			else
+			{
+				throw new IOException( "Malformed UTF-8 String" );
+			}
+		}
+		return new String( lChars , 0 , lLength );
+	}
+	
+	/**
+	 * Puts big endian int into the buffer.
+	 * 
+	 * @param pBuffer Buffer.
+	 * @param pPosition Position in the buffer.
+	 * @param pValue Value to put.
+	 * @return Position after the value.
+	 */
+	private static int putInt( byte[] pBuffer , int pPosition , int pValue )
+	{
+		pBuffer[ pPosition ] = (byte) ( pValue >>> 24 );
+		pBuffer[ pPosition + 1 ] = (byte) ( pValue >>> 16 );
+		pBuffer[ pPosition + 2 ] = (byte) ( pValue >>> 8 );
+		pBuffer[ pPosition + 3 ] = (byte) pValue;
+		return pPosition + 4;
+	}
+	
+	/**
+	 * Gets big endian int from the buffer.
+	 * 
+	 * @param pBuffer Buffer.
+	 * @param pPosition Position in the buffer.
+	 * @return Value.
+	 */
+	private static int getInt( byte[] pBuffer , int pPosition )
+	{
+		return ( pBuffer[ pPosition ] << 24 ) | ( ( pBuffer[ pPosition + 1 ] & 0xFF ) << 16 ) | ( ( pBuffer[ pPosition + 2 ] & 0xFF ) << 8 )
+				| ( pBuffer[ pPosition + 3 ] & 0xFF );
+	}
+	
+	/**
+	 * Puts unsigned varint into the buffer.
+	 * 
+	 * @param pBuffer Buffer.
+	 * @param pPosition Position in the buffer.
+	 * @param pValue Value to put.
+	 * @return Position after the value.
+	 */
+	private static int putVarLong( byte[] pBuffer , int pPosition , long pValue )
+	{
+		while( ( pValue & ~0x7FL ) != 0 )
+		{
+			pBuffer[ pPosition++ ] = (byte) ( ( pValue & 0x7F ) | 0x80 );
+			pValue >>>= 7;
+		}
+		pBuffer[ pPosition++ ] = (byte) pValue;
+		return pPosition;
+	}
+	
+	/**
+	 * Gets size of unsigned varint.
+	 * 
+	 * @param pValue Value.
+	 * @return Number of bytes.
+	 */
+	private static int getVarLongSize( long pValue )
+	{
+		int lSize = 1;
+		while( ( pValue & ~0x7FL ) != 0 )
+		{
+			lSize++;
+			pValue >>>= 7;
+		}
+		return lSize;
+	}
+	
+	/**
+	 * Maps signed int to unsigned, so small negative differences are small too.
+	 * 
+	 * @param pValue Signed value.
+	 * @return Unsigned value.
+	 */
+	private static int zigzag( int pValue )
+	{
+		return ( pValue << 1 ) ^ ( pValue >> 31 );
+	}
+	
+	/**
+	 * Maps signed long to unsigned, so small negative differences are small too.
+	 * 
+	 * @param pValue Signed value.
+	 * @return Unsigned value.
+	 */
+	private static long zigzag( long pValue )
+	{
+		return ( pValue << 1 ) ^ ( pValue >> 63 );
+	}
+}
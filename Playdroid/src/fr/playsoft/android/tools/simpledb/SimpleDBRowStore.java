@@ -0,0 +1,256 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Storage of rows used by SimpleDBTable.
+ * Rows are kept in an array in order of inserting. Adding a row is amortized O(1) and deleting a row only leaves an empty slot,
+ * so positions of other rows (kept in table indexes) do not change. Empty slots are removed by compact().
+ * Readers get immutable snapshots that share the array - it is copied only when a row visible in a snapshot is replaced or removed.
+ * Not thread safe - SimpleDBTable locks all calls.
+ * 
+ * @author Olgierd Uzieblo
+ */
+final class SimpleDBRowStore
+{
+	/**
+	 * Immutable list of rows that shares the array with the store.
+	 */
+	private static final class Snapshot extends AbstractList< SimpleDBRow > implements RandomAccess
+	{
+		/** Rows - only first mSize slots belong to this snapshot **/
+		private final SimpleDBRow[] mRows;
+		
+		/** Number of rows **/
+		private final int mSize;
+		
+		Snapshot( SimpleDBRow[] pRows , int pSize )
+		{
+			mRows = pRows;
+			mSize = pSize;
+		}
+		
+		@Override
+		public SimpleDBRow get( int pIndex )
+		{
+			if ( pIndex >= mSize )
+			{
+				throw new IndexOutOfBoundsException( "Index " + pIndex + " size " + mSize );
+			}
+			return mRows[ pIndex ];
+		}
+		
+		@Override
+		public int size()
+		{
+			return mSize;
+		}
+	}
+	
+	/** Initial size of rows array **/
+	private static final int INITIAL_CAPACITY = 16;
+	
+	/** Rows array, deleted rows leave null slots **/
+	private SimpleDBRow[] mRows;
+	
+	/** Number of used slots (rows and empty slots) **/
+	private int mEnd;
+	
+	/** Number of empty slots **/
+	private int mNumEmptySlots;
+	
+	/** Flag to check if mRows is used by a snapshot - it must be copied before any used slot is changed **/
+	private boolean mIsShared;
+	
+	/** Last created snapshot, null if store was changed since then - it is set by readers, so it is volatile **/
+	private volatile List< SimpleDBRow > mSnapshot;
+	
+	/**
+	 * Creates empty store.
+	 */
+	SimpleDBRowStore()
+	{
+		mRows = new SimpleDBRow[ INITIAL_CAPACITY ];
+	}
+	
+	/**
+	 * Gets number of rows.
+	 * 
+	 * @return Number of rows.
+	 */
+	int size()
+	{
+		return mEnd - mNumEmptySlots;
+	}
+	
+	/**
+	 * Gets number of used slots - all positions are lower than this value.
+	 * 
+	 * @return Number of used slots.
+	 */
+	int getEnd()
+	{
+		return mEnd;
+	}
+	
+	/**
+	 * Gets row at chosen position.
+	 * 
+	 * @param pPosition Position of the row.
+	 * @return Row or null if it was deleted.
+	 */
+	SimpleDBRow get( int pPosition )
+	{
+		return mRows[ pPosition ];
+	}
+	
+	/**
+	 * Adds row at the end.
+	 * 
+	 * @param pRow Row to add.
+	 * @return Position of added row.
+	 */
+	int add( SimpleDBRow pRow )
+	{
+		if ( mEnd == mRows.length )
+		{
+			// New array is not shared by anybody
+			mRows = Arrays.copyOf( mRows , mEnd + ( mEnd >> 1 ) + 1 );
+			mIsShared = false;
+		}
+		// Slots after mEnd are not visible in snapshots, so shared array can be used
+		mRows[ mEnd ] = pRow;
+		mSnapshot = null;
+		return mEnd++;
+	}
+	
+	/**
+	 * Replaces row at chosen position.
+	 * 
+	 * @param pPosition Position of the row.
+	 * @param pRow New row.
+	 */
+	void set( int pPosition , SimpleDBRow pRow )
+	{
+		unshare();
+		mRows[ pPosition ] = pRow;
+	}
+	
+	/**
+	 * Deletes row at chosen position - its slot stays empty until compact().
+	 * 
+	 * @param pPosition Position of the row.
+	 */
+	void remove( int pPosition )
+	{
+		if ( mRows[ pPosition ] != null )
+		{
+			unshare();
+			mRows[ pPosition ] = null;
+			mNumEmptySlots++;
+		}
+	}
+	
+	/**
+	 * Deletes all rows.
+	 */
+	void clear()
+	{
+		mRows = new SimpleDBRow[ INITIAL_CAPACITY ];
+		mEnd = 0;
+		mNumEmptySlots = 0;
+		mIsShared = false;
+		mSnapshot = null;
+	}
+	
+	/**
+	 * Checks if there are so many empty slots that compact() should be called.
+	 * 
+	 * @return True if at least half of slots is empty.
+	 */
+	boolean isCompactionNeeded()
+	{
+		return mNumEmptySlots > ( mEnd >> 1 );
+	}
+	
+	/**
+	 * Removes empty slots. Positions of rows change, so table indexes must be rebuilt.
+	 * 
+	 * @return True if any row has changed its position.
+	 */
+	boolean compact()
+	{
+		if ( mNumEmptySlots == 0 )
+		{
+			return false;
+		}
+		SimpleDBRow[] lRows = mIsShared ? new SimpleDBRow[ Math.max( INITIAL_CAPACITY , mRows.length ) ] : mRows;
+		int lSize = 0;
+		for ( int i = 0; i < mEnd; i++ )
+		{
+			if ( mRows[ i ] != null )
+			{
+				lRows[ lSize++ ] = mRows[ i ];
+			}
+		}
+		Arrays.fill( lRows , lSize , mEnd , null );
+		mRows = lRows;
+		mEnd = lSize;
+		mNumEmptySlots = 0;
+		mIsShared = false;
+		mSnapshot = null;
+		return true;
+	}
+	
+	/**
+	 * Gets immutable list of all rows. Without empty slots the array is shared, otherwise rows are copied skipping empty slots -
+	 * positions of rows do not change, so table indexes stay valid. Snapshot is kept until the next change.
+	 * It can be called by many readers at the same time - each of them gets a correct snapshot, at worst the same rows are copied twice.
+	 * 
+	 * @return List of rows, it is not changed by further changes of this store.
+	 */
+	List< SimpleDBRow > getSnapshot()
+	{
+		List< SimpleDBRow > lSnapshot = mSnapshot;
+		if ( lSnapshot != null )
+		{
+			return lSnapshot;
+		}
+		if ( mNumEmptySlots == 0 )
+		{
+			lSnapshot = new Snapshot( mRows , mEnd );
+			mIsShared = true;
+		}
+		else
+		{
+			SimpleDBRow[] lRows = new SimpleDBRow[ size() ];
+			int lSize = 0;
+			for ( int i = 0; i < mEnd; i++ )
+			{
+				if ( mRows[ i ] != null )
+				{
+					lRows[ lSize++ ] = mRows[ i ];
+				}
+			}
+			lSnapshot = new Snapshot( lRows , lSize );
+		}
+		mSnapshot = lSnapshot;
+		return lSnapshot;
+	}
+	
+	/**
+	 * Copies the array if it is used by a snapshot, so snapshot does not see the next change.
+	 */
+	private void unshare()
+	{
+		if ( mIsShared )
+		{
+			mRows = mRows.clone();
+			mIsShared = false;
+		}
+		mSnapshot = null;
+	}
+}
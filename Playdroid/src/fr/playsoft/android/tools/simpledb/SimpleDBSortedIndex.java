@@ -0,0 +1,234 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.util.Arrays;
+
+/**
+ * Secondary index keeping row positions sorted by key, used for range and prefix queries.
+ * Key of each row is extracted once when the row is added and kept by its position, so rows changed in place
+ * (taken from the table, modified and inserted again) are still found and removed by their old keys.
+ * Rows with equal keys are kept in order of the table.
+ * 
+ * @author Olgierd Uzieblo
+ */
+abstract class SimpleDBSortedIndex extends SimpleDBIndex
+{
+	/** Empty result **/
+	private static final int[] NO_POSITIONS = new int[ 0 ];
+	
+	/** Row positions sorted by keys **/
+	private int[] mPositions;
+	
+	/** Number of positions **/
+	private int mSize;
+	
+	/**
+	 * Creates empty index.
+	 */
+	SimpleDBSortedIndex()
+	{
+		mPositions = new int[ 16 ];
+	}
+	
+	/**
+	 * Extracts key of a row and keeps it for its position.
+	 * 
+	 * @param pRow Row.
+	 * @param pPosition Position of the row in the table.
+	 */
+	abstract void setKey( SimpleDBRow pRow , int pPosition );
+	
+	/**
+	 * Forgets key kept for a position.
+	 * 
+	 * @param pPosition Position of removed row.
+	 */
+	abstract void releaseKey( int pPosition );
+	
+	/**
+	 * Forgets all kept keys.
+	 */
+	abstract void clearKeys();
+	
+	/**
+	 * Compares kept keys of two rows.
+	 * 
+	 * @param pPosition1 Position of first row.
+	 * @param pPosition2 Position of second row.
+	 * @return Negative value, zero or positive value if key of first row is smaller, equal or larger.
+	 */
+	abstract int compareKeys( int pPosition1 , int pPosition2 );
+	
+	@Override
+	void add( SimpleDBRow pRow , int pPosition )
+	{
+		setKey( pRow , pPosition );
+		int lIndex = findIndex( pPosition );
+		if ( mSize == mPositions.length )
+		{
+			mPositions = Arrays.copyOf( mPositions , mSize * 2 );
+		}
+		System.arraycopy( mPositions , lIndex , mPositions , lIndex + 1 , mSize - lIndex );
+		mPositions[ lIndex ] = pPosition;
+		mSize++;
+	}
+	
+	@Override
+	void remove( SimpleDBRow pRow , int pPosition )
+	{
+		int lIndex = findIndex( pPosition );
+		if ( ( lIndex < mSize ) && ( mPositions[ lIndex ] == pPosition ) )
+		{
+			System.arraycopy( mPositions , lIndex + 1 , mPositions , lIndex , mSize - lIndex - 1 );
+			mSize--;
+			releaseKey( pPosition );
+		}
+	}
+	
+	@Override
+	void clear()
+	{
+		mPositions = new int[ 16 ];
+		mSize = 0;
+		clearKeys();
+	}
+	
+	@Override
+	void rebuild( SimpleDBRowStore pData )
+	{
+		// Adding rows one by one would move the array for each row, sorting all of them is much faster
+		clearKeys();
+		int[] lPositions = new int[ Math.max( 16 , pData.size() ) ];
+		int lSize = 0;
+		for ( int i = 0; i < pData.getEnd(); i++ )
+		{
+			SimpleDBRow lRow = pData.get( i );
+			if ( lRow != null )
+			{
+				setKey( lRow , i );
+				lPositions[ lSize++ ] = i;
+			}
+		}
+		// Merge sort is stable, so rows with equal keys stay in order of positions
+		mergeSort( lPositions , new int[ lSize ] , 0 , lSize );
+		mPositions = lPositions;
+		mSize = lSize;
+	}
+	
+	/**
+	 * Gets number of indexed rows.
+	 * 
+	 * @return Number of rows.
+	 */
+	final int size()
+	{
+		return mSize;
+	}
+	
+	/**
+	 * Gets position of row at chosen place in key order.
+	 * 
+	 * @param pIndex Place in key order.
+	 * @return Position of the row in the table.
+	 */
+	final int getPosition( int pIndex )
+	{
+		return mPositions[ pIndex ];
+	}
+	
+	/**
+	 * Gets positions of rows between two places in key order.
+	 * 
+	 * @param pFromIndex First place (inclusive).
+	 * @param pToIndex Last place (exclusive).
+	 * @return Positions of rows sorted by keys.
+	 */
+	final int[] getPositions( int pFromIndex , int pToIndex )
+	{
+		if ( pFromIndex >= pToIndex )
+		{
+			return NO_POSITIONS;
+		}
+		return Arrays.copyOfRange( mPositions , pFromIndex , pToIndex );
+	}
+	
+	/**
+	 * Finds place of a row in key order by its kept key.
+	 * 
+	 * @param pPosition Position of the row in the table.
+	 * @return Place of the row if it is indexed, otherwise place where it should be added.
+	 */
+	private int findIndex( int pPosition )
+	{
+		int lLow = 0;
+		int lHigh = mSize;
+		while( lLow < lHigh )
+		{
+			int lMiddle = ( lLow + lHigh ) >>> 1;
+			if ( compare( mPositions[ lMiddle ] , pPosition ) < 0 )
+			{
+				lLow = lMiddle + 1;
+			}
+			else
+			{
+				lHigh = lMiddle;
+			}
+		}
+		return lLow;
+	}
+	
+	/**
+	 * Compares indexed row with another row.
+	 * 
+	 * @param pIndexedPosition Position of indexed row.
+	 * @param pPosition Position of other row.
+	 * @return Result of comparing keys, positions are compared if keys are equal.
+	 */
+	private int compare( int pIndexedPosition , int pPosition )
+	{
+		int lResult = compareKeys( pIndexedPosition , pPosition );
+		if ( lResult == 0 )
+		{
+			lResult = ( pIndexedPosition < pPosition ) ? -1 : ( ( pIndexedPosition == pPosition ) ? 0 : 1 );
+		}
+		return lResult;
+	}
+	
+	/**
+	 * Sorts positions by keys of their rows.
+	 * 
+	 * @param pPositions Positions to sort.
+	 * @param pBuffer Temporary buffer of the same size.
+	 * @param pFrom First sorted index (inclusive).
+	 * @param pTo Last sorted index (exclusive).
+	 */
+	private void mergeSort( int[] pPositions , int[] pBuffer , int pFrom , int pTo )
+	{
+		if ( pTo - pFrom < 2 )
+		{
+			return;
+		}
+		int lMiddle = ( pFrom + pTo ) >>> 1;
+		mergeSort( pPositions , pBuffer , pFrom , lMiddle );
+		mergeSort( pPositions , pBuffer , lMiddle , pTo );
+		if ( compareKeys( pPositions[ lMiddle - 1 ] , pPositions[ lMiddle ] ) <= 0 )
+		{
+			// Already in order
+			return;
+		}
+		System.arraycopy( pPositions , pFrom , pBuffer , pFrom , pTo - pFrom );
+		int lLeft = pFrom;
+		int lRight = lMiddle;
+		for ( int i = pFrom; i < pTo; i++ )
+		{
+			if ( ( lRight >= pTo )
+					|| ( ( lLeft < lMiddle ) && ( compareKeys( pBuffer[ lLeft ] , pBuffer[ lRight ] ) <= 0 ) ) )
+			{
+				pPositions[ i ] = pBuffer[ lLeft++ ];
+			}
+			else
+			{
+				pPositions[ i ] = pBuffer[ lRight++ ];
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.util.Arrays;
+
+/**
+ * Sorted secondary index for finding rows with String keys equal to a value or starting with a prefix.
+ * Keys are compared with String.compareTo().
+ * 
+ * @author Olgierd Uzieblo
+ */
+final class SimpleDBStringSortedIndex extends SimpleDBSortedIndex
+{
+	/** Extractor of keys **/
+	private ISimpleDBStringKeyExtractor mExtractor;
+	
+	/** Keys of indexed rows by their positions, null for positions that are not indexed **/
+	private String[] mKeys;
+	
+	/**
+	 * Creates empty index.
+	 * 
+	 * @param pExtractor Extractor of keys.
+	 */
+	SimpleDBStringSortedIndex( ISimpleDBStringKeyExtractor pExtractor )
+	{
+		mExtractor = pExtractor;
+		mKeys = new String[ 16 ];
+	}
+	
+	@Override
+	void setKey( SimpleDBRow pRow , int pPosition )
+	{
+		if ( pPosition >= mKeys.length )
+		{
+			mKeys = Arrays.copyOf( mKeys , Math.max( pPosition + 1 , mKeys.length * 2 ) );
+		}
+		String lKey = mExtractor.getKey( pRow );
+		mKeys[ pPosition ] = ( lKey != null ) ? lKey : "";
+	}
+	
+	@Override
+	void releaseKey( int pPosition )
+	{
+		mKeys[ pPosition ] = null;
+	}
+	
+	@Override
+	void clearKeys()
+	{
+		mKeys = new String[ 16 ];
+	}
+	
+	@Override
+	int compareKeys( int pPosition1 , int pPosition2 )
+	{
+		return mKeys[ pPosition1 ].compareTo( mKeys[ pPosition2 ] );
+	}
+	
+	/**
+	 * Gets positions of rows with key equal to chosen value.
+	 * 
+	 * @param pKey Key value.
+	 * @return Positions of rows in order of the table.
+	 */
+	int[] getEqual( String pKey )
+	{
+		int lFrom = findFirst( pKey );
+		int lTo = lFrom;
+		while( ( lTo < size() ) && getKey( lTo ).equals( pKey ) )
+		{
+			lTo++;
+		}
+		return getPositions( lFrom , lTo );
+	}
+	
+	/**
+	 * Gets positions of rows with keys starting with chosen prefix.
+	 * 
+	 * @param pPrefix Prefix of keys.
+	 * @return Positions of rows sorted by keys.
+	 */
+	int[] getWithPrefix( String pPrefix )
+	{
+		int lFrom = findFirst( pPrefix );
+		int lTo = lFrom;
+		while( ( lTo < size() ) && getKey( lTo ).startsWith( pPrefix ) )
+		{
+			lTo++;
+		}
+		return getPositions( lFrom , lTo );
+	}
+	
+	/**
+	 * Gets key of row at chosen place in key order.
+	 * 
+	 * @param pIndex Place in key order.
+	 * @return Key, never null.
+	 */
+	private String getKey( int pIndex )
+	{
+		return mKeys[ getPosition( pIndex ) ];
+	}
+	
+	/**
+	 * Finds first row with key not smaller than chosen value.
+	 * 
+	 * @param pKey Key value.
+	 * @return Place of the row in key order.
+	 */
+	private int findFirst( String pKey )
+	{
+		int lLow = 0;
+		int lHigh = size();
+		while( lLow < lHigh )
+		{
+			int lMiddle = ( lLow + lHigh ) >>> 1;
+			if ( getKey( lMiddle ).compareTo( pKey ) < 0 )
+			{
+				lLow = lMiddle + 1;
+			}
+			else
+			{
+				lHigh = lMiddle;
+			}
+		}
+		return lLow;
+	}
+}
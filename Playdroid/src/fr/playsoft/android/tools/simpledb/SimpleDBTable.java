@@ -3,16 +3,24 @@ package fr.playsoft.android.tools.simpledb;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import fr.playsoft.android.tools.debug.Log;
 
 /**
  * Simple table used by SimpleDB.
  * Its final class - there is no reason to override it.
+ * Besides main key, rows can be found by secondary indexes added with addHashIndex(), addSortedIndex() and addStringIndex().
+ * Table is guarded by a read/write lock - lookups run in parallel and wait only for a single change in progress, never for saving.
+ * Every inserted, updated and deleted row is published to listeners added by addChangeListener() (used by SimpleDBLiveQuery).
+ * Listeners are called after the table is unlocked, so they can use this table and the database without risk of a deadlock.
  * 
  * @author Olgierd Uzieblo
  */
@@ -21,8 +29,29 @@ public final class SimpleDBTable
 	/** Tag for LogCat **/
 	public static final String TAG = "SimpleDBTable";
 	
+	/** Secondary indexes are built again after a batch with more changes than 1/BATCH_INDEX_REBUILD_RATIO of table rows **/
+	private static final int BATCH_INDEX_REBUILD_RATIO = 64;
+	
+	/**
+	 * Change of the table waiting for delivery to listeners.
+	 */
+	private static final class Notification
+	{
+		/** Changes for the change feed, null if nobody listened to them **/
+		final List< SimpleDBRowChange > mChanges;
+		
+		/** Listeners of the change feed at the moment of the change - listener added later already has these changes in its rows **/
+		final List< ISimpleDBChangeListener > mChangeListeners;
+		
+		Notification( List< SimpleDBRowChange > pChanges , List< ISimpleDBChangeListener > pChangeListeners )
+		{
+			mChanges = pChanges;
+			mChangeListeners = pChangeListeners;
+		}
+	}
+	
 	/** Flag to check if this table was changed - database will need saving **/
-	private boolean mIsSavingNeeded = false;
+	private volatile boolean mIsSavingNeeded = false;
 	
 	/** Is main key of this table unique for each row **/
 	private boolean mIsMainKeyUnique = false;
@@ -30,12 +59,23 @@ public final class SimpleDBTable
 	/**
 	 * Data stored in this table.
 	 */
-	private List< SimpleDBRow > mData;
+	private SimpleDBRowStore mData;
 	
 	/**
-	 * Hashtable for fast getting of indexed primary keys.
+	 * Index for fast getting of rows by unique main keys - values are positions of rows in mData. Null if main key is not unique.
 	 */
-	private Hashtable< Integer , Integer > mHashIndex;
+	private SimpleDBIntMap mHashIndex;
+	
+	/**
+	 * Index for fast getting of rows by non unique main keys - values are positions of rows in mData. Null if main key is unique.
+	 */
+	private SimpleDBIntMultiMap mMultiIndex;
+	
+	/** Secondary indexes, index id is its position in this list **/
+	private List< SimpleDBIndex > mIndexes;
+	
+	/** Flag to check if secondary indexes are not updated now - they will be built again after a large batch **/
+	private boolean mIsIndexingDeferred;
 	
 	/**
 	 * Factory for creating of new empty rows.
@@ -45,18 +85,59 @@ public final class SimpleDBTable
 	/** Listener notified after any changes **/
 	private ITableModifiedListener mTableChangedListener;
 	
+	/** Listener of the database notified after any changes - it is separate, so setOnChangedListener() does not replace it **/
+	private ITableModifiedListener mDatabaseListener;
+	
 	/** Current largest id - useful for auto increment of row unique ids **/
 	private int mCurrentLargestId;
 	
+	/** Log to which all changes are written, null if database does not use log **/
+	private SimpleDBLog mLog;
+	
+	/** Id of this table in its database - used in log records **/
+	private int mTableId;
+	
+	/** Flag to check if this table was changed in a way that can not be logged - database will need a full snapshot **/
+	private volatile boolean mIsSnapshotNeeded = false;
+	
+	/** Flag to check if this table was loaded from database file (or there was nothing to load) **/
+	private volatile boolean mIsLoaded = false;
+	
+	/** Flag to check if loading of this table failed - snapshots keep its block from the file instead of this empty table **/
+	private volatile boolean mIsLoadFailed = false;
+	
+	/** Listeners of the change feed **/
+	private final List< ISimpleDBChangeListener > mChangeListeners = new CopyOnWriteArrayList< ISimpleDBChangeListener >();
+	
+	/** Changes made by current operation, null if there are none or nobody listens to them **/
+	private List< SimpleDBRowChange > mPendingChanges;
+	
+	/** Notifications waiting for delivery to listeners, in order of changes - guarded by itself **/
+	private final ArrayDeque< Notification > mNotifications = new ArrayDeque< Notification >();
+	
+	/** Flag to check if some thread is delivering notifications now - guarded by mNotifications **/
+	private boolean mIsNotifying;
+	
+	/** Lock guarding all data of this table **/
+	private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+	
 	/**
 	 * Creates SimpleDBTable.
 	 */
 	public SimpleDBTable( boolean pIsMainKeyUnique , ISimpleDBRowFactory pRowFactory )
 	{
-		mData = new CopyOnWriteArrayList< SimpleDBRow >();
-		mHashIndex = new Hashtable< Integer , Integer >();
+		mData = new SimpleDBRowStore();
 		mIsMainKeyUnique = pIsMainKeyUnique;
+		if ( mIsMainKeyUnique )
+		{
+			mHashIndex = new SimpleDBIntMap();
+		}
+		else
+		{
+			mMultiIndex = new SimpleDBIntMultiMap();
+		}
 		mRowFactory = pRowFactory;
+		mIndexes = new ArrayList< SimpleDBIndex >();
 	}
 	
 	/**
@@ -69,33 +150,209 @@ public final class SimpleDBTable
 		mTableChangedListener = pListener;
 	}
 	
+	/**
+	 * Adds listener of the change feed - it gets every row inserted, updated or deleted after this call.
+	 * Rows are returned together with adding, so no change can happen between reading them and listening.
+	 * 
+	 * @param pListener Listener to add.
+	 * @return All rows at the moment of adding (same as getAllData()) or null if there are no rows.
+	 */
+	public final List< SimpleDBRow > addChangeListener( ISimpleDBChangeListener pListener )
+	{
+		mLock.writeLock().lock();
+		try
+		{
+			mChangeListeners.add( pListener );
+			return getAllData();
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Removes listener of the change feed.
+	 * 
+	 * @param pListener Listener to remove.
+	 */
+	public final void removeChangeListener( ISimpleDBChangeListener pListener )
+	{
+		mChangeListeners.remove( pListener );
+	}
+	
+	/**
+	 * Sets listener of the database to be notified after any change.
+	 * 
+	 * @param pListener Listener, null to remove it.
+	 */
+	protected void setDatabaseListener( ITableModifiedListener pListener )
+	{
+		mDatabaseListener = pListener;
+	}
+	
 	/**
 	 * Tells this table that it has been changed and it should not skip saving.
 	 */
 	public void setSaveNeeded()
 	{
-		notifyOnChangedListener();
+		mLock.writeLock().lock();
+		try
+		{
+			// We dont know what has changed, so log can not describe it
+			mIsSnapshotNeeded = true;
+			addChange( SimpleDBRowChange.TYPE_UNKNOWN , 0 , null , null );
+			notifyOnChangedListener();
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+		deliverNotifications();
+	}
+	
+	/**
+	 * Sets log to which all further changes of this table will be written.
+	 * 
+	 * @param pLog Log to use, null to stop logging.
+	 * @param pTableId Id of this table in its database.
+	 */
+	protected void setLog( SimpleDBLog pLog , int pTableId )
+	{
+		mLog = pLog;
+		mTableId = pTableId;
 	}
 	
 	/**
 	 * Gets current largest unique id. Useful for auto increment.
+	 * Deleting rows does not lower it (except deleting all rows), so ids of deleted rows are not used again.
 	 * 
 	 * @return Largest id.
 	 */
 	public int getCurrentLargestId()
 	{
-		return mCurrentLargestId;
+		mLock.readLock().lock();
+		try
+		{
+			return mCurrentLargestId;
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Remembers a change for the change feed, if anybody listens to it. Change of unknown type gets all rows of the table,
+	 * because listeners can not read them at the moment of the change.
+	 * 
+	 * @param pType Type of change - one of SimpleDBRowChange.TYPE_ constants.
+	 * @param pMainKey Main key of changed row.
+	 * @param pOldRow Row before the change.
+	 * @param pNewRow Row after the change.
+	 */
+	private void addChange( int pType , int pMainKey , SimpleDBRow pOldRow , SimpleDBRow pNewRow )
+	{
+		if ( mChangeListeners.isEmpty() )
+		{
+			return;
+		}
+		if ( mPendingChanges == null )
+		{
+			mPendingChanges = new ArrayList< SimpleDBRowChange >();
+		}
+		if ( pType == SimpleDBRowChange.TYPE_UNKNOWN )
+		{
+			mPendingChanges.add( new SimpleDBRowChange( ( mData.size() > 0 ) ? mData.getSnapshot() : null ) );
+		}
+		else
+		{
+			mPendingChanges.add( new SimpleDBRowChange( pType , pMainKey , pOldRow , pNewRow , -1 ) );
+		}
 	}
 	
 	/**
-	 * Notifies listener that something is changed.
+	 * Marks the table as changed and queues notification of listeners. Must be called while the table is locked for writing,
+	 * so notifications are queued in order of changes. They are delivered by deliverNotifications() after unlocking.
 	 */
 	private void notifyOnChangedListener()
 	{
 		mIsSavingNeeded = true;
-		if ( mTableChangedListener != null )
+		List< SimpleDBRowChange > lChanges = null;
+		List< ISimpleDBChangeListener > lChangeListeners = null;
+		if ( mPendingChanges != null )
+		{
+			lChanges = Collections.unmodifiableList( mPendingChanges );
+			lChangeListeners = new ArrayList< ISimpleDBChangeListener >( mChangeListeners );
+			mPendingChanges = null;
+		}
+		synchronized( mNotifications )
 		{
-			mTableChangedListener.onTableModified();
+			mNotifications.add( new Notification( lChanges , lChangeListeners ) );
+		}
+	}
+	
+	/**
+	 * Delivers queued notifications to listeners. Does nothing while the calling thread holds the write lock - it must be called again
+	 * after unlocking. If another thread is delivering notifications now, it delivers these ones too, so they are never reordered.
+	 */
+	protected final void deliverNotifications()
+	{
+		if ( mLock.isWriteLockedByCurrentThread() )
+		{
+			return;
+		}
+		synchronized( mNotifications )
+		{
+			if ( mIsNotifying || mNotifications.isEmpty() )
+			{
+				return;
+			}
+			mIsNotifying = true;
+		}
+		boolean lIsFinished = false;
+		try
+		{
+			while( true )
+			{
+				Notification lNotification;
+				synchronized( mNotifications )
+				{
+					lNotification = mNotifications.poll();
+					if ( lNotification == null )
+					{
+						mIsNotifying = false;
+						lIsFinished = true;
+						return;
+					}
+				}
+				if ( lNotification.mChanges != null )
+				{
+					for ( ISimpleDBChangeListener lListener : lNotification.mChangeListeners )
+					{
+						lListener.onTableChanged( this , lNotification.mChanges );
+					}
+				}
+				if ( mTableChangedListener != null )
+				{
+					mTableChangedListener.onTableModified();
+				}
+				if ( mDatabaseListener != null )
+				{
+					mDatabaseListener.onTableModified();
+				}
+			}
+		}
+		finally
+		{
+			if ( !lIsFinished )
+			{
+				// Listener has thrown - next change will deliver the rest
+				synchronized( mNotifications )
+				{
+					mIsNotifying = false;
+				}
+			}
 		}
 	}
 	
@@ -110,37 +367,143 @@ public final class SimpleDBTable
 	}
 	
 	/**
-	 * Sets table changed status to false - should be called after table was saved.
+	 * Sets table changed status to false - should be called after table was saved, while it is locked for writing.
 	 */
 	protected void setSaved()
 	{
 		mIsSavingNeeded = false;
 	}
 	
+	/**
+	 * Checks if this table has been changed in a way that log can not describe.
+	 * 
+	 * @return True if database must save a full snapshot.
+	 */
+	protected boolean isSnapshotNeeded()
+	{
+		return mIsSnapshotNeeded;
+	}
+	
+	/**
+	 * Clears the snapshot needed flag - should be called after full snapshot of this table was saved, while it is locked for writing.
+	 */
+	protected void setSnapshotSaved()
+	{
+		mIsSnapshotNeeded = false;
+	}
+	
+	/**
+	 * Checks if this table was loaded from database file.
+	 * 
+	 * @return True if table can be used.
+	 */
+	protected boolean isLoaded()
+	{
+		return mIsLoaded;
+	}
+	
+	/**
+	 * Marks this table as loaded - should be called after load() or when there is nothing to load.
+	 */
+	protected void setLoaded()
+	{
+		mIsLoaded = true;
+	}
+	
+	/**
+	 * Marks this table as loaded without any rows, because its block could not be read. Rows loaded before the error are removed.
+	 * Snapshots copy the block that failed to load instead of this table, so changes made to it are not saved.
+	 */
+	protected void setLoadFailed()
+	{
+		mLock.writeLock().lock();
+		try
+		{
+			clearIndex();
+			mData.clear();
+			mCurrentLargestId = 0;
+			for ( SimpleDBIndex lIndex : mIndexes )
+			{
+				lIndex.rebuild( mData );
+			}
+			mIsLoadFailed = true;
+			mIsLoaded = true;
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Checks if loading of this table failed.
+	 * 
+	 * @return True if this table is empty because its block could not be read.
+	 */
+	protected boolean isLoadFailed()
+	{
+		return mIsLoadFailed;
+	}
+	
+	/**
+	 * Locks this table for changes, so SimpleDB can change or capture multiple tables at once. Tables must be locked in order of ids.
+	 */
+	protected final void lockForWriting()
+	{
+		mLock.writeLock().lock();
+	}
+	
+	/**
+	 * Unlocks this table locked by lockForWriting().
+	 */
+	protected final void unlockForWriting()
+	{
+		mLock.writeLock().unlock();
+	}
+	
 	/**
 	 * Gets number of rows in this table.
 	 * 
 	 * @return Number of rows.
 	 */
-	public final short getCount()
+	public final int getCount()
 	{
-		return (short) ( mData.size() );
+		mLock.readLock().lock();
+		try
+		{
+			return mData.size();
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
 	}
 	
 	/**
 	 * Gets all data in this table.
+	 * Returned list can not be modified and it is not changed by further changes of this table, so it can be used without synchronization.
+	 * Only read lock is taken, so it can be called by many threads at the same time and also by a thread that holds the write lock.
 	 * 
 	 * @return List with all rows in this table or null if there are no rows.
 	 */
 	public final List< SimpleDBRow > getAllData()
 	{
-		if ( mData.isEmpty() )
+		mLock.readLock().lock();
+		try
 		{
-			return null;
+			if ( mData.size() == 0 )
+			{
+				return null;
+			}
+			else
+			{
+				// Empty slots are skipped - compaction is left to compactIfNeeded(), so indexes are not rebuilt here
+				return mData.getSnapshot();
+			}
 		}
-		else
+		finally
 		{
-			return mData;
+			mLock.readLock().unlock();
 		}
 	}
 	
@@ -149,58 +512,188 @@ public final class SimpleDBTable
 	 * 
 	 * @param pNewRow New row to insert/replace.
 	 */
-	public final synchronized void insertOrUpdate( SimpleDBRow pNewRow )
+	public final void insertOrUpdate( SimpleDBRow pNewRow )
+	{
+		mLock.writeLock().lock();
+		try
+		{
+			insertOrUpdateRow( pNewRow );
+			if ( ( mLog != null ) && !mLog.logInsertOrUpdate( mTableId , pNewRow ) )
+			{
+				mIsSnapshotNeeded = true;
+			}
+			notifyOnChangedListener();
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+		deliverNotifications();
+	}
+	
+	/**
+	 * Inserts or updates a row without logging and notifying the listener.
+	 * 
+	 * @param pNewRow New row to insert/replace.
+	 * @return True if existing row was replaced, false if new row was added.
+	 */
+	private boolean insertOrUpdateRow( SimpleDBRow pNewRow )
 	{
+		int lNewMainKey = pNewRow.getMainKey();
 		if ( mIsMainKeyUnique )
 		{
-			Integer lNewMainKey = pNewRow.getMainKey();
 			mCurrentLargestId = Math.max( mCurrentLargestId , lNewMainKey );
-			Integer lFinalIndex = mHashIndex.get( lNewMainKey );
-			if ( lFinalIndex != null )
+			int lFinalIndex = mHashIndex.get( lNewMainKey );
+			if ( lFinalIndex != SimpleDBIntMap.NO_VALUE )
 			{
 				// This row exists - we can update it
+				SimpleDBRow lOldRow = mData.get( lFinalIndex );
+				removeFromIndexes( lOldRow , lFinalIndex );
 				mData.set( lFinalIndex , pNewRow );
-				notifyOnChangedListener();
-				return;
+				addToIndexes( pNewRow , lFinalIndex );
+				addChange( SimpleDBRowChange.TYPE_UPDATED , lNewMainKey , lOldRow , pNewRow );
+				return true;
 			}
 			else
 			{
 				// It does not exist, we should add it and add a new index
-				mData.add( pNewRow );
-				mHashIndex.put( lNewMainKey , mData.size() - 1 );
-				notifyOnChangedListener();
-				return;
+				int lPosition = mData.add( pNewRow );
+				mHashIndex.put( lNewMainKey , lPosition );
+				addToIndexes( pNewRow , lPosition );
+				addChange( SimpleDBRowChange.TYPE_INSERTED , lNewMainKey , null , pNewRow );
 			}
 		}
 		else
 		{
-			// This table is not indexed so we always perform insert
-			// Perform an insert
-			mData.add( pNewRow );
-			notifyOnChangedListener();
+			// Main key is not unique so we always perform insert
+			int lPosition = mData.add( pNewRow );
+			mMultiIndex.add( lNewMainKey , lPosition );
+			addToIndexes( pNewRow , lPosition );
+			addChange( SimpleDBRowChange.TYPE_INSERTED , lNewMainKey , null , pNewRow );
 		}
+		return false;
 	}
 	
 	/**
-	 * Rebuilds hash index after deleting a row in indexed table.
+	 * Adds a row to all secondary indexes.
+	 * 
+	 * @param pRow Added row.
+	 * @param pPosition Position of the row in mData.
 	 */
-	private final synchronized void rebuildHashIndex()
+	private void addToIndexes( SimpleDBRow pRow , int pPosition )
 	{
-		if ( mIsMainKeyUnique )
+		if ( mIsIndexingDeferred )
 		{
-			mHashIndex.clear();
-			int lRowIndex = 0;
-			int lMainKey = 0;
-			mCurrentLargestId = 0;
-			
-			for ( SimpleDBRow lRow : mData )
+			return;
+		}
+		for ( int i = 0; i < mIndexes.size(); i++ )
+		{
+			mIndexes.get( i ).add( pRow , pPosition );
+		}
+	}
+	
+	/**
+	 * Removes a row from all secondary indexes - must be called before the row is replaced or deleted from mData.
+	 * 
+	 * @param pRow Removed row.
+	 * @param pPosition Position of the row in mData.
+	 */
+	private void removeFromIndexes( SimpleDBRow pRow , int pPosition )
+	{
+		if ( mIsIndexingDeferred )
+		{
+			return;
+		}
+		for ( int i = 0; i < mIndexes.size(); i++ )
+		{
+			mIndexes.get( i ).remove( pRow , pPosition );
+		}
+	}
+	
+	/**
+	 * Rebuilds all indexes after rows have changed their positions.
+	 */
+	private void rebuildHashIndex()
+	{
+		clearIndex();
+		for ( int i = 0; i < mData.getEnd(); i++ )
+		{
+			SimpleDBRow lRow = mData.get( i );
+			if ( lRow != null )
 			{
-				lMainKey = lRow.getMainKey();
-				mHashIndex.put( lMainKey , lRowIndex );
-				mCurrentLargestId = Math.max( mCurrentLargestId , lMainKey );
-				lRowIndex++;
+				addToIndex( lRow.getMainKey() , i );
 			}
 		}
+		for ( SimpleDBIndex lIndex : mIndexes )
+		{
+			lIndex.rebuild( mData );
+		}
+	}
+	
+	/**
+	 * Adds row position to the index.
+	 * 
+	 * @param pMainKey Main key of the row.
+	 * @param pPosition Position of the row in mData.
+	 */
+	private void addToIndex( int pMainKey , int pPosition )
+	{
+		if ( mIsMainKeyUnique )
+		{
+			mHashIndex.put( pMainKey , pPosition );
+		}
+		else
+		{
+			mMultiIndex.add( pMainKey , pPosition );
+		}
+	}
+	
+	/**
+	 * Removes all positions from the index.
+	 */
+	private void clearIndex()
+	{
+		if ( mIsMainKeyUnique )
+		{
+			mHashIndex.clear();
+		}
+		else
+		{
+			mMultiIndex.clear();
+		}
+	}
+	
+	/**
+	 * Deletes row at chosen position. Positions of other rows do not change until compactIfNeeded() is called.
+	 * 
+	 * @param pPosition Position of the row in mData.
+	 */
+	private void removeRowAt( int pPosition )
+	{
+		SimpleDBRow lRow = mData.get( pPosition );
+		removeFromIndexes( lRow , pPosition );
+		int lMainKey = lRow.getMainKey();
+		if ( mIsMainKeyUnique )
+		{
+			mHashIndex.remove( lMainKey );
+		}
+		else
+		{
+			mMultiIndex.remove( lMainKey , pPosition );
+		}
+		mData.remove( pPosition );
+		addChange( SimpleDBRowChange.TYPE_DELETED , lMainKey , lRow , null );
+	}
+	
+	/**
+	 * Removes empty slots left by deleted rows when there are many of them, so hash index is rarely rebuilt.
+	 */
+	private void compactIfNeeded()
+	{
+		if ( mData.isCompactionNeeded() && mData.compact() )
+		{
+			rebuildHashIndex();
+		}
 	}
 	
 	/**
@@ -211,23 +704,28 @@ public final class SimpleDBTable
 	 * @param pKeyValue Main key value.
 	 * @return List of rows or null if it is empty.
 	 */
-	public final synchronized List< SimpleDBRow > getAllRowsForMainKey( int pKeyValue )
+	public final List< SimpleDBRow > getAllRowsForMainKey( int pKeyValue )
 	{
-		List< SimpleDBRow > lResultRows = new ArrayList< SimpleDBRow >();
-		for ( SimpleDBRow lRow : mData )
+		mLock.readLock().lock();
+		try
 		{
-			if ( lRow.getMainKey() == pKeyValue )
+			if ( mIsMainKeyUnique )
 			{
-				lResultRows.add( lRow );
+				int lPosition = mHashIndex.get( pKeyValue );
+				if ( lPosition == SimpleDBIntMap.NO_VALUE )
+				{
+					return null;
+				}
+				List< SimpleDBRow > lResultRows = new ArrayList< SimpleDBRow >( 1 );
+				lResultRows.add( mData.get( lPosition ) );
+				return lResultRows;
 			}
+		
+			return getRows( mMultiIndex.get( pKeyValue ) );
 		}
-		if ( lResultRows.isEmpty() )
-		{
-			return null;
-		}
-		else
+		finally
 		{
-			return lResultRows;
+			mLock.readLock().unlock();
 		}
 	}
 	
@@ -236,20 +734,48 @@ public final class SimpleDBTable
 	 * 
 	 * @param pKeyValue Main key value.
 	 */
-	public final synchronized void deleteAllRowsForMainKey( int pKeyValue )
+	public final void deleteAllRowsForMainKey( int pKeyValue )
 	{
-		List< SimpleDBRow > lResultRows = new ArrayList< SimpleDBRow >();
-		for ( SimpleDBRow lRow : mData )
+		mLock.writeLock().lock();
+		try
 		{
-			if ( lRow.getMainKey() == pKeyValue )
+			deleteRowsForMainKey( pKeyValue );
+			if ( mLog != null )
 			{
-				lResultRows.add( lRow );
+				mLog.logDelete( SimpleDBLog.RECORD_DELETE_ALL_ROWS_FOR_MAIN_KEY , mTableId , pKeyValue );
 			}
+			notifyOnChangedListener();
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+		deliverNotifications();
+	}
+	
+	/**
+	 * Deletes all rows for which main key equals chosen main key without logging and notifying the listener.
+	 * 
+	 * @param pKeyValue Main key value.
+	 * @return True if something was deleted.
+	 */
+	private boolean deleteRowsForMainKey( int pKeyValue )
+	{
+		if ( mIsMainKeyUnique )
+		{
+			return deleteRow( pKeyValue );
 		}
 		
-		mData.removeAll( lResultRows );
-		rebuildHashIndex();
-		notifyOnChangedListener();
+		int[] lPositions = mMultiIndex.removeAll( pKeyValue );
+		for ( int lPosition : lPositions )
+		{
+			SimpleDBRow lRow = mData.get( lPosition );
+			removeFromIndexes( lRow , lPosition );
+			mData.remove( lPosition );
+			addChange( SimpleDBRowChange.TYPE_DELETED , pKeyValue , lRow , null );
+		}
+		compactIfNeeded();
+		return lPositions.length > 0;
 	}
 	
 	/**
@@ -257,14 +783,34 @@ public final class SimpleDBTable
 	 * 
 	 * @param pRowsToDelete List of rows to delete.
 	 */
-	public final synchronized void deleteMultipleRows( List< SimpleDBRow > pRowsToDelete )
+	public final void deleteMultipleRows( List< SimpleDBRow > pRowsToDelete )
 	{
-		if ( pRowsToDelete.size() > 0 )
+		mLock.writeLock().lock();
+		try
 		{
-			mData.removeAll( pRowsToDelete );
-			rebuildHashIndex();
-			notifyOnChangedListener();
+			if ( pRowsToDelete.size() > 0 )
+			{
+				Set< SimpleDBRow > lRowsToDelete = new HashSet< SimpleDBRow >( pRowsToDelete );
+				for ( int i = 0; i < mData.getEnd(); i++ )
+				{
+					SimpleDBRow lRow = mData.get( i );
+					if ( ( lRow != null ) && lRowsToDelete.contains( lRow ) )
+					{
+						removeRowAt( i );
+					}
+				}
+				compactIfNeeded();
+			
+				// Rows are not identified by keys here, so log can not describe it
+				mIsSnapshotNeeded = true;
+				notifyOnChangedListener();
+			}
 		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+		deliverNotifications();
 	}
 	
 	/**
@@ -274,16 +820,49 @@ public final class SimpleDBTable
 	 * 
 	 * @return True if something was deleted.
 	 */
-	public final synchronized boolean delete( int pKeyValue )
+	public final boolean delete( int pKeyValue )
+	{
+		boolean lIsDeleted;
+		mLock.writeLock().lock();
+		try
+		{
+			lIsDeleted = deleteRow( pKeyValue );
+			if ( lIsDeleted )
+			{
+				if ( mLog != null )
+				{
+					mLog.logDelete( SimpleDBLog.RECORD_DELETE , mTableId , pKeyValue );
+				}
+				notifyOnChangedListener();
+			}
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+		deliverNotifications();
+		return lIsDeleted;
+	}
+	
+	/**
+	 * Deletes row using its unique key without logging and notifying the listener.
+	 * 
+	 * @param pKeyValue Value of unique key.
+	 * 
+	 * @return True if something was deleted.
+	 */
+	private boolean deleteRow( int pKeyValue )
 	{
-		Integer lRowIdToDelete = mHashIndex.get( pKeyValue );
+		if ( !mIsMainKeyUnique )
+		{
+			return false;
+		}
+		int lRowIdToDelete = mHashIndex.get( pKeyValue );
 		
-		if ( lRowIdToDelete != null )
+		if ( lRowIdToDelete != SimpleDBIntMap.NO_VALUE )
 		{
-			mData.remove( lRowIdToDelete.intValue() );
-			mHashIndex.remove( pKeyValue );
-			rebuildHashIndex();
-			notifyOnChangedListener();
+			removeRowAt( lRowIdToDelete );
+			compactIfNeeded();
 			return true;
 		}
 		
@@ -293,12 +872,325 @@ public final class SimpleDBTable
 	/**
 	 * Deletes all rows for this table.
 	 */
-	public final synchronized void deleteAllRows()
+	public final void deleteAllRows()
+	{
+		mLock.writeLock().lock();
+		try
+		{
+			deleteRows();
+			if ( mLog != null )
+			{
+				mLog.logDeleteAllRows( mTableId );
+			}
+			notifyOnChangedListener();
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+		deliverNotifications();
+	}
+	
+	/**
+	 * Deletes all rows without logging and notifying the listener.
+	 */
+	private void deleteRows()
 	{
 		mData.clear();
-		mHashIndex.clear();
+		clearIndex();
+		for ( SimpleDBIndex lIndex : mIndexes )
+		{
+			lIndex.clear();
+		}
 		mCurrentLargestId = 0;
-		notifyOnChangedListener();
+		addChange( SimpleDBRowChange.TYPE_ALL_ROWS_DELETED , 0 , null , null );
+	}
+	
+	/**
+	 * Applies changes of a batch to this table. Changes are not logged - SimpleDB logs the whole batch as one record.
+	 * Listener is notified once after all changes, when deliverNotifications() is called after unlocking all tables of the batch.
+	 * 
+	 * @param pOperations Changes of this table in order of adding to the batch.
+	 * @param pSummary Summary to which changed keys are added.
+	 */
+	protected final void applyBatch( List< SimpleDBBatch.Operation > pOperations , SimpleDBChangeSummary pSummary )
+	{
+		mLock.writeLock().lock();
+		try
+		{
+			// Updating sorted indexes row by row is slower than building them again when batch is large
+			mIsIndexingDeferred = !mIndexes.isEmpty() && ( pOperations.size() * BATCH_INDEX_REBUILD_RATIO > mData.size() );
+			try
+			{
+				for ( SimpleDBBatch.Operation lOperation : pOperations )
+				{
+					switch ( lOperation.mType )
+					{
+						case SimpleDBLog.RECORD_INSERT_OR_UPDATE:
+							if ( insertOrUpdateRow( lOperation.mRow ) )
+							{
+								pSummary.addUpdated( lOperation.mTableId , lOperation.mRow.getMainKey() );
+							}
+							else
+							{
+								pSummary.addInserted( lOperation.mTableId , lOperation.mRow.getMainKey() );
+							}
+							break;
+					
+						case SimpleDBLog.RECORD_DELETE:
+							if ( deleteRow( lOperation.mKeyValue ) )
+							{
+								pSummary.addDeleted( lOperation.mTableId , lOperation.mKeyValue );
+							}
+							break;
+					
+						case SimpleDBLog.RECORD_DELETE_ALL_ROWS_FOR_MAIN_KEY:
+							if ( deleteRowsForMainKey( lOperation.mKeyValue ) )
+							{
+								pSummary.addDeleted( lOperation.mTableId , lOperation.mKeyValue );
+							}
+							break;
+					
+						case SimpleDBLog.RECORD_DELETE_ALL_ROWS:
+							deleteRows();
+							pSummary.setAllRowsDeleted( lOperation.mTableId );
+							break;
+					}
+				}
+			}
+			finally
+			{
+				if ( mIsIndexingDeferred )
+				{
+					mIsIndexingDeferred = false;
+					for ( SimpleDBIndex lIndex : mIndexes )
+					{
+						lIndex.rebuild( mData );
+					}
+				}
+			}
+			notifyOnChangedListener();
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Applies a single log record to this table. Change is not logged again and listener is not notified.
+	 * 
+	 * @param pType Record type - one of SimpleDBLog.RECORD_ constants.
+	 * @param pStream Stream with record data.
+	 * @param pFormatVersion Format version of the log - one of SimpleDBFile.FORMAT_VERSION_ constants.
+	 */
+	protected final void applyLogRecord( byte pType , DataInputStream pStream , int pFormatVersion ) throws IOException
+	{
+		mLock.writeLock().lock();
+		try
+		{
+			switch ( pType )
+			{
+				case SimpleDBLog.RECORD_INSERT_OR_UPDATE:
+					insertOrUpdateRow( loadRow( pStream , pFormatVersion ) );
+					break;
+			
+				case SimpleDBLog.RECORD_DELETE:
+					deleteRow( pStream.readInt() );
+					break;
+			
+				case SimpleDBLog.RECORD_DELETE_ALL_ROWS_FOR_MAIN_KEY:
+					deleteRowsForMainKey( pStream.readInt() );
+					break;
+			
+				case SimpleDBLog.RECORD_DELETE_ALL_ROWS:
+					deleteRows();
+					break;
+			
+				default:
+					throw new IOException( "Unknown log record type " + pType );
+			}
+		}
+		finally
+		{
+			// Replayed changes are part of loading, they are not published
+			mPendingChanges = null;
+			mLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Adds secondary hash index for finding rows with chosen int key (for example all rows of a category).
+	 * Indexes should be added right after the table is created, they are not saved with the table.
+	 * 
+	 * @param pExtractor Extractor of keys.
+	 * @return Index id used in getRowsByIndex().
+	 */
+	public final int addHashIndex( ISimpleDBIntKeyExtractor pExtractor )
+	{
+		mLock.writeLock().lock();
+		try
+		{
+			return addIndex( new SimpleDBHashIndex( pExtractor ) );
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Adds secondary sorted index for finding rows with long keys in a range (for example dates).
+	 * Indexes should be added right after the table is created, they are not saved with the table.
+	 * 
+	 * @param pExtractor Extractor of keys.
+	 * @return Index id used in getRowsInRange().
+	 */
+	public final int addSortedIndex( ISimpleDBLongKeyExtractor pExtractor )
+	{
+		mLock.writeLock().lock();
+		try
+		{
+			return addIndex( new SimpleDBLongSortedIndex( pExtractor ) );
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Adds secondary sorted index for finding rows with String keys equal to a value or starting with a prefix.
+	 * Indexes should be added right after the table is created, they are not saved with the table.
+	 * 
+	 * @param pExtractor Extractor of keys.
+	 * @return Index id used in getRowsByString() and getRowsWithPrefix().
+	 */
+	public final int addStringIndex( ISimpleDBStringKeyExtractor pExtractor )
+	{
+		mLock.writeLock().lock();
+		try
+		{
+			return addIndex( new SimpleDBStringSortedIndex( pExtractor ) );
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Adds secondary index and builds it for rows that are already in the table.
+	 * 
+	 * @param pIndex New index.
+	 * @return Index id.
+	 */
+	private int addIndex( SimpleDBIndex pIndex )
+	{
+		pIndex.rebuild( mData );
+		mIndexes.add( pIndex );
+		return mIndexes.size() - 1;
+	}
+	
+	/**
+	 * Gets rows with chosen key of a hash index.
+	 * 
+	 * @param pIndexId Id returned by addHashIndex().
+	 * @param pKey Key value.
+	 * @return List of rows in order of the table or null if there are no such rows.
+	 */
+	public final List< SimpleDBRow > getRowsByIndex( int pIndexId , int pKey )
+	{
+		mLock.readLock().lock();
+		try
+		{
+			return getRows( ( (SimpleDBHashIndex) mIndexes.get( pIndexId ) ).get( pKey ) );
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Gets rows with keys of a sorted index in chosen range.
+	 * 
+	 * @param pIndexId Id returned by addSortedIndex().
+	 * @param pFrom Smallest key (inclusive).
+	 * @param pTo Largest key (exclusive).
+	 * @return List of rows sorted by keys or null if there are no such rows.
+	 */
+	public final List< SimpleDBRow > getRowsInRange( int pIndexId , long pFrom , long pTo )
+	{
+		mLock.readLock().lock();
+		try
+		{
+			return getRows( ( (SimpleDBLongSortedIndex) mIndexes.get( pIndexId ) ).getRange( pFrom , pTo ) );
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Gets rows with key of a String index equal to chosen value.
+	 * 
+	 * @param pIndexId Id returned by addStringIndex().
+	 * @param pKey Key value.
+	 * @return List of rows in order of the table or null if there are no such rows.
+	 */
+	public final List< SimpleDBRow > getRowsByString( int pIndexId , String pKey )
+	{
+		mLock.readLock().lock();
+		try
+		{
+			return getRows( ( (SimpleDBStringSortedIndex) mIndexes.get( pIndexId ) ).getEqual( pKey ) );
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Gets rows with keys of a String index starting with chosen prefix.
+	 * 
+	 * @param pIndexId Id returned by addStringIndex().
+	 * @param pPrefix Prefix of keys.
+	 * @return List of rows sorted by keys or null if there are no such rows.
+	 */
+	public final List< SimpleDBRow > getRowsWithPrefix( int pIndexId , String pPrefix )
+	{
+		mLock.readLock().lock();
+		try
+		{
+			return getRows( ( (SimpleDBStringSortedIndex) mIndexes.get( pIndexId ) ).getWithPrefix( pPrefix ) );
+		}
+		finally
+		{
+			mLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Gets rows at chosen positions.
+	 * 
+	 * @param pPositions Positions of rows in mData.
+	 * @return List of rows or null if there are no positions.
+	 */
+	private List< SimpleDBRow > getRows( int[] pPositions )
+	{
+		if ( pPositions.length == 0 )
+		{
+			return null;
+		}
+		List< SimpleDBRow > lResultRows = new ArrayList< SimpleDBRow >( pPositions.length );
+		for ( int lPosition : pPositions )
+		{
+			lResultRows.add( mData.get( lPosition ) );
+		}
+		return lResultRows;
 	}
 	
 	/**
@@ -307,65 +1199,109 @@ public final class SimpleDBTable
 	 * @param pKeyValue Key value - unique indexed value.
 	 * @return Row from chosen table containing this key or null.
 	 */
-	public final synchronized SimpleDBRow getIndexedRow( int pKeyValue )
+	public final SimpleDBRow getIndexedRow( int pKeyValue )
 	{
-		Integer lFinalIndex = mHashIndex.get( pKeyValue );
-		if ( lFinalIndex != null )
+		mLock.readLock().lock();
+		try
 		{
-			return mData.get( lFinalIndex.intValue() );
+			int lFinalIndex = mIsMainKeyUnique ? mHashIndex.get( pKeyValue ) : SimpleDBIntMap.NO_VALUE;
+			if ( lFinalIndex != SimpleDBIntMap.NO_VALUE )
+			{
+				return mData.get( lFinalIndex );
+			}
+			else
+			{
+				return null;
+			}
 		}
-		else
+		finally
 		{
-			return null;
+			mLock.readLock().unlock();
 		}
 	}
 	
+	/**
+	 * Creates a new row and loads it from the stream.
+	 * 
+	 * @param pStream Stream with row data.
+	 * @param pFormatVersion Format version of the data.
+	 * @return Loaded row.
+	 */
+	private SimpleDBRow loadRow( DataInputStream pStream , int pFormatVersion ) throws IOException
+	{
+		SimpleDBRow lNewRow = mRowFactory.createNewEmptyRow();
+		lNewRow.mFormatVersion = pFormatVersion;
+		lNewRow.loadRow( pStream );
+		lNewRow.mFormatVersion = SimpleDBFile.FORMAT_VERSION_CURRENT;
+		return lNewRow;
+	}
+	
 	/**
 	 * Loads this table from the DataInputStream.
 	 * 
 	 * @param pStream DataInputStream with data to use.
+	 * @param pFormatVersion Format version of the data - one of SimpleDBFile.FORMAT_VERSION_ constants.
 	 */
-	protected final synchronized void load( DataInputStream pStream ) throws IOException
+	protected final void load( DataInputStream pStream , int pFormatVersion ) throws IOException
 	{
-		short lSize = pStream.readShort();
-		Log.v( TAG , "Loading " + lSize + " rows..." );
-		List< SimpleDBRow > lLoadedList = new ArrayList< SimpleDBRow >( lSize );
-		mHashIndex.clear();
-		mData.clear();
-		int lMainKeyValue = 0;
-		mCurrentLargestId = 0;
-		
-		for ( int i = 0; i < lSize; i++ )
+		mLock.writeLock().lock();
+		try
 		{
-			SimpleDBRow lNewRow = mRowFactory.createNewEmptyRow();
-			lNewRow.loadRow( pStream );
-			lLoadedList.add( lNewRow );
-			
-			if ( mIsMainKeyUnique )
+			// Old formats kept number of rows as short - reading it unsigned recovers tables with up to 65535 rows
+			int lSize;
+			if ( pFormatVersion < SimpleDBFile.FORMAT_VERSION_VARINT_COUNTS )
 			{
+				lSize = pStream.readUnsignedShort();
+			}
+			else
+			{
+				lSize = SimpleDBRow.loadVarInt( pStream );
+			}
+			Log.v( TAG , "Loading " + lSize + " rows..." );
+			clearIndex();
+			mData.clear();
+			int lMainKeyValue = 0;
+			mCurrentLargestId = 0;
+		
+			for ( int i = 0; i < lSize; i++ )
+			{
+				SimpleDBRow lNewRow = loadRow( pStream , pFormatVersion );
 				lMainKeyValue = lNewRow.getMainKey();
-				mHashIndex.put( lMainKeyValue , i );
-				mCurrentLargestId = Math.max( mCurrentLargestId , lMainKeyValue );
+				addToIndex( lMainKeyValue , mData.add( lNewRow ) );
+			
+				if ( mIsMainKeyUnique )
+				{
+					mCurrentLargestId = Math.max( mCurrentLargestId , lMainKeyValue );
+				}
 			}
-		}
 		
-		mData.addAll( lLoadedList );
+			// Secondary indexes are built once for all rows
+			for ( SimpleDBIndex lIndex : mIndexes )
+			{
+				lIndex.rebuild( mData );
+			}
+		}
+		finally
+		{
+			mLock.writeLock().unlock();
+		}
 	}
 	
 	/**
-	 * Saves this table to the DataOutputStream.
+	 * Saves rows of a table to the DataOutputStream. Rows should be taken by getAllData(), so table is not locked during saving.
 	 * 
+	 * @param pRows Rows to save, null if table is empty.
 	 * @param pStream DataOutputStream to save data to.
 	 */
-	protected final synchronized void save( DataOutputStream pStream ) throws IOException
+	protected static void save( List< SimpleDBRow > pRows , DataOutputStream pStream ) throws IOException
 	{
-		short lSize = getCount();
+		int lSize = ( pRows == null ) ? 0 : pRows.size();
 		Log.v( TAG , "Saving " + lSize + " rows..." );
-		pStream.writeShort( lSize );
+		SimpleDBRow.saveVarInt( lSize , pStream );
 		
-		for ( SimpleDBRow lSavedRow : mData )
+		for ( int i = 0; i < lSize; i++ )
 		{
-			lSavedRow.saveRow( pStream );
+			pRows.get( i ).saveRow( pStream );
 		}
 	}
 }
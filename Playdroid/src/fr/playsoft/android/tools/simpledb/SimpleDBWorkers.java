@@ -0,0 +1,178 @@
+package fr.playsoft.android.tools.simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of threads shared by all databases, used to encode and decode tables in parallel.
+ * There is at most one thread per CPU core (and never more than MAX_THREADS), threads are stopped when they are idle for a while.
+ * 
+ * @author Olgierd Uzieblo
+ */
+final class SimpleDBWorkers
+{
+	/** Maximum number of threads **/
+	private static final int MAX_THREADS = 4;
+	
+	/** Idle threads are stopped after this time (ms) **/
+	private static final long KEEP_ALIVE_TIME = 30000;
+	
+	/** Number of threads **/
+	private static final int NUM_THREADS = Math.max( 1 , Math.min( Runtime.getRuntime().availableProcessors() , MAX_THREADS ) );
+	
+	/** Executor, created when it is used for the first time **/
+	private static ThreadPoolExecutor sExecutor;
+	
+	private SimpleDBWorkers()
+	{
+	}
+	
+	/**
+	 * Gets executor, creating it if needed.
+	 * 
+	 * @return Executor.
+	 */
+	private static synchronized ThreadPoolExecutor getExecutor()
+	{
+		if ( sExecutor == null )
+		{
+			final AtomicInteger lThreadCount = new AtomicInteger();
+			sExecutor = new ThreadPoolExecutor( NUM_THREADS , NUM_THREADS , KEEP_ALIVE_TIME , TimeUnit.MILLISECONDS ,
+					new LinkedBlockingQueue< Runnable >() , new ThreadFactory()
+					{
+						@Override
+						public Thread newThread( Runnable pRunnable )
+						{
+							Thread lThread = new Thread( pRunnable , "SimpleDB worker " + lThreadCount.incrementAndGet() );
+							lThread.setDaemon( true );
+							return lThread;
+						}
+					} );
+			sExecutor.allowCoreThreadTimeOut( true );
+		}
+		return sExecutor;
+	}
+	
+	/**
+	 * Runs all tasks in parallel and waits until they are finished. First task is run on the calling thread, so it does not
+	 * just wait for the others. If any task fails its exception is thrown after all tasks are finished.
+	 * 
+	 * @param pTasks Tasks to run.
+	 * @return Results in order of tasks.
+	 */
+	static < T > List< T > runAll( List< ? extends Callable< T > > pTasks ) throws IOException
+	{
+		List< T > lResults = new ArrayList< T >( pTasks.size() );
+		if ( pTasks.isEmpty() )
+		{
+			return lResults;
+		}
+		List< Future< T > > lFutures = new ArrayList< Future< T > >( pTasks.size() );
+		if ( NUM_THREADS > 1 )
+		{
+			ThreadPoolExecutor lExecutor = getExecutor();
+			for ( int i = 1; i < pTasks.size(); i++ )
+			{
+				lFutures.add( lExecutor.submit( pTasks.get( i ) ) );
+			}
+		}
+		
+		Throwable lError = null;
+		try
+		{
+			lResults.add( pTasks.get( 0 ).call() );
+		}
+		catch( Throwable e )
+		{
+			lError = e;
+			lResults.add( null );
+		}
+		for ( int i = 1; i < pTasks.size(); i++ )
+		{
+			try
+			{
+				if ( lFutures.isEmpty() )
+				{
+					// Single core - everything is run here
+					lResults.add( pTasks.get( i ).call() );
+				}
+				else
+				{
+					lResults.add( getUninterruptibly( lFutures.get( i - 1 ) ) );
+				}
+			}
+			catch( ExecutionException e )
+			{
+				lError = ( lError != null ) ? lError : e.getCause();
+				lResults.add( null );
+			}
+			catch( Throwable e )
+			{
+				lError = ( lError != null ) ? lError : e;
+				lResults.add( null );
+			}
+		}
+		
+		if ( lError instanceof IOException )
+		{
+			throw (IOException) lError;
+		}
+		if ( lError instanceof RuntimeException )
+		{
+			throw (RuntimeException) lError;
+		}
+		if ( lError instanceof Error )
+		{
+			throw (Error) lError;
+		}
+		if ( lError != null )
+		{
+			IOException lException = new IOException( "Task failed: " + lError );
+			lException.initCause( lError );
+			throw lException;
+		}
+		return lResults;
+	}
+	
+	/**
+	 * Waits for result of a task. Task can not be abandoned (other threads could still use data it is working on),
+	 * so interruption is remembered and restored after the task is finished.
+	 * 
+	 * @param pFuture Future of the task.
+	 * @return Result of the task.
+	 */
+	private static < T > T getUninterruptibly( Future< T > pFuture ) throws ExecutionException
+	{
+		boolean lIsInterrupted = false;
+		try
+		{
+			while( true )
+			{
+				try
+				{
+					return pFuture.get();
+				}
+				catch( InterruptedException e )
+				{
+					lIsInterrupted = true;
+				}
+			}
+		}
+		finally
+		{
+			if ( lIsInterrupted )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
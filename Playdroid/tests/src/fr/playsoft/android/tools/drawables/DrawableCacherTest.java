@@ -0,0 +1,206 @@
+package fr.playsoft.android.tools.drawables;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Property tests for md5 keys of DrawableCacher. Random ids are checked against the previous parseMD5(), which used
+ * Character.digit() and so also accepted uppercase and non-ASCII digits.
+ * 
+ * @author Olgierd Uzieblo
+ */
+public class DrawableCacherTest extends TestCase
+{
+	/** Number of random ids checked by each test **/
+	private static final int ITERATIONS = 10000;
+	
+	/** Number of characters in md5 id **/
+	private static final int MD5_LENGTH = 32;
+	
+	/** Lowercase hex digits - the only ones parsed into numeric keys **/
+	private static final String LOWERCASE_HEX = "0123456789abcdef";
+	
+	/** Characters accepted by Character.digit() as hex digits that are not lowercase ASCII **/
+	private static final String OTHER_HEX = "ABCDEF\uff10\uff11\uff41\uff21\u0660\u0669\u0966";
+	
+	/** Random with fixed seed, so failures can be repeated **/
+	private Random mRandom;
+	
+	/** Tested cacher **/
+	private DrawableCacher mCacher;
+	
+	/** Private parseMD5() of tested cacher **/
+	private Method mParseMD5;
+	
+	/** Parsed first half of md5 **/
+	private Field mLookupHigh;
+	
+	/** Parsed second half of md5 **/
+	private Field mLookupLow;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		mRandom = new Random( 1234 );
+		mCacher = new DrawableCacher( 16 );
+		mParseMD5 = DrawableCacher.class.getDeclaredMethod( "parseMD5" , String.class );
+		mParseMD5.setAccessible( true );
+		mLookupHigh = DrawableCacher.class.getDeclaredField( "mLookupHigh" );
+		mLookupHigh.setAccessible( true );
+		mLookupLow = DrawableCacher.class.getDeclaredField( "mLookupLow" );
+		mLookupLow.setAccessible( true );
+	}
+	
+	/**
+	 * Lowercase md5 ids are parsed into the same longs as before.
+	 */
+	public void testLowercaseIdsMatchOldParser() throws Exception
+	{
+		long[] lOldKey = new long[ 2 ];
+		for ( int i = 0; i < ITERATIONS; i++ )
+		{
+			String lId = createId( LOWERCASE_HEX , 0 );
+			assertTrue( lId , parseOld( lId , lOldKey ) );
+			assertTrue( lId , parseNew( lId ) );
+			assertEquals( lId , lOldKey[ 0 ] , mLookupHigh.getLong( mCacher ) );
+			assertEquals( lId , lOldKey[ 1 ] , mLookupLow.getLong( mCacher ) );
+		}
+	}
+	
+	/**
+	 * Ids accepted only by the old parser keep their String keys now.
+	 */
+	public void testOtherHexDigitsAreNotParsed() throws Exception
+	{
+		long[] lOldKey = new long[ 2 ];
+		for ( int i = 0; i < ITERATIONS; i++ )
+		{
+			String lId = createId( LOWERCASE_HEX , 1 + mRandom.nextInt( MD5_LENGTH ) );
+			assertTrue( lId , parseOld( lId , lOldKey ) );
+			assertFalse( lId , parseNew( lId ) );
+		}
+	}
+	
+	/**
+	 * Ids rejected by the old parser are still rejected.
+	 */
+	public void testNonHexIdsAreNotParsed() throws Exception
+	{
+		long[] lOldKey = new long[ 2 ];
+		for ( int i = 0; i < ITERATIONS; i++ )
+		{
+			String lId;
+			if ( mRandom.nextBoolean() )
+			{
+				lId = createId( LOWERCASE_HEX , 0 ).substring( 0 , mRandom.nextInt( MD5_LENGTH ) );
+			}
+			else
+			{
+				char[] lChars = createId( LOWERCASE_HEX , 0 ).toCharArray();
+				lChars[ mRandom.nextInt( MD5_LENGTH ) ] = (char) ( 'g' + mRandom.nextInt( 20 ) );
+				lId = new String( lChars );
+			}
+			assertFalse( lId , parseOld( lId , lOldKey ) );
+			assertFalse( lId , parseNew( lId ) );
+		}
+	}
+	
+	/**
+	 * Ids that the old parser mapped to the same key get different Drawables.
+	 */
+	public void testIdsWithEqualOldKeysAreNotMixed() throws Exception
+	{
+		for ( int i = 0; i < ITERATIONS; i++ )
+		{
+			String lId = createId( LOWERCASE_HEX , 0 );
+			String lUppercaseId = lId.toUpperCase();
+			Drawable lDrawable = new ColorDrawable( i );
+			Drawable lUppercaseDrawable = new ColorDrawable( -i );
+			mCacher.addDrawableToCache( lDrawable , lId , 100 , 100 );
+			mCacher.addDrawableToCache( lUppercaseDrawable , lUppercaseId , 100 , 100 );
+			assertSame( lId , lDrawable , mCacher.getDrawableFromCache( lId , 100 , 100 ) );
+			if ( !lUppercaseId.equals( lId ) )
+			{
+				assertSame( lUppercaseId , lUppercaseDrawable , mCacher.getDrawableFromCache( lUppercaseId , 100 , 100 ) );
+			}
+		}
+	}
+	
+	/**
+	 * Creates random md5 id.
+	 * 
+	 * @param pDigits Digits to use.
+	 * @param pOtherCount Number of characters replaced by OTHER_HEX ones.
+	 * @return Id.
+	 */
+	private String createId( String pDigits , int pOtherCount )
+	{
+		char[] lChars = new char[ MD5_LENGTH ];
+		for ( int i = 0; i < MD5_LENGTH; i++ )
+		{
+			lChars[ i ] = pDigits.charAt( mRandom.nextInt( pDigits.length() ) );
+		}
+		for ( int i = 0; i < pOtherCount; i++ )
+		{
+			lChars[ mRandom.nextInt( MD5_LENGTH ) ] = OTHER_HEX.charAt( mRandom.nextInt( OTHER_HEX.length() ) );
+		}
+		if ( pOtherCount > 0 )
+		{
+			// Make sure at least one character was replaced, the same position could be drawn twice
+			lChars[ 0 ] = OTHER_HEX.charAt( mRandom.nextInt( OTHER_HEX.length() ) );
+		}
+		return new String( lChars );
+	}
+	
+	/**
+	 * Parses id with parseMD5() of tested cacher.
+	 * 
+	 * @param pId Id.
+	 * @return True if id was parsed into numeric key.
+	 */
+	private boolean parseNew( String pId ) throws Exception
+	{
+		return ( (Boolean) mParseMD5.invoke( mCacher , pId ) ).booleanValue();
+	}
+	
+	/**
+	 * Previous version of parseMD5().
+	 * 
+	 * @param pId Id.
+	 * @param pKey Array for both halves of parsed key.
+	 * @return True if id was parsed into numeric key.
+	 */
+	private static boolean parseOld( String pId , long[] pKey )
+	{
+		if ( pId.length() != MD5_LENGTH )
+		{
+			return false;
+		}
+		long lHigh = 0;
+		long lLow = 0;
+		for ( int i = 0; i < MD5_LENGTH; i++ )
+		{
+			int lDigit = Character.digit( pId.charAt( i ) , 16 );
+			if ( lDigit < 0 )
+			{
+				return false;
+			}
+			if ( i < MD5_LENGTH / 2 )
+			{
+				lHigh = ( lHigh << 4 ) | lDigit;
+			}
+			else
+			{
+				lLow = ( lLow << 4 ) | lDigit;
+			}
+		}
+		pKey[ 0 ] = lHigh;
+		pKey[ 1 ] = lLow;
+		return true;
+	}
+}